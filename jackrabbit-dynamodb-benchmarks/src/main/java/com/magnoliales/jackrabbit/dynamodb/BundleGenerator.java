@@ -0,0 +1,195 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.Path;
+import org.apache.jackrabbit.spi.PathFactory;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+
+/**
+ * Generates bundles that look like the content of a CMS: nodes with a handful of string properties, nodes with
+ * many properties of all types, folders with long child lists and resources with binaries of different sizes.
+ * The same seed always generates the same bundle.
+ */
+final class BundleGenerator {
+
+    private static final String NAMESPACE = "http://www.magnolia.info/jcr/mgnl";
+    private static final int FEW_PROPERTIES = 5;
+    private static final int MANY_PROPERTIES = 200;
+    private static final int MANY_CHILDREN = 2000;
+    private static final int FEW_CHILDREN = 10;
+    private static final int MULTI_VALUES = 5;
+    private static final int SMALL_BINARY_SIZE = 4 * 1024;
+    private static final int LARGE_BINARY_SIZE = 512 * 1024;
+    private static final int MAX_WORDS = 40;
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int MAX_WORD_LENGTH = 10;
+    private static final int PATH_DEPTH = 4;
+    private static final int[] TYPES = {
+        PropertyType.STRING, PropertyType.BINARY, PropertyType.LONG, PropertyType.DOUBLE, PropertyType.DATE,
+        PropertyType.BOOLEAN, PropertyType.NAME, PropertyType.PATH, PropertyType.REFERENCE,
+        PropertyType.WEAKREFERENCE, PropertyType.URI, PropertyType.DECIMAL
+    };
+
+    private final NameFactory nameFactory = NameFactoryImpl.getInstance();
+    private final PathFactory pathFactory = PathFactoryImpl.getInstance();
+    private final Random random;
+
+    /**
+     * @param seed the seed of the random values
+     */
+    BundleGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @param shape the shape of the bundle
+     * @return a new bundle of that shape
+     * @throws RepositoryException if a value cannot be created
+     */
+    NodePropBundle generate(BundleShape shape) throws RepositoryException {
+        NodePropBundle bundle = new NodePropBundle(new NodeId(random.nextLong(), random.nextLong()));
+        bundle.setParentId(new NodeId(random.nextLong(), random.nextLong()));
+        bundle.setNodeTypeName(nameFactory.create(NAMESPACE, "content"));
+        bundle.setMixinTypeNames(Collections.singleton(NameConstants.MIX_REFERENCEABLE));
+        bundle.setModCount((short) random.nextInt(Short.MAX_VALUE));
+        switch (shape) {
+            case FEW_PROPERTIES:
+                addProperties(bundle, FEW_PROPERTIES, PropertyType.STRING);
+                addChildren(bundle, FEW_CHILDREN);
+                break;
+            case MANY_PROPERTIES:
+                for (int i = 0; i < MANY_PROPERTIES; i++) {
+                    int type = TYPES[random.nextInt(TYPES.length)];
+                    addProperty(bundle, "property" + i, type, type == PropertyType.BINARY ? 1 : MULTI_VALUES,
+                            SMALL_BINARY_SIZE);
+                }
+                addChildren(bundle, FEW_CHILDREN);
+                break;
+            case ALL_TYPES:
+                for (int type : TYPES) {
+                    addProperty(bundle, PropertyType.nameFromValue(type), type, 1, SMALL_BINARY_SIZE);
+                    addProperty(bundle, PropertyType.nameFromValue(type) + "s", type, MULTI_VALUES, SMALL_BINARY_SIZE);
+                }
+                break;
+            case MANY_CHILDREN:
+                addProperties(bundle, FEW_PROPERTIES, PropertyType.STRING);
+                addChildren(bundle, MANY_CHILDREN);
+                break;
+            case SMALL_BINARY:
+                addProperties(bundle, FEW_PROPERTIES, PropertyType.STRING);
+                addProperty(bundle, "data", PropertyType.BINARY, 1, SMALL_BINARY_SIZE);
+                break;
+            case LARGE_BINARY:
+                addProperties(bundle, FEW_PROPERTIES, PropertyType.STRING);
+                addProperty(bundle, "data", PropertyType.BINARY, 1, LARGE_BINARY_SIZE);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        return bundle;
+    }
+
+    private void addProperties(NodePropBundle bundle, int count, int type) throws RepositoryException {
+        for (int i = 0; i < count; i++) {
+            addProperty(bundle, "property" + i, type, 1, 0);
+        }
+    }
+
+    private void addProperty(NodePropBundle bundle, String name, int type, int count, int binarySize)
+            throws RepositoryException {
+        PropertyEntry entry = new PropertyEntry(new PropertyId(bundle.getId(), nameFactory.create(NAMESPACE, name)));
+        entry.setType(type);
+        entry.setMultiValued(count > 1);
+        entry.setModCount((short) random.nextInt(Short.MAX_VALUE));
+        InternalValue[] values = new InternalValue[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = createValue(type, binarySize);
+        }
+        entry.setValues(values);
+        bundle.addProperty(entry);
+    }
+
+    private void addChildren(NodePropBundle bundle, int count) {
+        for (int i = 0; i < count; i++) {
+            bundle.addChildNodeEntry(nameFactory.create(NAMESPACE, createWord() + i),
+                    new NodeId(random.nextLong(), random.nextLong()));
+        }
+    }
+
+    private InternalValue createValue(int type, int binarySize) throws RepositoryException {
+        switch (type) {
+            case PropertyType.STRING:
+                return InternalValue.create(createText());
+            case PropertyType.BINARY:
+                byte[] data = new byte[binarySize];
+                random.nextBytes(data);
+                return InternalValue.create(data);
+            case PropertyType.LONG:
+                return InternalValue.create(random.nextLong());
+            case PropertyType.DOUBLE:
+                return InternalValue.create(random.nextDouble());
+            case PropertyType.DATE:
+                Calendar calendar = Calendar.getInstance();
+                calendar.setTimeInMillis(Math.abs(random.nextLong() % System.currentTimeMillis()));
+                return InternalValue.create(calendar);
+            case PropertyType.BOOLEAN:
+                return InternalValue.create(random.nextBoolean());
+            case PropertyType.NAME:
+                return InternalValue.create(nameFactory.create(NAMESPACE, createWord()));
+            case PropertyType.PATH:
+                Path path = pathFactory.getRootPath();
+                for (int i = 0; i < PATH_DEPTH; i++) {
+                    path = pathFactory.create(path, nameFactory.create(NAMESPACE, createWord()), true);
+                }
+                return InternalValue.create(path);
+            case PropertyType.REFERENCE:
+                return InternalValue.create(new NodeId(random.nextLong(), random.nextLong()));
+            case PropertyType.WEAKREFERENCE:
+                return InternalValue.create(new NodeId(random.nextLong(), random.nextLong()), true);
+            case PropertyType.URI:
+                return InternalValue.create(URI.create("http://www.example.com/" + createWord()));
+            case PropertyType.DECIMAL:
+                return InternalValue.create(new BigDecimal(random.nextLong()).movePointLeft(MULTI_VALUES));
+            default:
+                throw new IllegalArgumentException("Unsupported type " + type);
+        }
+    }
+
+    private String createText() {
+        int words = 1 + random.nextInt(MAX_WORDS);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(createWord());
+        }
+        return text.toString();
+    }
+
+    private String createWord() {
+        int length = MIN_WORD_LENGTH + random.nextInt(MAX_WORD_LENGTH - MIN_WORD_LENGTH);
+        char[] word = new char[length];
+        for (int i = 0; i < length; i++) {
+            word[i] = (char) ('a' + random.nextInt('z' - 'a' + 1));
+        }
+        return new String(word);
+    }
+}
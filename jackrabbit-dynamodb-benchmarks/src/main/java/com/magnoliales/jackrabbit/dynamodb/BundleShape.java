@@ -0,0 +1,37 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+/**
+ * Shapes of the bundles generated by {@link BundleGenerator}.
+ */
+public enum BundleShape {
+
+    /**
+     * A few short string properties and a few children.
+     */
+    FEW_PROPERTIES,
+
+    /**
+     * Many properties of random types, mostly multi-valued.
+     */
+    MANY_PROPERTIES,
+
+    /**
+     * A single and a multi-valued property of every property type.
+     */
+    ALL_TYPES,
+
+    /**
+     * A few properties and a long list of children.
+     */
+    MANY_CHILDREN,
+
+    /**
+     * A few properties and a binary of 4 KB.
+     */
+    SMALL_BINARY,
+
+    /**
+     * A few properties and a binary of 512 KB.
+     */
+    LARGE_BINARY
+}
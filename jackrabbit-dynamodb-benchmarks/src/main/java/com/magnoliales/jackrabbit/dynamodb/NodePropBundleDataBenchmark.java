@@ -0,0 +1,106 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.jcr.RepositoryException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization and deserialization of {@link NodePropBundleData} with the object mapper of
+ * {@link JsonBundleCodec}, with the binary format of {@link BinaryBundleCodec} as a baseline. The item benchmarks
+ * compare reading a loaded item through a JSON string and the transfer objects with the single pass
+ * {@link BundleDataReader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodePropBundleDataBenchmark {
+
+    private static final long SEED = 42L;
+
+    @Param
+    private BundleShape shape;
+
+    private ObjectMapper mapper;
+    private DynamoDBPersistenceManager pm;
+    private BinaryBundleCodec binaryBundleCodec;
+    private JsonBundleCodec jsonBundleCodec;
+    private NodePropBundle bundle;
+    private String json;
+    private byte[] binary;
+    private Item item;
+
+    @Setup
+    public void setUp() throws IOException, RepositoryException, ItemStateException {
+        mapper = JsonBundleCodec.createObjectMapper();
+        pm = new DynamoDBPersistenceManager();
+        binaryBundleCodec = new BinaryBundleCodec();
+        bundle = new BundleGenerator(SEED).generate(shape);
+        json = mapper.writeValueAsString(new NodePropBundleData(bundle));
+        binary = binaryBundleCodec.encode(bundle);
+        jsonBundleCodec = new JsonBundleCodec(pm);
+        Item written = new Item().withPrimaryKey(DynamoDBPersistenceManager.ID_ATTRIBUTE, bundle.getId().toString());
+        jsonBundleCodec.write(bundle, written);
+        item = ItemUtils.toItem(ItemUtils.toAttributeValues(written));
+    }
+
+    @Benchmark
+    public String serialize() throws IOException, RepositoryException {
+        return mapper.writeValueAsString(new NodePropBundleData(bundle));
+    }
+
+    @Benchmark
+    public NodePropBundle deserialize() throws IOException, URISyntaxException, ItemStateException, ParseException {
+        return mapper.readValue(json, NodePropBundleData.class).toNodePropBundle(pm, bundle.getId());
+    }
+
+    @Benchmark
+    public NodePropBundle roundTrip() throws IOException, RepositoryException, URISyntaxException,
+            ItemStateException, ParseException {
+        String data = mapper.writeValueAsString(new NodePropBundleData(bundle));
+        return mapper.readValue(data, NodePropBundleData.class).toNodePropBundle(pm, bundle.getId());
+    }
+
+    @Benchmark
+    public NodePropBundle deserializeItem() throws ItemStateException {
+        return jsonBundleCodec.read(bundle.getId(), item);
+    }
+
+    @Benchmark
+    public NodePropBundle deserializeItemViaJson() throws IOException, URISyntaxException, ItemStateException,
+            ParseException {
+        return mapper.readValue(item.getJSON(JsonBundleCodec.DATA_ATTRIBUTE), NodePropBundleData.class)
+                .toNodePropBundle(pm, bundle.getId());
+    }
+
+    @Benchmark
+    public byte[] serializeBinary() throws IOException, RepositoryException {
+        return binaryBundleCodec.encode(bundle);
+    }
+
+    @Benchmark
+    public NodePropBundle deserializeBinary() throws IOException, URISyntaxException {
+        return binaryBundleCodec.decode(bundle.getId(), binary);
+    }
+}
@@ -0,0 +1,423 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.management.JMX;
+import javax.management.MalformedObjectNameException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs JCR workloads against a repository whose persistence managers keep their tables in {@link InMemoryDynamoDB},
+ * so that the whole stack from the session down to the DynamoDB requests can be measured without AWS: importing a
+ * tree, traversing it, concurrent editing of random nodes and deleting the tree.
+ *
+ * <p>
+ * The repository is configured by the <code>repository.xml</code> of the tests of the persistence manager, which
+ * the build adds to the harness, or by another configuration file. The DynamoDB persistence managers and data
+ * stores of the configuration get the {@link InMemoryClientFactory}. A workspace template with a fixed table name
+ * gets the workspace name as well, so that its workspaces share the table instead of overwriting each other's items.
+ * The persistence managers create their tables and side tables themselves, with the key layout of their workspace.
+ * The search indexes are left out, so that the workloads measure the persistence managers and the data store only.
+ *
+ * <p>
+ * Takes <code>name=value</code> arguments:
+ * <ul>
+ * <li><code>configuration=</code> the path of the repository configuration, empty for the one of the tests
+ * <li><code>pm.&lt;name&gt;=&lt;value&gt;</code> a parameter of every DynamoDB persistence manager, e.g.
+ * <code>pm.childPageSize=20</code> or <code>pm.referenceItems=true</code> to exercise the side tables
+ * <li><code>searchIndex=false</code> true to keep the search indexes of the configuration
+ * <li><code>fanOut=10</code> the number of children of every node of the tree
+ * <li><code>depth=3</code> the number of levels of the tree
+ * <li><code>saveEvery=100</code> the number of nodes imported per save
+ * <li><code>threads=4</code> the number of concurrent editors
+ * <li><code>edits=2000</code> the number of edits of every editor
+ * <li><code>binarySize=8192</code> the size of the binary of every leaf, 0 for no binaries
+ * <li><code>latency=0</code>, <code>jitter=0</code>, <code>throttleRate=0</code>, <code>failureRate=0</code>
+ * the behaviour of the stand-in, see {@link InMemoryDynamoDB}
+ * </ul>
+ * Every workload reports its throughput and the latency percentiles of its operations, followed by the request
+ * counts the persistence managers publish over JMX.
+ */
+public final class WorkloadHarness {
+
+    private static final String CONFIGURATION = "/repository.xml";
+    private static final String PARAMETER_PREFIX = "pm.";
+    private static final String WORKSPACE_NAME = "${wsp.name}";
+    private static final double NANOS_PER_MILLI = 1e6;
+    private static final double P50 = 0.5;
+    private static final double P99 = 0.99;
+    private static final double P999 = 0.999;
+
+    private final Map<String, String> options;
+    private final Random random = new Random(1L);
+
+    private WorkloadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 1) {
+                throw new IllegalArgumentException("Expected name=value but got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        new WorkloadHarness(options).run();
+    }
+
+    private void run() throws RepositoryException, IOException, InterruptedException, ExecutionException,
+            ParserConfigurationException, SAXException, TransformerException {
+        InMemoryDynamoDB dynamoDB = InMemoryDynamoDB.getShared();
+        dynamoDB.clear();
+        dynamoDB.setLatency(getLong("latency", 0));
+        dynamoDB.setJitter(getLong("jitter", 0));
+        dynamoDB.setThrottleRate(getDouble("throttleRate", 0));
+        dynamoDB.setFailureRate(getDouble("failureRate", 0));
+        byte[] configuration = getConfiguration();
+
+        Path home = Files.createTempDirectory("workload-harness");
+        RepositoryImpl repository = null;
+        try {
+            repository = RepositoryImpl.create(RepositoryConfig.create(new ByteArrayInputStream(configuration),
+                    home.toString()));
+            Session session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+            try {
+                int fanOut = (int) getLong("fanOut", 10);
+                int depth = (int) getLong("depth", 3);
+                List<String> paths = importTree(session, fanOut, depth);
+                traverse(repository);
+                edit(repository, paths);
+                delete(session);
+            } finally {
+                session.logout();
+            }
+            printRequestCounts();
+        } finally {
+            if (repository != null) {
+                repository.shutdown();
+            }
+            deleteRecursively(home);
+        }
+    }
+
+    /**
+     * Import a tree with the given fan out and depth, saving every <code>saveEvery</code> nodes.
+     * @return the paths of all imported nodes
+     */
+    private List<String> importTree(Session session, int fanOut, int depth) throws RepositoryException {
+        int saveEvery = (int) getLong("saveEvery", 100);
+        byte[] binary = new byte[(int) getLong("binarySize", 8192)];
+        random.nextBytes(binary);
+        Histogram histogram = new Histogram();
+        List<String> paths = new ArrayList<>();
+        List<Node> level = new ArrayList<>();
+        level.add(session.getRootNode().addNode("workload", "nt:unstructured"));
+        session.save();
+        int unsaved = 0;
+        long start = System.nanoTime();
+        for (int d = 1; d <= depth; d++) {
+            List<Node> next = new ArrayList<>();
+            for (Node parent : level) {
+                for (int i = 0; i < fanOut; i++) {
+                    Node node = parent.addNode("node" + i, "nt:unstructured");
+                    node.setProperty("title", "Node " + i + " on level " + d);
+                    node.setProperty("level", d);
+                    node.setProperty("created", Calendar.getInstance());
+                    node.setProperty("tags", new String[] {"workload", "level" + d, "node" + i});
+                    if (d == depth && binary.length > 0) {
+                        node.setProperty("data", session.getValueFactory().createBinary(
+                                new ByteArrayInputStream(binary)));
+                    }
+                    paths.add(node.getPath());
+                    next.add(node);
+                    if (++unsaved == saveEvery) {
+                        save(session, histogram);
+                        unsaved = 0;
+                    }
+                }
+            }
+            level = next;
+        }
+        save(session, histogram);
+        report("import (per save of " + saveEvery + " nodes)", histogram, System.nanoTime() - start);
+        return paths;
+    }
+
+    /**
+     * Read every node and property of the tree in a fresh session, so that nothing is served from the session.
+     */
+    private void traverse(RepositoryImpl repository) throws RepositoryException {
+        Session session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+        try {
+            Histogram histogram = new Histogram();
+            long start = System.nanoTime();
+            traverse(session.getNode("/workload"), histogram);
+            report("traversal (per node)", histogram, System.nanoTime() - start);
+        } finally {
+            session.logout();
+        }
+    }
+
+    private void traverse(Node node, Histogram histogram) throws RepositoryException {
+        long start = System.nanoTime();
+        for (PropertyIterator properties = node.getProperties(); properties.hasNext();) {
+            Property property = properties.nextProperty();
+            if (property.isMultiple()) {
+                property.getValues();
+            } else {
+                property.getValue();
+            }
+        }
+        NodeIterator children = node.getNodes();
+        histogram.record(System.nanoTime() - start);
+        while (children.hasNext()) {
+            traverse(children.nextNode(), histogram);
+        }
+    }
+
+    /**
+     * Let concurrent editors change random nodes, every editor in its own session. Edits that conflict with the
+     * edit of another session are counted and dropped.
+     */
+    private void edit(final RepositoryImpl repository, final List<String> paths)
+            throws InterruptedException, ExecutionException {
+        int threads = (int) getLong("threads", 4);
+        final int edits = (int) getLong("edits", 2000);
+        final Histogram histogram = new Histogram();
+        final AtomicLong conflicts = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final Random editorRandom = new Random(random.nextLong());
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws RepositoryException {
+                    Session session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+                    try {
+                        for (int i = 0; i < edits; i++) {
+                            Node node = session.getNode(paths.get(editorRandom.nextInt(paths.size())));
+                            node.setProperty("title", "Edit " + i);
+                            node.setProperty("modified", Calendar.getInstance());
+                            try {
+                                save(session, histogram);
+                            } catch (InvalidItemStateException e) {
+                                conflicts.incrementAndGet();
+                                session.refresh(false);
+                            }
+                        }
+                    } finally {
+                        session.logout();
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        report("concurrent edits (" + threads + " threads, " + conflicts.get() + " conflicts)", histogram,
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Delete the subtrees of the tree one by one.
+     */
+    private void delete(Session session) throws RepositoryException {
+        Histogram histogram = new Histogram();
+        long start = System.nanoTime();
+        Node root = session.getNode("/workload");
+        List<Node> subtrees = new ArrayList<>();
+        for (NodeIterator children = root.getNodes(); children.hasNext();) {
+            subtrees.add(children.nextNode());
+        }
+        for (Node subtree : subtrees) {
+            subtree.remove();
+            save(session, histogram);
+        }
+        root.remove();
+        save(session, histogram);
+        report("delete (per subtree)", histogram, System.nanoTime() - start);
+    }
+
+    private static void save(Session session, Histogram histogram) throws RepositoryException {
+        long start = System.nanoTime();
+        session.save();
+        histogram.record(System.nanoTime() - start);
+    }
+
+    private static void report(String workload, Histogram histogram, long elapsed) {
+        double seconds = elapsed / NANOS_PER_MILLI / TimeUnit.SECONDS.toMillis(1);
+        System.out.printf("%-60s %8d ops %10.1f ops/s   p50 %8.3f ms   p99 %8.3f ms   p999 %8.3f ms   max %8.3f ms%n",
+                workload, histogram.getCount(), histogram.getCount() / seconds,
+                histogram.getValueAt(P50) / NANOS_PER_MILLI, histogram.getValueAt(P99) / NANOS_PER_MILLI,
+                histogram.getValueAt(P999) / NANOS_PER_MILLI, histogram.getMax() / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Print the request counts of the persistence managers, as published by their MBeans.
+     */
+    private static void printRequestCounts() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (ObjectName name : server.queryNames(
+                    new ObjectName("com.magnoliales.jackrabbit.dynamodb:type=PersistenceManager,*"), null)) {
+                DynamoDBMetricsMXBean metrics = JMX.newMXBeanProxy(server, name, DynamoDBMetricsMXBean.class);
+                System.out.println(metrics.getTableName() + " " + metrics.getCounts());
+            }
+        } catch (MalformedObjectNameException e) {
+            System.out.println("Cannot read the metrics of the persistence managers: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the repository configuration, point its DynamoDB persistence managers and data stores to the stand-in
+     * and leave out the search indexes unless they're asked for.
+     * @return the adapted configuration
+     */
+    private byte[] getConfiguration() throws IOException, ParserConfigurationException, SAXException,
+            TransformerException {
+        String path = options.get("configuration");
+        Document document;
+        try (InputStream input = path == null || path.isEmpty()
+                ? WorkloadHarness.class.getResourceAsStream(CONFIGURATION) : Files.newInputStream(Paths.get(path))) {
+            if (input == null) {
+                throw new IOException("Cannot find the repository configuration " + CONFIGURATION);
+            }
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
+        }
+        NodeList nodes = document.getElementsByTagName("*");
+        List<Element> elements = new ArrayList<>();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            elements.add((Element) nodes.item(i));
+        }
+        boolean searchIndex = Boolean.parseBoolean(options.get("searchIndex"));
+        for (Element element : elements) {
+            if (!searchIndex && "SearchIndex".equals(element.getNodeName())) {
+                element.getParentNode().removeChild(element);
+                continue;
+            }
+            String className = element.getAttribute("class");
+            if (DynamoDBDataStore.class.getName().equals(className)) {
+                setParameter(element, "clientFactory", InMemoryClientFactory.class.getName());
+            }
+            if (!DynamoDBPersistenceManager.class.getName().equals(className)) {
+                continue;
+            }
+            setParameter(element, "clientFactory", InMemoryClientFactory.class.getName());
+            String tableName = getParameter(element, "table");
+            if ("Workspace".equals(element.getParentNode().getNodeName()) && getParameter(element, "workspace") == null
+                    && (tableName == null || !tableName.contains(WORKSPACE_NAME))) {
+                setParameter(element, "workspace", WORKSPACE_NAME);
+            }
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                if (option.getKey().startsWith(PARAMETER_PREFIX)) {
+                    setParameter(element, option.getKey().substring(PARAMETER_PREFIX.length()), option.getValue());
+                }
+            }
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document),
+                new StreamResult(output));
+        return output.toByteArray();
+    }
+
+    private static String getParameter(Element element, String name) {
+        NodeList parameters = element.getElementsByTagName("param");
+        for (int i = 0; i < parameters.getLength(); i++) {
+            Element parameter = (Element) parameters.item(i);
+            if (name.equals(parameter.getAttribute("name"))) {
+                return parameter.getAttribute("value");
+            }
+        }
+        return null;
+    }
+
+    private static void setParameter(Element element, String name, String value) {
+        NodeList parameters = element.getElementsByTagName("param");
+        for (int i = 0; i < parameters.getLength(); i++) {
+            Element parameter = (Element) parameters.item(i);
+            if (name.equals(parameter.getAttribute("name"))) {
+                parameter.setAttribute("value", value);
+                return;
+            }
+        }
+        Element parameter = element.getOwnerDocument().createElement("param");
+        parameter.setAttribute("name", name);
+        parameter.setAttribute("value", value);
+        element.appendChild(parameter);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private long getLong(String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
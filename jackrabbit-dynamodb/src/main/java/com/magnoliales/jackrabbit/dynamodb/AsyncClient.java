@@ -0,0 +1,179 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous client on top of a synchronous one, which sends the requests from a fixed pool of threads, so that
+ * at most as many requests are in flight as there are threads. This is what the SDK's asynchronous client does as
+ * well, but the requests still pass through the decorators of the synchronous client, i.e. they are instrumented,
+ * rate limited and sent to the client of the configured {@link DynamoDBClientFactory}.
+ *
+ * <p>
+ * Only the item requests used by the persistence manager are supported, all other requests fail with an
+ * {@link UnsupportedOperationException}.
+ */
+final class AsyncClient extends AbstractAmazonDynamoDBAsync {
+
+    private final AmazonDynamoDB client;
+    private final ExecutorService executor;
+
+    /**
+     * @param client the client to send the requests with
+     * @param tableName the name of the table, used to name the threads
+     * @param threads the number of threads, which is the maximum number of requests in flight
+     */
+    AsyncClient(AmazonDynamoDB client, String tableName, int threads) {
+        this.client = client;
+        final String threadName = "dynamodb-requests-" + tableName + "-";
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public Future<GetItemResult> getItemAsync(final GetItemRequest request,
+                                              AsyncHandler<GetItemRequest, GetItemResult> handler) {
+        return submit(request, handler, new Callable<GetItemResult>() {
+            @Override
+            public GetItemResult call() {
+                return client.getItem(request);
+            }
+        });
+    }
+
+    @Override
+    public Future<BatchGetItemResult> batchGetItemAsync(final BatchGetItemRequest request,
+                                                        AsyncHandler<BatchGetItemRequest, BatchGetItemResult> handler) {
+        return submit(request, handler, new Callable<BatchGetItemResult>() {
+            @Override
+            public BatchGetItemResult call() {
+                return client.batchGetItem(request);
+            }
+        });
+    }
+
+    @Override
+    public Future<PutItemResult> putItemAsync(final PutItemRequest request,
+                                              AsyncHandler<PutItemRequest, PutItemResult> handler) {
+        return submit(request, handler, new Callable<PutItemResult>() {
+            @Override
+            public PutItemResult call() {
+                return client.putItem(request);
+            }
+        });
+    }
+
+    @Override
+    public Future<UpdateItemResult> updateItemAsync(final UpdateItemRequest request,
+                                                    AsyncHandler<UpdateItemRequest, UpdateItemResult> handler) {
+        return submit(request, handler, new Callable<UpdateItemResult>() {
+            @Override
+            public UpdateItemResult call() {
+                return client.updateItem(request);
+            }
+        });
+    }
+
+    @Override
+    public Future<DeleteItemResult> deleteItemAsync(final DeleteItemRequest request,
+                                                    AsyncHandler<DeleteItemRequest, DeleteItemResult> handler) {
+        return submit(request, handler, new Callable<DeleteItemResult>() {
+            @Override
+            public DeleteItemResult call() {
+                return client.deleteItem(request);
+            }
+        });
+    }
+
+    @Override
+    public Future<BatchWriteItemResult> batchWriteItemAsync(final BatchWriteItemRequest request,
+            AsyncHandler<BatchWriteItemRequest, BatchWriteItemResult> handler) {
+        return submit(request, handler, new Callable<BatchWriteItemResult>() {
+            @Override
+            public BatchWriteItemResult call() {
+                return client.batchWriteItem(request);
+            }
+        });
+    }
+
+    /**
+     * Stop the threads, requests that haven't been sent yet are cancelled. The synchronous client stays open.
+     */
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private <Q extends AmazonWebServiceRequest, R> Future<R> submit(Q request, AsyncHandler<Q, R> handler,
+                                                                    Callable<R> call) {
+        Request<Q, R> task = new Request<>(request, handler, call);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Request that notifies its handler once it's done.
+     */
+    private static final class Request<Q extends AmazonWebServiceRequest, R> extends FutureTask<R> {
+
+        private final Q request;
+        private final AsyncHandler<Q, R> handler;
+
+        private Request(Q request, AsyncHandler<Q, R> handler, Callable<R> call) {
+            super(call);
+            this.request = request;
+            this.handler = handler;
+        }
+
+        @Override
+        protected void done() {
+            if (handler == null || isCancelled()) {
+                return;
+            }
+            R result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    handler.onError((Exception) e.getCause());
+                }
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            handler.onSuccess(request, result);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import org.apache.jackrabbit.core.cluster.UpdateEventChannel;
+import org.apache.jackrabbit.core.persistence.bundle.ConsistencyCheckerImpl;
+import org.apache.jackrabbit.core.persistence.check.ConsistencyCheckListener;
+import org.apache.jackrabbit.core.persistence.check.ReportItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Consistency check of a bundle table that runs in the background instead of blocking the initialization of the
+ * persistence manager.
+ *
+ * <p>
+ * The table is split into scan segments which are checked in parallel, a page of node ids at a time, with the
+ * bundle consistency checker of Jackrabbit. After every page a segment saves a checkpoint with its last evaluated
+ * key to the checkpoint table, so that a check interrupted by a restart resumes where it stopped. A check whose
+ * segments are all complete, or that was started with another number of segments, starts over. In a table shared
+ * by several workspaces the segments are ranges of ids queried from the item collection of the workspace.
+ *
+ * <p>
+ * With a capacity the scans and checkpoints go through a {@link RateLimitedClient}, and every page takes a low
+ * priority token per node from the same read bucket before its bundles are read, which caps the check at that
+ * capacity. The bundles are read through the client of the persistence manager, which takes their tokens from the
+ * buckets of the table with rate limiting enabled, at low priority, so that the check doesn't compete with
+ * interactive reads. Findings are logged and kept in memory, the checkpoints only count them. A check that repairs
+ * its findings checks and repairs every page while holding the lock of the persistence manager, so the stores of
+ * the repository wait for the page.
+ *
+ * <p>
+ * A segment that fails is retried from its last checkpoint with an exponential back off, and after
+ * {@value #MAX_ATTEMPTS} failed attempts in a row it is counted as failed until the check is started again.
+ */
+class BackgroundChecker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundChecker.class);
+    private static final int PAGE_SIZE = 100;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENTS_ATTRIBUTE = "segments";
+    private static final String LAST_KEY_ATTRIBUTE = "lastKey";
+    private static final String NODES_ATTRIBUTE = "nodes";
+    private static final String FINDINGS_ATTRIBUTE = "findings";
+    private static final String COMPLETE_ATTRIBUTE = "complete";
+    private static final long CLOSE_TIMEOUT = 5000L;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long INITIAL_PAUSE = 1000L;
+
+    private final DynamoDBPersistenceManager persistenceManager;
+    private final AmazonDynamoDB client;
+    private final TableKeys tableKeys;
+    private final String tableName;
+    private final String checkTableName;
+    private final int segments;
+    private final boolean fix;
+    private final UpdateEventChannel eventChannel;
+    private final TokenBucket reads;
+    private final AtomicLong checkedNodes = new AtomicLong();
+    private final AtomicLong findingCount = new AtomicLong();
+    private final AtomicInteger completedSegments = new AtomicInteger();
+    private final AtomicInteger failedSegments = new AtomicInteger();
+    private final List<ReportItem> findings = Collections.synchronizedList(new ArrayList<ReportItem>());
+    private final ExecutorService executor;
+    private volatile boolean closed;
+
+    /**
+     * @param persistenceManager the persistence manager of the bundle table
+     * @param client the client
+     * @param tableKeys the keys of both tables
+     * @param tableName the name of the bundle table
+     * @param checkTableName the name of the checkpoint table
+     * @param segments the number of segments checked in parallel
+     * @param capacityUnits the read capacity units per second of the check, 0 for no limit
+     * @param fix if the check repairs the inconsistencies it finds
+     * @param eventChannel the channel that announces repairs to the cluster, or null
+     */
+    BackgroundChecker(DynamoDBPersistenceManager persistenceManager, AmazonDynamoDB client, TableKeys tableKeys,
+                      String tableName, String checkTableName, int segments, long capacityUnits, boolean fix,
+                      UpdateEventChannel eventChannel) {
+        this.persistenceManager = persistenceManager;
+        this.tableKeys = tableKeys;
+        this.tableName = tableName;
+        this.checkTableName = checkTableName;
+        this.segments = tableKeys.getSegments(segments);
+        this.fix = fix;
+        this.eventChannel = eventChannel;
+        if (capacityUnits > 0) {
+            reads = new TokenBucket("consistency check reads of " + tableName, capacityUnits);
+            this.client = RateLimitedClient.wrap(client, reads,
+                    new TokenBucket("consistency check writes of " + tableName, capacityUnits));
+        } else {
+            reads = null;
+            this.client = client;
+        }
+        final String threadName = "dynamodb-check-" + tableName + "-";
+        executor = Executors.newFixedThreadPool(this.segments, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Resume the check from the checkpoints, or start a new one, and return right away.
+     * @throws AmazonClientException if the checkpoints cannot be read or written
+     */
+    void start() {
+        List<Map<String, AttributeValue>> checkpoints = new ArrayList<>();
+        boolean resume = false;
+        for (int segment = 0; segment < segments; segment++) {
+            Map<String, AttributeValue> checkpoint = client.getItem(new GetItemRequest()
+                    .withTableName(checkTableName)
+                    .withKey(getKey(segment))
+                    .withConsistentRead(true)).getItem();
+            AttributeValue started = checkpoint == null ? null : checkpoint.get(SEGMENTS_ATTRIBUTE);
+            if (started == null || !String.valueOf(segments).equals(started.getN())) {
+                resume = false;
+                break;
+            }
+            resume |= !isComplete(checkpoint);
+            checkpoints.add(checkpoint);
+        }
+        if (!resume) {
+            LOGGER.info("Starting consistency check of table {} with {} segments", tableName, segments);
+            checkpoints.clear();
+            for (int segment = 0; segment < segments; segment++) {
+                Map<String, AttributeValue> checkpoint = new HashMap<>(getKey(segment));
+                checkpoint.put(SEGMENTS_ATTRIBUTE, new AttributeValue().withN(String.valueOf(segments)));
+                checkpoint.put(NODES_ATTRIBUTE, new AttributeValue().withN("0"));
+                checkpoint.put(FINDINGS_ATTRIBUTE, new AttributeValue().withN("0"));
+                checkpoint.put(COMPLETE_ATTRIBUTE, new AttributeValue().withBOOL(false));
+                client.putItem(new PutItemRequest(checkTableName, checkpoint));
+                checkpoints.add(checkpoint);
+            }
+        }
+        for (int segment = 0; segment < segments; segment++) {
+            final int current = segment;
+            Map<String, AttributeValue> checkpoint = checkpoints.get(segment);
+            checkedNodes.addAndGet(Long.parseLong(checkpoint.get(NODES_ATTRIBUTE).getN()));
+            findingCount.addAndGet(Long.parseLong(checkpoint.get(FINDINGS_ATTRIBUTE).getN()));
+            if (isComplete(checkpoint)) {
+                completedSegments.incrementAndGet();
+                continue;
+            }
+            AttributeValue lastKey = checkpoint.get(LAST_KEY_ATTRIBUTE);
+            final Map<String, AttributeValue> startKey = lastKey == null ? null : tableKeys.getKey(lastKey.getS());
+            if (resume) {
+                LOGGER.info("Resuming consistency check of segment {} of table {}", segment, tableName);
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    checkSegment(current, startKey);
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Stop the check, it resumes from the last checkpoints when it's started again.
+     */
+    void close() {
+        closed = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the number of nodes checked so far, including those checked before a restart
+     */
+    long getCheckedNodes() {
+        return checkedNodes.get();
+    }
+
+    /**
+     * @return the number of inconsistencies found so far, including those found before a restart
+     */
+    long getFindingCount() {
+        return findingCount.get();
+    }
+
+    /**
+     * @return the inconsistencies found since the check was started or resumed
+     */
+    List<ReportItem> getFindings() {
+        synchronized (findings) {
+            return new ArrayList<>(findings);
+        }
+    }
+
+    /**
+     * @return the number of segments that are completely checked
+     */
+    int getCompletedSegments() {
+        return completedSegments.get();
+    }
+
+    /**
+     * @return the number of segments that failed repeatedly and are not checked any more until the next start
+     */
+    int getFailedSegments() {
+        return failedSegments.get();
+    }
+
+    /**
+     * @return the number of segments
+     */
+    int getSegments() {
+        return segments;
+    }
+
+    /**
+     * Check a segment page by page, and retry a failed page from the last checkpoint.
+     */
+    private void checkSegment(int segment, Map<String, AttributeValue> startKey) {
+        Map<String, AttributeValue> lastKey = startKey;
+        boolean more = true;
+        int failures = 0;
+        long pause = INITIAL_PAUSE;
+        try {
+            while (more && !closed) {
+                try {
+                    lastKey = checkPage(segment, lastKey);
+                    more = lastKey != null;
+                    failures = 0;
+                    pause = INITIAL_PAUSE;
+                } catch (AmazonClientException | RepositoryException e) {
+                    if (++failures == MAX_ATTEMPTS) {
+                        failedSegments.incrementAndGet();
+                        LOGGER.error("Consistency check of segment " + segment + " of table " + tableName
+                                + " failed " + failures + " times", e);
+                        return;
+                    }
+                    LOGGER.warn("Consistency check of segment " + segment + " of table " + tableName
+                            + " failed, retrying in " + pause + " ms", e);
+                    Thread.sleep(pause);
+                    pause *= 2;
+                }
+            }
+            if (!more) {
+                completedSegments.incrementAndGet();
+                LOGGER.info("Consistency check of segment {} of table {} is complete", segment, tableName);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check the page of a segment after the given key and save the checkpoint.
+     * @return the last evaluated key of the page, or null if it's the last page of the segment
+     */
+    private Map<String, AttributeValue> checkPage(int segment, Map<String, AttributeValue> startKey)
+            throws RepositoryException, InterruptedException {
+        List<Map<String, AttributeValue>> items;
+        Map<String, AttributeValue> lastKey;
+        if (tableKeys.isShared()) {
+            QueryResult result = client.query(tableKeys.getQueryRequest(tableName, segment, segments)
+                    .withProjectionExpression(tableKeys.getProjection(DynamoDBPersistenceManager.ID_ATTRIBUTE))
+                    .withLimit(PAGE_SIZE)
+                    .withExclusiveStartKey(startKey));
+            items = result.getItems();
+            lastKey = result.getLastEvaluatedKey();
+        } else {
+            ScanResult result = client.scan(new ScanRequest()
+                    .withTableName(tableName)
+                    .withSegment(segment)
+                    .withTotalSegments(segments)
+                    .withProjectionExpression(DynamoDBPersistenceManager.ID_ATTRIBUTE)
+                    .withLimit(PAGE_SIZE)
+                    .withExclusiveStartKey(startKey));
+            items = result.getItems();
+            lastKey = result.getLastEvaluatedKey();
+        }
+        String[] uuids = new String[items.size()];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = items.get(i).get(DynamoDBPersistenceManager.ID_ATTRIBUTE).getS();
+        }
+        int found = uuids.length == 0 ? 0 : check(uuids);
+        saveCheckpoint(segment, lastKey, uuids.length, found);
+        return lastKey;
+    }
+
+    private int check(String[] uuids) throws RepositoryException, InterruptedException {
+        if (reads != null) {
+            reads.acquire(uuids.length, true);
+        }
+        ConsistencyCheckerImpl checker = new ConsistencyCheckerImpl(persistenceManager, new Listener(), null,
+                eventChannel);
+        RateLimitedClient.setLowPriority(true);
+        try {
+            if (fix) {
+                persistenceManager.checkAndRepair(checker, uuids);
+            } else {
+                checker.check(uuids, false);
+                checker.doubleCheckErrors();
+            }
+        } finally {
+            RateLimitedClient.setLowPriority(false);
+        }
+        int found = 0;
+        for (ReportItem item : checker.getReport().getItems()) {
+            LOGGER.warn("Consistency check of table {} found {}", tableName, item);
+            findings.add(item);
+            found++;
+        }
+        return found;
+    }
+
+    private void saveCheckpoint(int segment, Map<String, AttributeValue> lastKey, int nodes, int found) {
+        Map<String, String> names = new HashMap<>();
+        names.put("#s", SEGMENTS_ATTRIBUTE);
+        names.put("#n", NODES_ATTRIBUTE);
+        names.put("#f", FINDINGS_ATTRIBUTE);
+        names.put("#c", COMPLETE_ATTRIBUTE);
+        names.put("#k", LAST_KEY_ATTRIBUTE);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":s", new AttributeValue().withN(String.valueOf(segments)));
+        values.put(":n", new AttributeValue().withN(String.valueOf(nodes)));
+        values.put(":f", new AttributeValue().withN(String.valueOf(found)));
+        values.put(":c", new AttributeValue().withBOOL(lastKey == null));
+        String expression = "SET #s = :s, #c = :c";
+        if (lastKey == null) {
+            expression += " REMOVE #k";
+        } else {
+            expression += ", #k = :k";
+            values.put(":k", lastKey.get(DynamoDBPersistenceManager.ID_ATTRIBUTE));
+        }
+        client.updateItem(new UpdateItemRequest()
+                .withTableName(checkTableName)
+                .withKey(getKey(segment))
+                .withUpdateExpression(expression + " ADD #n :n, #f :f")
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values));
+        checkedNodes.addAndGet(nodes);
+        findingCount.addAndGet(found);
+    }
+
+    private Map<String, AttributeValue> getKey(int segment) {
+        return tableKeys.getKey(SEGMENT_PREFIX + segment);
+    }
+
+    private static boolean isComplete(Map<String, AttributeValue> checkpoint) {
+        AttributeValue complete = checkpoint.get(COMPLETE_ATTRIBUTE);
+        return complete != null && Boolean.TRUE.equals(complete.getBOOL());
+    }
+
+    /**
+     * Logs the progress of the Jackrabbit checker, its findings are taken from the report once it's done.
+     */
+    private final class Listener implements ConsistencyCheckListener {
+
+        @Override
+        public void startCheck(String id) {
+            LOGGER.trace("Checking {}", id);
+        }
+
+        @Override
+        public void report(ReportItem item) {
+            LOGGER.debug("Possible inconsistency in table {}: {}", tableName, item);
+        }
+
+        @Override
+        public void error(String id, String message) {
+            LOGGER.warn("Consistency check of table " + tableName + " at " + id + ": " + message);
+        }
+
+        @Override
+        public void info(String id, String message) {
+            LOGGER.debug("Consistency check of table " + tableName + " at " + id + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.data.DataStore;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
+import org.apache.jackrabbit.util.ISO8601;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.ChildNodeEntry;
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+
+/**
+ * Codec that stores the bundle in a compact binary format in the <code>bundle</code> binary attribute,
+ * similar to Jackrabbit's own <code>BundleBinding</code>.
+ *
+ * The format starts with a version byte followed by the node type, parent id, mixin types, mod count,
+ * properties, child node entries and the shared set. Counts, mod counts and property type ordinals are written
+ * as unsigned variable length integers, node ids as two longs and strings as UTF-8 bytes prefixed with their
+ * length. Names are written as namespace URI and local name.
+ *
+ * With a {@link NameDictionary} bundles are written in version {@value #VERSION_3}, where node type names, mixin
+ * type names, property names and name values are written as the index of the name in the dictionary, and child
+ * node names as the index of their namespace URI followed by the local name. Child node names are not added to the
+ * dictionary as a whole, as there is no bound to their number.
+ *
+ * Binary values that are held in the repository {@link DataStore} are written as the data store identifier only,
+ * all other binary values are written inline. Version {@value #VERSION_1} bundles, which always have inline binary
+ * values, can still be read.
+ *
+ * The serialized bundle is passed through a {@link BundleCompressor} before it's stored.
+ */
+class BinaryBundleCodec implements BundleCodec {
+
+    static final String BUNDLE_ATTRIBUTE = "bundle";
+    static final int VERSION_1 = 1;
+    static final int VERSION_2 = 2;
+    static final int VERSION_3 = 3;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BinaryBundleCodec.class);
+    private static final int VARINT_MASK = 0x7f;
+    private static final int VARINT_CONTINUATION = 0x80;
+    private static final int VARINT_SHIFT = 7;
+    private static final int SHORT_MASK = 0xffff;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int BINARY_INLINE = 0;
+    private static final int BINARY_IN_DATA_STORE = 1;
+
+    private final BundleCompressor compressor;
+    private final DataStore dataStore;
+    private final NameDictionary dictionary;
+
+    /**
+     * @param compressor the compression stage
+     * @param dataStore the repository data store, or null if binaries are always stored inline
+     * @param dictionary the name dictionary, or null to write names in full
+     */
+    BinaryBundleCodec(BundleCompressor compressor, DataStore dataStore, NameDictionary dictionary) {
+        this.compressor = compressor;
+        this.dataStore = dataStore;
+        this.dictionary = dictionary;
+    }
+
+    BinaryBundleCodec(BundleCompressor compressor, DataStore dataStore) {
+        this(compressor, dataStore, null);
+    }
+
+    BinaryBundleCodec() {
+        this(new BundleCompressor(), null);
+    }
+
+    @Override
+    public void write(NodePropBundle bundle, Item item) throws ItemStateException {
+        try {
+            item.withBinary(BUNDLE_ATTRIBUTE, compressor.compress(encode(bundle)));
+        } catch (IOException | RepositoryException e) {
+            String message = "Cannot serialize bundle data " + bundle.getId().toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+    }
+
+    @Override
+    public boolean canRead(Item item) {
+        return item.isPresent(BUNDLE_ATTRIBUTE);
+    }
+
+    @Override
+    public NodePropBundle read(NodeId nodeId, Item item) throws ItemStateException {
+        try {
+            return decode(nodeId, compressor.decompress(item.getBinary(BUNDLE_ATTRIBUTE)));
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            String message = "Cannot deserialize bundle data " + nodeId.toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+    }
+
+    /**
+     * Serialize the bundle into the binary format.
+     * @param bundle the bundle
+     * @return the serialized bundle
+     * @throws IOException if the bundle cannot be written
+     * @throws RepositoryException if a value cannot be read
+     */
+    byte[] encode(NodePropBundle bundle) throws IOException, RepositoryException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        DataOutputStream out = new DataOutputStream(buffer);
+        int version = dictionary == null ? VERSION_2 : VERSION_3;
+        out.writeByte(version);
+        writeName(out, bundle.getNodeTypeName(), version);
+        writeNullableNodeId(out, bundle.getParentId());
+        Set<Name> mixinTypeNames = bundle.getMixinTypeNames();
+        if (mixinTypeNames == null) {
+            mixinTypeNames = Collections.emptySet();
+        }
+        writeVarInt(out, mixinTypeNames.size());
+        for (Name mixinTypeName : mixinTypeNames) {
+            writeName(out, mixinTypeName, version);
+        }
+        writeVarInt(out, bundle.getModCount() & SHORT_MASK);
+        writeVarInt(out, bundle.getPropertyEntries().size());
+        for (PropertyEntry propertyEntry : bundle.getPropertyEntries()) {
+            writeProperty(out, propertyEntry, version);
+        }
+        writeVarInt(out, bundle.getChildNodeEntries().size());
+        for (ChildNodeEntry childNodeEntry : bundle.getChildNodeEntries()) {
+            writeChildName(out, childNodeEntry.getName(), version);
+            writeNodeId(out, childNodeEntry.getId());
+        }
+        Set<NodeId> sharedSet = bundle.getSharedSet();
+        if (sharedSet == null) {
+            sharedSet = Collections.emptySet();
+        }
+        writeVarInt(out, sharedSet.size());
+        for (NodeId nodeId : sharedSet) {
+            writeNodeId(out, nodeId);
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Deserialize the bundle from the binary format.
+     * @param nodeId the id of the node
+     * @param data the serialized bundle
+     * @return the bundle
+     * @throws IOException if the data is corrupt or written in an unknown version
+     * @throws URISyntaxException if a URI value cannot be parsed
+     */
+    NodePropBundle decode(NodeId nodeId, byte[] data) throws IOException, URISyntaxException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version != VERSION_1 && version != VERSION_2 && version != VERSION_3) {
+            throw new IOException("Unsupported bundle format version " + version);
+        }
+        NameFactory nameFactory = NameFactoryImpl.getInstance();
+        NodePropBundle bundle = new NodePropBundle(nodeId);
+        bundle.setNodeTypeName(readName(in, nameFactory, version));
+        bundle.setParentId(readNullableNodeId(in));
+        int mixinCount = readVarInt(in);
+        Set<Name> mixinTypeNames = new HashSet<>(mixinCount * 2);
+        for (int i = 0; i < mixinCount; i++) {
+            mixinTypeNames.add(readName(in, nameFactory, version));
+        }
+        bundle.setMixinTypeNames(mixinTypeNames);
+        bundle.setModCount((short) readVarInt(in));
+        int propertyCount = readVarInt(in);
+        for (int i = 0; i < propertyCount; i++) {
+            bundle.addProperty(readProperty(in, nameFactory, nodeId, version));
+        }
+        int childCount = readVarInt(in);
+        for (int i = 0; i < childCount; i++) {
+            Name name = readChildName(in, nameFactory, version);
+            bundle.addChildNodeEntry(name, readNodeId(in));
+        }
+        int sharedCount = readVarInt(in);
+        Set<NodeId> sharedSet = new HashSet<>(sharedCount * 2);
+        for (int i = 0; i < sharedCount; i++) {
+            sharedSet.add(readNodeId(in));
+        }
+        bundle.setSharedSet(sharedSet);
+        bundle.setSize(data.length);
+        return bundle;
+    }
+
+    private void writeProperty(DataOutputStream out, PropertyEntry propertyEntry, int version)
+            throws IOException, RepositoryException {
+        writeName(out, propertyEntry.getName(), version);
+        int type = propertyEntry.getType();
+        writeVarInt(out, type);
+        out.writeBoolean(propertyEntry.isMultiValued());
+        writeVarInt(out, propertyEntry.getModCount() & SHORT_MASK);
+        InternalValue[] values = propertyEntry.getValues();
+        writeVarInt(out, values.length);
+        for (InternalValue value : values) {
+            switch (type) {
+                case PropertyType.BINARY:
+                    writeBinary(out, value);
+                    break;
+                case PropertyType.BOOLEAN:
+                    out.writeBoolean(value.getBoolean());
+                    break;
+                case PropertyType.DATE:
+                    writeString(out, ISO8601.format(value.getDate()));
+                    break;
+                case PropertyType.DECIMAL:
+                    writeString(out, value.getDecimal().toString());
+                    break;
+                case PropertyType.DOUBLE:
+                    out.writeDouble(value.getDouble());
+                    break;
+                case PropertyType.LONG:
+                    writeVarLong(out, value.getLong());
+                    break;
+                case PropertyType.NAME:
+                    writeName(out, value.getName(), version);
+                    break;
+                case PropertyType.PATH:
+                    writeString(out, value.getPath().toString());
+                    break;
+                case PropertyType.REFERENCE:
+                case PropertyType.WEAKREFERENCE:
+                    writeNodeId(out, value.getNodeId());
+                    break;
+                case PropertyType.STRING:
+                case PropertyType.UNDEFINED:
+                    writeString(out, value.getString());
+                    break;
+                case PropertyType.URI:
+                    writeString(out, value.getURI().toString());
+                    break;
+                default:
+                    LOGGER.error("Serializer is not implemented for type " + type);
+                    throw new AssertionError("Not implemented for " + type);
+            }
+        }
+    }
+
+    private PropertyEntry readProperty(DataInputStream in, NameFactory nameFactory, NodeId nodeId, int version)
+            throws IOException, URISyntaxException {
+        Name name = readName(in, nameFactory, version);
+        PropertyEntry propertyEntry = new PropertyEntry(new PropertyId(nodeId, name));
+        int type = readVarInt(in);
+        propertyEntry.setType(type);
+        propertyEntry.setMultiValued(in.readBoolean());
+        propertyEntry.setModCount((short) readVarInt(in));
+        InternalValue[] values = new InternalValue[readVarInt(in)];
+        for (int i = 0; i < values.length; i++) {
+            switch (type) {
+                case PropertyType.BINARY:
+                    values[i] = readBinary(in, version);
+                    break;
+                case PropertyType.BOOLEAN:
+                    values[i] = InternalValue.create(in.readBoolean());
+                    break;
+                case PropertyType.DATE:
+                    Calendar calendar = ISO8601.parse(readString(in));
+                    if (calendar == null) {
+                        throw new IOException("Cannot parse date value of property " + name);
+                    }
+                    values[i] = InternalValue.create(calendar);
+                    break;
+                case PropertyType.DECIMAL:
+                    values[i] = InternalValue.create(new BigDecimal(readString(in)));
+                    break;
+                case PropertyType.DOUBLE:
+                    values[i] = InternalValue.create(in.readDouble());
+                    break;
+                case PropertyType.LONG:
+                    values[i] = InternalValue.create(readVarLong(in));
+                    break;
+                case PropertyType.NAME:
+                    values[i] = InternalValue.create(readName(in, nameFactory, version));
+                    break;
+                case PropertyType.PATH:
+                    values[i] = InternalValue.create(PathFactoryImpl.getInstance().create(readString(in)));
+                    break;
+                case PropertyType.REFERENCE:
+                    values[i] = InternalValue.create(readNodeId(in), false);
+                    break;
+                case PropertyType.WEAKREFERENCE:
+                    values[i] = InternalValue.create(readNodeId(in), true);
+                    break;
+                case PropertyType.STRING:
+                case PropertyType.UNDEFINED:
+                    values[i] = InternalValue.create(readString(in));
+                    break;
+                case PropertyType.URI:
+                    values[i] = InternalValue.create(new URI(readString(in)));
+                    break;
+                default:
+                    LOGGER.error("Deserializer is not implemented for type " + type);
+                    throw new AssertionError("Not implemented for " + type);
+            }
+        }
+        propertyEntry.setValues(values);
+        return propertyEntry;
+    }
+
+    private void writeName(DataOutputStream out, Name name, int version) throws IOException {
+        if (version == VERSION_3) {
+            writeVarInt(out, dictionary.getIndex(name));
+        } else {
+            writeName(out, name);
+        }
+    }
+
+    private Name readName(DataInputStream in, NameFactory nameFactory, int version) throws IOException {
+        if (version == VERSION_3) {
+            return getDictionary().getName(readVarInt(in));
+        }
+        return readName(in, nameFactory);
+    }
+
+    private void writeChildName(DataOutputStream out, Name name, int version) throws IOException {
+        if (version == VERSION_3) {
+            writeVarInt(out, dictionary.getNamespaceIndex(name.getNamespaceURI()));
+            writeString(out, name.getLocalName());
+        } else {
+            writeName(out, name);
+        }
+    }
+
+    private Name readChildName(DataInputStream in, NameFactory nameFactory, int version) throws IOException {
+        if (version == VERSION_3) {
+            String namespaceURI = getDictionary().getNamespace(readVarInt(in));
+            return nameFactory.create(namespaceURI, readString(in));
+        }
+        return readName(in, nameFactory);
+    }
+
+    private NameDictionary getDictionary() throws IOException {
+        if (dictionary == null) {
+            throw new IOException("Bundle refers to a name dictionary, but none is configured");
+        }
+        return dictionary;
+    }
+
+    private void writeBinary(DataOutputStream out, InternalValue value) throws IOException, RepositoryException {
+        if (value.isInDataStore()) {
+            out.writeByte(BINARY_IN_DATA_STORE);
+            writeString(out, value.toString());
+            return;
+        }
+        byte[] bytes;
+        try (InputStream stream = value.getStream()) {
+            bytes = IOUtils.toByteArray(stream);
+        }
+        out.writeByte(BINARY_INLINE);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private InternalValue readBinary(DataInputStream in, int version) throws IOException {
+        if (version != VERSION_1 && in.readUnsignedByte() == BINARY_IN_DATA_STORE) {
+            String identifier = readString(in);
+            if (dataStore == null) {
+                throw new IOException("Binary value " + identifier + " is in a data store, but none is configured");
+            }
+            return InternalValue.create(dataStore, identifier);
+        }
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return InternalValue.create(bytes);
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        int v = value;
+        while ((v & ~VARINT_MASK) != 0) {
+            out.writeByte((v & VARINT_MASK) | VARINT_CONTINUATION);
+            v >>>= VARINT_SHIFT;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift >= Integer.SIZE) {
+                throw new IOException("Malformed variable length integer");
+            }
+            b = in.readUnsignedByte();
+            value |= (b & VARINT_MASK) << shift;
+            shift += VARINT_SHIFT;
+        } while ((b & VARINT_CONTINUATION) != 0);
+        return value;
+    }
+
+    /**
+     * Write a signed long with zig-zag encoding, so that small negative values stay short.
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long v = (value << 1) ^ (value >> (Long.SIZE - 1));
+        while ((v & ~VARINT_MASK) != 0) {
+            out.writeByte((int) ((v & VARINT_MASK) | VARINT_CONTINUATION));
+            v >>>= VARINT_SHIFT;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift >= Long.SIZE) {
+                throw new IOException("Malformed variable length long");
+            }
+            b = in.readUnsignedByte();
+            value |= (long) (b & VARINT_MASK) << shift;
+            shift += VARINT_SHIFT;
+        } while ((b & VARINT_CONTINUATION) != 0);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeName(DataOutputStream out, Name name) throws IOException {
+        writeString(out, name.getNamespaceURI());
+        writeString(out, name.getLocalName());
+    }
+
+    static Name readName(DataInputStream in, NameFactory nameFactory) throws IOException {
+        String namespaceURI = readString(in);
+        return nameFactory.create(namespaceURI, readString(in));
+    }
+
+    static void writeNodeId(DataOutputStream out, NodeId nodeId) throws IOException {
+        out.writeLong(nodeId.getMostSignificantBits());
+        out.writeLong(nodeId.getLeastSignificantBits());
+    }
+
+    static NodeId readNodeId(DataInputStream in) throws IOException {
+        long msb = in.readLong();
+        return new NodeId(msb, in.readLong());
+    }
+
+    private static void writeNullableNodeId(DataOutputStream out, NodeId nodeId) throws IOException {
+        out.writeBoolean(nodeId != null);
+        if (nodeId != null) {
+            writeNodeId(out, nodeId);
+        }
+    }
+
+    private static NodeId readNullableNodeId(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return readNodeId(in);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,39 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ItemStateException;
+
+/**
+ * Converts {@link NodePropBundle}s into the attributes of a DynamoDB item and back.
+ *
+ * Every codec owns its own set of attributes, so that items written by different codecs can coexist in
+ * one table. When loading a bundle the persistence manager picks the first codec that can read the item.
+ */
+interface BundleCodec {
+
+    /**
+     * Add the serialized bundle to the item.
+     * @param bundle the bundle to serialize
+     * @param item the item that already carries the primary key
+     * @throws ItemStateException if the bundle cannot be serialized
+     */
+    void write(NodePropBundle bundle, Item item) throws ItemStateException;
+
+    /**
+     * Check if the item carries a bundle written by this codec.
+     * @param item the item loaded from the table
+     * @return <code>true</code> if the item can be read by this codec
+     */
+    boolean canRead(Item item);
+
+    /**
+     * Deserialize the bundle from the item.
+     * @param nodeId the id of the node
+     * @param item the item loaded from the table
+     * @return the bundle
+     * @throws ItemStateException if the bundle cannot be deserialized
+     */
+    NodePropBundle read(NodeId nodeId, Item item) throws ItemStateException;
+}
@@ -0,0 +1,172 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression stage for serialized bundles.
+ *
+ * Payloads above the threshold are compressed and wrapped in an envelope that starts with a header byte that has the
+ * {@link #COMPRESSED_FLAG} bit set, followed by the uncompressed length and the compressed data. Uncompressed
+ * payloads start with the plain format version byte, so compressed and uncompressed items coexist in one table and
+ * can always be read, regardless of the current configuration. The compressed envelope is only used if it's actually
+ * smaller than the original payload.
+ */
+class BundleCompressor {
+
+    static final int COMPRESSED_FLAG = 0x80;
+    static final int DEFLATE_HEADER = COMPRESSED_FLAG | 0x01;
+
+    static final String NONE = "none";
+    static final String DEFLATE_CODEC = "deflate";
+    static final String DEFLATE_FAST_CODEC = "deflate-fast";
+
+    private static final int DEFAULT_THRESHOLD = 1024;
+    private static final int BUFFER_SIZE = 4096;
+
+    private final boolean enabled;
+    private final int level;
+    private final int threshold;
+
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressionTime = new AtomicLong();
+    private final AtomicLong decompressionTime = new AtomicLong();
+
+    /**
+     * @param compression the compression codec, one of <code>none</code>, <code>deflate</code> for a better ratio
+     *                    or <code>deflate-fast</code> for lower CPU usage
+     * @param threshold the minimum payload size in bytes that is compressed
+     */
+    BundleCompressor(String compression, int threshold) {
+        switch (compression) {
+            case NONE:
+                enabled = false;
+                level = Deflater.NO_COMPRESSION;
+                break;
+            case DEFLATE_CODEC:
+                enabled = true;
+                level = Deflater.DEFAULT_COMPRESSION;
+                break;
+            case DEFLATE_FAST_CODEC:
+                enabled = true;
+                level = Deflater.BEST_SPEED;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown compression " + compression);
+        }
+        this.threshold = threshold;
+    }
+
+    BundleCompressor() {
+        this(NONE, DEFAULT_THRESHOLD);
+    }
+
+    static boolean isSupported(String compression) {
+        return NONE.equals(compression) || DEFLATE_CODEC.equals(compression) || DEFLATE_FAST_CODEC.equals(compression);
+    }
+
+    /**
+     * Compress the payload if compression is enabled and the payload exceeds the threshold.
+     * @param data the serialized bundle
+     * @return the compressed envelope or the original payload
+     * @throws IOException if the envelope cannot be written
+     */
+    byte[] compress(byte[] data) throws IOException {
+        if (!enabled || data.length < threshold) {
+            return data;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(level);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2);
+        DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            out.writeByte(DEFLATE_HEADER);
+            BinaryBundleCodec.writeVarInt(out, data.length);
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] chunk = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(chunk);
+                out.write(chunk, 0, length);
+            }
+            out.flush();
+        } finally {
+            deflater.end();
+        }
+        byte[] compressed = buffer.toByteArray();
+        compressionTime.addAndGet(System.nanoTime() - start);
+        if (compressed.length >= data.length) {
+            return data;
+        }
+        compressedCount.incrementAndGet();
+        uncompressedBytes.addAndGet(data.length);
+        compressedBytes.addAndGet(compressed.length);
+        return compressed;
+    }
+
+    /**
+     * Unwrap the payload if it's compressed.
+     * @param data the stored payload
+     * @return the serialized bundle
+     * @throws IOException if the payload is compressed with an unknown codec or is corrupt
+     */
+    byte[] decompress(byte[] data) throws IOException {
+        if (data.length == 0 || (data[0] & COMPRESSED_FLAG) == 0) {
+            return data;
+        }
+        long start = System.nanoTime();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int header = in.readUnsignedByte();
+        if (header != DEFLATE_HEADER) {
+            throw new IOException("Unsupported compression header " + header);
+        }
+        byte[] uncompressed = new byte[BinaryBundleCodec.readVarInt(in)];
+        int offset = data.length - in.available();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, data.length - offset);
+            int length = inflater.inflate(uncompressed);
+            if (length != uncompressed.length || !inflater.finished()) {
+                throw new IOException("Compressed bundle is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed bundle is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        decompressionTime.addAndGet(System.nanoTime() - start);
+        return uncompressed;
+    }
+
+    long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    /**
+     * @return the ratio of uncompressed to compressed size of all compressed payloads, 1 if nothing was compressed
+     */
+    double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        if (compressed == 0) {
+            return 1.0;
+        }
+        return (double) uncompressedBytes.get() / compressed;
+    }
+
+    long getCompressionTime() {
+        return compressionTime.get();
+    }
+
+    long getDecompressionTime() {
+        return decompressionTime.get();
+    }
+}
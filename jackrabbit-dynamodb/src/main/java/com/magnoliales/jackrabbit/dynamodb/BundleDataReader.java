@@ -0,0 +1,170 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.PathFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.PropertyType;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+
+/**
+ * Reads the bundles written by {@link JsonBundleCodec} in a single pass over the <code>data</code> map of the item,
+ * as converted by the document API, straight into the {@link NodePropBundle}. Unlike
+ * {@link NodePropBundleData#toNodePropBundle} it neither renders the map as a JSON string nor builds the transfer
+ * objects with their lists of boxed values, which makes a difference for nodes with many properties.
+ *
+ * <p>
+ * The reader accepts everything {@link NodePropBundleData} accepts, including the <code>false</code> placeholders
+ * for empty strings and binaries and dates written by earlier versions.
+ */
+final class BundleDataReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundleDataReader.class);
+    private static final NameFactory NAME_FACTORY = NameFactoryImpl.getInstance();
+    private static final PathFactory PATH_FACTORY = PathFactoryImpl.getInstance();
+    private static final InternalValue[] NO_VALUES = new InternalValue[0];
+
+    private final PersistenceManager pm;
+
+    BundleDataReader(PersistenceManager pm) {
+        this.pm = pm;
+    }
+
+    /**
+     * @param nodeId the id of the node
+     * @param data the <code>data</code> attribute of the item
+     * @return the bundle
+     * @throws ItemStateException if the data is not a valid bundle
+     */
+    NodePropBundle read(NodeId nodeId, Map<String, ?> data) throws ItemStateException {
+        try {
+            NodePropBundle bundle = new NodePropBundle(pm.createNew(nodeId));
+            Set<Name> mixinTypeNames = new HashSet<>();
+            for (Map.Entry<String, ?> entry : data.entrySet()) {
+                Object value = entry.getValue();
+                switch (entry.getKey()) {
+                    case "nodeType":
+                        bundle.setNodeTypeName(NAME_FACTORY.create((String) value));
+                        break;
+                    case "parentId":
+                        bundle.setParentId(NodeId.valueOf((String) value));
+                        break;
+                    case "mixinTypes":
+                        for (Object mixinType : (Collection<?>) value) {
+                            mixinTypeNames.add(NAME_FACTORY.create((String) mixinType));
+                        }
+                        break;
+                    case "modCount":
+                        bundle.setModCount(((Number) value).shortValue());
+                        break;
+                    case "properties":
+                        for (Object property : (Collection<?>) value) {
+                            bundle.addProperty(readProperty(nodeId, (Map<?, ?>) property));
+                        }
+                        break;
+                    case "children":
+                        for (Object child : (Collection<?>) value) {
+                            Map<?, ?> childData = (Map<?, ?>) child;
+                            bundle.addChildNodeEntry(NAME_FACTORY.create((String) childData.get("name")),
+                                    NodeId.valueOf((String) childData.get("nodeId")));
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            bundle.setMixinTypeNames(mixinTypeNames);
+            return bundle;
+        } catch (ClassCastException | IllegalArgumentException | URISyntaxException | ParseException e) {
+            String message = "Cannot deserialize bundle data " + nodeId.toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+    }
+
+    private PropertyEntry readProperty(NodeId nodeId, Map<?, ?> data)
+            throws ItemStateException, URISyntaxException, ParseException {
+        PropertyEntry entry = new PropertyEntry(new PropertyId(nodeId, NAME_FACTORY.create((String) data.get("name"))));
+        int type = PropertyType.valueFromName((String) data.get("type"));
+        entry.setType(type);
+        entry.setMultiValued(Boolean.TRUE.equals(data.get("multiValued")));
+        Object modCount = data.get("modCount");
+        if (modCount != null) {
+            entry.setModCount(((Number) modCount).shortValue());
+        }
+        List<?> values = (List<?>) data.get("values");
+        if (values == null) {
+            entry.setValues(NO_VALUES);
+            return entry;
+        }
+        InternalValue[] internalValues = new InternalValue[values.size()];
+        for (int i = 0; i < internalValues.length; i++) {
+            internalValues[i] = readValue(type, values.get(i));
+        }
+        entry.setValues(internalValues);
+        return entry;
+    }
+
+    private static InternalValue readValue(int type, Object value)
+            throws ItemStateException, URISyntaxException, ParseException {
+        switch (type) {
+            case PropertyType.BINARY:
+                if (value instanceof Boolean) {
+                    return InternalValue.create(new byte[0]);
+                }
+                return InternalValue.create(Base64.decodeBase64((String) value));
+            case PropertyType.BOOLEAN:
+                return InternalValue.create(((Boolean) value).booleanValue());
+            case PropertyType.DATE:
+                return InternalValue.create(NodePropBundleData.parseDate((String) value));
+            case PropertyType.DECIMAL:
+                return InternalValue.create(new BigDecimal(value.toString()));
+            case PropertyType.DOUBLE:
+                return InternalValue.create(Double.parseDouble(value.toString()));
+            case PropertyType.LONG:
+                if (value instanceof Number) {
+                    return InternalValue.create(((Number) value).longValue());
+                }
+                return InternalValue.create(Long.parseLong((String) value));
+            case PropertyType.NAME:
+                return InternalValue.create(NAME_FACTORY.create((String) value));
+            case PropertyType.PATH:
+                return InternalValue.create(PATH_FACTORY.create((String) value));
+            case PropertyType.REFERENCE:
+                return InternalValue.create(NodeId.valueOf((String) value));
+            case PropertyType.WEAKREFERENCE:
+                return InternalValue.create(NodeId.valueOf((String) value), true);
+            case PropertyType.STRING:
+                return InternalValue.create(value instanceof Boolean ? "" : (String) value);
+            case PropertyType.UNDEFINED:
+                return InternalValue.create((String) value);
+            case PropertyType.URI:
+                return InternalValue.create(new URI((String) value));
+            default:
+                String message = "Deserializer is not implemented for type " + PropertyType.nameFromValue(type);
+                LOGGER.error(message);
+                throw new ItemStateException(message);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded cache of serialized bundles in front of the table.
+ *
+ * <p>
+ * Bundles are kept in the compact binary format, so the cache holds far more bundles than Jackrabbit's own bundle
+ * cache in the same amount of memory. Entries are evicted in least recently used order once the total serialized
+ * size exceeds the configured maximum. Every entry carries the mod count attribute of the item it was read
+ * from, which allows a cheap revalidation against the current item.
+ *
+ * <p>
+ * Invalidations advance an epoch. A bundle that is loaded from the table is only cached if no invalidation
+ * happened while it was loaded, so that a concurrent write is never hidden by an older version.
+ */
+class BundleNearCache implements InvalidationSource.Listener {
+
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private final long maxSize;
+    private final LinkedHashMap<NodeId, Entry> entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private long size;
+
+    /**
+     * @param maxSize the maximum total size in bytes of the cached bundles
+     */
+    BundleNearCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the current epoch, to be passed to {@link #put(NodeId, Entry, long)} after the bundle is loaded
+     */
+    long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * @param nodeId the id of the node
+     * @return the cached entry or null if the bundle is not cached
+     */
+    synchronized Entry get(NodeId nodeId) {
+        Entry entry = entries.get(nodeId);
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Cache a bundle unless it was invalidated since the given epoch.
+     * @param nodeId the id of the node
+     * @param entry the serialized bundle
+     * @param loadEpoch the epoch before the bundle was loaded
+     */
+    synchronized void put(NodeId nodeId, Entry entry, long loadEpoch) {
+        if (epoch.get() != loadEpoch || entry.getWeight() > maxSize) {
+            return;
+        }
+        Entry previous = entries.put(nodeId, entry);
+        if (previous != null) {
+            size -= previous.getWeight();
+        }
+        size += entry.getWeight();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            size -= iterator.next().getWeight();
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(NodeId nodeId) {
+        epoch.incrementAndGet();
+        Entry entry = entries.remove(nodeId);
+        if (entry != null) {
+            size -= entry.getWeight();
+            invalidations.incrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+        epoch.incrementAndGet();
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+        size = 0;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    long getInvalidations() {
+        return invalidations.get();
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * Serialized bundle with its mod count.
+     */
+    static final class Entry {
+
+        private final byte[] data;
+        private final long modCount;
+
+        Entry(byte[] data, long modCount) {
+            this.data = data;
+            this.modCount = modCount;
+        }
+
+        byte[] getData() {
+            return data;
+        }
+
+        long getModCount() {
+            return modCount;
+        }
+
+        private long getWeight() {
+            return data.length + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.ChildNodeEntry;
+
+/**
+ * Fetches the children of loaded bundles in the background with <code>BatchGetItem</code>, so that walking a tree
+ * doesn't cost a round trip per node.
+ *
+ * <p>
+ * Prefetched bundles are kept in a short lived buffer and handed out at most once. A load of a bundle whose batch
+ * is already running waits for it instead of sending its own request, a load of a bundle whose batch is still
+ * queued doesn't. Bundles that are written or deleted are dropped from the buffer, and batches that overlap with a
+ * write don't fill the buffer at all. Bundles with paged children are left to be loaded on demand.
+ */
+class BundlePrefetcher {
+
+    static final int MAX_BATCH_SIZE = 100;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BundlePrefetcher.class);
+    private static final int MAX_BUFFERED = 10000;
+    private static final int MAX_ATTEMPTS = 4;
+
+    private final DynamoDB dynamoDB;
+    private final TableKeys tableKeys;
+    private final String tableName;
+    private final List<BundleCodec> bundleCodecs;
+    private final int fanOut;
+    private final int depth;
+    private final long expiry;
+    private final ExecutorService executor;
+    private final ConcurrentMap<NodeId, Prefetched> buffer = new ConcurrentHashMap<>();
+    private final ConcurrentMap<NodeId, Batch> pending = new ConcurrentHashMap<>();
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+
+    /**
+     * @param client the client of the table
+     * @param tableKeys the keys of the table
+     * @param tableName the name of the table
+     * @param bundleCodecs the codecs to read the items with
+     * @param fanOut the maximum number of children of a bundle to prefetch
+     * @param depth the number of tree levels below a loaded bundle to prefetch
+     * @param expiry the time in milliseconds a prefetched bundle stays in the buffer
+     * @param threads the number of background threads
+     */
+    BundlePrefetcher(AmazonDynamoDB client, TableKeys tableKeys, String tableName, List<BundleCodec> bundleCodecs,
+                     int fanOut, int depth, long expiry, int threads) {
+        this.dynamoDB = new DynamoDB(client);
+        this.tableKeys = tableKeys;
+        this.tableName = tableName;
+        this.bundleCodecs = bundleCodecs;
+        this.fanOut = fanOut;
+        this.depth = depth;
+        this.expiry = expiry;
+        final String threadName = "dynamodb-prefetch-" + tableName + "-";
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedule the prefetch of the children of a bundle.
+     * @param bundle the loaded bundle
+     */
+    void prefetch(NodePropBundle bundle) {
+        prefetch(getChildIds(bundle), depth);
+    }
+
+    /**
+     * Take a prefetched bundle out of the buffer, waiting for a running batch with the bundle if necessary.
+     * @param nodeId the id of the node
+     * @param timeout the maximum time in milliseconds to wait for a running prefetch
+     * @return the prefetched bundle or null if it's not prefetched
+     */
+    Prefetched take(NodeId nodeId, long timeout) {
+        Batch batch = pending.get(nodeId);
+        if (batch != null && batch.started) {
+            try {
+                batch.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                LOGGER.debug("Prefetch of {} didn't complete", nodeId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Prefetched entry = buffer.remove(nodeId);
+        if (entry == null || entry.expires < System.currentTimeMillis()) {
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Drop a bundle that was written or deleted.
+     * @param nodeId the id of the node
+     */
+    void invalidate(NodeId nodeId) {
+        epoch.incrementAndGet();
+        buffer.remove(nodeId);
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    long getPrefetched() {
+        return prefetched.get();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    private void prefetch(List<NodeId> nodeIds, final int levels) {
+        if (buffer.size() >= MAX_BUFFERED) {
+            removeExpired();
+            if (buffer.size() >= MAX_BUFFERED) {
+                return;
+            }
+        }
+        List<NodeId> candidates = new ArrayList<>();
+        for (NodeId nodeId : nodeIds) {
+            if (!buffer.containsKey(nodeId) && !pending.containsKey(nodeId)) {
+                candidates.add(nodeId);
+            }
+        }
+        for (int i = 0; i < candidates.size(); i += MAX_BATCH_SIZE) {
+            final List<NodeId> chunk = candidates.subList(i, Math.min(i + MAX_BATCH_SIZE, candidates.size()));
+            Batch batch = new Batch(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(chunk, levels);
+                }
+            });
+            for (NodeId nodeId : chunk) {
+                pending.put(nodeId, batch);
+            }
+            executor.execute(batch);
+        }
+    }
+
+    private void fetch(List<NodeId> nodeIds, int levels) {
+        long fetchEpoch = epoch.get();
+        List<NodeId> childIds = new ArrayList<>();
+        try {
+            TableKeysAndAttributes keys = new TableKeysAndAttributes(tableName);
+            for (NodeId nodeId : nodeIds) {
+                keys.addPrimaryKey(tableKeys.getPrimaryKey(nodeId.toString()));
+            }
+            BatchGetItemOutcome outcome = dynamoDB.batchGetItem(keys);
+            roundTrips.incrementAndGet();
+            List<Item> items = new ArrayList<>(outcome.getTableItems().get(tableName));
+            Map<String, KeysAndAttributes> unprocessed = outcome.getUnprocessedKeys();
+            for (int attempt = 1; attempt < MAX_ATTEMPTS && unprocessed != null && !unprocessed.isEmpty();
+                 attempt++) {
+                outcome = dynamoDB.batchGetItemUnprocessed(unprocessed);
+                roundTrips.incrementAndGet();
+                items.addAll(outcome.getTableItems().get(tableName));
+                unprocessed = outcome.getUnprocessedKeys();
+            }
+            long expires = System.currentTimeMillis() + expiry;
+            for (Item item : items) {
+                if (ChildPages.isPaged(item)) {
+                    continue;
+                }
+                NodeId nodeId = NodeId.valueOf(item.getString(DynamoDBPersistenceManager.ID_ATTRIBUTE));
+                NodePropBundle bundle = DynamoDBPersistenceManager.readItem(nodeId, item, bundleCodecs);
+                if (epoch.get() == fetchEpoch) {
+                    long modCount = item.isPresent(DynamoDBPersistenceManager.MOD_COUNT_ATTRIBUTE)
+                            ? item.getLong(DynamoDBPersistenceManager.MOD_COUNT_ATTRIBUTE) : 0;
+                    buffer.put(nodeId, new Prefetched(bundle, modCount, expires));
+                    prefetched.incrementAndGet();
+                }
+                if (levels > 1) {
+                    childIds.addAll(getChildIds(bundle));
+                }
+            }
+        } catch (AmazonClientException | ItemStateException e) {
+            LOGGER.debug("Cannot prefetch " + nodeIds.size() + " bundles from table " + tableName, e);
+        } finally {
+            for (NodeId nodeId : nodeIds) {
+                pending.remove(nodeId);
+            }
+        }
+        if (!childIds.isEmpty()) {
+            prefetch(childIds, levels - 1);
+        }
+    }
+
+    private List<NodeId> getChildIds(NodePropBundle bundle) {
+        List<NodeId> childIds = new ArrayList<>();
+        for (ChildNodeEntry childNodeEntry : bundle.getChildNodeEntries()) {
+            if (childIds.size() == fanOut) {
+                break;
+            }
+            childIds.add(childNodeEntry.getId());
+        }
+        return childIds;
+    }
+
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<NodeId, Prefetched> entry : buffer.entrySet()) {
+            if (entry.getValue().expires < now) {
+                buffer.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Prefetched bundle with the mod count attribute of its item.
+     */
+    static final class Prefetched {
+        private final NodePropBundle bundle;
+        private final long modCount;
+        private final long expires;
+
+        private Prefetched(NodePropBundle bundle, long modCount, long expires) {
+            this.bundle = bundle;
+            this.modCount = modCount;
+            this.expires = expires;
+        }
+
+        NodePropBundle getBundle() {
+            return bundle;
+        }
+
+        long getModCount() {
+            return modCount;
+        }
+    }
+
+    /**
+     * Prefetch task that tells whether it's running already.
+     */
+    private static final class Batch extends FutureTask<Void> {
+
+        private volatile boolean started;
+
+        private Batch(Runnable runnable) {
+            super(runnable, null);
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            super.run();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Mod counts of the bundle items as they were last read or written by this persistence manager.
+ *
+ * <p>
+ * The mod counts are weakly keyed by the node id instance of the bundle, so they live as long as the bundle itself
+ * is held, e.g. in the bundle cache, and need no separate eviction. A node id that was dropped is read again.
+ */
+class BundleVersions {
+
+    private final Map<NodeId, Long> modCounts = new WeakHashMap<>();
+
+    /**
+     * @param nodeId the node id instance of the bundle
+     * @param modCount the mod count of the item
+     */
+    synchronized void put(NodeId nodeId, long modCount) {
+        modCounts.remove(nodeId);
+        modCounts.put(nodeId, modCount);
+    }
+
+    /**
+     * @param nodeId the id of the node
+     * @return the mod count of the item or null if it's not known
+     */
+    synchronized Long get(NodeId nodeId) {
+        return modCounts.get(nodeId);
+    }
+
+    synchronized void remove(NodeId nodeId) {
+        modCounts.remove(nodeId);
+    }
+}
@@ -0,0 +1,558 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Consumed capacity of the tables of a persistence manager, attributed to operations and node ids.
+ *
+ * <p>
+ * While tables are accounted all requests ask for their consumed capacity, which is attributed to the operation
+ * of the persistence manager the request belongs to: <code>load</code>, <code>store</code>, <code>destroy</code>,
+ * <code>references</code> or <code>scan</code>. As writes are sent from request threads and shared group
+ * commits, the operation is derived from the request and its table: reads of bundles and child pages are loads,
+ * puts are stores and deletes destroys, all requests to the reference table and updates of bundle items are
+ * references. The capacity consumed in a table by a batch or transaction is split among its items by their
+ * estimated capacity units.
+ *
+ * <p>
+ * Item sizes are recorded per operation in the metrics, e.g. as <code>item.load</code>. The hottest node ids by
+ * consumed capacity and the largest by item size are tracked in {@link HeavyHitters} sketches, side table items
+ * count for the node id their key starts with. Tables are registered in a static registry, so that group commits
+ * sent with the client of another persistence manager are attributed to the right workspace. A table shared by
+ * several workspaces is registered once per workspace, and every item is attributed by the <code>workspace</code>
+ * attribute of its key, a query by the workspace it reads. Scans aren't attributed to a workspace, only scans of
+ * tables of their own are accounted.
+ */
+final class CapacityAccounting {
+
+    static final String BUNDLE_TABLE = "bundles";
+    static final String REFERENCE_TABLE = "references";
+    static final String SIDE_TABLE = "side";
+    static final String ITEM_PREFIX = "item.";
+
+    private static final ConcurrentMap<String, Registration> TABLES = new ConcurrentHashMap<>();
+    private static final int SKETCH_FACTOR = 10;
+    private static final double MILLIS = 1000.0;
+    private static final double READ_UNIT_SIZE = 4096.0;
+    private static final double WRITE_UNIT_SIZE = 1024.0;
+    private static final int NESTING_OVERHEAD = 3;
+    private static final String KEY_SEPARATOR = "/";
+    private static final String WORKSPACE_SEPARATOR = ":";
+
+    private final String tableName;
+    private final String workspace;
+    private final DynamoDBMetrics metrics;
+    private final int topKeys;
+    private final ConcurrentMap<String, AtomicLong> readUnits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> writeUnits = new ConcurrentHashMap<>();
+    private final HeavyHitters hottest;
+    private final HeavyHitters largest;
+
+    /**
+     * @param tableName the name of the bundle table
+     * @param workspace the name of the workspace in shared tables, or null for tables of its own
+     * @param metrics the metrics to record the item sizes in
+     * @param topKeys the number of hottest and largest node ids that are reported
+     */
+    CapacityAccounting(String tableName, String workspace, DynamoDBMetrics metrics, int topKeys) {
+        this.tableName = tableName;
+        this.workspace = workspace;
+        this.metrics = metrics;
+        this.topKeys = topKeys;
+        this.hottest = new HeavyHitters(topKeys * SKETCH_FACTOR, true);
+        this.largest = new HeavyHitters(topKeys * SKETCH_FACTOR, false);
+    }
+
+    /**
+     * Account the requests to a table from now on.
+     * @param name the name of the table
+     * @param kind {@link #BUNDLE_TABLE}, {@link #REFERENCE_TABLE} or {@link #SIDE_TABLE}
+     */
+    void register(String name, String kind) {
+        TABLES.put(getTableKey(name, workspace), new Registration(this, kind));
+    }
+
+    /**
+     * Stop accounting the tables of this persistence manager.
+     */
+    void close() {
+        Iterator<Registration> registrations = TABLES.values().iterator();
+        while (registrations.hasNext()) {
+            if (registrations.next().accounting == this) {
+                registrations.remove();
+            }
+        }
+    }
+
+    /**
+     * Ask for the consumed capacity of a request while any table is accounted.
+     * @param request the request
+     */
+    static void prepare(Object request) {
+        if (!TABLES.isEmpty()) {
+            RateLimitedClient.requestConsumedCapacity(request);
+        }
+    }
+
+    /**
+     * Attribute the consumed capacity of a successful request to the accounted tables.
+     * @param request the request
+     * @param result the result of the request
+     */
+    static void record(Object request, Object result) {
+        if (TABLES.isEmpty()) {
+            return;
+        }
+        if (request instanceof GetItemRequest) {
+            GetItemRequest get = (GetItemRequest) request;
+            Registration registration = getRegistration(get.getTableName(), get.getKey());
+            if (registration != null) {
+                Map<String, AttributeValue> item = ((GetItemResult) result).getItem();
+                registration.accounting.account(registration.getReadOperation(), false, getId(get.getKey()),
+                        getUnits(((GetItemResult) result).getConsumedCapacity()), item == null ? -1 : getSize(item));
+            }
+        } else if (request instanceof BatchGetItemRequest) {
+            recordBatchGet((BatchGetItemResult) result);
+        } else if (request instanceof QueryRequest) {
+            Registration registration = TABLES.get(getTableKey(((QueryRequest) request).getTableName(),
+                    TableKeys.getWorkspace((QueryRequest) request)));
+            if (registration != null && ((QueryResult) result).getItems().isEmpty()) {
+                registration.accounting.account(registration.getReadOperation(), false, null,
+                        getUnits(((QueryResult) result).getConsumedCapacity()), -1);
+            } else if (registration != null) {
+                List<Share> shares = new ArrayList<>();
+                for (Map<String, AttributeValue> item : ((QueryResult) result).getItems()) {
+                    shares.add(new Share(registration, registration.getReadOperation(), false, item));
+                }
+                split(shares, getUnits(((QueryResult) result).getConsumedCapacity()));
+            }
+        } else if (request instanceof ScanRequest) {
+            Registration registration = TABLES.get(((ScanRequest) request).getTableName());
+            if (registration != null) {
+                registration.accounting.account(DynamoDBMetrics.SCAN, false, null,
+                        getUnits(((ScanResult) result).getConsumedCapacity()), -1);
+            }
+        } else {
+            recordWrite(request, result);
+        }
+    }
+
+    private static void recordWrite(Object request, Object result) {
+        if (request instanceof PutItemRequest) {
+            PutItemRequest put = (PutItemRequest) request;
+            Registration registration = getRegistration(put.getTableName(), put.getItem());
+            if (registration != null) {
+                registration.accounting.account(registration.getWriteOperation(DynamoDBMetrics.STORE), true,
+                        getId(put.getItem()), getUnits(((PutItemResult) result).getConsumedCapacity()),
+                        getSize(put.getItem()));
+            }
+        } else if (request instanceof UpdateItemRequest) {
+            UpdateItemRequest update = (UpdateItemRequest) request;
+            Registration registration = getRegistration(update.getTableName(), update.getKey());
+            if (registration != null) {
+                registration.accounting.account(registration.getUpdateOperation(), true, getId(update.getKey()),
+                        getUnits(((UpdateItemResult) result).getConsumedCapacity()), -1);
+            }
+        } else if (request instanceof DeleteItemRequest) {
+            DeleteItemRequest delete = (DeleteItemRequest) request;
+            Registration registration = getRegistration(delete.getTableName(), delete.getKey());
+            if (registration != null) {
+                registration.accounting.account(registration.getWriteOperation(DynamoDBMetrics.DESTROY), true,
+                        getId(delete.getKey()), getUnits(((DeleteItemResult) result).getConsumedCapacity()), -1);
+            }
+        } else if (request instanceof BatchWriteItemRequest) {
+            recordBatchWrite((BatchWriteItemRequest) request, (BatchWriteItemResult) result);
+        } else if (request instanceof TransactWriteItemsRequest) {
+            recordTransaction((TransactWriteItemsRequest) request, (TransactWriteItemsResult) result);
+        }
+    }
+
+    private static void recordBatchGet(BatchGetItemResult result) {
+        Map<String, List<Share>> shares = new HashMap<>();
+        for (Map.Entry<String, List<Map<String, AttributeValue>>> entry : result.getResponses().entrySet()) {
+            List<Share> tableShares = new ArrayList<>();
+            for (Map<String, AttributeValue> item : entry.getValue()) {
+                Registration registration = getRegistration(entry.getKey(), item);
+                if (registration != null) {
+                    tableShares.add(new Share(registration, registration.getReadOperation(), false, item));
+                }
+            }
+            shares.put(entry.getKey(), tableShares);
+        }
+        splitByTable(shares, result.getConsumedCapacity());
+    }
+
+    private static void recordBatchWrite(BatchWriteItemRequest request, BatchWriteItemResult result) {
+        Map<String, List<WriteRequest>> unprocessed = result.getUnprocessedItems();
+        Map<String, List<Share>> shares = new HashMap<>();
+        for (Map.Entry<String, List<WriteRequest>> entry : request.getRequestItems().entrySet()) {
+            List<WriteRequest> skipped = unprocessed == null || !unprocessed.containsKey(entry.getKey())
+                    ? Collections.<WriteRequest>emptyList() : unprocessed.get(entry.getKey());
+            List<Share> tableShares = new ArrayList<>();
+            for (WriteRequest writeRequest : entry.getValue()) {
+                if (skipped.contains(writeRequest)) {
+                    continue;
+                }
+                Registration registration = getRegistration(entry.getKey(), writeRequest.getPutRequest() != null
+                        ? writeRequest.getPutRequest().getItem() : writeRequest.getDeleteRequest().getKey());
+                if (registration == null) {
+                    continue;
+                }
+                if (writeRequest.getPutRequest() != null) {
+                    tableShares.add(new Share(registration, registration.getWriteOperation(DynamoDBMetrics.STORE),
+                            true, writeRequest.getPutRequest().getItem()));
+                } else {
+                    tableShares.add(new Share(registration, registration.getWriteOperation(DynamoDBMetrics.DESTROY),
+                            getId(writeRequest.getDeleteRequest().getKey())));
+                }
+            }
+            shares.put(entry.getKey(), tableShares);
+        }
+        splitByTable(shares, result.getConsumedCapacity());
+    }
+
+    private static void recordTransaction(TransactWriteItemsRequest request, TransactWriteItemsResult result) {
+        Map<String, List<Share>> shares = new HashMap<>();
+        for (TransactWriteItem transactItem : request.getTransactItems()) {
+            String table;
+            Share share;
+            Registration registration;
+            if (transactItem.getPut() != null) {
+                table = transactItem.getPut().getTableName();
+                registration = getRegistration(table, transactItem.getPut().getItem());
+                share = registration == null ? null : new Share(registration,
+                        registration.getWriteOperation(DynamoDBMetrics.STORE), true, transactItem.getPut().getItem());
+            } else if (transactItem.getDelete() != null) {
+                table = transactItem.getDelete().getTableName();
+                registration = getRegistration(table, transactItem.getDelete().getKey());
+                share = registration == null ? null : new Share(registration,
+                        registration.getWriteOperation(DynamoDBMetrics.DESTROY),
+                        getId(transactItem.getDelete().getKey()));
+            } else if (transactItem.getUpdate() != null) {
+                table = transactItem.getUpdate().getTableName();
+                registration = getRegistration(table, transactItem.getUpdate().getKey());
+                share = registration == null ? null : new Share(registration, registration.getUpdateOperation(),
+                        getId(transactItem.getUpdate().getKey()));
+            } else {
+                continue;
+            }
+            if (share != null) {
+                if (!shares.containsKey(table)) {
+                    shares.put(table, new ArrayList<Share>());
+                }
+                shares.get(table).add(share);
+            }
+        }
+        splitByTable(shares, result.getConsumedCapacity());
+    }
+
+    private static void splitByTable(Map<String, List<Share>> shares, List<ConsumedCapacity> consumedCapacities) {
+        if (consumedCapacities == null) {
+            return;
+        }
+        for (ConsumedCapacity consumedCapacity : consumedCapacities) {
+            List<Share> tableShares = shares.get(consumedCapacity.getTableName());
+            if (tableShares != null && !tableShares.isEmpty()) {
+                split(tableShares, getUnits(consumedCapacity));
+            }
+        }
+    }
+
+    private static void split(List<Share> shares, double units) {
+        double estimated = 0;
+        for (Share share : shares) {
+            estimated += share.estimate;
+        }
+        for (Share share : shares) {
+            share.registration.accounting.account(share.operation, share.write, share.key,
+                    estimated == 0 ? 0 : units * share.estimate / estimated, share.size);
+        }
+    }
+
+    /**
+     * @return the consumed read capacity units per operation
+     */
+    Map<String, Double> getReadUnits() {
+        return getUnits(readUnits);
+    }
+
+    /**
+     * @return the consumed write capacity units per operation
+     */
+    Map<String, Double> getWriteUnits() {
+        return getUnits(writeUnits);
+    }
+
+    /**
+     * @return the node ids that consumed the most capacity units, with an estimate of their units
+     */
+    Map<String, Double> getHottest() {
+        return hottest.top(topKeys);
+    }
+
+    /**
+     * @return the node ids with the largest items, with the size of their largest item in bytes
+     */
+    Map<String, Long> getLargest() {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> entry : largest.top(topKeys).entrySet()) {
+            sizes.put(entry.getKey(), entry.getValue().longValue());
+        }
+        return sizes;
+    }
+
+    void reset() {
+        readUnits.clear();
+        writeUnits.clear();
+        hottest.reset();
+        largest.reset();
+    }
+
+    /**
+     * @return a report of the consumed capacity per operation and the hottest and largest node ids
+     */
+    String getReport() {
+        StringBuilder report = new StringBuilder("Consumed capacity of table ").append(tableName);
+        report.append("\n  read units: ").append(getReadUnits());
+        report.append("\n  write units: ").append(getWriteUnits());
+        report.append("\n  hottest node ids (units):");
+        for (Map.Entry<String, Double> entry : getHottest().entrySet()) {
+            report.append("\n    ").append(entry.getKey()).append(' ').append(String.format("%.1f", entry.getValue()));
+            double error = hottest.getError(entry.getKey());
+            if (error > 0) {
+                report.append(" (-").append(String.format("%.1f", error)).append(')');
+            }
+        }
+        report.append("\n  largest node ids (bytes):");
+        for (Map.Entry<String, Long> entry : getLargest().entrySet()) {
+            report.append("\n    ").append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return report.toString();
+    }
+
+    private void account(String operation, boolean write, String key, double units, long size) {
+        AtomicLong counter = getCounter(write ? writeUnits : readUnits, operation);
+        counter.addAndGet(Math.round(units * MILLIS));
+        String nodeKey = getNodeKey(key);
+        if (nodeKey != null && units > 0) {
+            hottest.add(nodeKey, units);
+        }
+        if (size >= 0) {
+            metrics.recordSize(ITEM_PREFIX + operation, size);
+            if (nodeKey != null) {
+                largest.add(nodeKey, size);
+            }
+        }
+    }
+
+    private static AtomicLong getCounter(ConcurrentMap<String, AtomicLong> counters, String operation) {
+        AtomicLong counter = counters.get(operation);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(operation, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private static Map<String, Double> getUnits(ConcurrentMap<String, AtomicLong> counters) {
+        Map<String, Double> units = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            units.put(entry.getKey(), entry.getValue().get() / MILLIS);
+        }
+        return units;
+    }
+
+    private static double getUnits(ConsumedCapacity consumedCapacity) {
+        return consumedCapacity == null || consumedCapacity.getCapacityUnits() == null
+                ? 0 : consumedCapacity.getCapacityUnits();
+    }
+
+    private static double getUnits(List<ConsumedCapacity> consumedCapacities) {
+        double units = 0;
+        if (consumedCapacities != null) {
+            for (ConsumedCapacity consumedCapacity : consumedCapacities) {
+                units += getUnits(consumedCapacity);
+            }
+        }
+        return units;
+    }
+
+    private static String getId(Map<String, AttributeValue> key) {
+        AttributeValue id = key == null ? null : key.get(DynamoDBPersistenceManager.ID_ATTRIBUTE);
+        return id == null ? null : id.getS();
+    }
+
+    /**
+     * @return the registration of the workspace of an item of a table, or null if it isn't accounted
+     */
+    private static Registration getRegistration(String tableName, Map<String, AttributeValue> key) {
+        AttributeValue workspace = key == null ? null : key.get(DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE);
+        return TABLES.get(getTableKey(tableName, workspace == null ? null : workspace.getS()));
+    }
+
+    private static String getTableKey(String tableName, String workspace) {
+        // table names cannot contain the separator
+        return workspace == null ? tableName : tableName + WORKSPACE_SEPARATOR + workspace;
+    }
+
+    private static String getNodeKey(String key) {
+        if (key == null) {
+            return null;
+        }
+        int separator = key.indexOf(KEY_SEPARATOR);
+        return separator < 0 ? key : key.substring(0, separator);
+    }
+
+    /**
+     * @param item the attributes of an item
+     * @return the size of the item as DynamoDB calculates it, approximately
+     */
+    static long getSize(Map<String, AttributeValue> item) {
+        long size = 0;
+        for (Map.Entry<String, AttributeValue> entry : item.entrySet()) {
+            size += getSize(entry.getKey()) + getSize(entry.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * @param size the size of an item in bytes
+     * @param write true for a write, false for a strongly consistent read
+     * @return the capacity units of an item of that size
+     */
+    static double getEstimate(double size, boolean write) {
+        return Math.max(1, Math.ceil(size / (write ? WRITE_UNIT_SIZE : READ_UNIT_SIZE)));
+    }
+
+    private static long getSize(AttributeValue value) {
+        long size = 0;
+        if (value.getS() != null) {
+            size = getSize(value.getS());
+        } else if (value.getN() != null) {
+            size = value.getN().length();
+        } else if (value.getB() != null) {
+            size = value.getB().remaining();
+        } else if (value.getSS() != null) {
+            for (String element : value.getSS()) {
+                size += getSize(element);
+            }
+        } else if (value.getNS() != null) {
+            for (String element : value.getNS()) {
+                size += element.length();
+            }
+        } else if (value.getBS() != null) {
+            for (ByteBuffer element : value.getBS()) {
+                size += element.remaining();
+            }
+        } else if (value.getM() != null) {
+            size = getSize(value.getM()) + NESTING_OVERHEAD;
+        } else if (value.getL() != null) {
+            for (AttributeValue element : value.getL()) {
+                size += getSize(element);
+            }
+            size += NESTING_OVERHEAD;
+        } else {
+            size = 1;
+        }
+        return size;
+    }
+
+    private static long getSize(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * A table of a persistence manager and the kind of items it holds.
+     */
+    private static final class Registration {
+
+        private final CapacityAccounting accounting;
+        private final String kind;
+
+        private Registration(CapacityAccounting accounting, String kind) {
+            this.accounting = accounting;
+            this.kind = kind;
+        }
+
+        private String getReadOperation() {
+            return REFERENCE_TABLE.equals(kind) ? DynamoDBMetrics.REFERENCES : DynamoDBMetrics.LOAD;
+        }
+
+        private String getWriteOperation(String operation) {
+            return REFERENCE_TABLE.equals(kind) ? DynamoDBMetrics.REFERENCES : operation;
+        }
+
+        private String getUpdateOperation() {
+            return SIDE_TABLE.equals(kind) ? DynamoDBMetrics.STORE : DynamoDBMetrics.REFERENCES;
+        }
+    }
+
+    /**
+     * The part of an item in the capacity consumed by a batch request.
+     */
+    private static final class Share {
+
+        private final Registration registration;
+        private final String operation;
+        private final boolean write;
+        private final String key;
+        private final long size;
+        private final double estimate;
+
+        private Share(Registration registration, String operation, boolean write, Map<String, AttributeValue> item) {
+            this.registration = registration;
+            this.operation = operation;
+            this.write = write;
+            this.key = getId(item);
+            this.size = getSize(item);
+            this.estimate = getEstimate(size, write);
+        }
+
+        private Share(Registration registration, String operation, String key) {
+            this.registration = registration;
+            this.operation = operation;
+            this.write = true;
+            this.key = key;
+            this.size = -1;
+            this.estimate = 1;
+        }
+    }
+}
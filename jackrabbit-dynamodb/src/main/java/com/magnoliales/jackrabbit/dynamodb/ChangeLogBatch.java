@@ -0,0 +1,538 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.Delete;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteRequest;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.StaleItemStateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Collects the bundle and reference writes of a single {@link org.apache.jackrabbit.core.state.ChangeLog}
+ * and sends them to DynamoDB in as few round trips as possible.
+ *
+ * <p>
+ * Writes are merged per node, so that the last operation on a node wins and reference updates are folded into
+ * the bundle item that is written in the same change log. In the default mode puts and deletes are sent with
+ * <code>BatchWriteItem</code> in chunks of {@value #MAX_BATCH_SIZE}, unprocessed items are retried with an
+ * exponential back off, and the remaining reference updates are sent one by one afterwards as
+ * <code>BatchWriteItem</code> doesn't support updates. In the atomic mode all writes are sent with a single
+ * <code>TransactWriteItems</code>. A change log that exceeds the limits of a transaction,
+ * {@value #MAX_TRANSACTION_SIZE} items or {@value #MAX_TRANSACTION_BYTES} bytes, fails before anything is
+ * written, as splitting it into several transactions could leave it partially committed.
+ *
+ * <p>
+ * Puts and deletes may carry a {@link WriteCondition}. As <code>BatchWriteItem</code> doesn't support conditions,
+ * conditional puts and deletes of the default mode are sent one by one as <code>PutItem</code> and
+ * <code>DeleteItem</code> along with the reference updates, so that change logs of any size can be written with
+ * conditions. In the atomic mode the conditions are part of the transaction. A failed condition is reported as
+ * {@link StaleItemStateException}.
+ *
+ * <p>
+ * Updates of other items that belong to the change log, like the reference items of a {@link ReferenceStore}, are
+ * sent along with the reference updates, or as part of the transaction in the atomic mode. Their conditions are
+ * evaluated in both modes, a failed one is reported as {@link StaleItemStateException} as well.
+ *
+ * <p>
+ * With an asynchronous client the chunks and reference updates of the default mode are sent in parallel, as they
+ * all refer to different items. The batch waits for all requests before it retries unprocessed items or reports
+ * the first error, so that no write of a failed change log is still in flight once {@link #flush()} returns.
+ *
+ * <p>
+ * With a {@link GroupCommitter} the puts and deletes of the default mode are written together with those of other
+ * change logs of the group, the reference updates follow once they are written.
+ */
+class ChangeLogBatch {
+
+    static final int MAX_BATCH_SIZE = 25;
+    static final int MAX_TRANSACTION_SIZE = 100;
+    static final long MAX_TRANSACTION_BYTES = 4194304L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeLogBatch.class);
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long INITIAL_PAUSE = 50L;
+    private static final String CONDITIONAL_CHECK_FAILED = "ConditionalCheckFailed";
+
+    private final AmazonDynamoDB client;
+    private final AmazonDynamoDBAsync asyncClient;
+    private final GroupCommitter groupCommitter;
+    private final String tableName;
+    private final boolean atomic;
+    private final Map<NodeId, PendingWrite> writes = new LinkedHashMap<>();
+    private final List<UpdateItemRequest> itemUpdates = new ArrayList<>();
+    private final List<NodeId> itemUpdateNodeIds = new ArrayList<>();
+
+    private int roundTrips;
+
+    ChangeLogBatch(AmazonDynamoDB client, String tableName, boolean atomic) {
+        this(client, null, null, tableName, atomic);
+    }
+
+    /**
+     * @param client the client of the table
+     * @param asyncClient the client to send independent requests in parallel with, or null
+     * @param groupCommitter the group to write puts and deletes with, or null
+     * @param tableName the name of the table
+     * @param atomic if the writes are sent as transactions
+     */
+    ChangeLogBatch(AmazonDynamoDB client, AmazonDynamoDBAsync asyncClient, GroupCommitter groupCommitter,
+                   String tableName, boolean atomic) {
+        this.client = client;
+        this.asyncClient = asyncClient;
+        this.groupCommitter = groupCommitter;
+        this.tableName = tableName;
+        this.atomic = atomic;
+    }
+
+    /**
+     * Queue a bundle item to be written.
+     * @param nodeId the id of the node
+     * @param item the complete item including the primary key
+     * @param condition the condition of the write, or null
+     */
+    void put(NodeId nodeId, Item item, WriteCondition condition) {
+        PendingWrite write = getPendingWrite(nodeId);
+        write.condition = mergeCondition(write, condition);
+        write.item = item;
+        write.delete = false;
+    }
+
+    /**
+     * Queue a bundle item to be deleted.
+     * @param nodeId the id of the node
+     * @param primaryKey the primary key of the item
+     * @param condition the condition of the delete, or null
+     */
+    void delete(NodeId nodeId, PrimaryKey primaryKey, WriteCondition condition) {
+        PendingWrite write = getPendingWrite(nodeId);
+        write.condition = mergeCondition(write, condition);
+        write.primaryKey = primaryKey;
+        write.item = null;
+        write.delete = true;
+        write.references = null;
+    }
+
+    /**
+     * Queue an update of the references to a node.
+     * @param nodeId the id of the target node
+     * @param primaryKey the primary key of the target item
+     * @param references the new set of references, empty if all references are to be removed
+     */
+    void updateReferences(NodeId nodeId, PrimaryKey primaryKey, Set<String> references) {
+        PendingWrite write = getPendingWrite(nodeId);
+        write.primaryKey = primaryKey;
+        write.references = references;
+    }
+
+    /**
+     * Queue an update of an item that isn't a bundle item, e.g. in a side table.
+     * @param nodeId the id of the node the update belongs to
+     * @param request the update, independent of all other writes
+     */
+    void update(NodeId nodeId, UpdateItemRequest request) {
+        itemUpdates.add(request);
+        itemUpdateNodeIds.add(nodeId);
+    }
+
+    Set<NodeId> getNodeIds() {
+        return Collections.unmodifiableSet(writes.keySet());
+    }
+
+    /**
+     * @return the mod counts of the bundle items that are put, to be recorded once they're written
+     */
+    Map<NodeId, Long> getModCounts() {
+        Map<NodeId, Long> modCounts = new HashMap<>();
+        for (Map.Entry<NodeId, PendingWrite> entry : writes.entrySet()) {
+            if (entry.getValue().item != null) {
+                modCounts.put(entry.getKey(),
+                        entry.getValue().item.getLong(DynamoDBPersistenceManager.MOD_COUNT_ATTRIBUTE));
+            }
+        }
+        return modCounts;
+    }
+
+    /**
+     * Send all queued writes to DynamoDB.
+     * @throws ItemStateException if the writes cannot be completed
+     */
+    void flush() throws ItemStateException {
+        List<WriteRequest> requests = new ArrayList<>();
+        List<TransactWriteItem> transactItems = new ArrayList<>();
+        List<NodeId> transactNodeIds = new ArrayList<>();
+        List<UpdateItemRequest> updates = new ArrayList<>();
+        List<PutItemRequest> conditionalPuts = new ArrayList<>();
+        List<DeleteItemRequest> conditionalDeletes = new ArrayList<>();
+        for (Map.Entry<NodeId, PendingWrite> entry : writes.entrySet()) {
+            PendingWrite write = entry.getValue();
+            if (write.item != null) {
+                Item item = write.item;
+                if (write.references != null && !write.references.isEmpty()) {
+                    item = item.withStringSet(DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE, write.references);
+                }
+                Map<String, AttributeValue> attributes = ItemUtils.toAttributeValues(item);
+                Put put = new Put().withTableName(tableName).withItem(attributes);
+                if (write.condition != null) {
+                    put.withConditionExpression(write.condition.getExpression())
+                            .withExpressionAttributeNames(write.condition.getNames())
+                            .withExpressionAttributeValues(write.condition.getAttributeValues());
+                    conditionalPuts.add(new PutItemRequest()
+                            .withTableName(tableName)
+                            .withItem(attributes)
+                            .withConditionExpression(put.getConditionExpression())
+                            .withExpressionAttributeNames(put.getExpressionAttributeNames())
+                            .withExpressionAttributeValues(put.getExpressionAttributeValues()));
+                } else {
+                    requests.add(new WriteRequest().withPutRequest(new PutRequest().withItem(attributes)));
+                }
+                transactItems.add(new TransactWriteItem().withPut(put));
+                transactNodeIds.add(entry.getKey());
+            } else if (write.delete) {
+                Map<String, AttributeValue> key = ItemUtils.toAttributeValueMap(write.primaryKey);
+                Delete delete = new Delete().withTableName(tableName).withKey(key);
+                if (write.condition != null) {
+                    delete.withConditionExpression(write.condition.getExpression())
+                            .withExpressionAttributeNames(write.condition.getNames())
+                            .withExpressionAttributeValues(write.condition.getAttributeValues());
+                    conditionalDeletes.add(new DeleteItemRequest()
+                            .withTableName(tableName)
+                            .withKey(key)
+                            .withConditionExpression(delete.getConditionExpression())
+                            .withExpressionAttributeNames(delete.getExpressionAttributeNames())
+                            .withExpressionAttributeValues(delete.getExpressionAttributeValues()));
+                } else {
+                    requests.add(new WriteRequest().withDeleteRequest(new DeleteRequest().withKey(key)));
+                }
+                transactItems.add(new TransactWriteItem().withDelete(delete));
+                transactNodeIds.add(entry.getKey());
+            } else if (write.references != null) {
+                UpdateItemRequest request = createReferencesUpdate(write);
+                updates.add(request);
+                transactItems.add(new TransactWriteItem().withUpdate(new Update()
+                        .withTableName(tableName)
+                        .withKey(request.getKey())
+                        .withUpdateExpression(request.getUpdateExpression())
+                        .withExpressionAttributeNames(request.getExpressionAttributeNames())
+                        .withExpressionAttributeValues(request.getExpressionAttributeValues())));
+                transactNodeIds.add(entry.getKey());
+            }
+        }
+        for (int i = 0; i < itemUpdates.size(); i++) {
+            UpdateItemRequest request = itemUpdates.get(i);
+            updates.add(request);
+            transactItems.add(new TransactWriteItem().withUpdate(new Update()
+                    .withTableName(request.getTableName())
+                    .withKey(request.getKey())
+                    .withUpdateExpression(request.getUpdateExpression())
+                    .withConditionExpression(request.getConditionExpression())
+                    .withExpressionAttributeNames(request.getExpressionAttributeNames())
+                    .withExpressionAttributeValues(request.getExpressionAttributeValues())));
+            transactNodeIds.add(itemUpdateNodeIds.get(i));
+        }
+        try {
+            if (atomic) {
+                writeTransactions(transactItems, transactNodeIds);
+            } else if (groupCommitter != null) {
+                if (!requests.isEmpty()) {
+                    groupCommitter.commit(client, tableName, requests);
+                    roundTrips += (requests.size() + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE;
+                }
+                if (asyncClient != null) {
+                    writeParallel(Collections.<WriteRequest>emptyList(), updates, conditionalPuts,
+                            conditionalDeletes);
+                } else {
+                    writeSingle(updates, conditionalPuts, conditionalDeletes);
+                }
+            } else if (asyncClient != null) {
+                writeParallel(requests, updates, conditionalPuts, conditionalDeletes);
+            } else {
+                writeBatches(requests);
+                writeSingle(updates, conditionalPuts, conditionalDeletes);
+            }
+        } catch (ConditionalCheckFailedException e) {
+            String message = "Items of the writes to table " + tableName + " have been modified externally";
+            LOGGER.debug(message);
+            throw new StaleItemStateException(message);
+        } catch (AmazonClientException e) {
+            String message = "Cannot commit " + writes.size() + " writes to table " + tableName;
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Committed " + writes.size() + " writes to table " + tableName
+                    + " in " + roundTrips + " round trips");
+        }
+    }
+
+    /**
+     * @return the number of writes of the batch, including the updates of other items
+     */
+    int getWriteCount() {
+        return writes.size() + itemUpdates.size();
+    }
+
+    /**
+     * @return the number of requests the writes of the batch have taken so far, including retries
+     */
+    int getRoundTrips() {
+        return roundTrips;
+    }
+
+    private PendingWrite getPendingWrite(NodeId nodeId) {
+        PendingWrite write = writes.get(nodeId);
+        if (write == null) {
+            write = new PendingWrite();
+            writes.put(nodeId, write);
+        }
+        return write;
+    }
+
+    private UpdateItemRequest createReferencesUpdate(PendingWrite write) {
+        Map<String, String> names = new HashMap<>();
+        names.put("#r", DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE);
+        UpdateItemRequest request = new UpdateItemRequest()
+                .withTableName(tableName)
+                .withKey(ItemUtils.toAttributeValueMap(write.primaryKey))
+                .withExpressionAttributeNames(names);
+        if (write.references.isEmpty()) {
+            request.withUpdateExpression("REMOVE #r");
+        } else {
+            Map<String, AttributeValue> values = new HashMap<>();
+            values.put(":r", new AttributeValue().withSS(write.references));
+            request.withUpdateExpression("SET #r = :r").withExpressionAttributeValues(values);
+        }
+        return request;
+    }
+
+    private void writeBatches(List<WriteRequest> requests) throws ItemStateException {
+        for (int i = 0; i < requests.size(); i += MAX_BATCH_SIZE) {
+            List<WriteRequest> chunk = requests.subList(i, Math.min(i + MAX_BATCH_SIZE, requests.size()));
+            Map<String, List<WriteRequest>> requestItems = new HashMap<>();
+            requestItems.put(tableName, new ArrayList<>(chunk));
+            long pause = INITIAL_PAUSE;
+            for (int attempt = 1; !requestItems.isEmpty(); attempt++) {
+                BatchWriteItemResult result = client.batchWriteItem(new BatchWriteItemRequest()
+                        .withRequestItems(requestItems));
+                roundTrips++;
+                requestItems = result.getUnprocessedItems();
+                if (requestItems == null || requestItems.isEmpty()) {
+                    break;
+                }
+                if (attempt == MAX_ATTEMPTS) {
+                    String message = "Cannot write " + requestItems.get(tableName).size()
+                            + " unprocessed items to table " + tableName + " after " + attempt + " attempts";
+                    LOGGER.error(message);
+                    throw new ItemStateException(message);
+                }
+                LOGGER.debug("Retrying {} unprocessed items in {} ms", requestItems.get(tableName).size(), pause);
+                sleep(pause);
+                pause *= 2;
+            }
+        }
+    }
+
+    /**
+     * Send the updates and the conditional puts and deletes one by one.
+     */
+    private void writeSingle(List<UpdateItemRequest> updates, List<PutItemRequest> puts,
+                             List<DeleteItemRequest> deletes) {
+        for (PutItemRequest put : puts) {
+            client.putItem(put);
+            roundTrips++;
+        }
+        for (DeleteItemRequest delete : deletes) {
+            client.deleteItem(delete);
+            roundTrips++;
+        }
+        for (UpdateItemRequest update : updates) {
+            client.updateItem(update);
+            roundTrips++;
+        }
+    }
+
+    private void writeParallel(List<WriteRequest> requests, List<UpdateItemRequest> updates,
+                               List<PutItemRequest> puts, List<DeleteItemRequest> deletes)
+            throws ItemStateException {
+        List<Future<?>> updateResults = new ArrayList<>();
+        for (PutItemRequest put : puts) {
+            updateResults.add(asyncClient.putItemAsync(put));
+        }
+        for (DeleteItemRequest delete : deletes) {
+            updateResults.add(asyncClient.deleteItemAsync(delete));
+        }
+        for (UpdateItemRequest update : updates) {
+            updateResults.add(asyncClient.updateItemAsync(update));
+        }
+        List<WriteRequest> pending = requests;
+        long pause = INITIAL_PAUSE;
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            List<Future<BatchWriteItemResult>> batchResults = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i += MAX_BATCH_SIZE) {
+                Map<String, List<WriteRequest>> requestItems = new HashMap<>();
+                requestItems.put(tableName,
+                        new ArrayList<>(pending.subList(i, Math.min(i + MAX_BATCH_SIZE, pending.size()))));
+                batchResults.add(asyncClient.batchWriteItemAsync(new BatchWriteItemRequest()
+                        .withRequestItems(requestItems)));
+            }
+            List<WriteRequest> unprocessed = new ArrayList<>();
+            for (BatchWriteItemResult result : awaitAll(batchResults)) {
+                Map<String, List<WriteRequest>> unprocessedItems = result.getUnprocessedItems();
+                if (unprocessedItems != null && unprocessedItems.containsKey(tableName)) {
+                    unprocessed.addAll(unprocessedItems.get(tableName));
+                }
+            }
+            pending = unprocessed;
+            if (pending.isEmpty()) {
+                break;
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                awaitAll(updateResults);
+                String message = "Cannot write " + pending.size() + " unprocessed items to table " + tableName
+                        + " after " + attempt + " attempts";
+                LOGGER.error(message);
+                throw new ItemStateException(message);
+            }
+            LOGGER.debug("Retrying {} unprocessed items in {} ms", pending.size(), pause);
+            sleep(pause);
+            pause *= 2;
+        }
+        awaitAll(updateResults);
+    }
+
+    /**
+     * Wait for all requests and report the first error once none of them is in flight any more.
+     */
+    private <T> List<T> awaitAll(List<? extends Future<? extends T>> futures) throws ItemStateException {
+        List<T> results = new ArrayList<>();
+        AmazonClientException error = null;
+        for (Future<? extends T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof AmazonClientException ? (AmazonClientException) e.getCause()
+                            : new AmazonClientException("Request to table " + tableName + " failed", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ItemStateException("Interrupted while waiting for writes to table " + tableName, e);
+            } finally {
+                roundTrips++;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return results;
+    }
+
+    private void writeTransactions(List<TransactWriteItem> transactItems, List<NodeId> transactNodeIds)
+            throws ItemStateException {
+        if (transactItems.isEmpty()) {
+            return;
+        }
+        long size = getTransactionSize(transactItems);
+        if (transactItems.size() > MAX_TRANSACTION_SIZE || size > MAX_TRANSACTION_BYTES) {
+            String message = "Change log with " + transactItems.size() + " writes of " + size + " bytes exceeds "
+                    + "the transaction limits of " + MAX_TRANSACTION_SIZE + " items and " + MAX_TRANSACTION_BYTES
+                    + " bytes of table " + tableName;
+            LOGGER.error(message);
+            throw new ItemStateException(message);
+        }
+        try {
+            client.transactWriteItems(new TransactWriteItemsRequest().withTransactItems(transactItems));
+        } catch (TransactionCanceledException e) {
+            List<CancellationReason> reasons = e.getCancellationReasons();
+            for (int i = 0; reasons != null && i < reasons.size(); i++) {
+                if (CONDITIONAL_CHECK_FAILED.equals(reasons.get(i).getCode())) {
+                    String message = transactNodeIds.get(i) + " has been modified externally";
+                    LOGGER.debug(message);
+                    throw new StaleItemStateException(message);
+                }
+            }
+            throw e;
+        } finally {
+            roundTrips++;
+        }
+    }
+
+    /**
+     * @return the size of the items and keys of a transaction, approximately
+     */
+    private static long getTransactionSize(List<TransactWriteItem> transactItems) {
+        long size = 0;
+        for (TransactWriteItem transactItem : transactItems) {
+            if (transactItem.getPut() != null) {
+                size += CapacityAccounting.getSize(transactItem.getPut().getItem());
+            } else if (transactItem.getDelete() != null) {
+                size += CapacityAccounting.getSize(transactItem.getDelete().getKey());
+            } else if (transactItem.getUpdate() != null) {
+                size += CapacityAccounting.getSize(transactItem.getUpdate().getKey());
+                if (transactItem.getUpdate().getExpressionAttributeValues() != null) {
+                    size += CapacityAccounting.getSize(transactItem.getUpdate().getExpressionAttributeValues());
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * A node that is written twice in one change log keeps the condition of its first write, which refers to
+     * the state of the item before the change log.
+     */
+    private static WriteCondition mergeCondition(PendingWrite write, WriteCondition condition) {
+        if (write.item != null || write.delete) {
+            return write.condition;
+        }
+        return condition;
+    }
+
+    private static void sleep(long pause) throws ItemStateException {
+        try {
+            Thread.sleep(pause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ItemStateException("Interrupted while retrying unprocessed items", e);
+        }
+    }
+
+    private static final class PendingWrite {
+        private PrimaryKey primaryKey;
+        private Item item;
+        private boolean delete;
+        private Set<String> references;
+        private WriteCondition condition;
+    }
+}
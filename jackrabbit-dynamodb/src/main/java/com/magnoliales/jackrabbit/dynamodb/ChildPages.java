@@ -0,0 +1,371 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.ChildNodeEntry;
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+
+/**
+ * Keeps the child node entries of nodes with many children in page items of a side table, so that adding a child
+ * to a large folder rewrites a single page instead of the whole list, and the bundle item stays below the item size
+ * limit.
+ *
+ * <p>
+ * Pages are cut where the hash of a child id hits a boundary, with at least half and at most twice the configured
+ * page size in between. As the boundaries depend on the children around them, inserting or removing a child only
+ * changes the page it belongs to, wherever it is in the list. Pages are keyed by the parent id and the digest of
+ * their content, so they are never modified: a changed page is written under a new key before the bundle item that
+ * refers to it, and the page it replaced is deleted once the bundle item is written. The bundle item lists the
+ * digests of its pages in order in the <code>childPages</code> attribute.
+ *
+ * <p>
+ * Jackrabbit needs all child node entries of a loaded node, so the pages are fetched along with the bundle item,
+ * with one <code>BatchGetItem</code> per {@value #MAX_BATCH_SIZE} pages.
+ *
+ * <p>
+ * The digests of the pages are kept with the loaded bundle, weakly keyed by its node id instance like its mod count,
+ * so that a write only reads them if the bundle was dropped in the meantime. With conditional writes a write
+ * relies on the condition on the mod count to fail if another cluster node replaced the pages since. Without them
+ * the digests are read again before every write of a paged bundle, as a concurrent replacement would go unnoticed.
+ */
+class ChildPages {
+
+    static final String CHILD_PAGES_ATTRIBUTE = "childPages";
+    static final int MAX_BATCH_SIZE = 100;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChildPages.class);
+    private static final NameFactory NAME_FACTORY = NameFactoryImpl.getInstance();
+    private static final String CHILDREN_ATTRIBUTE = "children";
+    private static final String PAGE_SEPARATOR = "/";
+    private static final String DIGEST = "SHA-1";
+    private static final int MAX_ATTEMPTS = 8;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int INT_BITS = 32;
+
+    private final AmazonDynamoDB client;
+    private final TableKeys tableKeys;
+    private final String tableName;
+    private final String bundleTableName;
+    private final int pageSize;
+    private final boolean conditionalWrites;
+    private final Map<NodeId, List<String>> pages = new WeakHashMap<>();
+    private final List<String> obsolete = new ArrayList<>();
+
+    /**
+     * @param client the client of both tables
+     * @param tableKeys the keys of both tables
+     * @param tableName the name of the side table, which has the same key as the bundle table
+     * @param bundleTableName the name of the bundle table
+     * @param pageSize the number of children above which they are paged, also the average size of a page
+     * @param conditionalWrites true if the bundle items are written on condition of their mod count
+     */
+    ChildPages(AmazonDynamoDB client, TableKeys tableKeys, String tableName, String bundleTableName, int pageSize,
+               boolean conditionalWrites) {
+        this.client = client;
+        this.tableKeys = tableKeys;
+        this.tableName = tableName;
+        this.bundleTableName = bundleTableName;
+        this.pageSize = pageSize;
+        this.conditionalWrites = conditionalWrites;
+    }
+
+    /**
+     * @param item the bundle item
+     * @return true if the children of the bundle are kept in pages
+     */
+    static boolean isPaged(Item item) {
+        return item.isPresent(CHILD_PAGES_ATTRIBUTE);
+    }
+
+    /**
+     * Add the child node entries kept in the pages of the bundle item to the bundle.
+     * @param bundle the bundle read from the item
+     * @param item the bundle item
+     * @return false if a page is missing, because the bundle item was replaced in the meantime
+     * @throws ItemStateException if the pages cannot be read
+     */
+    boolean read(NodePropBundle bundle, Item item) throws ItemStateException {
+        List<String> digests = isPaged(item) ? item.<String>getList(CHILD_PAGES_ATTRIBUTE)
+                : Collections.<String>emptyList();
+        Map<String, byte[]> data = new HashMap<>();
+        try {
+            for (int i = 0; i < digests.size(); i += MAX_BATCH_SIZE) {
+                fetch(bundle.getId(), digests.subList(i, Math.min(i + MAX_BATCH_SIZE, digests.size())), data);
+            }
+            for (String digest : digests) {
+                byte[] page = data.get(digest);
+                if (page == null) {
+                    LOGGER.debug("Page {} of {} is missing", digest, bundle.getId());
+                    return false;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(page));
+                for (int count = in.readInt(); count > 0; count--) {
+                    NodeId childId = new NodeId(in.readLong(), in.readLong());
+                    bundle.addChildNodeEntry(NAME_FACTORY.create(in.readUTF()), childId);
+                }
+            }
+        } catch (AmazonClientException | IOException e) {
+            String message = "Cannot read child pages of " + bundle.getId().toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+        remember(bundle.getId(), digests);
+        return true;
+    }
+
+    /**
+     * Write the pages of a bundle that are new and add their digests to the bundle item. Nothing is written if the
+     * bundle doesn't have enough children to be paged.
+     * @param bundle the bundle to store
+     * @param item the bundle item
+     * @return the bundle to serialize into the item, without the paged children
+     * @throws ItemStateException if the pages cannot be written
+     */
+    NodePropBundle write(NodePropBundle bundle, Item item) throws ItemStateException {
+        NodeId nodeId = bundle.getId();
+        List<ChildNodeEntry> children = bundle.getChildNodeEntries();
+        try {
+            boolean paged = children.size() > pageSize;
+            // without a condition on the mod count, pages that another cluster node replaced may be gone unnoticed
+            List<String> previous = bundle.isNew() ? Collections.<String>emptyList()
+                    : getPages(nodeId, paged && !conditionalWrites);
+            if (!paged) {
+                markObsolete(nodeId, previous, Collections.<String>emptySet());
+                remember(nodeId, Collections.<String>emptyList());
+                return bundle;
+            }
+            Set<String> existing = new HashSet<>(previous);
+            List<String> digests = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i < children.size(); i++) {
+                int length = i + 1 - start;
+                if (i == children.size() - 1 || length >= 2 * pageSize
+                        || length >= pageSize / 2 && isBoundary(children.get(i).getId())) {
+                    byte[] page = encode(children.subList(start, i + 1));
+                    String digest = Hex.encodeHexString(MessageDigest.getInstance(DIGEST).digest(page));
+                    if (existing.add(digest)) {
+                        client.putItem(new PutItemRequest()
+                                .withTableName(tableName)
+                                .withItem(getPageItem(nodeId, digest, page)));
+                    }
+                    digests.add(digest);
+                    start = i + 1;
+                }
+            }
+            markObsolete(nodeId, previous, new HashSet<>(digests));
+            remember(nodeId, digests);
+            item.withList(CHILD_PAGES_ATTRIBUTE, digests);
+            return withoutChildren(bundle);
+        } catch (AmazonClientException | IOException | NoSuchAlgorithmException e) {
+            String message = "Cannot write child pages of " + nodeId.toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+    }
+
+    /**
+     * Mark the pages of a bundle that is deleted as obsolete.
+     * @param nodeId the id of the deleted node
+     * @throws ItemStateException if the pages of the bundle cannot be read
+     */
+    void delete(NodeId nodeId) throws ItemStateException {
+        try {
+            markObsolete(nodeId, getPages(nodeId, false), Collections.<String>emptySet());
+        } catch (AmazonClientException e) {
+            String message = "Cannot read child pages of " + nodeId.toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+        forget(nodeId);
+    }
+
+    /**
+     * Delete the pages that were replaced by bundle items written since. Pages that cannot be deleted are left
+     * behind, as nothing refers to them any more.
+     */
+    synchronized void committed() {
+        for (String key : obsolete) {
+            try {
+                client.deleteItem(new DeleteItemRequest().withTableName(tableName).withKey(getKey(key)));
+            } catch (AmazonClientException e) {
+                LOGGER.warn("Cannot delete child page " + key + " from table " + tableName, e);
+            }
+        }
+        obsolete.clear();
+    }
+
+    /**
+     * Keep the replaced pages after a failed write, as the bundle items still refer to them, and forget what is
+     * known about the pages of all bundles.
+     */
+    synchronized void rolledBack() {
+        obsolete.clear();
+        pages.clear();
+    }
+
+    /**
+     * Remember the pages of a bundle item that was read without its children, e.g. for its mod count.
+     * @param nodeId the node id instance of the bundle
+     * @param item the bundle item with at least the <code>childPages</code> attribute, or null if it's missing
+     */
+    void loaded(NodeId nodeId, Item item) {
+        remember(nodeId, item != null && isPaged(item) ? item.<String>getList(CHILD_PAGES_ATTRIBUTE)
+                : Collections.<String>emptyList());
+    }
+
+    /**
+     * Remember that the children of a bundle that was read elsewhere are not paged.
+     * @param nodeId the node id instance of the bundle
+     */
+    void unpaged(NodeId nodeId) {
+        remember(nodeId, Collections.<String>emptyList());
+    }
+
+    /**
+     * Forget the pages of a bundle that changed elsewhere.
+     * @param nodeId the id of the node
+     */
+    synchronized void forget(NodeId nodeId) {
+        pages.remove(nodeId);
+    }
+
+    private void fetch(NodeId nodeId, List<String> digests, Map<String, byte[]> data) {
+        List<Map<String, AttributeValue>> keys = new ArrayList<>();
+        for (String digest : digests) {
+            keys.add(getKey(nodeId.toString() + PAGE_SEPARATOR + digest));
+        }
+        Map<String, KeysAndAttributes> requestItems = new HashMap<>();
+        requestItems.put(tableName, new KeysAndAttributes().withKeys(keys));
+        for (int attempt = 1; requestItems != null && !requestItems.isEmpty(); attempt++) {
+            if (attempt > MAX_ATTEMPTS) {
+                throw new AmazonClientException("Cannot read all child pages of " + nodeId.toString() + " after "
+                        + MAX_ATTEMPTS + " attempts");
+            }
+            BatchGetItemResult result = client.batchGetItem(new BatchGetItemRequest().withRequestItems(requestItems));
+            for (Map<String, AttributeValue> page : result.getResponses().get(tableName)) {
+                String key = page.get(DynamoDBPersistenceManager.ID_ATTRIBUTE).getS();
+                ByteBuffer children = page.get(CHILDREN_ATTRIBUTE).getB();
+                byte[] bytes = new byte[children.remaining()];
+                children.duplicate().get(bytes);
+                data.put(key.substring(key.lastIndexOf(PAGE_SEPARATOR) + 1), bytes);
+            }
+            requestItems = result.getUnprocessedKeys();
+        }
+    }
+
+    private synchronized List<String> getPages(NodeId nodeId, boolean reload) {
+        List<String> digests = reload ? null : pages.get(nodeId);
+        if (digests != null) {
+            return digests;
+        }
+        Map<String, String> names = Collections.singletonMap("#p", CHILD_PAGES_ATTRIBUTE);
+        Map<String, AttributeValue> item = client.getItem(new GetItemRequest()
+                .withTableName(bundleTableName)
+                .withKey(getKey(nodeId.toString()))
+                .withProjectionExpression("#p")
+                .withExpressionAttributeNames(names)
+                .withConsistentRead(true)).getItem();
+        digests = new ArrayList<>();
+        AttributeValue list = item == null ? null : item.get(CHILD_PAGES_ATTRIBUTE);
+        if (list != null) {
+            for (AttributeValue digest : list.getL()) {
+                digests.add(digest.getS());
+            }
+        }
+        return digests;
+    }
+
+    private synchronized void remember(NodeId nodeId, List<String> digests) {
+        pages.remove(nodeId);
+        pages.put(nodeId, digests);
+    }
+
+    private synchronized void markObsolete(NodeId nodeId, List<String> previous, Set<String> current) {
+        for (String digest : previous) {
+            if (!current.contains(digest)) {
+                obsolete.add(nodeId.toString() + PAGE_SEPARATOR + digest);
+            }
+        }
+    }
+
+    /**
+     * A boundary follows on average every half page size children, after the minimum of half a page size.
+     */
+    private boolean isBoundary(NodeId childId) {
+        long msb = childId.getMostSignificantBits();
+        long lsb = childId.getLeastSignificantBits();
+        int hash = (int) (msb ^ (msb >>> INT_BITS) ^ lsb ^ (lsb >>> INT_BITS));
+        return (hash & Integer.MAX_VALUE) % Math.max(1, pageSize / 2) == 0;
+    }
+
+    private static byte[] encode(List<ChildNodeEntry> children) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(children.size());
+        for (ChildNodeEntry child : children) {
+            out.writeLong(child.getId().getMostSignificantBits());
+            out.writeLong(child.getId().getLeastSignificantBits());
+            out.writeUTF(child.getName().toString());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private Map<String, AttributeValue> getPageItem(NodeId nodeId, String digest, byte[] page) {
+        Map<String, AttributeValue> item = new HashMap<>(getKey(nodeId.toString() + PAGE_SEPARATOR + digest));
+        item.put(CHILDREN_ATTRIBUTE, new AttributeValue().withB(ByteBuffer.wrap(page)));
+        return item;
+    }
+
+    private static NodePropBundle withoutChildren(NodePropBundle bundle) {
+        NodePropBundle copy = new NodePropBundle(bundle.getId());
+        copy.setParentId(bundle.getParentId());
+        copy.setNodeTypeName(bundle.getNodeTypeName());
+        copy.setMixinTypeNames(bundle.getMixinTypeNames());
+        copy.setReferenceable(bundle.isReferenceable());
+        copy.setModCount(bundle.getModCount());
+        copy.setSharedSet(bundle.getSharedSet());
+        for (PropertyEntry property : bundle.getPropertyEntries()) {
+            copy.addProperty(property);
+        }
+        return copy;
+    }
+
+    private Map<String, AttributeValue> getKey(String id) {
+        return tableKeys.getKey(id);
+    }
+}
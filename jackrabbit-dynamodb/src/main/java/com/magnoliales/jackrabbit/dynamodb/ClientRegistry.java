@@ -0,0 +1,187 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide registry of DynamoDB clients, so that the persistence managers of all workspaces share one client,
+ * with one HTTP connection pool, per client factory, region, endpoint, connection settings and retry condition
+ * instead of creating a client each.
+ *
+ * <p>
+ * Clients are reference counted: the first {@link #acquire} creates a client, the last {@link #release} shuts it
+ * down. As a shared client can't count the retries of a single persistence manager, the SDK metrics are collected
+ * per request instead, see {@link InstrumentedClient}.
+ *
+ * <p>
+ * A client can be pre-warmed with a number of concurrent requests, which open as many connections and pay for
+ * their TLS handshakes before the first real request. Connections are only opened for the difference to earlier
+ * pre-warming of the same client.
+ */
+final class ClientRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClientRegistry.class);
+    private static final ConcurrentMap<String, Registration> CLIENTS = new ConcurrentHashMap<>();
+    private static final long PREWARM_TIMEOUT = 30000L;
+
+    private ClientRegistry() {
+    }
+
+    /**
+     * Get the shared client for the given settings, creating it if there is none yet.
+     * @param clientFactory the class name of the client factory, or null for a client for AWS
+     * @param region the region, may be null
+     * @param endpoint the endpoint, or null for the endpoint of the region
+     * @param configuration the configuration of the client
+     * @return the client, to be released once it's not used any more
+     */
+    static AmazonDynamoDB acquire(String clientFactory, Region region, String endpoint,
+                                  ClientConfiguration configuration) {
+        String key = getKey(clientFactory, region, endpoint, configuration);
+        while (true) {
+            Registration registration = CLIENTS.get(key);
+            if (registration == null) {
+                AmazonDynamoDB client = DynamoDBUtils.createClient(
+                        DynamoDBUtils.newInstance(clientFactory, DynamoDBClientFactory.class), region, endpoint,
+                        configuration, null);
+                registration = new Registration(key, client);
+                Registration existing = CLIENTS.putIfAbsent(key, registration);
+                if (existing != null) {
+                    client.shutdown();
+                    registration = existing;
+                } else {
+                    LOGGER.info("Created DynamoDB client " + key);
+                }
+            }
+            synchronized (registration) {
+                if (!registration.closed) {
+                    registration.references++;
+                    return registration.client;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release a client, the last release shuts it down.
+     * @param client the client returned by {@link #acquire}
+     */
+    static void release(AmazonDynamoDB client) {
+        for (Registration registration : CLIENTS.values()) {
+            if (registration.client != client) {
+                continue;
+            }
+            synchronized (registration) {
+                if (--registration.references > 0) {
+                    return;
+                }
+                registration.closed = true;
+            }
+            CLIENTS.remove(registration.key, registration);
+            client.shutdown();
+            LOGGER.info("Shut down DynamoDB client " + registration.key);
+            return;
+        }
+    }
+
+    /**
+     * Open connections of a shared client with concurrent requests, unless it has as many already.
+     * @param client the client returned by {@link #acquire}
+     * @param connections the number of connections
+     * @param request the request that opens a connection, a cheap one like <code>DescribeTable</code>
+     */
+    static void prewarm(AmazonDynamoDB client, int connections, final Runnable request) {
+        int missing = 0;
+        for (Registration registration : CLIENTS.values()) {
+            if (registration.client == client) {
+                synchronized (registration) {
+                    missing = connections - registration.warmed;
+                    registration.warmed = Math.max(registration.warmed, connections);
+                }
+            }
+        }
+        if (missing <= 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        final CountDownLatch ready = new CountDownLatch(missing);
+        final CountDownLatch done = new CountDownLatch(missing);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < missing; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        // start together, so that every request needs a connection of its own
+                        ready.await();
+                        request.run();
+                    } catch (AmazonClientException e) {
+                        failures.incrementAndGet();
+                        LOGGER.debug("Cannot pre-warm a connection", e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "dynamodb-prewarm-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            if (!done.await(PREWARM_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Pre-warming of " + missing + " connections didn't finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failures.get() > 0) {
+            LOGGER.warn("Cannot pre-warm " + failures.get() + " of " + missing + " connections");
+        }
+        LOGGER.info("Pre-warmed " + missing + " connections in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private static String getKey(String clientFactory, Region region, String endpoint,
+                                 ClientConfiguration configuration) {
+        return (clientFactory == null || clientFactory.isEmpty() ? "aws" : clientFactory)
+                + " region=" + (region == null ? "" : region.getName())
+                + " endpoint=" + (endpoint == null ? "" : endpoint)
+                + " maxConnections=" + configuration.getMaxConnections()
+                + " connectionTimeout=" + configuration.getConnectionTimeout()
+                + " socketTimeout=" + configuration.getSocketTimeout()
+                + " requestTimeout=" + configuration.getRequestTimeout()
+                + " tcpKeepAlive=" + configuration.useTcpKeepAlive()
+                + " connectionTtl=" + configuration.getConnectionTTL()
+                + " connectionMaxIdle=" + configuration.getConnectionMaxIdleMillis()
+                + " retryCondition=" + configuration.getRetryPolicy().getRetryCondition().getClass().getName();
+    }
+
+    /**
+     * A shared client and the number of its users.
+     */
+    private static final class Registration {
+
+        private final String key;
+        private final AmazonDynamoDB client;
+        private int references;
+        private int warmed;
+        private boolean closed;
+
+        private Registration(String key, AmazonDynamoDB client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read consistency of the bundle and reference reads of a persistence manager.
+ *
+ * <p>
+ * With <code>eventual</code> consistency all reads are eventually consistent, with <code>strong</code>
+ * consistency all reads are strongly consistent at twice the read capacity. With <code>tracked</code>
+ * consistency only the nodes written by this persistence manager or changed by another cluster node within the
+ * window, and the nodes of the critical subtrees, are read strongly consistent. The critical subtrees are given by
+ * the ids of their root nodes, their descendants become critical as they're read through their parents.
+ *
+ * <p>
+ * A descendant stays critical for {@value #RETENTION} windows after its parent was last read, and at most
+ * {@value #MAX_CRITICAL} descendants are critical at a time, so that a large or frequently read subtree, up to the
+ * whole workspace below a critical root node, doesn't make the tracked nodes grow without bound. Beyond that limit
+ * further descendants are read eventually consistent until expired ones are purged.
+ *
+ * <p>
+ * Written nodes are tracked with their mod count for {@value #RETENTION} windows. An eventually consistent read
+ * after the window that returns an older item than the one written is {@link #isStale(NodeId, Long) stale} and is
+ * read again strongly consistent.
+ */
+class ConsistencyPolicy {
+
+    static final String EVENTUAL = "eventual";
+    static final String STRONG = "strong";
+    static final String TRACKED = "tracked";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConsistencyPolicy.class);
+    private static final int RETENTION = 10;
+    private static final int PURGE_INTERVAL = 1024;
+    private static final long REMOVED = Long.MAX_VALUE;
+    private static final int MAX_CRITICAL = 100000;
+
+    private final String mode;
+    private final long window;
+    private final Set<NodeId> roots;
+    private final ConcurrentMap<NodeId, Long> critical = new ConcurrentHashMap<>();
+    private final ConcurrentMap<NodeId, Written> written = new ConcurrentHashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong criticalReads = new AtomicLong();
+    private final AtomicLong consistentReads = new AtomicLong();
+    private final AtomicLong eventualReads = new AtomicLong();
+    private final AtomicLong staleReads = new AtomicLong();
+
+    /**
+     * @param mode <code>eventual</code>, <code>strong</code> or <code>tracked</code>
+     * @param window the time in milliseconds during which written nodes are read strongly consistent
+     * @param roots the ids of the root nodes of the critical subtrees
+     */
+    ConsistencyPolicy(String mode, long window, Collection<NodeId> roots) {
+        if (!EVENTUAL.equals(mode) && !STRONG.equals(mode) && !TRACKED.equals(mode)) {
+            String message = "Unknown read consistency " + mode;
+            LOGGER.error(message);
+            throw new IllegalArgumentException(message);
+        }
+        this.mode = mode;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.roots = Collections.unmodifiableSet(new HashSet<>(roots));
+    }
+
+    /**
+     * Track a node written by this persistence manager.
+     * @param nodeId the id of the node
+     * @param modCount the mod count of the written item, 0 if it's not known
+     */
+    void written(NodeId nodeId, long modCount) {
+        if (!TRACKED.equals(mode)) {
+            return;
+        }
+        long now = System.nanoTime();
+        Written previous = written.get(nodeId);
+        // an external change with an unknown mod count must not hide a newer local write
+        long latest = previous == null || previous.modCount == REMOVED || modCount == REMOVED
+                ? modCount : Math.max(modCount, previous.modCount);
+        written.put(nodeId, new Written(latest, now));
+        if (writes.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purge(now);
+        }
+    }
+
+    /**
+     * Track a node removed by this persistence manager.
+     * @param nodeId the id of the node
+     */
+    void removed(NodeId nodeId) {
+        critical.remove(nodeId);
+        written(nodeId, REMOVED);
+    }
+
+    /**
+     * Decide whether a node is read strongly consistent.
+     * @param nodeId the id of the node
+     * @return true for a strongly consistent read
+     */
+    boolean isConsistentRead(NodeId nodeId) {
+        boolean consistent;
+        if (TRACKED.equals(mode)) {
+            long now = System.nanoTime();
+            Written entry = written.get(nodeId);
+            Long time = critical.get(nodeId);
+            consistent = entry != null && now - entry.time < window
+                    || roots.contains(nodeId) || time != null && now - time < window * RETENTION;
+        } else {
+            consistent = STRONG.equals(mode);
+        }
+        (consistent ? consistentReads : eventualReads).incrementAndGet();
+        return consistent;
+    }
+
+    /**
+     * Check an eventually consistent read against the tracked writes.
+     * @param nodeId the id of the node
+     * @param modCount the mod count of the read item, or null if there was no item
+     * @return true if the item is older than the one written and must be read again
+     */
+    boolean isStale(NodeId nodeId, Long modCount) {
+        Written entry = written.get(nodeId);
+        if (entry == null) {
+            return false;
+        }
+        boolean stale = entry.modCount == REMOVED ? modCount != null
+                : modCount == null || modCount < entry.modCount;
+        if (stale) {
+            staleReads.incrementAndGet();
+            LOGGER.debug("Eventually consistent read of {} is stale", nodeId);
+        }
+        return stale;
+    }
+
+    /**
+     * Add the children of a node of a critical subtree to the subtree.
+     * @param bundle the bundle that was read
+     */
+    void read(NodePropBundle bundle) {
+        if (!TRACKED.equals(mode) || roots.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        Long time = critical.get(bundle.getId());
+        if (roots.contains(bundle.getId()) || time != null && now - time < window * RETENTION) {
+            for (NodePropBundle.ChildNodeEntry entry : bundle.getChildNodeEntries()) {
+                if (critical.size() < MAX_CRITICAL || critical.containsKey(entry.getId())) {
+                    critical.put(entry.getId(), now);
+                }
+            }
+            if (criticalReads.incrementAndGet() % PURGE_INTERVAL == 0) {
+                purgeCritical(now);
+            }
+        }
+    }
+
+    long getConsistentReads() {
+        return consistentReads.get();
+    }
+
+    long getEventualReads() {
+        return eventualReads.get();
+    }
+
+    long getStaleReads() {
+        return staleReads.get();
+    }
+
+    private void purge(long now) {
+        long retention = window * RETENTION;
+        Iterator<Map.Entry<NodeId, Written>> entries = written.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (now - entries.next().getValue().time >= retention) {
+                entries.remove();
+            }
+        }
+    }
+
+    private void purgeCritical(long now) {
+        long retention = window * RETENTION;
+        Iterator<Long> times = critical.values().iterator();
+        while (times.hasNext()) {
+            if (now - times.next() >= retention) {
+                times.remove();
+            }
+        }
+    }
+
+    private static final class Written {
+
+        private final long modCount;
+        private final long time;
+
+        private Written(long modCount, long time) {
+            this.modCount = modCount;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+
+/**
+ * Creates the DynamoDB clients of the persistence manager and the data store, e.g. to connect to a local DynamoDB
+ * or an in-process stand-in instead of AWS. Implementations need a public no-argument constructor.
+ */
+public interface DynamoDBClientFactory {
+
+    /**
+     * @param region the configured region, may be null
+     * @param configuration the configuration of the client
+     * @param collector the collector of the request metrics, which may be ignored
+     * @return the client
+     */
+    AmazonDynamoDB createClient(Region region, ClientConfiguration configuration, RequestMetricCollector collector);
+}
@@ -0,0 +1,597 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.data.AbstractDataRecord;
+import org.apache.jackrabbit.core.data.AbstractDataStore;
+import org.apache.jackrabbit.core.data.DataIdentifier;
+import org.apache.jackrabbit.core.data.DataRecord;
+import org.apache.jackrabbit.core.data.DataStoreException;
+import org.apache.jackrabbit.core.data.MultiDataStoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
+
+/**
+ * Data store that keeps binaries in a DynamoDB table, split into chunks.
+ *
+ * <p>
+ * Records are content addressed by the SHA-1 digest of their content, so identical binaries are stored only once.
+ * Every record consists of a record item, keyed by the identifier and carrying the length, number of chunks and
+ * last modification time, and chunk items keyed by the identifier and the chunk number. The record item is written
+ * after all chunks, so that a record is never visible before it's complete. Record content is streamed lazily
+ * chunk by chunk, so loading a node doesn't download its binaries.
+ *
+ * <p>
+ * The data store gets its client from the {@link ClientRegistry}, so it shares the client and its connection pool
+ * with the persistence managers that use the same client factory, region, endpoint and connection settings.
+ *
+ * <p>
+ * Configuration:<br>
+ * <ul>
+ * <li>&lt;param name="{@link #setTable(String) table}" value=""/>
+ * <li>&lt;param name="{@link #setRegion(String) region}" value=""/>
+ * <li>&lt;param name="{@link #setClientFactory(String) clientFactory}" value=""/>
+ * <li>&lt;param name="{@link #setEndpoint(String) endpoint}" value=""/>
+ * <li>&lt;param name="{@link #setMaxConnections(String) maxConnections}" value="50"/>
+ * <li>&lt;param name="{@link #setConnectionTimeout(String) connectionTimeout}" value="10000"/>
+ * <li>&lt;param name="{@link #setSocketTimeout(String) socketTimeout}" value="50000"/>
+ * <li>&lt;param name="{@link #setRequestTimeout(String) requestTimeout}" value="0"/>
+ * <li>&lt;param name="{@link #setTcpKeepAlive(String) tcpKeepAlive}" value="false"/>
+ * <li>&lt;param name="{@link #setConnectionTtl(String) connectionTtl}" value="-1"/>
+ * <li>&lt;param name="{@link #setConnectionMaxIdle(String) connectionMaxIdle}" value="60000"/>
+ * <li>&lt;param name="{@link #setCreateOnMissing(String) createOnMissing}" value="false"/>
+ * <li>&lt;param name="{@link #setChunkSize(String) chunkSize}" value="131072"/>
+ * <li>&lt;param name="{@link #setMinRecordLength(String) minRecordLength}" value="16384"/>
+ * </ul>
+ */
+public class DynamoDBDataStore extends AbstractDataStore implements MultiDataStoreAware {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DynamoDBDataStore.class);
+    private static final String ID_ATTRIBUTE = "id";
+    private static final String LENGTH_ATTRIBUTE = "length";
+    private static final String CHUNKS_ATTRIBUTE = "chunks";
+    private static final String MODIFIED_ATTRIBUTE = "modified";
+    private static final String DATA_ATTRIBUTE = "data";
+    private static final String CHUNK_SEPARATOR = "/";
+    private static final String REFERENCE_KEY_ID = "#referenceKey";
+    private static final String DIGEST = "SHA-1";
+    private static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+    private static final int DEFAULT_MIN_RECORD_LENGTH = 16 * 1024;
+    private static final int REFERENCE_KEY_LENGTH = 256;
+
+    private final Map<DataIdentifier, WeakReference<DataIdentifier>> inUse =
+            Collections.synchronizedMap(new WeakHashMap<DataIdentifier, WeakReference<DataIdentifier>>());
+
+    private String tableName;
+    private Region region;
+    private String clientFactory;
+    private String endpoint;
+    private int maxConnections = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+    private int connectionTimeout = ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT;
+    private int socketTimeout = ClientConfiguration.DEFAULT_SOCKET_TIMEOUT;
+    private int requestTimeout = ClientConfiguration.DEFAULT_REQUEST_TIMEOUT;
+    private boolean tcpKeepAlive = ClientConfiguration.DEFAULT_TCP_KEEP_ALIVE;
+    private long connectionTtl = ClientConfiguration.DEFAULT_CONNECTION_TTL;
+    private long connectionMaxIdle = ClientConfiguration.DEFAULT_CONNECTION_MAX_IDLE_MILLIS;
+    private boolean createOnMissing;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int minRecordLength = DEFAULT_MIN_RECORD_LENGTH;
+    private AmazonDynamoDB client;
+    private Table table;
+    private volatile long minModifiedDate;
+
+    /**
+     * Set DynamoDB table name where the binaries need to be stored.
+     * @param tableName the case sensitive name of the table
+     */
+    public void setTable(String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * Set AWS Region name.
+     * @param regionName the name of the region as specified in {@link com.amazonaws.regions.Region}.
+     */
+    public void setRegion(String regionName) {
+        region = RegionUtils.getRegion(regionName);
+        if (region == null) {
+            String message = "Cannot get region with name " + regionName;
+            LOGGER.error(message);
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    /**
+     * Set the class name of a {@link DynamoDBClientFactory} to connect to something else than AWS.
+     * @param clientFactory the client factory class name.
+     */
+    public void setClientFactory(String clientFactory) {
+        this.clientFactory = clientFactory;
+    }
+
+    /**
+     * Set the endpoint of DynamoDB, to connect to another endpoint than the one of the region.
+     * @param endpoint the endpoint, empty for the one of the region.
+     */
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Set the size of the connection pool of the client, which is shared with the persistence managers using the
+     * same client.
+     * @param maxConnections the maximum number of open connections.
+     */
+    public void setMaxConnections(String maxConnections) {
+        this.maxConnections = Integer.valueOf(maxConnections);
+    }
+
+    /**
+     * Set the timeout in milliseconds for opening a connection.
+     * @param connectionTimeout the connection timeout.
+     */
+    public void setConnectionTimeout(String connectionTimeout) {
+        this.connectionTimeout = Integer.valueOf(connectionTimeout);
+    }
+
+    /**
+     * Set the timeout in milliseconds for reading from an open connection.
+     * @param socketTimeout the socket timeout.
+     */
+    public void setSocketTimeout(String socketTimeout) {
+        this.socketTimeout = Integer.valueOf(socketTimeout);
+    }
+
+    /**
+     * Set the timeout in milliseconds for a single attempt of a request, 0 for none.
+     * @param requestTimeout the request timeout.
+     */
+    public void setRequestTimeout(String requestTimeout) {
+        this.requestTimeout = Integer.valueOf(requestTimeout);
+    }
+
+    /**
+     * Defines if TCP keep-alive is enabled on the connections.
+     * @param tcpKeepAlive the TCP keep-alive flag.
+     */
+    public void setTcpKeepAlive(String tcpKeepAlive) {
+        this.tcpKeepAlive = Boolean.valueOf(tcpKeepAlive);
+    }
+
+    /**
+     * Set the time in milliseconds after which a connection is closed instead of reused, -1 for none.
+     * @param connectionTtl the connection time to live.
+     */
+    public void setConnectionTtl(String connectionTtl) {
+        this.connectionTtl = Long.valueOf(connectionTtl);
+    }
+
+    /**
+     * Set the time in milliseconds after which an idle connection is closed.
+     * @param connectionMaxIdle the maximum idle time.
+     */
+    public void setConnectionMaxIdle(String connectionMaxIdle) {
+        this.connectionMaxIdle = Long.valueOf(connectionMaxIdle);
+    }
+
+    /**
+     * Defines if a new table is created if not found in the database.
+     * @param createOnMissing the missing table creation flag.
+     */
+    public void setCreateOnMissing(String createOnMissing) {
+        this.createOnMissing = Boolean.valueOf(createOnMissing);
+    }
+
+    /**
+     * Set the size in bytes of the chunks binaries are split into. Must stay well below the DynamoDB item size limit.
+     * @param chunkSize the chunk size.
+     */
+    public void setChunkSize(String chunkSize) {
+        this.chunkSize = Integer.valueOf(chunkSize);
+    }
+
+    /**
+     * Set the minimum size in bytes of a binary to be stored in the data store. Smaller binaries are kept inline in
+     * the bundles.
+     * @param minRecordLength the minimum record length.
+     */
+    public void setMinRecordLength(String minRecordLength) {
+        this.minRecordLength = Integer.valueOf(minRecordLength);
+    }
+
+    @Override
+    public void init(String homeDir) {
+        if (tableName == null) {
+            String message = "Table name is missing";
+            LOGGER.warn(message);
+            throw new IllegalStateException(message);
+        }
+        ClientConfiguration configuration = DynamoDBUtils.newConfiguration()
+                .withMaxConnections(maxConnections)
+                .withConnectionTimeout(connectionTimeout)
+                .withSocketTimeout(socketTimeout)
+                .withRequestTimeout(requestTimeout)
+                .withTcpKeepAlive(tcpKeepAlive)
+                .withConnectionTTL(connectionTtl)
+                .withConnectionMaxIdleMillis(connectionMaxIdle);
+        client = ClientRegistry.acquire(clientFactory, region, endpoint, configuration);
+        table = DynamoDBUtils.getOrCreateTable(client, tableName, ID_ATTRIBUTE, createOnMissing);
+    }
+
+    @Override
+    public DataRecord getRecordIfStored(DataIdentifier identifier) throws DataStoreException {
+        Item item;
+        try {
+            item = table.getItem(new GetItemSpec()
+                    .withPrimaryKey(ID_ATTRIBUTE, identifier.toString())
+                    .withConsistentRead(true));
+        } catch (AmazonClientException e) {
+            String message = "Cannot load record " + identifier;
+            LOGGER.error(message, e);
+            throw new DataStoreException(message, e);
+        }
+        if (item == null || !item.isPresent(CHUNKS_ATTRIBUTE)) {
+            return null;
+        }
+        usesIdentifier(identifier);
+        long lastModified = item.getLong(MODIFIED_ATTRIBUTE);
+        if (lastModified < minModifiedDate) {
+            lastModified = touch(identifier);
+        }
+        return new DynamoDBDataRecord(identifier, item.getLong(LENGTH_ATTRIBUTE), item.getInt(CHUNKS_ATTRIBUTE),
+                lastModified);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The stream is spooled into a temporary file to calculate the identifier. If a record with the same content
+     * already exists only its modification time is updated.
+     */
+    @Override
+    public DataRecord addRecord(InputStream stream) throws DataStoreException {
+        File temporary = null;
+        try {
+            temporary = File.createTempFile("dynamodb-data-store", null);
+            MessageDigest digest = MessageDigest.getInstance(DIGEST);
+            long length;
+            try (OutputStream out = new DigestOutputStream(new FileOutputStream(temporary), digest)) {
+                length = IOUtils.copyLarge(stream, out);
+            }
+            DataIdentifier identifier = new DataIdentifier(encodeHexString(digest.digest()));
+            usesIdentifier(identifier);
+            DataRecord record = getRecordIfStored(identifier);
+            if (record != null) {
+                touch(identifier);
+                return record;
+            }
+            int chunks = 0;
+            try (InputStream in = new FileInputStream(temporary)) {
+                byte[] buffer = new byte[chunkSize];
+                int read = IOUtils.read(in, buffer);
+                while (read > 0 || chunks == 0) {
+                    byte[] data = new byte[read];
+                    System.arraycopy(buffer, 0, data, 0, read);
+                    table.putItem(new Item()
+                            .withPrimaryKey(ID_ATTRIBUTE, getChunkId(identifier, chunks))
+                            .withBinary(DATA_ATTRIBUTE, data));
+                    chunks++;
+                    read = IOUtils.read(in, buffer);
+                }
+            }
+            long modified = System.currentTimeMillis();
+            table.putItem(new Item()
+                    .withPrimaryKey(ID_ATTRIBUTE, identifier.toString())
+                    .withLong(LENGTH_ATTRIBUTE, length)
+                    .withInt(CHUNKS_ATTRIBUTE, chunks)
+                    .withLong(MODIFIED_ATTRIBUTE, modified));
+            return new DynamoDBDataRecord(identifier, length, chunks, modified);
+        } catch (IOException | NoSuchAlgorithmException | AmazonClientException e) {
+            String message = "Cannot add record";
+            LOGGER.error(message, e);
+            throw new DataStoreException(message, e);
+        } finally {
+            if (temporary != null && !temporary.delete()) {
+                LOGGER.warn("Cannot delete temporary file " + temporary);
+            }
+        }
+    }
+
+    @Override
+    public void updateModifiedDateOnAccess(long before) {
+        minModifiedDate = before;
+    }
+
+    @Override
+    public int deleteAllOlderThan(long min) throws DataStoreException {
+        int count = 0;
+        try {
+            for (Item item : scanRecords()) {
+                DataIdentifier identifier = new DataIdentifier(item.getString(ID_ATTRIBUTE));
+                if (item.getLong(MODIFIED_ATTRIBUTE) < min && !inUse.containsKey(identifier)) {
+                    deleteRecord(identifier, item.getInt(CHUNKS_ATTRIBUTE));
+                    count++;
+                }
+            }
+        } catch (AmazonClientException e) {
+            String message = "Cannot scan records in table " + tableName;
+            LOGGER.error(message, e);
+            throw new DataStoreException(message, e);
+        }
+        return count;
+    }
+
+    @Override
+    public void deleteRecord(DataIdentifier identifier) throws DataStoreException {
+        Item item;
+        try {
+            item = table.getItem(ID_ATTRIBUTE, identifier.toString());
+        } catch (AmazonClientException e) {
+            String message = "Cannot load record " + identifier;
+            LOGGER.error(message, e);
+            throw new DataStoreException(message, e);
+        }
+        if (item != null && item.isPresent(CHUNKS_ATTRIBUTE)) {
+            deleteRecord(identifier, item.getInt(CHUNKS_ATTRIBUTE));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The records are scanned page by page while the identifiers are iterated, a failed scan throws an
+     * {@link IllegalStateException} from the iterator.
+     */
+    @Override
+    public Iterator<DataIdentifier> getAllIdentifiers() throws DataStoreException {
+        final Iterator<Item> items = scanRecords().iterator();
+        return new Iterator<DataIdentifier>() {
+            @Override
+            public boolean hasNext() {
+                try {
+                    return items.hasNext();
+                } catch (AmazonClientException e) {
+                    String message = "Cannot scan records in table " + tableName;
+                    LOGGER.error(message, e);
+                    throw new IllegalStateException(message, e);
+                }
+            }
+
+            @Override
+            public DataIdentifier next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return new DataIdentifier(items.next().getString(ID_ATTRIBUTE));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int getMinRecordLength() {
+        return minRecordLength;
+    }
+
+    @Override
+    public void close() {
+        if (client != null) {
+            ClientRegistry.release(client);
+            client = null;
+        }
+    }
+
+    @Override
+    public void clearInUse() {
+        inUse.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     * The key is stored in the table, so that references are valid on all cluster nodes.
+     */
+    @Override
+    protected byte[] getOrCreateReferenceKey() throws DataStoreException {
+        try {
+            Item item = table.getItem(new GetItemSpec()
+                    .withPrimaryKey(ID_ATTRIBUTE, REFERENCE_KEY_ID)
+                    .withConsistentRead(true));
+            if (item != null) {
+                return item.getBinary(DATA_ATTRIBUTE);
+            }
+            byte[] key = new byte[REFERENCE_KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+            try {
+                table.putItem(new PutItemSpec()
+                        .withItem(new Item()
+                                .withPrimaryKey(ID_ATTRIBUTE, REFERENCE_KEY_ID)
+                                .withBinary(DATA_ATTRIBUTE, key))
+                        .withConditionExpression("attribute_not_exists(" + ID_ATTRIBUTE + ")"));
+                return key;
+            } catch (ConditionalCheckFailedException e) {
+                return table.getItem(new GetItemSpec()
+                        .withPrimaryKey(ID_ATTRIBUTE, REFERENCE_KEY_ID)
+                        .withConsistentRead(true)).getBinary(DATA_ATTRIBUTE);
+            }
+        } catch (AmazonClientException e) {
+            String message = "Cannot get reference key";
+            LOGGER.error(message, e);
+            throw new DataStoreException(message, e);
+        }
+    }
+
+    private void usesIdentifier(DataIdentifier identifier) {
+        inUse.put(identifier, new WeakReference<>(identifier));
+    }
+
+    private long touch(DataIdentifier identifier) throws DataStoreException {
+        long modified = System.currentTimeMillis();
+        try {
+            table.updateItem(new UpdateItemSpec()
+                    .withPrimaryKey(ID_ATTRIBUTE, identifier.toString())
+                    .withUpdateExpression("SET " + MODIFIED_ATTRIBUTE + " = :m")
+                    .withValueMap(new ValueMap().withLong(":m", modified)));
+        } catch (AmazonClientException e) {
+            String message = "Cannot update modification time of record " + identifier;
+            LOGGER.error(message, e);
+            throw new DataStoreException(message, e);
+        }
+        return modified;
+    }
+
+    /**
+     * @return the record items, scanned a page at a time while they're iterated, so that only one page is held in
+     * memory
+     */
+    private Iterable<Item> scanRecords() {
+        return table.scan(new ScanSpec()
+                .withProjectionExpression(ID_ATTRIBUTE + ", " + CHUNKS_ATTRIBUTE + ", " + MODIFIED_ATTRIBUTE)
+                .withFilterExpression("attribute_exists(" + CHUNKS_ATTRIBUTE + ")"));
+    }
+
+    private void deleteRecord(DataIdentifier identifier, int chunks) throws DataStoreException {
+        try {
+            table.deleteItem(new PrimaryKey(ID_ATTRIBUTE, identifier.toString()));
+            for (int i = 0; i < chunks; i++) {
+                table.deleteItem(new PrimaryKey(ID_ATTRIBUTE, getChunkId(identifier, i)));
+            }
+        } catch (AmazonClientException e) {
+            String message = "Cannot delete record " + identifier;
+            LOGGER.error(message, e);
+            throw new DataStoreException(message, e);
+        }
+    }
+
+    private static String getChunkId(DataIdentifier identifier, int chunk) {
+        return identifier.toString() + CHUNK_SEPARATOR + chunk;
+    }
+
+    /**
+     * Record that streams its content chunk by chunk.
+     */
+    private final class DynamoDBDataRecord extends AbstractDataRecord {
+
+        private final long length;
+        private final int chunks;
+        private final long lastModified;
+
+        private DynamoDBDataRecord(DataIdentifier identifier, long length, int chunks, long lastModified) {
+            super(DynamoDBDataStore.this, identifier);
+            this.length = length;
+            this.chunks = chunks;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getStream() {
+            return new ChunkInputStream(getIdentifier(), chunks);
+        }
+
+        @Override
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * Input stream that loads the next chunk only when the current one is exhausted.
+     */
+    private final class ChunkInputStream extends InputStream {
+
+        private final DataIdentifier identifier;
+        private final int chunks;
+        private int nextChunk;
+        private byte[] buffer = new byte[0];
+        private int position;
+
+        private ChunkInputStream(DataIdentifier identifier, int chunks) {
+            this.identifier = identifier;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.length - position);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.length - position;
+        }
+
+        private boolean fill() throws IOException {
+            while (position >= buffer.length) {
+                if (nextChunk >= chunks) {
+                    return false;
+                }
+                Item item;
+                try {
+                    item = table.getItem(ID_ATTRIBUTE, getChunkId(identifier, nextChunk));
+                } catch (AmazonClientException e) {
+                    throw new IOException("Cannot load chunk " + nextChunk + " of record " + identifier, e);
+                }
+                if (item == null) {
+                    throw new IOException("Chunk " + nextChunk + " of record " + identifier + " is missing");
+                }
+                buffer = item.getBinary(DATA_ATTRIBUTE);
+                position = 0;
+                nextChunk++;
+            }
+            return true;
+        }
+    }
+}
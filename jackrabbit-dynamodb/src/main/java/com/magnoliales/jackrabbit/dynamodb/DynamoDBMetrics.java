@@ -0,0 +1,254 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of a {@link DynamoDBPersistenceManager}, kept in {@link Histogram}s and counters and published as
+ * {@link DynamoDBMetricsMXBean}. Every measurement is passed on to an optional {@link MetricsRegistry} as well.
+ */
+class DynamoDBMetrics implements MetricsRegistry, DynamoDBMetricsMXBean {
+
+    static final String LOAD = "load";
+    static final String STORE = "store";
+    static final String DESTROY = "destroy";
+    static final String REFERENCES = "references";
+    static final String SCAN = "scan";
+    static final String CHECK_CONSISTENCY = "checkConsistency";
+    static final String SERIALIZE = "serialize";
+    static final String DESERIALIZE = "deserialize";
+    static final String SERIALIZED_SIZE = "serializedBundle";
+    static final String DESERIALIZED_SIZE = "deserializedBundle";
+    static final String STORE_WRITES = "store.writes";
+    static final String STORE_ROUND_TRIPS = "store.roundTrips";
+    static final String REQUEST_PREFIX = "dynamodb.";
+    static final String THROTTLED = "dynamodb.throttled";
+    static final String ERRORS = "dynamodb.errors";
+    static final String UNPROCESSED = "dynamodb.unprocessed";
+    static final String RETRIES = "dynamodb.retries";
+
+    private static final double P50 = 0.5;
+    private static final double P99 = 0.99;
+    private static final double P999 = 0.999;
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String tableName;
+    private final MetricsRegistry delegate;
+    private final ConcurrentMap<String, Histogram> times = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> sizes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final AtomicLong inFlight = new AtomicLong();
+    private volatile CapacityAccounting accounting;
+
+    /**
+     * @param tableName the name of the table
+     * @param delegate the registry to pass the measurements on to, or null
+     */
+    DynamoDBMetrics(String tableName, MetricsRegistry delegate) {
+        this.tableName = tableName;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void recordTime(String name, long nanos) {
+        getHistogram(times, name).record(nanos);
+        if (delegate != null) {
+            delegate.recordTime(name, nanos);
+        }
+    }
+
+    @Override
+    public void recordSize(String name, long bytes) {
+        getHistogram(sizes, name).record(bytes);
+        if (delegate != null) {
+            delegate.recordSize(name, bytes);
+        }
+    }
+
+    @Override
+    public void increment(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+        if (delegate != null) {
+            delegate.increment(name);
+        }
+    }
+
+    /**
+     * Record the time since the given start of an operation.
+     * @param name the name of the operation
+     * @param start the start as returned by {@link System#nanoTime()}
+     */
+    void recordSince(String name, long start) {
+        recordTime(name, System.nanoTime() - start);
+    }
+
+    /**
+     * @param accounting the capacity accounting to publish, or null
+     */
+    void setAccounting(CapacityAccounting accounting) {
+        this.accounting = accounting;
+    }
+
+    void requestStarted() {
+        inFlight.incrementAndGet();
+    }
+
+    void requestFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    @Override
+    public String getTableName() {
+        return tableName;
+    }
+
+    @Override
+    public long getInFlightRequests() {
+        return inFlight.get();
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : times.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().getCount());
+        }
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getTotalMillis() {
+        Map<String, Double> millis = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : times.entrySet()) {
+            millis.put(entry.getKey(), entry.getValue().getSum() / NANOS_PER_MILLI);
+        }
+        return millis;
+    }
+
+    @Override
+    public Map<String, Double> getP50Millis() {
+        return getMillis(P50);
+    }
+
+    @Override
+    public Map<String, Double> getP99Millis() {
+        return getMillis(P99);
+    }
+
+    @Override
+    public Map<String, Double> getP999Millis() {
+        return getMillis(P999);
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        Map<String, Double> millis = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : times.entrySet()) {
+            millis.put(entry.getKey(), entry.getValue().getMax() / NANOS_PER_MILLI);
+        }
+        return millis;
+    }
+
+    @Override
+    public Map<String, Long> getP50Bytes() {
+        return getBytes(P50);
+    }
+
+    @Override
+    public Map<String, Long> getP99Bytes() {
+        return getBytes(P99);
+    }
+
+    @Override
+    public Map<String, Long> getMaxBytes() {
+        Map<String, Long> bytes = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : sizes.entrySet()) {
+            bytes.put(entry.getKey(), entry.getValue().getMax());
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String, Double> getConsumedReadUnits() {
+        CapacityAccounting current = accounting;
+        return current == null ? new TreeMap<String, Double>() : current.getReadUnits();
+    }
+
+    @Override
+    public Map<String, Double> getConsumedWriteUnits() {
+        CapacityAccounting current = accounting;
+        return current == null ? new TreeMap<String, Double>() : current.getWriteUnits();
+    }
+
+    @Override
+    public Map<String, Double> getHottestNodes() {
+        CapacityAccounting current = accounting;
+        return current == null ? new TreeMap<String, Double>() : current.getHottest();
+    }
+
+    @Override
+    public Map<String, Long> getLargestNodes() {
+        CapacityAccounting current = accounting;
+        return current == null ? new TreeMap<String, Long>() : current.getLargest();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram histogram : times.values()) {
+            histogram.reset();
+        }
+        for (Histogram histogram : sizes.values()) {
+            histogram.reset();
+        }
+        for (AtomicLong counter : counters.values()) {
+            counter.set(0);
+        }
+        CapacityAccounting current = accounting;
+        if (current != null) {
+            current.reset();
+        }
+    }
+
+    private Map<String, Double> getMillis(double quantile) {
+        Map<String, Double> millis = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : times.entrySet()) {
+            millis.put(entry.getKey(), entry.getValue().getValueAt(quantile) / NANOS_PER_MILLI);
+        }
+        return millis;
+    }
+
+    private Map<String, Long> getBytes(double quantile) {
+        Map<String, Long> bytes = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : sizes.entrySet()) {
+            bytes.put(entry.getKey(), entry.getValue().getValueAt(quantile));
+        }
+        return bytes;
+    }
+
+    private static Histogram getHistogram(ConcurrentMap<String, Histogram> histograms, String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+}
@@ -0,0 +1,78 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import java.util.Map;
+
+/**
+ * Management interface of the metrics of a {@link DynamoDBPersistenceManager}.
+ *
+ * <p>
+ * Durations are keyed by operation: the persistence manager operations <code>load</code>, <code>store</code>,
+ * <code>destroy</code>, <code>references</code>, <code>scan</code> and <code>checkConsistency</code>, the
+ * <code>serialize</code> and <code>deserialize</code> steps and the DynamoDB requests, prefixed with
+ * <code>dynamodb.</code>. Comparing the totals of the serialization steps with the totals of the requests shows
+ * where the time of an operation goes.
+ *
+ * <p>
+ * With capacity accounting enabled the consumed capacity units are keyed by the same operations, and the sizes of
+ * the items read and written are recorded as <code>item.load</code>, <code>item.store</code> etc.
+ *
+ * <p>
+ * With batched writes the number of writes and of requests per stored change log are recorded along with the sizes
+ * as <code>store.writes</code> and <code>store.roundTrips</code>, so that their ratio shows how well the writes are
+ * batched.
+ */
+public interface DynamoDBMetricsMXBean {
+
+    String getTableName();
+
+    /**
+     * @return the number of DynamoDB requests currently in progress
+     */
+    long getInFlightRequests();
+
+    /**
+     * @return the number of recorded operations and the values of the counters
+     */
+    Map<String, Long> getCounts();
+
+    Map<String, Double> getTotalMillis();
+
+    Map<String, Double> getP50Millis();
+
+    Map<String, Double> getP99Millis();
+
+    Map<String, Double> getP999Millis();
+
+    Map<String, Double> getMaxMillis();
+
+    /**
+     * @return the median of the recorded sizes, e.g. of serialized and deserialized bundles
+     */
+    Map<String, Long> getP50Bytes();
+
+    Map<String, Long> getP99Bytes();
+
+    Map<String, Long> getMaxBytes();
+
+    /**
+     * @return the consumed read capacity units per operation, empty without capacity accounting
+     */
+    Map<String, Double> getConsumedReadUnits();
+
+    Map<String, Double> getConsumedWriteUnits();
+
+    /**
+     * @return the node ids that consumed the most capacity units, with an estimate of their units
+     */
+    Map<String, Double> getHottestNodes();
+
+    /**
+     * @return the node ids with the largest items, with the size of their largest item in bytes
+     */
+    Map<String, Long> getLargestNodes();
+
+    /**
+     * Reset all metrics.
+     */
+    void reset();
+}
@@ -1,67 +1,363 @@
 package com.magnoliales.jackrabbit.dynamodb;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
 import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.document.spec.DeleteItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
 import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import org.apache.jackrabbit.core.cluster.UpdateEventChannel;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
 import org.apache.jackrabbit.core.persistence.PMContext;
 import org.apache.jackrabbit.core.persistence.bundle.AbstractBundlePersistenceManager;
+import org.apache.jackrabbit.core.persistence.bundle.ConsistencyCheckerImpl;
+import org.apache.jackrabbit.core.persistence.check.ReportItem;
 import org.apache.jackrabbit.core.persistence.util.BLOBStore;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeReferences;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.core.state.StaleItemStateException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.RepositoryException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
-import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Persistence manager that stores the {@link NodePropBundle}s in a DynamoDB table.
  *
  * <p>
+ * With the <code>binary</code> bundle format, binary values above the minimum record length of the repository data
+ * store are kept in the data store and only referenced from the bundle by their identifier, so that bundle items
+ * stay small and binaries are streamed on demand. {@link DynamoDBDataStore} keeps them in a separate DynamoDB table.
+ * Without a data store binaries are stored inline. The <code>json</code> bundle format always stores binaries
+ * inline, base64 encoded.
+ *
+ * <p>
+ * Workspaces configured with a workspace name share the bundle table and its side tables, except for the name
+ * dictionary which is the same for all workspaces anyway. Their items have the composite key of the workspace
+ * name and the id, and the nodes of a workspace are read with <code>Query</code> on its item collection instead of
+ * <code>Scan</code>, see {@link TableKeys}. The tables of workspaces without a workspace name, or created before,
+ * keep the hash key <code>id</code>. Give every workspace of a repository, including the version storage, a name
+ * of its own, e.g. <code>${wsp.name}</code> in <code>workspace.xml</code>, and the same table.
+ *
+ * <p>
+ * An optional near-cache keeps serialized bundles in memory, see {@link BundleNearCache}. Bundles written or deleted
+ * by this persistence manager or reported by the cluster journal are invalidated right away. Writes of other
+ * persistence managers sharing the table are picked up from an invalidation source: <code>streams</code> follows
+ * the DynamoDB stream of the table, <code>local</code> only covers persistence managers in the same JVM and
+ * <code>none</code> relies on the revalidation of the mod count, if enabled, or on the cluster journal alone.
+ *
+ * <p>
+ * Every bundle item carries a <code>modCount</code> attribute that counts its writes. With optimistic writes
+ * enabled, puts and deletes are conditional on the mod count that was read with the bundle, so several cluster
+ * nodes can write to the same table without a global lock: a write based on an outdated bundle fails with a
+ * {@link StaleItemStateException}. As <code>BatchWriteItem</code> doesn't support conditions, batched optimistic
+ * writes are sent as single conditional requests, in parallel with asynchronous requests enabled, or as part of
+ * the transaction with atomic commits.
+ *
+ * <p>
+ * With the name dictionary enabled binary bundles refer to names and namespace URIs by their index in a
+ * {@link NameDictionary}, which is kept in a side table named after the bundle table with a <code>-names</code>
+ * suffix unless configured otherwise. Bundles written without the dictionary can still be read.
+ *
+ * <p>
+ * With reference items enabled the references to a node are kept in a side table named after the bundle table with
+ * a <code>-references</code> suffix unless configured otherwise, and changed with deltas instead of being rewritten
+ * as a whole, see {@link ReferenceStore}. References kept in the bundle items by earlier versions are moved there on
+ * the first initialization, which needs to happen before cluster nodes without reference items write again.
+ *
+ * <p>
+ * With the reference filter enabled the ids of all referenced nodes are collected into a Bloom filter by a
+ * background scan at startup, after which {@link #existsReferencesTo(NodeId)} answers for nodes that are definitely
+ * not referenced without a request, see {@link ReferenceFilter}. Nodes get added by local reference updates and by
+ * external change logs. The filter can be saved to a local file on shutdown and read from it on startup instead
+ * of the scan, which is only safe if no other cluster node writes in the meantime.
+ *
+ * <p>
+ * With a child page size the child node entries of nodes with more children are kept in page items of a side table
+ * named after the bundle table with a <code>-children</code> suffix unless configured otherwise, so that adding a
+ * child only rewrites the page it belongs to, see {@link ChildPages}.
+ *
+ * <p>
+ * With rate limiting enabled all requests to the table and its side tables pass through adaptive token buckets
+ * for read and write capacity, see {@link TokenBucket}. Their maximum rate is the provisioned throughput of the
+ * table, or the configured capacity units for tables with on-demand capacity. The configured capacity units are
+ * also used to create a missing table. Scans also pass through a bucket of their own at half the read rate, and
+ * throttled requests are only retried by the limiter, not by the client, see {@link RateLimitedClient}. The
+ * buckets are shared by all persistence managers of a table, e.g. the workspaces of a shared table, see
+ * {@link TableBuckets}.
+ *
+ * <p>
+ * With asynchronous requests enabled the independent writes of a change log are sent in parallel from a pool of
+ * request threads, see {@link AsyncClient}, and concurrent loads of the same bundle are coalesced into a single
+ * request, see {@link SingleFlightLoader}. A change log completes or fails once all its requests are done.
+ *
+ * <p>
+ * Persistence managers that name the same commit group, typically those of the workspaces of a repository, send
+ * the puts and deletes of change logs stored at the same time in shared <code>BatchWriteItem</code> calls, see
+ * {@link GroupCommitter}. Group commits don't apply to atomic commits and optimistic writes.
+ *
+ * <p>
+ * With prefetching enabled the children of every loaded bundle, up to the configured fan-out and depth, are
+ * fetched in the background with <code>BatchGetItem</code>, see {@link BundlePrefetcher}.
+ *
+ * <p>
+ * Bundles and references are read eventually consistent by default. With <code>tracked</code> read consistency
+ * the nodes written recently and the nodes of configured critical subtrees are read strongly consistent, so that
+ * a cluster node reads its own writes, see {@link ConsistencyPolicy}.
+ *
+ * <p>
+ * The consistency check on initialization can run in the background, see {@link BackgroundChecker}. It checks
+ * the table in parallel scan segments at a limited read capacity and saves checkpoints to a side table, named after
+ * the bundle table with a <code>-checks</code> suffix unless configured otherwise, so that it resumes after a
+ * restart. Its progress, failed segments and findings are available from the persistence manager, and its bundle
+ * reads are low priority for the rate limiter.
+ *
+ * <p>
+ * Latency histograms of all operations and DynamoDB requests, bundle sizes, throttling and retries are published
+ * as {@link DynamoDBMetricsMXBean} under
+ * <code>com.magnoliales.jackrabbit.dynamodb:type=PersistenceManager,table=...,workspace=...</code> and passed on
+ * to an optional {@link MetricsRegistry}. With capacity accounting enabled the consumed capacity units and item
+ * sizes are added per operation, along with the hottest and largest node ids, see {@link CapacityAccounting}, and
+ * a report of them can be logged periodically.
+ *
+ * <p>
+ * Persistence managers with the same client factory, region, endpoint and connection settings share one DynamoDB
+ * client and its connection pool, see {@link ClientRegistry}, so the pool size should allow for the requests of all
+ * workspaces. The pool can be pre-warmed on initialization, which opens connections before the first requests.
+ *
+ * <p>
  * Configuration:<br>
  * <ul>
  * <li>&lt;param name="{@link #setTable(String) table}" value=""/>
+ * <li>&lt;param name="{@link #setWorkspace(String) workspace}" value=""/>
  * <li>&lt;param name="{@link #setRegion(String) region}" value=""/>
+ * <li>&lt;param name="{@link #setClientFactory(String) clientFactory}" value=""/>
  * <li>&lt;param name="{@link #setConsistencyCheck(String) consistencyCheck}" value="false"/>
  * <li>&lt;param name="{@link #setConsistencyFix(String) consistencyFix}" value="false"/>
+ * <li>&lt;param name="{@link #setBackgroundCheck(String) backgroundCheck}" value="false"/>
+ * <li>&lt;param name="{@link #setCheckSegments(String) checkSegments}" value="4"/>
+ * <li>&lt;param name="{@link #setCheckCapacity(String) checkCapacity}" value="10"/>
+ * <li>&lt;param name="{@link #setCheckTable(String) checkTable}" value=""/>
  * <li>&lt;param name="{@link #setCreateOnMissing(String) createOnMissing}" value="false"/>
+ * <li>&lt;param name="{@link #setReadCapacityUnits(String) readCapacityUnits}" value="25"/>
+ * <li>&lt;param name="{@link #setWriteCapacityUnits(String) writeCapacityUnits}" value="25"/>
+ * <li>&lt;param name="{@link #setRateLimit(String) rateLimit}" value="false"/>
+ * <li>&lt;param name="{@link #setBatchWrites(String) batchWrites}" value="true"/>
+ * <li>&lt;param name="{@link #setAtomicCommits(String) atomicCommits}" value="false"/>
+ * <li>&lt;param name="{@link #setOptimisticWrites(String) optimisticWrites}" value="false"/>
+ * <li>&lt;param name="{@link #setAsyncRequests(String) asyncRequests}" value="false"/>
+ * <li>&lt;param name="{@link #setRequestThreads(String) requestThreads}" value="8"/>
+ * <li>&lt;param name="{@link #setCommitGroup(String) commitGroup}" value=""/>
+ * <li>&lt;param name="{@link #setCommitWindow(String) commitWindow}" value="5"/>
+ * <li>&lt;param name="{@link #setCommitGroupSize(String) commitGroupSize}" value="25"/>
+ * <li>&lt;param name="{@link #setReadConsistency(String) readConsistency}" value="eventual"/>
+ * <li>&lt;param name="{@link #setConsistentReadWindow(String) consistentReadWindow}" value="1000"/>
+ * <li>&lt;param name="{@link #setConsistentSubtrees(String) consistentSubtrees}" value=""/>
+ * <li>&lt;param name="{@link #setBundleFormat(String) bundleFormat}" value="binary"/>
+ * <li>&lt;param name="{@link #setCompression(String) compression}" value="none"/>
+ * <li>&lt;param name="{@link #setCompressionThreshold(String) compressionThreshold}" value="1024"/>
+ * <li>&lt;param name="{@link #setNameDictionary(String) nameDictionary}" value="false"/>
+ * <li>&lt;param name="{@link #setNameTable(String) nameTable}" value=""/>
+ * <li>&lt;param name="{@link #setReferenceItems(String) referenceItems}" value="false"/>
+ * <li>&lt;param name="{@link #setReferenceTable(String) referenceTable}" value=""/>
+ * <li>&lt;param name="{@link #setReferenceFilter(String) referenceFilter}" value="false"/>
+ * <li>&lt;param name="{@link #setReferenceFilterSize(String) referenceFilterSize}" value="1000000"/>
+ * <li>&lt;param name="{@link #setReferenceFilterFile(String) referenceFilterFile}" value=""/>
+ * <li>&lt;param name="{@link #setChildPageSize(String) childPageSize}" value="0"/>
+ * <li>&lt;param name="{@link #setChildTable(String) childTable}" value=""/>
+ * <li>&lt;param name="{@link #setNearCacheSize(String) nearCacheSize}" value="0"/>
+ * <li>&lt;param name="{@link #setNearCacheInvalidation(String) nearCacheInvalidation}" value="none"/>
+ * <li>&lt;param name="{@link #setNearCacheRevalidate(String) nearCacheRevalidate}" value="false"/>
+ * <li>&lt;param name="{@link #setPrefetch(String) prefetch}" value="false"/>
+ * <li>&lt;param name="{@link #setPrefetchFanOut(String) prefetchFanOut}" value="100"/>
+ * <li>&lt;param name="{@link #setPrefetchDepth(String) prefetchDepth}" value="1"/>
+ * <li>&lt;param name="{@link #setPrefetchExpiry(String) prefetchExpiry}" value="5000"/>
+ * <li>&lt;param name="{@link #setPrefetchThreads(String) prefetchThreads}" value="2"/>
+ * <li>&lt;param name="{@link #setScanSegments(String) scanSegments}" value="4"/>
+ * <li>&lt;param name="{@link #setJmx(String) jmx}" value="true"/>
+ * <li>&lt;param name="{@link #setMetricsRegistry(String) metricsRegistry}" value=""/>
+ * <li>&lt;param name="{@link #setCapacityAccounting(String) capacityAccounting}" value="false"/>
+ * <li>&lt;param name="{@link #setCapacityTopNodes(String) capacityTopNodes}" value="10"/>
+ * <li>&lt;param name="{@link #setCapacityReportInterval(String) capacityReportInterval}" value="0"/>
+ * <li>&lt;param name="{@link #setEndpoint(String) endpoint}" value=""/>
+ * <li>&lt;param name="{@link #setMaxConnections(String) maxConnections}" value="50"/>
+ * <li>&lt;param name="{@link #setConnectionTimeout(String) connectionTimeout}" value="10000"/>
+ * <li>&lt;param name="{@link #setSocketTimeout(String) socketTimeout}" value="50000"/>
+ * <li>&lt;param name="{@link #setRequestTimeout(String) requestTimeout}" value="0"/>
+ * <li>&lt;param name="{@link #setTcpKeepAlive(String) tcpKeepAlive}" value="false"/>
+ * <li>&lt;param name="{@link #setConnectionTtl(String) connectionTtl}" value="-1"/>
+ * <li>&lt;param name="{@link #setConnectionMaxIdle(String) connectionMaxIdle}" value="60000"/>
+ * <li>&lt;param name="{@link #setPrewarmConnections(String) prewarmConnections}" value="0"/>
  * </ul>
  */
 public class DynamoDBPersistenceManager extends AbstractBundlePersistenceManager {
 
+    static final String ID_ATTRIBUTE = "id";
+    static final String WORKSPACE_ATTRIBUTE = "workspace";
+    static final String REFERENCES_ATTRIBUTE = "references";
+    static final String MOD_COUNT_ATTRIBUTE = "modCount";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(DynamoDBPersistenceManager.class);
-    private static final String ID_ATTRIBUTE = "id";
+    private static final String BINARY_FORMAT = "binary";
+    private static final String JSON_FORMAT = "json";
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final long DEFAULT_CAPACITY_UNITS = 25L;
+    private static final String NO_INVALIDATION = "none";
+    private static final String LOCAL_INVALIDATION = "local";
+    private static final String STREAMS_INVALIDATION = "streams";
+    private static final long STREAMS_POLL_INTERVAL = 1000L;
+    private static final long DEFAULT_PREFETCH_EXPIRY = 5000L;
+    private static final int DEFAULT_PREFETCH_THREADS = 2;
+    private static final long PREFETCH_WAIT = 1000L;
+    private static final int DEFAULT_SCAN_SEGMENTS = 4;
+    private static final double SCAN_SHARE = 0.5;
+    private static final long DEFAULT_CHECK_CAPACITY = 10L;
+    private static final int DEFAULT_CAPACITY_TOP_NODES = 10;
+    private static final int DEFAULT_REQUEST_THREADS = 8;
+    private static final long DEFAULT_COMMIT_WINDOW = 5L;
+    private static final long DEFAULT_CONSISTENT_READ_WINDOW = 1000L;
+    private static final int SCAN_BUFFER_SIZE = 1000;
+    private static final String JMX_DOMAIN = "com.magnoliales.jackrabbit.dynamodb";
+    private static final String NAME_TABLE_SUFFIX = "-names";
+    private static final String REFERENCE_TABLE_SUFFIX = "-references";
+    private static final String CHILD_TABLE_SUFFIX = "-children";
+    private static final String CHECK_TABLE_SUFFIX = "-checks";
+    private static final long DEFAULT_REFERENCE_FILTER_SIZE = 1000000L;
 
     private String tableName;
-    private ObjectMapper mapper;
+    private String workspace;
+    private TableKeys keys;
+    private String bundleFormat = BINARY_FORMAT;
+    private BundleCodec bundleCodec;
+    private List<BundleCodec> bundleCodecs;
+    private String compression = BundleCompressor.NONE;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private BundleCompressor compressor;
+    private boolean nameDictionary;
+    private String nameTable;
+    private NameDictionary dictionary;
+    private boolean referenceItems;
+    private String referenceTable;
+    private ReferenceStore referenceStore;
+    private boolean referenceFilter;
+    private long referenceFilterSize = DEFAULT_REFERENCE_FILTER_SIZE;
+    private String referenceFilterFile;
+    private ReferenceFilter targetFilter;
+    private volatile ScanIterator<Item> targetFilterScan;
+    private final AtomicLong skippedReferenceChecks = new AtomicLong();
+    private int childPageSize;
+    private String childTable;
+    private ChildPages childPages;
+    private AmazonDynamoDB client;
     private Table table;
     private Region region;
+    private String clientFactory;
     private boolean initialized;
     private boolean consistencyCheck;
     private boolean consistencyFix;
+    private boolean backgroundCheck;
+    private int checkSegments = DEFAULT_SCAN_SEGMENTS;
+    private long checkCapacity = DEFAULT_CHECK_CAPACITY;
+    private String checkTable;
+    private BackgroundChecker checker;
+    private UpdateEventChannel eventChannel;
     private boolean createOnMissing;
+    private long readCapacityUnits = DEFAULT_CAPACITY_UNITS;
+    private long writeCapacityUnits = DEFAULT_CAPACITY_UNITS;
+    private boolean rateLimit;
+    private TableBuckets buckets;
+    private boolean batchWrites = true;
+    private boolean atomicCommits;
+    private boolean optimisticWrites;
+    private ChangeLogBatch batch;
+    private boolean asyncRequests;
+    private int requestThreads = DEFAULT_REQUEST_THREADS;
+    private AsyncClient asyncClient;
+    private SingleFlightLoader loader;
+    private String commitGroup;
+    private long commitWindow = DEFAULT_COMMIT_WINDOW;
+    private int commitGroupSize = ChangeLogBatch.MAX_BATCH_SIZE;
+    private GroupCommitter groupCommitter;
+    private String readConsistency = ConsistencyPolicy.EVENTUAL;
+    private long consistentReadWindow = DEFAULT_CONSISTENT_READ_WINDOW;
+    private final List<NodeId> consistentSubtrees = new ArrayList<>();
+    private ConsistencyPolicy consistencyPolicy;
+    private final BundleVersions versions = new BundleVersions();
+    private final AtomicLong conditionalWrites = new AtomicLong();
+    private final AtomicLong writeConflicts = new AtomicLong();
+    private long nearCacheSize;
+    private String nearCacheInvalidation = NO_INVALIDATION;
+    private boolean nearCacheRevalidate;
+    private BundleNearCache nearCache;
+    private BinaryBundleCodec nearCacheCodec;
+    private InvalidationSource invalidationSource;
+    private boolean prefetch;
+    private int prefetchFanOut = BundlePrefetcher.MAX_BATCH_SIZE;
+    private int prefetchDepth = 1;
+    private long prefetchExpiry = DEFAULT_PREFETCH_EXPIRY;
+    private int prefetchThreads = DEFAULT_PREFETCH_THREADS;
+    private BundlePrefetcher prefetcher;
+    private int scanSegments = DEFAULT_SCAN_SEGMENTS;
+    private ParallelScanner scanner;
+    private boolean jmx = true;
+    private String metricsRegistry;
+    private DynamoDBMetrics metrics;
+    private boolean capacityAccounting;
+    private int capacityTopNodes = DEFAULT_CAPACITY_TOP_NODES;
+    private long capacityReportInterval;
+    private String endpoint;
+    private int maxConnections = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+    private int connectionTimeout = ClientConfiguration.DEFAULT_CONNECTION_TIMEOUT;
+    private int socketTimeout = ClientConfiguration.DEFAULT_SOCKET_TIMEOUT;
+    private int requestTimeout = ClientConfiguration.DEFAULT_REQUEST_TIMEOUT;
+    private boolean tcpKeepAlive = ClientConfiguration.DEFAULT_TCP_KEEP_ALIVE;
+    private long connectionTtl = ClientConfiguration.DEFAULT_CONNECTION_TTL;
+    private long connectionMaxIdle = ClientConfiguration.DEFAULT_CONNECTION_MAX_IDLE_MILLIS;
+    private int prewarmConnections;
+    private AmazonDynamoDB sharedClient;
+    private ClientConfiguration clientConfiguration;
+    private CapacityAccounting accounting;
+    private ScheduledExecutorService capacityReporter;
+    private ObjectName objectName;
 
     /**
      * Set DynamoDB table name where the bundles need to be stored.
@@ -71,6 +367,16 @@ public class DynamoDBPersistenceManager extends AbstractBundlePersistenceManager
         this.tableName = tableName;
     }
 
+    /**
+     * Set the name of the workspace in a table that several workspaces share. The items of the workspace are then
+     * keyed by the workspace name and the id, which needs tables with the hash key <code>workspace</code> and the
+     * range key <code>id</code>.
+     * @param workspace the name of the workspace, empty for a table of its own
+     */
+    public void setWorkspace(String workspace) {
+        this.workspace = workspace;
+    }
+
     /**
      * Set AWS Region name.
      * @param regionName the name of the region as specified in {@link com.amazonaws.regions.Region}.
@@ -85,154 +391,1257 @@ public class DynamoDBPersistenceManager extends AbstractBundlePersistenceManager
     }
 
     /**
-     * Defines if a consistency check is to be performed on initialization.
-     * @param consistencyCheck the consistency check flag.
+     * Set the class name of a {@link DynamoDBClientFactory} to connect to something else than AWS.
+     * @param clientFactory the client factory class name.
+     */
+    public void setClientFactory(String clientFactory) {
+        this.clientFactory = clientFactory;
+    }
+
+    /**
+     * Defines if a consistency check is to be performed on initialization.
+     * @param consistencyCheck the consistency check flag.
+     */
+    public void setConsistencyCheck(String consistencyCheck) {
+        this.consistencyCheck = Boolean.valueOf(consistencyCheck);
+    }
+
+    /**
+     * Defines if the consistency check should attempt to fix issues that it finds.
+     * @param consistencyFix the consistency fix flag.
+     */
+    public void setConsistencyFix(String consistencyFix) {
+        this.consistencyFix = Boolean.valueOf(consistencyFix);
+    }
+
+    /**
+     * Defines if the consistency check on initialization runs in the background, resuming from its last checkpoint
+     * after a restart, instead of blocking the initialization.
+     * @param backgroundCheck the background check flag.
+     */
+    public void setBackgroundCheck(String backgroundCheck) {
+        this.backgroundCheck = Boolean.valueOf(backgroundCheck);
+    }
+
+    /**
+     * Set the number of segments that the background consistency check scans and checks in parallel.
+     * @param checkSegments the number of check segments.
+     */
+    public void setCheckSegments(String checkSegments) {
+        this.checkSegments = Integer.valueOf(checkSegments);
+    }
+
+    /**
+     * Set the read capacity units per second that the background consistency check may use, 0 for no limit.
+     * @param checkCapacity the capacity units of the check.
+     */
+    public void setCheckCapacity(String checkCapacity) {
+        this.checkCapacity = Long.valueOf(checkCapacity);
+    }
+
+    /**
+     * Set the name of the side table of the background consistency check checkpoints, by default the bundle table
+     * name with a <code>-checks</code> suffix.
+     * @param checkTable the case sensitive name of the table
+     */
+    public void setCheckTable(String checkTable) {
+        this.checkTable = checkTable;
+    }
+
+    /**
+     * Defines if a new table is created if not found in the database.
+     * @param createOnMissing the missing table creation flag.
+     */
+    public void setCreateOnMissing(String createOnMissing) {
+        this.createOnMissing = Boolean.valueOf(createOnMissing);
+    }
+
+    /**
+     * Set the read capacity units of a new table, which are also the rate limit for tables with on-demand capacity.
+     * @param readCapacityUnits the read capacity units.
+     */
+    public void setReadCapacityUnits(String readCapacityUnits) {
+        this.readCapacityUnits = Long.valueOf(readCapacityUnits);
+    }
+
+    /**
+     * Set the write capacity units of a new table, which are also the rate limit for tables with on-demand capacity.
+     * @param writeCapacityUnits the write capacity units.
+     */
+    public void setWriteCapacityUnits(String writeCapacityUnits) {
+        this.writeCapacityUnits = Long.valueOf(writeCapacityUnits);
+    }
+
+    /**
+     * Defines if requests are rate limited to the capacity of the table.
+     * @param rateLimit the rate limit flag.
+     */
+    public void setRateLimit(String rateLimit) {
+        this.rateLimit = Boolean.valueOf(rateLimit);
+    }
+
+    /**
+     * @return the current rate limit of reads in capacity units per second, 0 if rate limiting is disabled
+     */
+    public double getReadRate() {
+        return buckets == null ? 0 : buckets.getReads().getRate();
+    }
+
+    /**
+     * @return the current rate limit of writes in capacity units per second, 0 if rate limiting is disabled
+     */
+    public double getWriteRate() {
+        return buckets == null ? 0 : buckets.getWrites().getRate();
+    }
+
+    /**
+     * @return the number of requests throttled by the table, of all persistence managers of the table
+     */
+    public long getThrottledRequests() {
+        return buckets == null ? 0 : buckets.getReads().getThrottles() + buckets.getWrites().getThrottles()
+                + buckets.getScans().getThrottles();
+    }
+
+    /**
+     * @return the time in nanoseconds requests of all persistence managers of the table waited for capacity
+     */
+    public long getRateLimitWaitTime() {
+        return buckets == null ? 0 : buckets.getReads().getWaitTime() + buckets.getWrites().getWaitTime()
+                + buckets.getScans().getWaitTime();
+    }
+
+    /**
+     * Defines if the writes of a change log are grouped into batch requests instead of
+     * being sent one by one.
+     * @param batchWrites the batch writes flag.
+     */
+    public void setBatchWrites(String batchWrites) {
+        this.batchWrites = Boolean.valueOf(batchWrites);
+    }
+
+    /**
+     * Defines if the writes of a change log are committed atomically with a transaction. Only applies
+     * if batch writes are enabled. Change logs that exceed the limits of a single transaction fail.
+     * @param atomicCommits the atomic commits flag.
+     */
+    public void setAtomicCommits(String atomicCommits) {
+        this.atomicCommits = Boolean.valueOf(atomicCommits);
+    }
+
+    /**
+     * Defines if puts and deletes of bundles are conditional on the mod count of the item, so that concurrent
+     * writes of other cluster nodes are detected instead of overwritten. With batch writes the conditional puts and
+     * deletes are sent one by one, unless change logs are committed atomically, see {@link #setAtomicCommits(String)}.
+     * @param optimisticWrites the optimistic writes flag.
+     */
+    public void setOptimisticWrites(String optimisticWrites) {
+        this.optimisticWrites = Boolean.valueOf(optimisticWrites);
+    }
+
+    /**
+     * Defines if independent writes are sent in parallel and concurrent loads of the same bundle are coalesced.
+     * @param asyncRequests the asynchronous requests flag.
+     */
+    public void setAsyncRequests(String asyncRequests) {
+        this.asyncRequests = Boolean.valueOf(asyncRequests);
+    }
+
+    /**
+     * Set the number of threads that send asynchronous requests, which is the maximum number of writes in flight.
+     * @param requestThreads the number of request threads.
+     */
+    public void setRequestThreads(String requestThreads) {
+        this.requestThreads = Integer.valueOf(requestThreads);
+    }
+
+    /**
+     * Set the name of the commit group, persistence managers of the same group write concurrent change logs together.
+     * @param commitGroup the name of the commit group.
+     */
+    public void setCommitGroup(String commitGroup) {
+        this.commitGroup = commitGroup;
+    }
+
+    /**
+     * Set the time in milliseconds a group commit waits for more change logs after the first one.
+     * @param commitWindow the commit window.
+     */
+    public void setCommitWindow(String commitWindow) {
+        this.commitWindow = Long.valueOf(commitWindow);
+    }
+
+    /**
+     * Set the number of items that are written without waiting for the commit window to pass.
+     * @param commitGroupSize the size cap of a group commit.
+     */
+    public void setCommitGroupSize(String commitGroupSize) {
+        this.commitGroupSize = Integer.valueOf(commitGroupSize);
+    }
+
+    /**
+     * Set the consistency of bundle and reference reads: <code>eventual</code>, <code>strong</code> or
+     * <code>tracked</code>, which reads recently written nodes and critical subtrees strongly consistent.
+     * @param readConsistency the read consistency.
+     */
+    public void setReadConsistency(String readConsistency) {
+        this.readConsistency = readConsistency;
+    }
+
+    /**
+     * Set the time in milliseconds during which written nodes are read strongly consistent with tracked read
+     * consistency.
+     * @param consistentReadWindow the consistent read window.
+     */
+    public void setConsistentReadWindow(String consistentReadWindow) {
+        this.consistentReadWindow = Long.valueOf(consistentReadWindow);
+    }
+
+    /**
+     * Set the comma separated ids of the root nodes of subtrees that are always read strongly consistent with
+     * tracked read consistency.
+     * @param consistentSubtrees the node ids.
+     */
+    public void setConsistentSubtrees(String consistentSubtrees) {
+        this.consistentSubtrees.clear();
+        for (String nodeId : consistentSubtrees.split(",")) {
+            if (!nodeId.trim().isEmpty()) {
+                this.consistentSubtrees.add(NodeId.valueOf(nodeId.trim()));
+            }
+        }
+    }
+
+    /**
+     * @return the number of bundle and reference reads sent strongly consistent
+     */
+    public long getConsistentReads() {
+        return consistencyPolicy == null ? 0 : consistencyPolicy.getConsistentReads();
+    }
+
+    /**
+     * @return the number of bundle and reference reads sent eventually consistent
+     */
+    public long getEventualReads() {
+        return consistencyPolicy == null ? 0 : consistencyPolicy.getEventualReads();
+    }
+
+    /**
+     * @return the number of eventually consistent reads that returned an older bundle than written and were repeated
+     */
+    public long getStaleReads() {
+        return consistencyPolicy == null ? 0 : consistencyPolicy.getStaleReads();
+    }
+
+    /**
+     * @return the number of nodes checked by the background consistency check, including those checked before a
+     * restart
+     */
+    public long getCheckedNodes() {
+        return checker == null ? 0 : checker.getCheckedNodes();
+    }
+
+    /**
+     * @return the number of segments the background consistency check has completed, out of
+     * <code>checkSegments</code>
+     */
+    public int getCompletedCheckSegments() {
+        return checker == null ? 0 : checker.getCompletedSegments();
+    }
+
+    /**
+     * @return the number of segments of the background consistency check that failed repeatedly and are resumed on
+     * the next start
+     */
+    public int getFailedCheckSegments() {
+        return checker == null ? 0 : checker.getFailedSegments();
+    }
+
+    /**
+     * @return the number of inconsistencies found by the background consistency check, including those found
+     * before a restart
+     */
+    public long getCheckFindingCount() {
+        return checker == null ? 0 : checker.getFindingCount();
+    }
+
+    /**
+     * @return the inconsistencies found by the background consistency check since it was started or resumed
+     */
+    public List<ReportItem> getCheckFindings() {
+        return checker == null ? Collections.<ReportItem>emptyList() : checker.getFindings();
+    }
+
+    /**
+     * @return the report of the consumed capacity per operation and the hottest and largest node ids, or null
+     * without capacity accounting
+     */
+    public String getCapacityReport() {
+        return accounting == null ? null : accounting.getReport();
+    }
+
+    /**
+     * @return the number of reference checks the reference filter answered without a request
+     */
+    public long getSkippedReferenceChecks() {
+        return skippedReferenceChecks.get();
+    }
+
+    /**
+     * @return the number of loads that waited for a load of the same bundle instead of sending their own request
+     */
+    public long getCoalescedLoads() {
+        return loader == null ? 0 : loader.getCoalesced();
+    }
+
+    /**
+     * @return the number of conditional puts and deletes sent with optimistic writes
+     */
+    public long getConditionalWrites() {
+        return conditionalWrites.get();
+    }
+
+    /**
+     * @return the number of change logs rejected because a bundle was modified by another cluster node
+     */
+    public long getWriteConflicts() {
+        return writeConflicts.get();
+    }
+
+    /**
+     * Set the format in which bundles are written, either <code>binary</code> or <code>json</code>.
+     * Bundles in both formats can always be read, so the format of an existing table can be changed at any time.
+     * Only the binary format moves large binaries to the data store, the JSON format keeps them in the bundle.
+     * @param bundleFormat the bundle format.
+     */
+    public void setBundleFormat(String bundleFormat) {
+        if (!BINARY_FORMAT.equals(bundleFormat) && !JSON_FORMAT.equals(bundleFormat)) {
+            String message = "Unknown bundle format " + bundleFormat;
+            LOGGER.error(message);
+            throw new IllegalArgumentException(message);
+        }
+        this.bundleFormat = bundleFormat;
+    }
+
+    /**
+     * Defines if binary bundles refer to names by their index in a name dictionary. Bundles written with the
+     * dictionary cannot be read with the dictionary disabled.
+     * @param nameDictionary the name dictionary flag.
+     */
+    public void setNameDictionary(String nameDictionary) {
+        this.nameDictionary = Boolean.valueOf(nameDictionary);
+    }
+
+    /**
+     * Set the name of the side table of the name dictionary, by default the bundle table name with a
+     * <code>-names</code> suffix.
+     * @param nameTable the case sensitive name of the table
+     */
+    public void setNameTable(String nameTable) {
+        this.nameTable = nameTable;
+    }
+
+    /**
+     * Defines if the references to a node are kept in items of their own instead of an attribute of its bundle item.
+     * @param referenceItems the reference items flag.
+     */
+    public void setReferenceItems(String referenceItems) {
+        this.referenceItems = Boolean.valueOf(referenceItems);
+    }
+
+    /**
+     * Set the name of the side table of the references, by default the bundle table name with a
+     * <code>-references</code> suffix.
+     * @param referenceTable the case sensitive name of the table
+     */
+    public void setReferenceTable(String referenceTable) {
+        this.referenceTable = referenceTable;
+    }
+
+    /**
+     * Defines if nodes that are definitely not referenced are told apart by an in-memory filter.
+     * @param referenceFilter the reference filter flag.
+     */
+    public void setReferenceFilter(String referenceFilter) {
+        this.referenceFilter = Boolean.valueOf(referenceFilter);
+    }
+
+    /**
+     * Set the expected number of referenced nodes the reference filter is sized for, it takes about 10 bits per node.
+     * @param referenceFilterSize the expected number of referenced nodes.
+     */
+    public void setReferenceFilterSize(String referenceFilterSize) {
+        this.referenceFilterSize = Long.valueOf(referenceFilterSize);
+    }
+
+    /**
+     * Set the local file the reference filter is saved to on shutdown and read from on startup.
+     * @param referenceFilterFile the path of the file.
+     */
+    public void setReferenceFilterFile(String referenceFilterFile) {
+        this.referenceFilterFile = referenceFilterFile;
+    }
+
+    /**
+     * Set the number of children above which the child node entries of a node are kept in pages of about that size,
+     * 0 keeps them in the bundle item. Without optimistic writes the pages of a node are read again before every write
+     * of the node, so that a concurrent replacement by another cluster node isn't missed.
+     * @param childPageSize the child page size.
+     */
+    public void setChildPageSize(String childPageSize) {
+        this.childPageSize = Integer.valueOf(childPageSize);
+    }
+
+    /**
+     * Set the name of the side table of the child pages, by default the bundle table name with a
+     * <code>-children</code> suffix.
+     * @param childTable the case sensitive name of the table
+     */
+    public void setChildTable(String childTable) {
+        this.childTable = childTable;
+    }
+
+    /**
+     * Set the compression codec for binary bundles: <code>none</code>, <code>deflate</code> or
+     * <code>deflate-fast</code>. Compressed and uncompressed bundles can always be read.
+     * @param compression the compression codec.
+     */
+    public void setCompression(String compression) {
+        if (!BundleCompressor.isSupported(compression)) {
+            String message = "Unknown compression " + compression;
+            LOGGER.error(message);
+            throw new IllegalArgumentException(message);
+        }
+        this.compression = compression;
+    }
+
+    /**
+     * Set the minimum size in bytes of a serialized bundle to be compressed.
+     * @param compressionThreshold the compression threshold.
+     */
+    public void setCompressionThreshold(String compressionThreshold) {
+        this.compressionThreshold = Integer.valueOf(compressionThreshold);
+    }
+
+    /**
+     * Set the maximum total size in bytes of the serialized bundles held in the near-cache, 0 disables the cache.
+     * @param nearCacheSize the near-cache size.
+     */
+    public void setNearCacheSize(String nearCacheSize) {
+        this.nearCacheSize = Long.valueOf(nearCacheSize);
+    }
+
+    /**
+     * Set the source of invalidations for writes of other persistence managers sharing the table:
+     * <code>none</code>, <code>local</code> or <code>streams</code>. The streams client is created like the client
+     * of the table, with the same region, endpoint and connection settings, and with the client factory if it
+     * implements {@link DynamoDBStreamsClientFactory}.
+     * @param nearCacheInvalidation the invalidation source.
+     */
+    public void setNearCacheInvalidation(String nearCacheInvalidation) {
+        if (!NO_INVALIDATION.equals(nearCacheInvalidation) && !LOCAL_INVALIDATION.equals(nearCacheInvalidation)
+                && !STREAMS_INVALIDATION.equals(nearCacheInvalidation)) {
+            String message = "Unknown near-cache invalidation " + nearCacheInvalidation;
+            LOGGER.error(message);
+            throw new IllegalArgumentException(message);
+        }
+        this.nearCacheInvalidation = nearCacheInvalidation;
+    }
+
+    /**
+     * Defines if cached bundles are revalidated on every load by comparing their mod count with the mod count
+     * attribute of the item. The revalidation only fetches that attribute, which saves bandwidth and
+     * deserialization. It's read strongly consistent, so that it catches a write of another cluster node right
+     * away, and consumes the read capacity of a consistent read of the whole item.
+     * @param nearCacheRevalidate the revalidation flag.
+     */
+    public void setNearCacheRevalidate(String nearCacheRevalidate) {
+        this.nearCacheRevalidate = Boolean.valueOf(nearCacheRevalidate);
+    }
+
+    /**
+     * Defines if the children of loaded bundles are prefetched in the background.
+     * @param prefetch the prefetch flag.
+     */
+    public void setPrefetch(String prefetch) {
+        this.prefetch = Boolean.valueOf(prefetch);
+    }
+
+    /**
+     * Set the maximum number of children of a bundle that are prefetched.
+     * @param prefetchFanOut the prefetch fan-out.
+     */
+    public void setPrefetchFanOut(String prefetchFanOut) {
+        this.prefetchFanOut = Integer.valueOf(prefetchFanOut);
+    }
+
+    /**
+     * Set the number of tree levels below a loaded bundle that are prefetched.
+     * @param prefetchDepth the prefetch depth.
+     */
+    public void setPrefetchDepth(String prefetchDepth) {
+        this.prefetchDepth = Integer.valueOf(prefetchDepth);
+    }
+
+    /**
+     * Set the time in milliseconds a prefetched bundle is kept if it's not loaded.
+     * @param prefetchExpiry the prefetch expiry.
+     */
+    public void setPrefetchExpiry(String prefetchExpiry) {
+        this.prefetchExpiry = Long.valueOf(prefetchExpiry);
+    }
+
+    /**
+     * Set the number of background threads that prefetch bundles.
+     * @param prefetchThreads the number of prefetch threads.
+     */
+    public void setPrefetchThreads(String prefetchThreads) {
+        this.prefetchThreads = Integer.valueOf(prefetchThreads);
+    }
+
+    /**
+     * Set the number of segments that are scanned in parallel when all node ids are iterated.
+     * @param scanSegments the number of scan segments.
+     */
+    public void setScanSegments(String scanSegments) {
+        this.scanSegments = Integer.valueOf(scanSegments);
+    }
+
+    /**
+     * Defines if the metrics are registered as an MBean with the platform MBean server.
+     * @param jmx the JMX flag.
+     */
+    public void setJmx(String jmx) {
+        this.jmx = Boolean.valueOf(jmx);
+    }
+
+    /**
+     * Set the class name of a {@link MetricsRegistry} that receives all metrics in addition to the MBean.
+     * @param metricsRegistry the metrics registry class name.
+     */
+    public void setMetricsRegistry(String metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    /**
+     * Defines if the consumed capacity of all requests is attributed to operations and node ids.
+     * @param capacityAccounting the capacity accounting flag.
+     */
+    public void setCapacityAccounting(String capacityAccounting) {
+        this.capacityAccounting = Boolean.valueOf(capacityAccounting);
+    }
+
+    /**
+     * Set the number of hottest and largest node ids that capacity accounting reports.
+     * @param capacityTopNodes the number of reported node ids.
+     */
+    public void setCapacityTopNodes(String capacityTopNodes) {
+        this.capacityTopNodes = Integer.valueOf(capacityTopNodes);
+    }
+
+    /**
+     * Set the interval in milliseconds at which the capacity report is logged, 0 to only log it on close.
+     * @param capacityReportInterval the report interval.
+     */
+    public void setCapacityReportInterval(String capacityReportInterval) {
+        this.capacityReportInterval = Long.valueOf(capacityReportInterval);
+    }
+
+    /**
+     * Set the endpoint of DynamoDB, to connect to another endpoint than the one of the region. The client of the
+     * <code>streams</code> near-cache invalidation connects to it as well, as local stand-ins serve both APIs.
+     * @param endpoint the endpoint, empty for the one of the region.
+     */
+    public void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Set the size of the connection pool of the client, which is shared by all workspaces using the same client.
+     * @param maxConnections the maximum number of open connections.
+     */
+    public void setMaxConnections(String maxConnections) {
+        this.maxConnections = Integer.valueOf(maxConnections);
+    }
+
+    /**
+     * Set the timeout in milliseconds for opening a connection.
+     * @param connectionTimeout the connection timeout.
+     */
+    public void setConnectionTimeout(String connectionTimeout) {
+        this.connectionTimeout = Integer.valueOf(connectionTimeout);
+    }
+
+    /**
+     * Set the timeout in milliseconds for reading from an open connection.
+     * @param socketTimeout the socket timeout.
+     */
+    public void setSocketTimeout(String socketTimeout) {
+        this.socketTimeout = Integer.valueOf(socketTimeout);
+    }
+
+    /**
+     * Set the timeout in milliseconds for a single attempt of a request, 0 for none.
+     * @param requestTimeout the request timeout.
+     */
+    public void setRequestTimeout(String requestTimeout) {
+        this.requestTimeout = Integer.valueOf(requestTimeout);
+    }
+
+    /**
+     * Defines if TCP keep-alive is enabled on the connections.
+     * @param tcpKeepAlive the TCP keep-alive flag.
+     */
+    public void setTcpKeepAlive(String tcpKeepAlive) {
+        this.tcpKeepAlive = Boolean.valueOf(tcpKeepAlive);
+    }
+
+    /**
+     * Set the time in milliseconds after which a connection is closed instead of reused, -1 for none.
+     * @param connectionTtl the connection time to live.
+     */
+    public void setConnectionTtl(String connectionTtl) {
+        this.connectionTtl = Long.valueOf(connectionTtl);
+    }
+
+    /**
+     * Set the time in milliseconds after which an idle connection is closed.
+     * @param connectionMaxIdle the maximum idle time.
+     */
+    public void setConnectionMaxIdle(String connectionMaxIdle) {
+        this.connectionMaxIdle = Long.valueOf(connectionMaxIdle);
+    }
+
+    /**
+     * Set the number of connections to open on initialization, at most the size of the connection pool.
+     * @param prewarmConnections the number of pre-warmed connections, 0 for none.
+     */
+    public void setPrewarmConnections(String prewarmConnections) {
+        this.prewarmConnections = Integer.valueOf(prewarmConnections);
+    }
+
+    /**
+     * @return the latency histograms, sizes and counters of this persistence manager
+     */
+    public DynamoDBMetricsMXBean getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of bundles served from the prefetch buffer
+     */
+    public long getPrefetchHits() {
+        return prefetcher == null ? 0 : prefetcher.getHits();
+    }
+
+    /**
+     * @return the number of bundles prefetched
+     */
+    public long getPrefetchedBundles() {
+        return prefetcher == null ? 0 : prefetcher.getPrefetched();
+    }
+
+    /**
+     * @return the number of <code>BatchGetItem</code> requests sent to prefetch bundles
+     */
+    public long getPrefetchRoundTrips() {
+        return prefetcher == null ? 0 : prefetcher.getRoundTrips();
+    }
+
+    /**
+     * @return the number of bundles served from the near-cache
+     */
+    public long getNearCacheHits() {
+        return nearCache == null ? 0 : nearCache.getHits();
+    }
+
+    /**
+     * @return the number of bundles not found in the near-cache
+     */
+    public long getNearCacheMisses() {
+        return nearCache == null ? 0 : nearCache.getMisses();
+    }
+
+    /**
+     * @return the number of bundles evicted from the near-cache to stay within its size
+     */
+    public long getNearCacheEvictions() {
+        return nearCache == null ? 0 : nearCache.getEvictions();
+    }
+
+    /**
+     * @return the number of cached bundles invalidated because they changed
+     */
+    public long getNearCacheInvalidations() {
+        return nearCache == null ? 0 : nearCache.getInvalidations();
+    }
+
+    /**
+     * @return the total size in bytes of the bundles currently held in the near-cache
+     */
+    public long getNearCacheBytes() {
+        return nearCache == null ? 0 : nearCache.getSize();
+    }
+
+    /**
+     * @return the ratio of uncompressed to compressed size of all bundles compressed so far
+     */
+    public double getCompressionRatio() {
+        return compressor == null ? 1.0 : compressor.getCompressionRatio();
+    }
+
+    /**
+     * @return the time in nanoseconds spent on compressing and decompressing bundles
+     */
+    public long getCompressionTime() {
+        return compressor == null ? 0 : compressor.getCompressionTime() + compressor.getDecompressionTime();
+    }
+
+    @Override
+    public void init(PMContext context) throws Exception {
+
+        if (initialized) {
+            String message = "Persistence manager is already initialized";
+            LOGGER.error(message);
+            throw new IllegalStateException(message);
+        }
+
+        if (tableName == null) {
+            String message = "Table name is missing";
+            LOGGER.warn(message);
+            throw new IllegalStateException(message);
+        }
+
+        super.init(context);
+
+        metrics = new DynamoDBMetrics(tableName, DynamoDBUtils.newInstance(metricsRegistry, MetricsRegistry.class));
+        clientConfiguration = DynamoDBUtils.newConfiguration()
+                .withMaxConnections(maxConnections)
+                .withConnectionTimeout(connectionTimeout)
+                .withSocketTimeout(socketTimeout)
+                .withRequestTimeout(requestTimeout)
+                .withTcpKeepAlive(tcpKeepAlive)
+                .withConnectionTTL(connectionTtl)
+                .withConnectionMaxIdleMillis(connectionMaxIdle)
+                .withRetryPolicy(rateLimit ? RateLimitedClient.RETRY_POLICY
+                        : PredefinedRetryPolicies.DYNAMODB_DEFAULT);
+        sharedClient = ClientRegistry.acquire(clientFactory, region, endpoint, clientConfiguration);
+        client = InstrumentedClient.wrap(sharedClient, metrics);
+
+        keys = new TableKeys(workspace);
+        table = keys.getOrCreateTable(client, tableName, createOnMissing, readCapacityUnits, writeCapacityUnits);
+
+        if (prewarmConnections > 0) {
+            ClientRegistry.prewarm(sharedClient, Math.min(prewarmConnections, maxConnections), new Runnable() {
+                @Override
+                public void run() {
+                    sharedClient.describeTable(tableName);
+                }
+            });
+        }
+
+        if (capacityAccounting) {
+            accounting = new CapacityAccounting(tableName, keys.getWorkspace(), metrics, capacityTopNodes);
+            accounting.register(tableName, CapacityAccounting.BUNDLE_TABLE);
+            metrics.setAccounting(accounting);
+        }
+
+        if (rateLimit) {
+            ProvisionedThroughputDescription throughput =
+                    client.describeTable(tableName).getTable().getProvisionedThroughput();
+            long readUnits = getCapacityUnits(throughput.getReadCapacityUnits(), readCapacityUnits);
+            buckets = TableBuckets.acquire(tableName, readUnits,
+                    getCapacityUnits(throughput.getWriteCapacityUnits(), writeCapacityUnits), readUnits * SCAN_SHARE);
+            client = RateLimitedClient.wrap(client, buckets.getReads(), buckets.getWrites(), buckets.getScans());
+            table = new DynamoDB(client).getTable(tableName);
+        }
+
+        if (nameDictionary) {
+            String dictionaryTableName = nameTable == null ? tableName + NAME_TABLE_SUFFIX : nameTable;
+            DynamoDBUtils.getOrCreateTable(client, dictionaryTableName, ID_ATTRIBUTE, createOnMissing);
+            dictionary = new NameDictionary(client, dictionaryTableName);
+            dictionary.load();
+        }
+
+        if (childPageSize > 0) {
+            String childTableName = childTable == null ? tableName + CHILD_TABLE_SUFFIX : childTable;
+            keys.getOrCreateTable(client, childTableName, createOnMissing);
+            if (accounting != null) {
+                accounting.register(childTableName, CapacityAccounting.SIDE_TABLE);
+            }
+            childPages = new ChildPages(client, keys, childTableName, tableName, childPageSize, optimisticWrites);
+        }
+
+        consistencyPolicy = new ConsistencyPolicy(readConsistency, consistentReadWindow, consistentSubtrees);
+
+        compressor = new BundleCompressor(compression, compressionThreshold);
+        BinaryBundleCodec binaryBundleCodec = new BinaryBundleCodec(compressor, context.getDataStore(), dictionary);
+        JsonBundleCodec jsonBundleCodec = new JsonBundleCodec(this);
+        bundleCodecs = Arrays.asList(binaryBundleCodec, jsonBundleCodec);
+        bundleCodec = JSON_FORMAT.equals(bundleFormat) ? jsonBundleCodec : binaryBundleCodec;
+
+        if (asyncRequests) {
+            asyncClient = new AsyncClient(client, tableName, requestThreads);
+            loader = new SingleFlightLoader(new SingleFlightLoader.Loader() {
+                @Override
+                public NodePropBundle load(NodeId nodeId) throws ItemStateException {
+                    return loadCachedBundle(nodeId);
+                }
+            });
+        }
+        if (commitGroup != null && !commitGroup.isEmpty()) {
+            groupCommitter = GroupCommitter.join(commitGroup, commitWindow, commitGroupSize);
+        }
+
+        if (nearCacheSize > 0) {
+            nearCache = new BundleNearCache(nearCacheSize);
+            nearCacheCodec = new BinaryBundleCodec(new BundleCompressor(), context.getDataStore(), dictionary);
+            invalidationSource = createInvalidationSource();
+            if (invalidationSource != null) {
+                invalidationSource.start(nearCache);
+            }
+        }
+
+        scanner = new ParallelScanner(table, keys, scanSegments, SCAN_BUFFER_SIZE);
+
+        if (referenceItems) {
+            String referenceTableName = referenceTable == null ? tableName + REFERENCE_TABLE_SUFFIX : referenceTable;
+            keys.getOrCreateTable(client, referenceTableName, createOnMissing);
+            if (accounting != null) {
+                accounting.register(referenceTableName, CapacityAccounting.REFERENCE_TABLE);
+            }
+            referenceStore = new ReferenceStore(client, keys, referenceTableName, tableName);
+            referenceStore.migrate(scanner.scan(ID_ATTRIBUTE + ", #r",
+                    Collections.singletonMap("#r", REFERENCES_ATTRIBUTE)));
+        }
+        if (referenceFilter) {
+            startReferenceFilter();
+        }
+
+        if (prefetch) {
+            prefetcher = new BundlePrefetcher(client, keys, tableName, bundleCodecs, prefetchFanOut, prefetchDepth,
+                    prefetchExpiry, prefetchThreads);
+        }
+
+        if (jmx) {
+            registerMBean(context);
+        }
+
+        if (accounting != null && capacityReportInterval > 0) {
+            startCapacityReporter();
+        }
+
+        initialized = true;
+
+        if (consistencyCheck && backgroundCheck) {
+            String checkTableName = checkTable == null ? tableName + CHECK_TABLE_SUFFIX : checkTable;
+            keys.getOrCreateTable(client, checkTableName, createOnMissing);
+            checker = new BackgroundChecker(this, client, keys, tableName, checkTableName, checkSegments, checkCapacity,
+                    consistencyFix, eventChannel);
+            checker.start();
+        } else if (consistencyCheck) {
+            LOGGER.info("Consistency check for table " + tableName);
+            checkConsistency(null, true, consistencyFix);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The channel is kept to announce the repairs of the background consistency check.
+     */
+    @Override
+    public void setEventChannel(UpdateEventChannel eventChannel) {
+        super.setEventChannel(eventChannel);
+        this.eventChannel = eventChannel;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The writes of the change log are collected and sent in batches once the change log is processed.
+     * The mod counts of the written items are only recorded once the batch is written. If the batch cannot be
+     * written all affected bundles are evicted from the bundle cache and their mod counts are read again.
+     */
+    @Override
+    public synchronized void store(ChangeLog changeLog) throws ItemStateException {
+        long start = System.nanoTime();
+        if (!batchWrites) {
+            boolean success = false;
+            try {
+                super.store(changeLog);
+                success = true;
+            } catch (StaleItemStateException e) {
+                writeConflicts.incrementAndGet();
+                throw e;
+            } finally {
+                completeChildPages(success);
+                metrics.recordSince(DynamoDBMetrics.STORE, start);
+            }
+            return;
+        }
+        batch = new ChangeLogBatch(client, asyncClient, groupCommitter, tableName, atomicCommits);
+        boolean success = false;
+        try {
+            super.store(changeLog);
+            batch.flush();
+            for (Map.Entry<NodeId, Long> entry : batch.getModCounts().entrySet()) {
+                versions.put(entry.getKey(), entry.getValue());
+                consistencyPolicy.written(entry.getKey(), entry.getValue());
+            }
+            success = true;
+        } catch (StaleItemStateException e) {
+            writeConflicts.incrementAndGet();
+            throw e;
+        } finally {
+            if (!success) {
+                for (NodeId nodeId : batch.getNodeIds()) {
+                    versions.remove(nodeId);
+                    evictBundle(nodeId);
+                }
+            }
+            completeChildPages(success);
+            invalidateCached(batch.getNodeIds(), success);
+            metrics.recordSize(DynamoDBMetrics.STORE_WRITES, batch.getWriteCount());
+            metrics.recordSize(DynamoDBMetrics.STORE_ROUND_TRIPS, batch.getRoundTrips());
+            batch = null;
+            metrics.recordSince(DynamoDBMetrics.STORE, start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Bundles changed on other cluster nodes are invalidated in the near-cache as well.
      */
-    public void setConsistencyCheck(String consistencyCheck) {
-        this.consistencyCheck = Boolean.valueOf(consistencyCheck);
+    @Override
+    public synchronized void onExternalUpdate(ChangeLog changes) {
+        Set<NodeId> nodeIds = new HashSet<>();
+        addBundleIds(nodeIds, changes.addedStates());
+        addBundleIds(nodeIds, changes.modifiedStates());
+        addBundleIds(nodeIds, changes.deletedStates());
+        invalidateCached(nodeIds, false);
+        for (NodeId nodeId : nodeIds) {
+            consistencyPolicy.written(nodeId, 0);
+        }
+        if (targetFilter != null) {
+            for (NodeReferences refs : changes.modifiedRefs()) {
+                targetFilter.add(refs.getTargetId());
+            }
+            // the references of external change logs may be incomplete, so all changed nodes may be referenced
+            for (NodeId nodeId : nodeIds) {
+                targetFilter.add(nodeId);
+            }
+        }
+        super.onExternalUpdate(changes);
     }
 
-    /**
-     * Defines if the consistency check should attempt to fix issues that it finds.
-     * @param consistencyFix the consistency fix flag.
-     */
-    public void setConsistencyFix(String consistencyFix) {
-        this.consistencyFix = Boolean.valueOf(consistencyFix);
+    @Override
+    public void close() throws Exception {
+        if (checker != null) {
+            checker.close();
+        }
+        if (invalidationSource != null) {
+            invalidationSource.close();
+        }
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        if (asyncClient != null) {
+            asyncClient.shutdown();
+        }
+        if (groupCommitter != null) {
+            groupCommitter.leave();
+        }
+        if (targetFilter != null) {
+            closeReferenceFilter();
+        }
+        if (accounting != null) {
+            closeCapacityAccounting();
+        }
+        unregisterMBean();
+        if (buckets != null) {
+            buckets.release();
+            buckets = null;
+        }
+        if (sharedClient != null) {
+            ClientRegistry.release(sharedClient);
+            sharedClient = null;
+        }
+        super.close();
     }
 
     /**
-     * Defines if a new table is created if not found in the database.
-     * @param createOnMissing the missing table creation flag.
+     * {@inheritDoc}
+     * Bundles are served from the near-cache if it's enabled and the cached bundle is current.
+     * The children of the bundle are prefetched if prefetching is enabled.
+     * With asynchronous requests concurrent loads of the same bundle share a single request.
      */
-    public void setCreateOnMissing(String createOnMissing) {
-        this.createOnMissing = Boolean.valueOf(createOnMissing);
-    }
-
     @Override
-    public void init(PMContext context) throws Exception {
-
-        if (initialized) {
-            String message = "Persistence manager is already initialized";
-            LOGGER.error(message);
-            throw new IllegalStateException(message);
+    protected NodePropBundle loadBundle(NodeId nodeId) throws ItemStateException {
+        long start = System.nanoTime();
+        try {
+            NodePropBundle bundle = loader == null ? loadCachedBundle(nodeId) : loader.load(nodeId);
+            if (bundle != null && prefetcher != null) {
+                prefetcher.prefetch(bundle);
+            }
+            return bundle;
+        } finally {
+            metrics.recordSince(DynamoDBMetrics.LOAD, start);
         }
+    }
 
-        if (tableName == null) {
-            String message = "Table name is missing";
-            LOGGER.warn(message);
-            throw new IllegalStateException(message);
+    private NodePropBundle loadCachedBundle(NodeId nodeId) throws ItemStateException {
+        if (nearCache == null) {
+            return readBundle(nodeId);
         }
+        BundleNearCache.Entry entry = nearCache.get(nodeId);
+        if (entry != null && (!nearCacheRevalidate || isCurrent(nodeId, entry.getModCount()))) {
+            try {
+                NodePropBundle bundle = nearCacheCodec.decode(nodeId, entry.getData());
+                versions.put(bundle.getId(), entry.getModCount());
+                return bundle;
+            } catch (IOException | URISyntaxException e) {
+                String message = "Cannot deserialize cached bundle " + nodeId.toString();
+                LOGGER.error(message, e);
+                throw new ItemStateException(message, e);
+            }
+        }
+        long epoch = nearCache.getEpoch();
+        NodePropBundle bundle = readBundle(nodeId);
+        if (bundle != null) {
+            try {
+                Long modCount = versions.get(nodeId);
+                if (modCount != null) {
+                    nearCache.put(nodeId, new BundleNearCache.Entry(nearCacheCodec.encode(bundle), modCount), epoch);
+                }
+            } catch (IOException | RepositoryException e) {
+                LOGGER.warn("Cannot cache bundle " + nodeId.toString(), e);
+            }
+        }
+        return bundle;
+    }
 
-        super.init(context);
-
-        mapper = new ObjectMapper();
-        mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
-
-        AmazonDynamoDB client = new AmazonDynamoDBClient();
-        client.setRegion(region);
-
-        table = DynamoDBUtils.getOrCreateTable(client, tableName, ID_ATTRIBUTE, createOnMissing);
-
-        initialized = true;
-
-        if (consistencyCheck) {
-            LOGGER.info("Consistency check for table " + tableName);
-            checkConsistency(null, true, consistencyFix);
+    private NodePropBundle readBundle(NodeId nodeId) throws ItemStateException {
+        if (prefetcher != null) {
+            BundlePrefetcher.Prefetched prefetched = prefetcher.take(nodeId, PREFETCH_WAIT);
+            if (prefetched != null && !consistencyPolicy.isConsistentRead(nodeId)
+                    && !consistencyPolicy.isStale(nodeId, prefetched.getModCount())) {
+                versions.put(prefetched.getBundle().getId(), prefetched.getModCount());
+                if (childPages != null) {
+                    childPages.unpaged(prefetched.getBundle().getId());
+                }
+                return prefetched.getBundle();
+            }
+        }
+        PrimaryKey primaryKey = keys.getPrimaryKey(nodeId.toString());
+        GetItemSpec getItemSpec = new GetItemSpec().withPrimaryKey(primaryKey)
+                .withConsistentRead(consistencyPolicy.isConsistentRead(nodeId));
+        Item item = getBundleItem(nodeId, getItemSpec);
+        if (!getItemSpec.isConsistentRead() && consistencyPolicy.isStale(nodeId,
+                item == null ? null : getModCount(item))) {
+            item = getBundleItem(nodeId, getItemSpec.withConsistentRead(true));
         }
+        NodePropBundle bundle;
+        long start;
+        boolean complete;
+        do {
+            if (item == null) {
+                return null;
+            }
+            start = System.nanoTime();
+            bundle = readItem(nodeId, item, bundleCodecs);
+            complete = childPages == null || childPages.read(bundle, item);
+            if (!complete) {
+                if (getItemSpec.isConsistentRead()) {
+                    String message = "Child pages of bundle " + nodeId.toString() + " are missing";
+                    LOGGER.error(message);
+                    throw new ItemStateException(message);
+                }
+                // a page is only missing if the item was replaced since it was read
+                item = getBundleItem(nodeId, getItemSpec.withConsistentRead(true));
+            }
+        } while (!complete);
+        metrics.recordSince(DynamoDBMetrics.DESERIALIZE, start);
+        metrics.recordSize(DynamoDBMetrics.SERIALIZED_SIZE, getBundleSize(item));
+        if (bundle.getSize() > 0) {
+            metrics.recordSize(DynamoDBMetrics.DESERIALIZED_SIZE, bundle.getSize());
+        }
+        versions.put(bundle.getId(), getModCount(item));
+        consistencyPolicy.read(bundle);
+        return bundle;
     }
 
-    @Override
-    protected NodePropBundle loadBundle(NodeId nodeId) throws ItemStateException {
-        PrimaryKey primaryKey = new PrimaryKey(ID_ATTRIBUTE, nodeId.toString());
-        GetItemSpec getItemSpec = new GetItemSpec().withPrimaryKey(primaryKey);
-        Item item;
+    private Item getBundleItem(NodeId nodeId, GetItemSpec getItemSpec) throws ItemStateException {
         try {
-            item = table.getItem(getItemSpec);
+            return table.getItem(getItemSpec);
         } catch (AmazonClientException e) {
             String message = "Cannot load bundle " + nodeId.toString();
             LOGGER.error(message, e);
             throw new ItemStateException(message, e);
         }
-        if (item == null) {
-            return null;
-        }
-        String data = item.getJSON("data");
-        if (data == null) {
-            String message = "Bundle data is missing " + nodeId.toString();
-            LOGGER.error(message);
-            throw new IllegalStateException(message);
-        }
-        try {
-            return mapper.readValue(data, NodePropBundleData.class).toNodePropBundle(this, nodeId);
-        } catch (IOException | URISyntaxException | ParseException e) {
-            String message = "Cannot deserialize bundle data " + nodeId.toString();
-            LOGGER.error(message, e);
-            throw new ItemStateException(message, e);
+    }
+
+    /**
+     * Read a bundle item with the first codec that understands it.
+     * @param nodeId the id of the node
+     * @param item the bundle item
+     * @param bundleCodecs the available codecs
+     * @return the bundle
+     * @throws ItemStateException if the bundle cannot be deserialized
+     */
+    static NodePropBundle readItem(NodeId nodeId, Item item, List<BundleCodec> bundleCodecs)
+            throws ItemStateException {
+        for (BundleCodec codec : bundleCodecs) {
+            if (codec.canRead(item)) {
+                return codec.read(nodeId, item);
+            }
         }
+        String message = "Bundle data is missing " + nodeId.toString();
+        LOGGER.error(message);
+        throw new IllegalStateException(message);
     }
 
     @Override
     protected void storeBundle(NodePropBundle bundle) throws ItemStateException {
-        PrimaryKey primaryKey = new PrimaryKey(ID_ATTRIBUTE, bundle.getId().toString());
-        String data;
-        try {
-            data = mapper.writeValueAsString(new NodePropBundleData(bundle));
-        } catch (IOException | RepositoryException e) {
-            String message = "Cannot serialize bundle data " + bundle.getId().toString();
-            LOGGER.error(message, e);
-            throw new ItemStateException(message, e);
+        PrimaryKey primaryKey = keys.getPrimaryKey(bundle.getId().toString());
+        long modCount = bundle.isNew() ? 0 : getModCount(bundle.getId());
+        Item item = new Item().withPrimaryKey(primaryKey).withLong(MOD_COUNT_ATTRIBUTE, modCount + 1);
+        NodePropBundle serialized = childPages == null ? bundle : childPages.write(bundle, item);
+        long start = System.nanoTime();
+        bundleCodec.write(serialized, item);
+        metrics.recordSince(DynamoDBMetrics.SERIALIZE, start);
+        metrics.recordSize(DynamoDBMetrics.SERIALIZED_SIZE, getBundleSize(item));
+        WriteCondition condition = null;
+        if (optimisticWrites) {
+            condition = bundle.isNew() ? WriteCondition.absent() : WriteCondition.modCount(modCount);
+            conditionalWrites.incrementAndGet();
+        }
+        if (batch != null) {
+            batch.put(bundle.getId(), item, condition);
+            return;
         }
-        Item item = new Item().withPrimaryKey(primaryKey).withJSON("data", data);
         PutItemSpec putItemSpec = new PutItemSpec().withItem(item);
+        if (condition != null) {
+            putItemSpec.withConditionExpression(condition.getExpression())
+                    .withNameMap(condition.getNames())
+                    .withValueMap(condition.getValues());
+        }
         try {
             table.putItem(putItemSpec);
+            versions.put(bundle.getId(), modCount + 1);
+            consistencyPolicy.written(bundle.getId(), modCount + 1);
+        } catch (ConditionalCheckFailedException e) {
+            versions.remove(bundle.getId());
+            String message = bundle.getId() + " has been modified externally";
+            LOGGER.debug(message);
+            throw new StaleItemStateException(message);
         } catch (AmazonClientException e) {
+            versions.remove(bundle.getId());
             String message = "Cannot store bundle " + bundle.getId().toString();
             LOGGER.warn(message, e);
             throw new ItemStateException(message, e);
+        } finally {
+            invalidateCached(Collections.singleton(bundle.getId()), true);
         }
     }
 
     @Override
     protected void destroyBundle(NodePropBundle bundle) throws ItemStateException {
-        PrimaryKey primaryKey = new PrimaryKey(ID_ATTRIBUTE, bundle.getId().toString());
-        DeleteItemSpec deleteItemSpec = new DeleteItemSpec().withPrimaryKey(primaryKey);
+        long start = System.nanoTime();
         try {
-            table.deleteItem(deleteItemSpec);
-        } catch (AmazonClientException e) {
-            String message = "Cannot delete bundle " + bundle.getId().toString();
-            LOGGER.error(message, e);
-            throw new ItemStateException(message, e);
+            PrimaryKey primaryKey = keys.getPrimaryKey(bundle.getId().toString());
+            WriteCondition condition = null;
+            if (optimisticWrites) {
+                condition = WriteCondition.modCount(getModCount(bundle.getId()));
+                conditionalWrites.incrementAndGet();
+            }
+            versions.remove(bundle.getId());
+            consistencyPolicy.removed(bundle.getId());
+            if (childPages != null) {
+                childPages.delete(bundle.getId());
+            }
+            if (batch != null) {
+                batch.delete(bundle.getId(), primaryKey, condition);
+                return;
+            }
+            DeleteItemSpec deleteItemSpec = new DeleteItemSpec().withPrimaryKey(primaryKey);
+            if (condition != null) {
+                deleteItemSpec.withConditionExpression(condition.getExpression())
+                        .withNameMap(condition.getNames())
+                        .withValueMap(condition.getValues());
+            }
+            try {
+                table.deleteItem(deleteItemSpec);
+            } catch (ConditionalCheckFailedException e) {
+                String message = bundle.getId() + " has been modified externally";
+                LOGGER.debug(message);
+                throw new StaleItemStateException(message);
+            } catch (AmazonClientException e) {
+                String message = "Cannot delete bundle " + bundle.getId().toString();
+                LOGGER.error(message, e);
+                throw new ItemStateException(message, e);
+            } finally {
+                invalidateCached(Collections.singleton(bundle.getId()), true);
+            }
+        } finally {
+            metrics.recordSince(DynamoDBMetrics.DESTROY, start);
         }
     }
 
     @Override
     protected void destroy(NodeReferences refs) throws ItemStateException {
-        PrimaryKey primaryKey = new PrimaryKey(ID_ATTRIBUTE, refs.getTargetId().toString());
-        AttributeUpdate attributeUpdate = new AttributeUpdate("references").delete();
+        long start = System.nanoTime();
         try {
-            table.updateItem(primaryKey, attributeUpdate);
-        } catch (AmazonClientException e) {
-            String message = "Cannot remove references to " + refs.getTargetId().toString();
-            LOGGER.error(message, e);
-            throw new ItemStateException(message, e);
+            if (referenceStore != null) {
+                updateReferenceItems(refs.getTargetId(), Collections.<PropertyId>emptyList());
+                return;
+            }
+            PrimaryKey primaryKey = keys.getPrimaryKey(refs.getTargetId().toString());
+            consistencyPolicy.written(refs.getTargetId(), 0);
+            if (batch != null) {
+                batch.updateReferences(refs.getTargetId(), primaryKey, new HashSet<String>());
+                return;
+            }
+            AttributeUpdate attributeUpdate = new AttributeUpdate(REFERENCES_ATTRIBUTE).delete();
+            try {
+                table.updateItem(primaryKey, attributeUpdate);
+            } catch (AmazonClientException e) {
+                String message = "Cannot remove references to " + refs.getTargetId().toString();
+                LOGGER.error(message, e);
+                throw new ItemStateException(message, e);
+            }
+        } finally {
+            metrics.recordSince(DynamoDBMetrics.REFERENCES, start);
         }
     }
 
     @Override
     protected void store(NodeReferences refs) throws ItemStateException {
-        Set<String> references = new HashSet<>();
-        for (PropertyId propertyId : refs.getReferences()) {
-            references.add(propertyId.toString());
+        long start = System.nanoTime();
+        if (targetFilter != null) {
+            targetFilter.add(refs.getTargetId());
         }
-        PrimaryKey primaryKey = new PrimaryKey(ID_ATTRIBUTE, refs.getTargetId().toString());
-        AttributeUpdate attributeUpdate = new AttributeUpdate("references").put(references);
         try {
-            table.updateItem(primaryKey, attributeUpdate);
-        } catch (AmazonClientException e) {
-            String message = "Cannot update references for " + refs.getTargetId().toString();
-            LOGGER.error(message, e);
-            throw new ItemStateException(message, e);
+            if (referenceStore != null) {
+                updateReferenceItems(refs.getTargetId(), refs.getReferences());
+                return;
+            }
+            Set<String> references = new HashSet<>();
+            for (PropertyId propertyId : refs.getReferences()) {
+                references.add(propertyId.toString());
+            }
+            PrimaryKey primaryKey = keys.getPrimaryKey(refs.getTargetId().toString());
+            consistencyPolicy.written(refs.getTargetId(), 0);
+            if (batch != null) {
+                batch.updateReferences(refs.getTargetId(), primaryKey, references);
+                return;
+            }
+            AttributeUpdate attributeUpdate = new AttributeUpdate(REFERENCES_ATTRIBUTE).put(references);
+            try {
+                table.updateItem(primaryKey, attributeUpdate);
+            } catch (AmazonClientException e) {
+                String message = "Cannot update references for " + refs.getTargetId().toString();
+                LOGGER.error(message, e);
+                throw new ItemStateException(message, e);
+            }
+        } finally {
+            metrics.recordSince(DynamoDBMetrics.REFERENCES, start);
         }
     }
 
@@ -241,88 +1650,492 @@ public class DynamoDBPersistenceManager extends AbstractBundlePersistenceManager
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     * Pages of node ids are read with a sequential scan that stops after <code>maxCount</code> ids, so that the
+     * next page can continue after the last returned id. All node ids at once are read with a parallel scan.
+     */
     @Override
     public List<NodeId> getAllNodeIds(NodeId after, int maxCount) throws ItemStateException, RepositoryException {
-        List<NodeId> nodeIds = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            List<NodeId> nodeIds = new ArrayList<>();
+            if (after == null && maxCount == 0) {
+                try (ScanIterator<NodeId> iterator = scanNodeIds()) {
+                    while (iterator.hasNext()) {
+                        nodeIds.add(iterator.next());
+                    }
+                } catch (AmazonClientException e) {
+                    String message = "Cannot scan node ids in table " + tableName;
+                    LOGGER.error(message, e);
+                    throw new ItemStateException(message, e);
+                }
+                return nodeIds;
+            }
+            try {
+                for (Item item : getNodeIdItems(after, maxCount)) {
+                    NodeId nodeId = NodeId.valueOf(item.getString(ID_ATTRIBUTE));
+                    nodeIds.add(nodeId);
+                    if (nodeIds.size() == maxCount) {
+                        break;
+                    }
+                }
+            } catch (AmazonClientException e) {
+                String message = "Cannot scan node ids in table " + tableName;
+                LOGGER.error(message, e);
+                throw new ItemStateException(message, e);
+            }
+            return nodeIds;
+        } finally {
+            metrics.recordSince(DynamoDBMetrics.SCAN, start);
+        }
+    }
+
+    /**
+     * Read the ids of the nodes in the table, with a query of the workspace in a shared table.
+     */
+    private Iterable<Item> getNodeIdItems(NodeId after, int maxCount) {
+        PrimaryKey startKey = after == null ? null : keys.getPrimaryKey(after.toString());
+        if (keys.isShared()) {
+            QuerySpec querySpec = keys.getQuerySpec(0, 1).withProjectionExpression(keys.getProjection(ID_ATTRIBUTE));
+            if (startKey != null) {
+                querySpec.withExclusiveStartKey(startKey);
+            }
+            if (maxCount != 0) {
+                querySpec.withMaxPageSize(maxCount);
+            }
+            return table.query(querySpec);
+        }
         ScanSpec scanSpec = new ScanSpec().withAttributesToGet(ID_ATTRIBUTE);
-        if (after != null) {
-            PrimaryKey primaryKey = new PrimaryKey(ID_ATTRIBUTE, after.toString());
-            scanSpec.withExclusiveStartKey(primaryKey);
+        if (startKey != null) {
+            scanSpec.withExclusiveStartKey(startKey);
         }
         if (maxCount != 0) {
             scanSpec.withMaxPageSize(maxCount);
         }
-        for (Item item : table.scan(scanSpec)) {
-            NodeId nodeId = NodeId.valueOf(item.getString(ID_ATTRIBUTE));
-            nodeIds.add(nodeId);
-        }
-        return nodeIds;
+        return table.scan(scanSpec);
+    }
+
+    /**
+     * Iterate over the ids of all nodes in the table with a parallel scan of {@link #setScanSegments(String)}
+     * segments, or parallel queries of the workspace in a shared table. Only a bounded number of ids is held in
+     * memory, so this is the way to visit all nodes of large workspaces, e.g. for reindexing or exports. The order
+     * of the ids is undefined.
+     * @return the iterator, which needs to be closed if it's not consumed completely
+     */
+    public ScanIterator<NodeId> scanNodeIds() {
+        final ScanIterator<Item> items = scanner.scan(ID_ATTRIBUTE);
+        return new ScanIterator<NodeId>() {
+            @Override
+            public boolean hasNext() {
+                return items.hasNext();
+            }
+
+            @Override
+            public NodeId next() {
+                return NodeId.valueOf(items.next().getString(ID_ATTRIBUTE));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+                items.close();
+            }
+        };
     }
 
     @Override
     public NodeReferences loadReferencesTo(NodeId targetId) throws ItemStateException {
-        PrimaryKey primaryKey = new PrimaryKey(ID_ATTRIBUTE, targetId.toString());
-        GetItemSpec getItemSpec = new GetItemSpec().withPrimaryKey(primaryKey).withAttributesToGet("references");
-        Item item;
+        long start = System.nanoTime();
         try {
-            item = table.getItem(getItemSpec);
+            if (referenceStore != null) {
+                NodeReferences nodeReferences = referenceStore.load(targetId);
+                if (nodeReferences == null) {
+                    String message = "Cannot find node " + targetId.toString();
+                    LOGGER.error(message);
+                    throw new NoSuchItemStateException(message);
+                }
+                return nodeReferences;
+            }
+            PrimaryKey primaryKey = keys.getPrimaryKey(targetId.toString());
+            GetItemSpec getItemSpec = new GetItemSpec()
+                    .withPrimaryKey(primaryKey)
+                    .withAttributesToGet(REFERENCES_ATTRIBUTE)
+                    .withConsistentRead(consistencyPolicy.isConsistentRead(targetId));
+            Item item;
+            try {
+                item = table.getItem(getItemSpec);
+            } catch (AmazonClientException e) {
+                String message = "Cannot load references to " + targetId.toString();
+                LOGGER.error(message, e);
+                throw new ItemStateException(message, e);
+            }
+            if (item == null) {
+                String message = "Cannot find node " + targetId.toString();
+                LOGGER.error(message);
+                throw new NoSuchItemStateException(message);
+            }
+            NodeReferences nodeReferences = new NodeReferences(targetId);
+            Set<String> references = item.getStringSet(REFERENCES_ATTRIBUTE);
+            if (references != null) {
+                for (String reference : references) {
+                    nodeReferences.addReference(PropertyId.valueOf(reference));
+                }
+            }
+            return nodeReferences;
+        } finally {
+            metrics.recordSince(DynamoDBMetrics.REFERENCES, start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * Nodes that the reference filter knows to be unreferenced are answered without a request.
+     */
+    @Override
+    public boolean existsReferencesTo(NodeId targetId) throws ItemStateException {
+        if (targetFilter != null && !targetFilter.mightBeReferenced(targetId)) {
+            skippedReferenceChecks.incrementAndGet();
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            if (referenceStore != null) {
+                return referenceStore.exists(targetId);
+            }
+            PrimaryKey primaryKey = keys.getPrimaryKey(targetId.toString());
+            GetItemSpec getItemSpec = new GetItemSpec()
+                    .withPrimaryKey(primaryKey)
+                    .withAttributesToGet(REFERENCES_ATTRIBUTE)
+                    .withConsistentRead(consistencyPolicy.isConsistentRead(targetId));
+            Item item;
+            try {
+                item = table.getItem(getItemSpec);
+            } catch (AmazonClientException e) {
+                String message = "Cannot load references to " + targetId.toString();
+                LOGGER.error(message, e);
+                throw new ItemStateException(message, e);
+            }
+            if (item == null) {
+                String message = "Cannot find node " + targetId.toString();
+                LOGGER.error(message);
+                throw new NoSuchItemStateException(message);
+            }
+            Set<String> references = item.getStringSet(REFERENCES_ATTRIBUTE);
+            return references != null && references.size() > 0;
+        } finally {
+            metrics.recordSince(DynamoDBMetrics.REFERENCES, start);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * The check is skipped if the table is empty.
+     */
+    @Override
+    public void checkConsistency(String[] uuids, boolean recursive, boolean fix) {
+        long start = System.nanoTime();
+        try {
+            try {
+                if (getAllNodeIds(null, 1).size() > 0) {
+                    super.checkConsistency(uuids, recursive, fix);
+                } else {
+                    LOGGER.info("Consistency check skipped as table " + tableName + " is empty");
+                }
+            } catch (ItemStateException | RepositoryException e) {
+                String message = "could not run consistency check on table " + tableName;
+                LOGGER.error(message, e);
+                throw new IllegalStateException(message, e);
+            }
+        } finally {
+            metrics.recordSince(DynamoDBMetrics.CHECK_CONSISTENCY, start);
+        }
+    }
+
+    /**
+     * Check nodes for a background consistency check and repair the inconsistencies found. Check and repair don't
+     * interleave with the change logs stored by the repository, so that a repair isn't based on bundles a
+     * concurrent store has changed since they were checked.
+     * @param consistencyChecker the checker of the nodes
+     * @param uuids the ids of the nodes
+     * @throws RepositoryException if the check or the repair fails
+     */
+    synchronized void checkAndRepair(ConsistencyCheckerImpl consistencyChecker, String[] uuids)
+            throws RepositoryException {
+        consistencyChecker.check(uuids, false);
+        consistencyChecker.doubleCheckErrors();
+        boolean success = false;
+        try {
+            consistencyChecker.repair();
+            success = true;
+        } finally {
+            completeChildPages(success);
+        }
+    }
+
+    private void updateReferenceItems(NodeId targetId, Collection<PropertyId> references) throws ItemStateException {
+        List<UpdateItemRequest> updates = referenceStore.getUpdates(targetId, references);
+        if (batch != null) {
+            for (UpdateItemRequest update : updates) {
+                batch.update(targetId, update);
+            }
+            return;
+        }
+        try {
+            for (UpdateItemRequest update : updates) {
+                client.updateItem(update);
+            }
+        } catch (ConditionalCheckFailedException e) {
+            String message = "References to " + targetId + " have been modified externally";
+            LOGGER.debug(message);
+            throw new StaleItemStateException(message);
         } catch (AmazonClientException e) {
-            String message = "Cannot load references to " + targetId.toString();
+            String message = "Cannot update references for " + targetId.toString();
             LOGGER.error(message, e);
             throw new ItemStateException(message, e);
         }
-        if (item == null) {
-            String message = "Cannot find node " + targetId.toString();
-            LOGGER.error(message);
-            throw new NoSuchItemStateException(message);
+    }
+
+    private void registerMBean(PMContext context) {
+        try {
+            objectName = new ObjectName(JMX_DOMAIN + ":type=PersistenceManager,table=" + ObjectName.quote(tableName)
+                    + ",workspace=" + ObjectName.quote(context.getHomeDir().getName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register metrics of table " + tableName + " with JMX", e);
+            objectName = null;
         }
-        NodeReferences nodeReferences = new NodeReferences(targetId);
-        Set<String> references = item.getStringSet("references");
-        if (references != null) {
-            for (String reference : references) {
-                nodeReferences.addReference(PropertyId.valueOf(reference));
-            }
+    }
+
+    private void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot unregister metrics of table " + tableName + " from JMX", e);
         }
-        return nodeReferences;
+        objectName = null;
     }
 
-    @Override
-    public boolean existsReferencesTo(NodeId targetId) throws ItemStateException {
-        PrimaryKey primaryKey = new PrimaryKey(ID_ATTRIBUTE, targetId.toString());
-        GetItemSpec getItemSpec = new GetItemSpec().withPrimaryKey(primaryKey).withAttributesToGet("references");
+    private InvalidationSource createInvalidationSource() {
+        switch (nearCacheInvalidation) {
+            case LOCAL_INVALIDATION:
+                return new LocalInvalidationSource(tableName);
+            case STREAMS_INVALIDATION:
+                AmazonDynamoDBStreams streams = DynamoDBUtils.createStreamsClient(
+                        DynamoDBUtils.newInstance(clientFactory, DynamoDBClientFactory.class), region, endpoint,
+                        clientConfiguration, null);
+                return new StreamsInvalidationSource(client, streams, keys, tableName, STREAMS_POLL_INTERVAL);
+            default:
+                return null;
+        }
+    }
+
+    private boolean isCurrent(NodeId nodeId, long modCount) throws ItemStateException {
+        GetItemSpec getItemSpec = new GetItemSpec()
+                .withPrimaryKey(keys.getPrimaryKey(nodeId.toString()))
+                .withProjectionExpression(MOD_COUNT_ATTRIBUTE)
+                .withConsistentRead(true);
         Item item;
         try {
             item = table.getItem(getItemSpec);
         } catch (AmazonClientException e) {
-            String message = "Cannot load references to " + targetId.toString();
+            String message = "Cannot load mod count of bundle " + nodeId.toString();
             LOGGER.error(message, e);
             throw new ItemStateException(message, e);
         }
-        if (item == null) {
-            String message = "Cannot find node " + targetId.toString();
-            LOGGER.error(message);
-            throw new NoSuchItemStateException(message);
-        }
-        Set<String> references = item.getStringSet("references");
-        return references != null && references.size() > 0;
+        return item != null && getModCount(item) == modCount;
     }
 
     /**
-     * {@inheritDoc}
-     * The check is skipped if the table is empty.
+     * Get the mod count of a bundle item as it was read by this persistence manager. If it's not known any more,
+     * the current mod count is read from the table, along with the child pages the item refers to.
      */
-    @Override
-    public void checkConsistency(String[] uuids, boolean recursive, boolean fix) {
+    private long getModCount(NodeId nodeId) throws ItemStateException {
+        Long modCount = versions.get(nodeId);
+        if (modCount != null) {
+            return modCount;
+        }
+        GetItemSpec getItemSpec = new GetItemSpec()
+                .withPrimaryKey(keys.getPrimaryKey(nodeId.toString()))
+                .withProjectionExpression(childPages == null ? MOD_COUNT_ATTRIBUTE
+                        : MOD_COUNT_ATTRIBUTE + ", " + ChildPages.CHILD_PAGES_ATTRIBUTE)
+                .withConsistentRead(true);
+        Item item;
         try {
-            if (getAllNodeIds(null, 1).size() > 0) {
-                super.checkConsistency(uuids, recursive, fix);
+            item = table.getItem(getItemSpec);
+        } catch (AmazonClientException e) {
+            String message = "Cannot load mod count of bundle " + nodeId.toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+        LOGGER.debug("Mod count of bundle {} was read again", nodeId);
+        if (childPages != null) {
+            childPages.loaded(nodeId, item);
+        }
+        return item == null ? 0 : getModCount(item);
+    }
+
+    private static long getCapacityUnits(Long provisioned, long configured) {
+        return provisioned == null || provisioned == 0 ? configured : provisioned;
+    }
+
+    private static long getBundleSize(Item item) {
+        if (item.isPresent(BinaryBundleCodec.BUNDLE_ATTRIBUTE)) {
+            return item.getBinary(BinaryBundleCodec.BUNDLE_ATTRIBUTE).length;
+        }
+        String data = item.getJSON(JsonBundleCodec.DATA_ATTRIBUTE);
+        return data == null ? 0 : data.length();
+    }
+
+    private static long getModCount(Item item) {
+        return item.isPresent(MOD_COUNT_ATTRIBUTE) ? item.getLong(MOD_COUNT_ATTRIBUTE) : 0;
+    }
+
+    private static void addBundleIds(Set<NodeId> nodeIds, Iterable<ItemState> states) {
+        for (ItemState state : states) {
+            if (state.isNode()) {
+                nodeIds.add((NodeId) state.getId());
             } else {
-                LOGGER.info("Consistency check skipped as table " + tableName + " is empty");
+                nodeIds.add(((PropertyState) state).getParentId());
             }
-        } catch (ItemStateException | RepositoryException e) {
-            String message = "could not run consistency check on table " + tableName;
-            LOGGER.error(message, e);
-            throw new IllegalStateException(message, e);
+        }
+    }
+
+    /**
+     * Read the reference filter from its file, or build it in the background.
+     */
+    private void startReferenceFilter() {
+        if (referenceFilterFile != null && !referenceFilterFile.isEmpty()) {
+            File file = new File(referenceFilterFile);
+            try {
+                targetFilter = ReferenceFilter.load(file, referenceFilterSize);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot read reference filter from " + file + ", building it instead", e);
+            }
+            // the file is only valid until the next write
+            if (file.exists() && !file.delete()) {
+                LOGGER.warn("Cannot delete reference filter file " + file);
+            }
+            if (targetFilter != null) {
+                LOGGER.info("Read reference filter of table " + tableName + " from " + file);
+                return;
+            }
+        }
+        targetFilter = new ReferenceFilter(referenceFilterSize);
+        targetFilterScan = referenceStore != null ? referenceStore.scanHeads(scanSegments, SCAN_BUFFER_SIZE)
+                : scanner.scan(ID_ATTRIBUTE + ", #r", Collections.singletonMap("#r", REFERENCES_ATTRIBUTE));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                buildReferenceFilter(targetFilterScan);
+            }
+        }, "dynamodb-reference-filter-" + tableName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void buildReferenceFilter(ScanIterator<Item> items) {
+        long start = System.nanoTime();
+        long targets = 0;
+        try {
+            while (items.hasNext()) {
+                Item item = items.next();
+                if (referenceStore != null ? ReferenceStore.isReferenced(item)
+                        : item.isPresent(REFERENCES_ATTRIBUTE)) {
+                    targetFilter.add(NodeId.valueOf(item.getString(ID_ATTRIBUTE)));
+                    targets++;
+                }
+            }
+        } catch (AmazonClientException | IllegalStateException | IllegalArgumentException e) {
+            LOGGER.error("Cannot build reference filter of table " + tableName + ", references are read instead", e);
+            return;
+        } finally {
+            items.close();
+            targetFilterScan = null;
+        }
+        targetFilter.setReady();
+        LOGGER.info("Built reference filter of table " + tableName + " with " + targets + " referenced nodes in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private void startCapacityReporter() {
+        final String threadName = "dynamodb-capacity-" + tableName;
+        capacityReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        capacityReporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                LOGGER.info(accounting.getReport());
+            }
+        }, capacityReportInterval, capacityReportInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeCapacityAccounting() {
+        if (capacityReporter != null) {
+            capacityReporter.shutdownNow();
+        }
+        LOGGER.info(accounting.getReport());
+        accounting.close();
+    }
+
+    private void closeReferenceFilter() {
+        ScanIterator<Item> scan = targetFilterScan;
+        if (scan != null) {
+            scan.close();
+        }
+        if (referenceFilterFile != null && !referenceFilterFile.isEmpty() && targetFilter.isReady()) {
+            try {
+                targetFilter.save(new File(referenceFilterFile));
+            } catch (IOException e) {
+                LOGGER.warn("Cannot save reference filter to " + referenceFilterFile, e);
+            }
+        }
+    }
+
+    /**
+     * Delete the child pages replaced by a successful change log, or keep them if it failed.
+     */
+    private void completeChildPages(boolean success) {
+        if (childPages == null) {
+            return;
+        }
+        if (success) {
+            childPages.committed();
+        } else {
+            childPages.rolledBack();
+        }
+    }
+
+    private void invalidateCached(Collection<NodeId> nodeIds, boolean committed) {
+        for (NodeId nodeId : nodeIds) {
+            if (nearCache != null) {
+                nearCache.invalidate(nodeId);
+            }
+            if (prefetcher != null) {
+                prefetcher.invalidate(nodeId);
+            }
+            if (loader != null) {
+                loader.invalidate(nodeId);
+            }
+            if (childPages != null && !committed) {
+                childPages.forget(nodeId);
+            }
+        }
+        if (committed && invalidationSource != null) {
+            invalidationSource.committed(nodeIds);
         }
     }
 }
@@ -0,0 +1,23 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.regions.Region;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+
+/**
+ * Creates the DynamoDB Streams clients of the <code>streams</code> near-cache invalidation. A
+ * {@link DynamoDBClientFactory} implements it as well if the tables of its clients have streams, so that the
+ * streams are read from the same place as the tables.
+ */
+public interface DynamoDBStreamsClientFactory {
+
+    /**
+     * @param region the configured region, may be null
+     * @param configuration the configuration of the client
+     * @param collector the collector of the request metrics, which may be ignored
+     * @return the client
+     */
+    AmazonDynamoDBStreams createStreamsClient(Region region, ClientConfiguration configuration,
+                                              RequestMetricCollector collector);
+}
@@ -1,7 +1,15 @@
 package com.magnoliales.jackrabbit.dynamodb;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.regions.Region;
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreamsClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.dynamodbv2.model.*;
@@ -20,8 +28,107 @@ final class DynamoDBUtils {
     private DynamoDBUtils() {
     }
 
+    /**
+     * Create a client with the given factory, or a client for AWS if there is no factory.
+     */
+    static AmazonDynamoDB createClient(DynamoDBClientFactory clientFactory, Region region,
+                                       RequestMetricCollector collector) {
+        return createClient(clientFactory, region, null, newConfiguration(), collector);
+    }
+
+    /**
+     * Create a client with the given factory, or a client for AWS if there is no factory.
+     * @param endpoint the endpoint of a client for AWS, or null for the endpoint of the region
+     */
+    static AmazonDynamoDB createClient(DynamoDBClientFactory clientFactory, Region region, String endpoint,
+                                       ClientConfiguration configuration, RequestMetricCollector collector) {
+        if (clientFactory != null) {
+            return clientFactory.createClient(region, configuration, collector);
+        }
+        AmazonDynamoDB client = new AmazonDynamoDBClient(new DefaultAWSCredentialsProviderChain(), configuration,
+                collector);
+        client.setRegion(region);
+        if (endpoint != null && !endpoint.isEmpty()) {
+            client.setEndpoint(endpoint);
+        }
+        return client;
+    }
+
+    /**
+     * Create a DynamoDB Streams client with the given factory, or a client for AWS if there is no factory.
+     * @param endpoint the endpoint of a client for AWS, or null for the streams endpoint of the region
+     * @throws IllegalStateException if the factory doesn't create streams clients
+     */
+    static AmazonDynamoDBStreams createStreamsClient(DynamoDBClientFactory clientFactory, Region region,
+                                                     String endpoint, ClientConfiguration configuration,
+                                                     RequestMetricCollector collector) {
+        if (clientFactory instanceof DynamoDBStreamsClientFactory) {
+            return ((DynamoDBStreamsClientFactory) clientFactory).createStreamsClient(region, configuration,
+                    collector);
+        }
+        if (clientFactory != null) {
+            String message = "Client factory " + clientFactory.getClass().getName() + " doesn't implement "
+                    + DynamoDBStreamsClientFactory.class.getSimpleName();
+            LOGGER.error(message);
+            throw new IllegalStateException(message);
+        }
+        AmazonDynamoDBStreams client = new AmazonDynamoDBStreamsClient(new DefaultAWSCredentialsProviderChain(),
+                configuration, collector);
+        client.setRegion(region);
+        if (endpoint != null && !endpoint.isEmpty()) {
+            client.setEndpoint(endpoint);
+        }
+        return client;
+    }
+
+    /**
+     * @return the default configuration of a client, with the retry policy for DynamoDB
+     */
+    static ClientConfiguration newConfiguration() {
+        return new ClientConfiguration().withRetryPolicy(PredefinedRetryPolicies.DYNAMODB_DEFAULT);
+    }
+
+    /**
+     * Instantiate a configured class with its no-argument constructor.
+     * @return the instance or null if no class name is configured
+     */
+    static <T> T newInstance(String className, Class<T> type) {
+        if (className == null || className.isEmpty()) {
+            return null;
+        }
+        try {
+            return Class.forName(className).asSubclass(type).newInstance();
+        } catch (ClassNotFoundException | ClassCastException | InstantiationException | IllegalAccessException e) {
+            String message = "Cannot create " + type.getSimpleName() + " " + className;
+            LOGGER.error(message, e);
+            throw new IllegalStateException(message, e);
+        }
+    }
+
     static Table getOrCreateTable(AmazonDynamoDB client, String tableName, String attributeName,
                                   boolean createOnMissing) {
+        return getOrCreateTable(client, tableName, attributeName, createOnMissing, THROUGHPUT, THROUGHPUT);
+    }
+
+    static Table getOrCreateTable(AmazonDynamoDB client, String tableName, String attributeName,
+                                  String rangeAttributeName, boolean createOnMissing) {
+        return getOrCreateTable(client, tableName, attributeName, rangeAttributeName, createOnMissing, THROUGHPUT,
+                THROUGHPUT);
+    }
+
+    static Table getOrCreateTable(AmazonDynamoDB client, String tableName, String attributeName,
+                                  boolean createOnMissing, long readCapacityUnits, long writeCapacityUnits) {
+        return getOrCreateTable(client, tableName, attributeName, null, createOnMissing, readCapacityUnits,
+                writeCapacityUnits);
+    }
+
+    /**
+     * Get a table, or create it if it's missing and creation is allowed.
+     * @param rangeAttributeName the range key of the table, or null for a table with a hash key only
+     */
+    static Table getOrCreateTable(AmazonDynamoDB client, String tableName, String attributeName,
+                                  String rangeAttributeName, boolean createOnMissing, long readCapacityUnits,
+                                  long writeCapacityUnits) {
         try {
             TableDescription tableDescription = client.describeTable(tableName).getTable();
             if (!tableDescription.getTableStatus().equals(TableStatus.ACTIVE.toString())) {
@@ -30,11 +137,14 @@ final class DynamoDBUtils {
                 throw new IllegalStateException(message);
             }
             boolean hashKeyFound = false;
+            boolean rangeKeyFound = rangeAttributeName == null;
             for (KeySchemaElement keySchemaElement : tableDescription.getKeySchema()) {
                 if (keySchemaElement.getAttributeName().equals(attributeName)
                         && keySchemaElement.getKeyType().equals(KeyType.HASH.toString())) {
                     hashKeyFound = true;
-                    break;
+                } else if (keySchemaElement.getAttributeName().equals(rangeAttributeName)
+                        && keySchemaElement.getKeyType().equals(KeyType.RANGE.toString())) {
+                    rangeKeyFound = true;
                 }
             }
             if (!hashKeyFound) {
@@ -42,6 +152,11 @@ final class DynamoDBUtils {
                 LOGGER.error(message);
                 throw new IllegalStateException(message);
             }
+            if (!rangeKeyFound) {
+                String message = "A range key '" + rangeAttributeName + "' is required for table " + tableName;
+                LOGGER.error(message);
+                throw new IllegalStateException(message);
+            }
         } catch (ResourceNotFoundException e) {
             LOGGER.info("Table " + tableName + " does not exist");
             if (!createOnMissing) {
@@ -59,9 +174,17 @@ final class DynamoDBUtils {
                 attributeDefinitions.add(new AttributeDefinition()
                         .withAttributeName(attributeName)
                         .withAttributeType(ScalarAttributeType.S));
+                if (rangeAttributeName != null) {
+                    keySchemaElements.add(new KeySchemaElement()
+                            .withAttributeName(rangeAttributeName)
+                            .withKeyType(KeyType.RANGE));
+                    attributeDefinitions.add(new AttributeDefinition()
+                            .withAttributeName(rangeAttributeName)
+                            .withAttributeType(ScalarAttributeType.S));
+                }
                 ProvisionedThroughput provisionedThroughput = new ProvisionedThroughput()
-                        .withReadCapacityUnits(THROUGHPUT)
-                        .withWriteCapacityUnits(THROUGHPUT);
+                        .withReadCapacityUnits(readCapacityUnits)
+                        .withWriteCapacityUnits(writeCapacityUnits);
                 CreateTableRequest createTableRequest = new CreateTableRequest()
                         .withTableName(tableName)
                         .withKeySchema(keySchemaElements)
@@ -84,17 +207,18 @@ final class DynamoDBUtils {
         return new DynamoDB(client).getTable(tableName);
     }
 
+    /**
+     * Wait for a created table to become active. A table that is active right away, like the tables of a local
+     * stand-in, is used without a pause.
+     */
     static void waitForTableToBecomeAvailable(AmazonDynamoDB client, String tableName) throws InterruptedException {
         for (int i = 0; i < MAX_ATTEMPTS; i++) {
-            Thread.sleep(PAUSE);
             TableDescription tableDescription = client.describeTable(tableName).getTable();
-            if (tableDescription == null) {
-                continue;
-            }
-            String tableStatus = tableDescription.getTableStatus();
-            if (tableStatus.equals(TableStatus.ACTIVE.toString())) {
+            if (tableDescription != null
+                    && tableDescription.getTableStatus().equals(TableStatus.ACTIVE.toString())) {
                 return;
             }
+            Thread.sleep(PAUSE);
         }
     }
 }
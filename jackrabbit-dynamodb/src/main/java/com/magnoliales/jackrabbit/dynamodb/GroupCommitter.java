@@ -0,0 +1,444 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the batch writes of concurrent commits into shared <code>BatchWriteItem</code> calls. Jackrabbit stores
+ * the change logs of a workspace one after the other, so the commits that are merged come from the persistence
+ * managers of different workspaces that join the same group, and the requests may span several tables.
+ *
+ * <p>
+ * A single thread per group collects the commits that arrive within the window after the first one, or until
+ * they add up to the size cap, and sends them in chunks of {@value ChangeLogBatch#MAX_BATCH_SIZE} items.
+ * Unprocessed items go back to the queue and are retried in a later round once their exponential back off has
+ * passed, so that a throttled commit doesn't hold up the others. Every item is attributed to the commit it came from:
+ * a commit returns once all of its items are written, and fails if one of its items stays unprocessed or a request
+ * with only its own items fails. A failed request with the items of several commits is sent again once per commit,
+ * so that an item that can't be written, e.g. one that is too large, only fails the commit it came from. Two commits
+ * that write the same item are never sent in the same request, the later one waits for the next round.
+ *
+ * <p>
+ * The items of a round are sent with the client of the commit they came from, one set of requests per client, so
+ * that every persistence manager keeps accounting for its own capacity and its rate limits apply to its own writes.
+ * A failure that isn't a client error fails the commits of the round it happened in, and the thread keeps committing
+ * the following rounds.
+ */
+final class GroupCommitter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitter.class);
+    private static final ConcurrentMap<String, GroupCommitter> GROUPS = new ConcurrentHashMap<>();
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long INITIAL_PAUSE = 50L;
+    private static final String KEY_SEPARATOR = "/";
+
+    private final String group;
+    private final long window;
+    private final int maxItems;
+    private final LinkedList<Commit> queue = new LinkedList<>();
+    private final Thread thread;
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private int members;
+    private int queuedItems;
+    private boolean closed;
+
+    private GroupCommitter(String group, long window, int maxItems) {
+        this.group = group;
+        this.window = window;
+        this.maxItems = maxItems;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitRounds();
+            }
+        }, "dynamodb-group-commit-" + group);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Join a group, which is created with the given window and size cap by its first member.
+     * @param group the name of the group
+     * @param window the time in milliseconds to wait for more commits after the first one of a round
+     * @param maxItems the number of items that ends a round before the window has passed
+     * @return the committer of the group
+     */
+    static GroupCommitter join(String group, long window, int maxItems) {
+        while (true) {
+            GroupCommitter committer = GROUPS.get(group);
+            if (committer == null) {
+                committer = new GroupCommitter(group, window, maxItems);
+                GroupCommitter existing = GROUPS.putIfAbsent(group, committer);
+                if (existing != null) {
+                    committer.stop();
+                    committer = existing;
+                }
+            }
+            synchronized (committer) {
+                if (!committer.closed) {
+                    committer.members++;
+                    return committer;
+                }
+            }
+        }
+    }
+
+    /**
+     * Leave the group, the last member stops its thread.
+     */
+    void leave() {
+        synchronized (this) {
+            if (--members > 0) {
+                return;
+            }
+        }
+        GROUPS.remove(group, this);
+        stop();
+    }
+
+    /**
+     * Write the items of a commit together with the items of other commits of the group.
+     * @param client the client to send the requests with
+     * @param tableName the name of the table of the requests
+     * @param requests the puts and deletes of the commit, with one request per item
+     * @throws ItemStateException if not all items could be written
+     */
+    void commit(AmazonDynamoDB client, String tableName, List<WriteRequest> requests) throws ItemStateException {
+        if (requests.isEmpty()) {
+            return;
+        }
+        Commit commit = new Commit(client, tableName, requests);
+        synchronized (this) {
+            if (closed) {
+                throw new ItemStateException("Group commit " + group + " is closed");
+            }
+            queue.add(commit);
+            queuedItems += requests.size();
+            notifyAll();
+        }
+        try {
+            commit.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ItemStateException("Interrupted while waiting for group commit " + group, e);
+        }
+        if (commit.error != null) {
+            LOGGER.error(commit.error);
+            throw new ItemStateException(commit.error);
+        }
+    }
+
+    /**
+     * @return the number of rounds sent so far
+     */
+    long getRounds() {
+        return rounds.get();
+    }
+
+    /**
+     * @return the number of commits written so far
+     */
+    long getCommits() {
+        return commits.get();
+    }
+
+    private void stop() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private void commitRounds() {
+        List<Commit> round;
+        while ((round = nextRound()) != null) {
+            if (round.isEmpty()) {
+                continue;
+            }
+            try {
+                send(round);
+            } catch (RuntimeException e) {
+                LOGGER.error("Cannot send round of group commit " + group, e);
+                for (Commit commit : round) {
+                    commit.fail("Cannot write items to table " + commit.tableName + ": " + e);
+                    commit.finish();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for a commit that can be sent, then for the window to pass or the size cap to be reached, and take the
+     * due commits that don't write an item of a commit queued before them. If the thread is interrupted, the queued
+     * commits fail and the group stops.
+     */
+    private synchronized List<Commit> nextRound() {
+        try {
+            for (long wait = getWait(); wait != 0; wait = getWait()) {
+                if (closed && queue.isEmpty()) {
+                    return null;
+                }
+                wait(Math.max(wait, 0));
+            }
+            long deadline = System.currentTimeMillis() + window;
+            for (long now = System.currentTimeMillis(); now < deadline && queuedItems < maxItems && !closed;
+                 now = System.currentTimeMillis()) {
+                wait(deadline - now);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+            for (Commit commit : queue) {
+                commit.fail("Interrupted while committing group " + group);
+                commit.finish();
+            }
+            queue.clear();
+            queuedItems = 0;
+            return null;
+        }
+        List<Commit> round = getRound(System.currentTimeMillis());
+        List<Commit> deferred = new ArrayList<>();
+        for (Commit commit : queue) {
+            if (round.contains(commit)) {
+                queuedItems -= commit.requests.size();
+            } else {
+                deferred.add(commit);
+            }
+        }
+        queue.clear();
+        queue.addAll(deferred);
+        return round;
+    }
+
+    /**
+     * @return the due commits that don't write an item of a commit queued before them
+     */
+    private List<Commit> getRound(long now) {
+        List<Commit> round = new ArrayList<>();
+        Set<String> queuedKeys = new HashSet<>();
+        for (Commit commit : queue) {
+            Set<String> keys = commit.getKeys();
+            if (commit.due <= now && Collections.disjoint(keys, queuedKeys)) {
+                round.add(commit);
+            }
+            queuedKeys.addAll(keys);
+        }
+        return round;
+    }
+
+    /**
+     * A due commit that has to wait for a retry of an earlier commit with the same items doesn't count, so that the
+     * thread waits for the retry instead of taking empty rounds.
+     * @return 0 if a queued commit can be sent, the time until the next one is due, or -1 if the queue is empty
+     */
+    private long getWait() {
+        long now = System.currentTimeMillis();
+        if (!getRound(now).isEmpty()) {
+            return 0;
+        }
+        long wait = -1;
+        for (Commit commit : queue) {
+            if (commit.due > now) {
+                wait = wait < 0 ? commit.due - now : Math.min(wait, commit.due - now);
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Send the items of a round. Commits with unprocessed items are queued again to be retried once their back off
+     * has passed, all others are finished.
+     */
+    private void send(List<Commit> round) {
+        Map<String, Commit> owners = new HashMap<>();
+        Map<AmazonDynamoDB, List<Entry>> clients = new IdentityHashMap<>();
+        int items = 0;
+        for (Commit commit : round) {
+            if (!clients.containsKey(commit.client)) {
+                clients.put(commit.client, new ArrayList<Entry>());
+            }
+            List<Entry> entries = clients.get(commit.client);
+            for (WriteRequest request : commit.requests) {
+                owners.put(getKey(commit.tableName, request), commit);
+                entries.add(new Entry(commit.tableName, request));
+            }
+            items += commit.requests.size();
+            commit.requests = new ArrayList<>();
+            commit.attempts++;
+        }
+        for (Map.Entry<AmazonDynamoDB, List<Entry>> client : clients.entrySet()) {
+            List<Entry> entries = client.getValue();
+            for (int i = 0; i < entries.size(); i += ChangeLogBatch.MAX_BATCH_SIZE) {
+                sendChunk(client.getKey(),
+                        entries.subList(i, Math.min(i + ChangeLogBatch.MAX_BATCH_SIZE, entries.size())), owners);
+            }
+        }
+        List<Commit> retries = new ArrayList<>();
+        for (Commit commit : round) {
+            if (commit.error == null && !commit.requests.isEmpty() && commit.attempts == MAX_ATTEMPTS) {
+                commit.fail("Cannot write " + commit.requests.size() + " unprocessed items to table "
+                        + commit.tableName + " after " + MAX_ATTEMPTS + " attempts");
+            }
+            if (commit.error == null && !commit.requests.isEmpty()) {
+                commit.due = System.currentTimeMillis() + (INITIAL_PAUSE << (commit.attempts - 1));
+                commit.keys = null;
+                retries.add(commit);
+            } else {
+                if (commit.error == null) {
+                    commits.incrementAndGet();
+                }
+                commit.finish();
+            }
+        }
+        rounds.incrementAndGet();
+        LOGGER.debug("Sent " + items + " items of " + round.size() + " commits in group " + group);
+        if (!retries.isEmpty()) {
+            synchronized (this) {
+                queue.addAll(0, retries);
+                for (Commit commit : retries) {
+                    queuedItems += commit.requests.size();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a chunk of items, unprocessed items are handed back to their commits. If the request fails, the items of
+     * every commit of the chunk are sent again on their own, and only the commits whose own request fails fail.
+     */
+    private void sendChunk(AmazonDynamoDB client, List<Entry> chunk, Map<String, Commit> owners) {
+        Map<String, List<WriteRequest>> requestItems = new HashMap<>();
+        for (Entry entry : chunk) {
+            if (!requestItems.containsKey(entry.tableName)) {
+                requestItems.put(entry.tableName, new ArrayList<WriteRequest>());
+            }
+            requestItems.get(entry.tableName).add(entry.request);
+        }
+        Map<String, List<WriteRequest>> unprocessedItems;
+        try {
+            unprocessedItems = client.batchWriteItem(new BatchWriteItemRequest().withRequestItems(requestItems))
+                    .getUnprocessedItems();
+        } catch (AmazonClientException e) {
+            Map<Commit, List<Entry>> commitEntries = new IdentityHashMap<>();
+            for (Entry entry : chunk) {
+                Commit owner = owners.get(getKey(entry.tableName, entry.request));
+                if (!commitEntries.containsKey(owner)) {
+                    commitEntries.put(owner, new ArrayList<Entry>());
+                }
+                commitEntries.get(owner).add(entry);
+            }
+            if (commitEntries.size() > 1) {
+                LOGGER.debug("Sending the items of " + commitEntries.size() + " commits of a failed request of group "
+                        + group + " one commit at a time");
+                for (List<Entry> entries : commitEntries.values()) {
+                    sendChunk(client, entries, owners);
+                }
+                return;
+            }
+            for (Map.Entry<String, List<WriteRequest>> failed : requestItems.entrySet()) {
+                for (WriteRequest request : failed.getValue()) {
+                    owners.get(getKey(failed.getKey(), request)).fail("Cannot write items to table "
+                            + failed.getKey() + ": " + e.getMessage());
+                }
+            }
+            return;
+        }
+        if (unprocessedItems != null) {
+            for (Map.Entry<String, List<WriteRequest>> unprocessed : unprocessedItems.entrySet()) {
+                for (WriteRequest request : unprocessed.getValue()) {
+                    owners.get(getKey(unprocessed.getKey(), request)).requests.add(request);
+                }
+            }
+        }
+    }
+
+    private static String getKey(String tableName, WriteRequest request) {
+        Map<String, AttributeValue> key = request.getPutRequest() != null ? request.getPutRequest().getItem()
+                : request.getDeleteRequest().getKey();
+        AttributeValue workspace = key.get(DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE);
+        return tableName + KEY_SEPARATOR + (workspace == null ? "" : workspace.getS() + KEY_SEPARATOR)
+                + key.get(DynamoDBPersistenceManager.ID_ATTRIBUTE).getS();
+    }
+
+    /**
+     * The items of a commit and the outcome the caller waits for.
+     */
+    private static final class Commit {
+
+        private final AmazonDynamoDB client;
+        private final String tableName;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private List<WriteRequest> requests;
+        private Set<String> keys;
+        private int attempts;
+        private long due;
+        private volatile String error;
+
+        private Commit(AmazonDynamoDB client, String tableName, List<WriteRequest> requests) {
+            this.client = client;
+            this.tableName = tableName;
+            this.requests = requests;
+        }
+
+        private Set<String> getKeys() {
+            if (keys == null) {
+                keys = new HashSet<>();
+                for (WriteRequest request : requests) {
+                    keys.add(getKey(tableName, request));
+                }
+            }
+            return keys;
+        }
+
+        /**
+         * Record a failed item, the first error wins.
+         */
+        private void fail(String failure) {
+            if (error == null) {
+                error = failure;
+            }
+        }
+
+        /**
+         * Release the caller once none of the items of the commit is in flight any more.
+         */
+        private void finish() {
+            done.countDown();
+        }
+    }
+
+    /**
+     * An item of a round.
+     */
+    private static final class Entry {
+
+        private final String tableName;
+        private final WriteRequest request;
+
+        private Entry(String tableName, WriteRequest request) {
+            this.tableName = tableName;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sketch of the heaviest keys of a stream in bounded space, with the Space-Saving algorithm.
+ *
+ * <p>
+ * At most <code>capacity</code> keys are counted. A key that isn't counted yet replaces the lightest counted key
+ * and takes over its weight, so the weight of a key is overestimated by at most the weight of the key it
+ * replaced, and every key heavier than the total weight divided by the capacity is counted. With a capacity of
+ * several times the number of keys reported the top keys are accurate in practice.
+ *
+ * <p>
+ * Without summing the weight of a key is the largest value added for it instead of the sum, and a key only
+ * replaces the lightest key if it's heavier, which keeps the exact top keys.
+ */
+class HeavyHitters {
+
+    private final int capacity;
+    private final boolean summing;
+    private final Map<String, Counter> counters = new HashMap<>();
+
+    /**
+     * @param capacity the number of counted keys
+     * @param summing true to sum the values added for a key, false to keep the largest
+     */
+    HeavyHitters(int capacity, boolean summing) {
+        this.capacity = capacity;
+        this.summing = summing;
+    }
+
+    /**
+     * @param key the key
+     * @param value the value to add for the key
+     */
+    synchronized void add(String key, double value) {
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.weight = summing ? counter.weight + value : Math.max(counter.weight, value);
+            return;
+        }
+        if (counters.size() < capacity) {
+            counters.put(key, new Counter(value, 0));
+            return;
+        }
+        Map.Entry<String, Counter> lightest = null;
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            if (lightest == null || entry.getValue().weight < lightest.getValue().weight) {
+                lightest = entry;
+            }
+        }
+        double min = lightest.getValue().weight;
+        if (!summing && value <= min) {
+            return;
+        }
+        counters.remove(lightest.getKey());
+        counters.put(key, summing ? new Counter(min + value, min) : new Counter(value, 0));
+    }
+
+    /**
+     * @param count the number of keys
+     * @return the heaviest keys with their weights, heaviest first
+     */
+    synchronized Map<String, Double> top(int count) {
+        List<Map.Entry<String, Counter>> entries = new ArrayList<>(counters.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Counter>>() {
+            @Override
+            public int compare(Map.Entry<String, Counter> a, Map.Entry<String, Counter> b) {
+                return Double.compare(b.getValue().weight, a.getValue().weight);
+            }
+        });
+        Map<String, Double> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> entry : entries.subList(0, Math.min(count, entries.size()))) {
+            top.put(entry.getKey(), entry.getValue().weight);
+        }
+        return top;
+    }
+
+    /**
+     * @param key the key
+     * @return the maximum overestimation of the weight of the key, 0 if it's exact or the key isn't counted
+     */
+    synchronized double getError(String key) {
+        Counter counter = counters.get(key);
+        return counter == null ? 0 : counter.error;
+    }
+
+    synchronized void reset() {
+        counters.clear();
+    }
+
+    private static final class Counter {
+
+        private double weight;
+        private final double error;
+
+        private Counter(double weight, double error) {
+            this.weight = weight;
+            this.error = error;
+        }
+    }
+}
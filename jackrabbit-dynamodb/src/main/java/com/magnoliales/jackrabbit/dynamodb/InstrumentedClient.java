@@ -0,0 +1,100 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.util.AWSRequestMetrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Client decorator that records the latency of every request in {@link DynamoDBMetrics}, keyed by the name of the
+ * request, e.g. <code>dynamodb.getItem</code>, along with the number of requests in flight, failed and throttled
+ * requests and batch requests that left items unprocessed. Retries within the SDK are counted by a
+ * {@link #collector(DynamoDBMetrics) collector} set on every request, as the underlying client may be shared with
+ * other persistence managers, see {@link ClientRegistry}. The consumed capacity of requests to accounted tables is
+ * passed on to their {@link CapacityAccounting}.
+ */
+final class InstrumentedClient implements InvocationHandler {
+
+    private final AmazonDynamoDB client;
+    private final DynamoDBMetrics metrics;
+    private final RequestMetricCollector collector;
+
+    private InstrumentedClient(AmazonDynamoDB client, DynamoDBMetrics metrics) {
+        this.client = client;
+        this.metrics = metrics;
+        this.collector = collector(metrics);
+    }
+
+    /**
+     * @param client the client to decorate
+     * @param metrics the metrics to record the requests in
+     * @return the instrumented client
+     */
+    static AmazonDynamoDB wrap(AmazonDynamoDB client, DynamoDBMetrics metrics) {
+        return (AmazonDynamoDB) Proxy.newProxyInstance(AmazonDynamoDB.class.getClassLoader(),
+                new Class<?>[] {AmazonDynamoDB.class}, new InstrumentedClient(client, metrics));
+    }
+
+    /**
+     * @param metrics the metrics to record the retries in
+     * @return a request metric collector that counts the retries of the SDK
+     */
+    static RequestMetricCollector collector(final DynamoDBMetrics metrics) {
+        return new RequestMetricCollector() {
+            @Override
+            public void collectMetrics(Request<?> request, Response<?> response) {
+                Number attempts = request.getAWSRequestMetrics().getTimingInfo()
+                        .getCounter(AWSRequestMetrics.Field.RequestCount.name());
+                for (int attempt = 1; attempts != null && attempt < attempts.intValue(); attempt++) {
+                    metrics.increment(DynamoDBMetrics.RETRIES);
+                }
+            }
+        };
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (args == null || args.length != 1 || !(args[0] instanceof AmazonWebServiceRequest)) {
+            return call(method, args);
+        }
+        String name = DynamoDBMetrics.REQUEST_PREFIX + method.getName();
+        ((AmazonWebServiceRequest) args[0]).setRequestMetricCollector(collector);
+        long start = System.nanoTime();
+        metrics.requestStarted();
+        CapacityAccounting.prepare(args[0]);
+        try {
+            Object result = call(method, args);
+            if (RateLimitedClient.hasUnprocessedItems(result)) {
+                metrics.increment(DynamoDBMetrics.UNPROCESSED);
+            }
+            CapacityAccounting.record(args[0], result);
+            return result;
+        } catch (AmazonServiceException e) {
+            if (RateLimitedClient.THROTTLING_ERRORS.contains(e.getErrorCode())) {
+                metrics.increment(DynamoDBMetrics.THROTTLED);
+            } else {
+                metrics.increment(DynamoDBMetrics.ERRORS);
+            }
+            throw e;
+        } finally {
+            metrics.requestFinished();
+            metrics.recordSince(name, start);
+        }
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(client, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import java.util.Collection;
+
+/**
+ * Feed of bundle changes made by other persistence managers that share the same table, used to keep the
+ * {@link BundleNearCache} coherent across cluster nodes.
+ */
+interface InvalidationSource {
+
+    /**
+     * Start delivering invalidations.
+     * @param listener the listener that receives the invalidations
+     */
+    void start(Listener listener);
+
+    /**
+     * Called after bundles are written or deleted by this persistence manager.
+     * @param nodeIds the ids of the written nodes
+     */
+    void committed(Collection<NodeId> nodeIds);
+
+    /**
+     * Stop delivering invalidations and release all resources.
+     */
+    void close();
+
+    /**
+     * Receiver of invalidations.
+     */
+    interface Listener {
+
+        /**
+         * @param nodeId the id of the node that changed
+         */
+        void invalidate(NodeId nodeId);
+
+        /**
+         * Called if changes may have been missed, e.g. after the feed was interrupted.
+         */
+        void invalidateAll();
+    }
+}
@@ -0,0 +1,70 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import java.io.IOException;
+
+/**
+ * Codec that stores the bundle as a JSON document in the <code>data</code> map attribute by means of
+ * {@link NodePropBundleData} and reads it back with a {@link BundleDataReader}. This is the original storage format
+ * of the persistence manager.
+ */
+class JsonBundleCodec implements BundleCodec {
+
+    static final String DATA_ATTRIBUTE = "data";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JsonBundleCodec.class);
+
+    private final ObjectMapper mapper;
+    private final BundleDataReader reader;
+
+    JsonBundleCodec(PersistenceManager pm) {
+        mapper = createObjectMapper();
+        reader = new BundleDataReader(pm);
+    }
+
+    /**
+     * @return the object mapper for {@link NodePropBundleData}
+     */
+    static ObjectMapper createObjectMapper() {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_EMPTY);
+        return mapper;
+    }
+
+    @Override
+    public void write(NodePropBundle bundle, Item item) throws ItemStateException {
+        String data;
+        try {
+            data = mapper.writeValueAsString(new NodePropBundleData(bundle));
+        } catch (IOException | RepositoryException e) {
+            String message = "Cannot serialize bundle data " + bundle.getId().toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+        item.withJSON(DATA_ATTRIBUTE, data);
+    }
+
+    @Override
+    public boolean canRead(Item item) {
+        return item.isPresent(DATA_ATTRIBUTE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The bundle is read straight from the map of the item with a {@link BundleDataReader}.
+     */
+    @Override
+    public NodePropBundle read(NodeId nodeId, Item item) throws ItemStateException {
+        return reader.read(nodeId, item.getRawMap(DATA_ATTRIBUTE));
+    }
+}
@@ -0,0 +1,56 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Invalidation source that delivers the commits of all persistence managers in the same JVM that use the same
+ * table. Stands in for {@link StreamsInvalidationSource} when several repositories share a table inside one
+ * process, e.g. in tests.
+ */
+class LocalInvalidationSource implements InvalidationSource {
+
+    private static final ConcurrentMap<String, Set<LocalInvalidationSource>> SOURCES = new ConcurrentHashMap<>();
+
+    private final String tableName;
+    private volatile Listener listener;
+
+    LocalInvalidationSource(String tableName) {
+        this.tableName = tableName;
+    }
+
+    @Override
+    public void start(Listener startListener) {
+        this.listener = startListener;
+        SOURCES.putIfAbsent(tableName, new CopyOnWriteArraySet<LocalInvalidationSource>());
+        SOURCES.get(tableName).add(this);
+    }
+
+    @Override
+    public void committed(Collection<NodeId> nodeIds) {
+        Set<LocalInvalidationSource> sources = SOURCES.get(tableName);
+        if (sources == null) {
+            return;
+        }
+        for (LocalInvalidationSource source : sources) {
+            if (source != this) {
+                for (NodeId nodeId : nodeIds) {
+                    source.listener.invalidate(nodeId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        Set<LocalInvalidationSource> sources = SOURCES.get(tableName);
+        if (sources != null) {
+            sources.remove(this);
+        }
+    }
+}
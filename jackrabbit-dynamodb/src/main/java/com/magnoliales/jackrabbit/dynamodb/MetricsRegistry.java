@@ -0,0 +1,28 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+/**
+ * Receiver of the metrics of a {@link DynamoDBPersistenceManager}, e.g. an adapter to the metrics library of the
+ * application. Implementations need a public no-argument constructor and must be thread safe.
+ */
+public interface MetricsRegistry {
+
+    /**
+     * Record the duration of an operation.
+     * @param name the name of the operation
+     * @param nanos the duration in nanoseconds
+     */
+    void recordTime(String name, long nanos);
+
+    /**
+     * Record a size.
+     * @param name the name of the measured value
+     * @param bytes the size in bytes
+     */
+    void recordSize(String name, long bytes);
+
+    /**
+     * Increment a counter.
+     * @param name the name of the counter
+     */
+    void increment(String name);
+}
@@ -0,0 +1,217 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.AttributeUpdate;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps names and namespace URIs to small integers, so that bundles can refer to them by index instead of repeating
+ * the expanded names. The dictionary is kept in a side table of the bundle table and cached in memory, entries are
+ * never removed or changed.
+ *
+ * <p>
+ * The side table has three kinds of items: a counter, one item per index with the name or namespace URI, and one
+ * item per name or namespace URI with its index. A new entry takes the next index from the counter, writes the
+ * index item and then puts the entry item on the condition that it doesn't exist yet. If another cluster node
+ * registered the same entry in the meantime, its index wins and the allocated index is left unused. As the index
+ * item is always written first, every index found in a bundle can be resolved by every cluster node.
+ */
+class NameDictionary {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NameDictionary.class);
+    private static final String COUNTER_ID = "counter";
+    private static final String INDEX_PREFIX = "index:";
+    private static final String NAME_PREFIX = "name:";
+    private static final String NAMESPACE_PREFIX = "namespace:";
+    private static final String NEXT_ATTRIBUTE = "next";
+    private static final String INDEX_ATTRIBUTE = "index";
+    private static final String VALUE_ATTRIBUTE = "value";
+    private static final String NOT_REGISTERED =
+            "attribute_not_exists(" + DynamoDBPersistenceManager.ID_ATTRIBUTE + ")";
+
+    private final Table table;
+    private final NameFactory nameFactory = NameFactoryImpl.getInstance();
+    private final ConcurrentMap<Name, Integer> nameIndexes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Name> names = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> namespaceIndexes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> namespaces = new ConcurrentHashMap<>();
+
+    /**
+     * @param client the client of the side table
+     * @param tableName the name of the side table, which has the hash key <code>id</code>
+     */
+    NameDictionary(AmazonDynamoDB client, String tableName) {
+        this.table = new DynamoDB(client).getTable(tableName);
+    }
+
+    /**
+     * Read all entries of the side table into the cache.
+     * @throws AmazonClientException if the side table cannot be scanned
+     */
+    void load() {
+        for (Item item : table.scan()) {
+            String id = item.getString(DynamoDBPersistenceManager.ID_ATTRIBUTE);
+            if (id.startsWith(NAME_PREFIX)) {
+                Name name = nameFactory.create(id.substring(NAME_PREFIX.length()));
+                int index = item.getInt(INDEX_ATTRIBUTE);
+                nameIndexes.put(name, index);
+                names.put(index, name);
+            } else if (id.startsWith(NAMESPACE_PREFIX)) {
+                String namespace = id.substring(NAMESPACE_PREFIX.length());
+                int index = item.getInt(INDEX_ATTRIBUTE);
+                namespaceIndexes.put(namespace, index);
+                namespaces.put(index, namespace);
+            }
+        }
+        LOGGER.info("Loaded " + names.size() + " names and " + namespaces.size() + " namespaces from table "
+                + table.getTableName());
+    }
+
+    /**
+     * @param name the name
+     * @return the index of the name, registered if necessary
+     * @throws IOException if the name cannot be registered
+     */
+    int getIndex(Name name) throws IOException {
+        Integer index = nameIndexes.get(name);
+        if (index == null) {
+            index = register(NAME_PREFIX + name.toString());
+            nameIndexes.putIfAbsent(name, index);
+            names.putIfAbsent(index, name);
+        }
+        return index;
+    }
+
+    /**
+     * @param namespace the namespace URI
+     * @return the index of the namespace URI, registered if necessary
+     * @throws IOException if the namespace URI cannot be registered
+     */
+    int getNamespaceIndex(String namespace) throws IOException {
+        Integer index = namespaceIndexes.get(namespace);
+        if (index == null) {
+            index = register(NAMESPACE_PREFIX + namespace);
+            namespaceIndexes.putIfAbsent(namespace, index);
+            namespaces.putIfAbsent(index, namespace);
+        }
+        return index;
+    }
+
+    /**
+     * @param index the index of a name
+     * @return the name, the same instance for every call
+     * @throws IOException if the index is unknown
+     */
+    Name getName(int index) throws IOException {
+        Name name = names.get(index);
+        if (name == null) {
+            String entry = lookup(index);
+            if (!entry.startsWith(NAME_PREFIX)) {
+                throw new IOException("Index " + index + " doesn't refer to a name");
+            }
+            name = nameFactory.create(entry.substring(NAME_PREFIX.length()));
+            Name previous = names.putIfAbsent(index, name);
+            if (previous != null) {
+                name = previous;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @param index the index of a namespace URI
+     * @return the namespace URI
+     * @throws IOException if the index is unknown
+     */
+    String getNamespace(int index) throws IOException {
+        String namespace = namespaces.get(index);
+        if (namespace == null) {
+            String entry = lookup(index);
+            if (!entry.startsWith(NAMESPACE_PREFIX)) {
+                throw new IOException("Index " + index + " doesn't refer to a namespace");
+            }
+            namespace = entry.substring(NAMESPACE_PREFIX.length());
+            namespaces.putIfAbsent(index, namespace);
+        }
+        return namespace;
+    }
+
+    /**
+     * @return the number of cached names and namespace URIs
+     */
+    int size() {
+        return names.size() + namespaces.size();
+    }
+
+    private synchronized int register(String entry) throws IOException {
+        try {
+            Item existing = table.getItem(new GetItemSpec()
+                    .withPrimaryKey(DynamoDBPersistenceManager.ID_ATTRIBUTE, entry)
+                    .withConsistentRead(true));
+            if (existing != null) {
+                return existing.getInt(INDEX_ATTRIBUTE);
+            }
+            UpdateItemOutcome outcome = table.updateItem(new UpdateItemSpec()
+                    .withPrimaryKey(DynamoDBPersistenceManager.ID_ATTRIBUTE, COUNTER_ID)
+                    .withAttributeUpdate(new AttributeUpdate(NEXT_ATTRIBUTE).addNumeric(1))
+                    .withReturnValues(ReturnValue.UPDATED_NEW));
+            int index = outcome.getItem().getInt(NEXT_ATTRIBUTE);
+            table.putItem(new Item()
+                    .withPrimaryKey(DynamoDBPersistenceManager.ID_ATTRIBUTE, INDEX_PREFIX + index)
+                    .withString(VALUE_ATTRIBUTE, entry));
+            try {
+                table.putItem(new PutItemSpec()
+                        .withItem(new Item()
+                                .withPrimaryKey(DynamoDBPersistenceManager.ID_ATTRIBUTE, entry)
+                                .withInt(INDEX_ATTRIBUTE, index))
+                        .withConditionExpression(NOT_REGISTERED));
+                LOGGER.debug("Registered {} as {}", entry, index);
+                return index;
+            } catch (ConditionalCheckFailedException e) {
+                LOGGER.debug("{} was registered concurrently", entry);
+                return table.getItem(new GetItemSpec()
+                        .withPrimaryKey(DynamoDBPersistenceManager.ID_ATTRIBUTE, entry)
+                        .withConsistentRead(true)).getInt(INDEX_ATTRIBUTE);
+            }
+        } catch (AmazonClientException e) {
+            String message = "Cannot register " + entry + " in table " + table.getTableName();
+            LOGGER.error(message, e);
+            throw new IOException(message, e);
+        }
+    }
+
+    private String lookup(int index) throws IOException {
+        Item item;
+        try {
+            item = table.getItem(new GetItemSpec()
+                    .withPrimaryKey(DynamoDBPersistenceManager.ID_ATTRIBUTE, INDEX_PREFIX + index)
+                    .withConsistentRead(true));
+        } catch (AmazonClientException e) {
+            String message = "Cannot look up index " + index + " in table " + table.getTableName();
+            LOGGER.error(message, e);
+            throw new IOException(message, e);
+        }
+        if (item == null) {
+            throw new IOException("Unknown index " + index + " in table " + table.getTableName());
+        }
+        return item.getString(VALUE_ATTRIBUTE);
+    }
+}
@@ -16,6 +16,7 @@ import org.apache.jackrabbit.spi.NameFactory;
 import org.apache.jackrabbit.spi.Path;
 import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
 import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
+import org.apache.jackrabbit.util.ISO8601;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,17 +49,17 @@ import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.Propert
  *
  * Please note special handling of empty strings. As DynamoDB doesn't support empty strings,
  * <code>false</code> value is written instead. Binary values are stored directly in the storage with base64 encoding.
+ * Dates are written in ISO-8601 format, dates in the <code>FULL</code> pattern of {@link DateFormat} written by
+ * earlier versions are still read.
  */
 class NodePropBundleData {
 
-    private static final DateFormat DATE_FORMAT;
-    private static final DecimalFormat DECIMAL_FORMAT;
-
-    static {
-        DATE_FORMAT = DateFormat.getDateTimeInstance(DateFormat.FULL, DateFormat.FULL, Locale.US);
-        DECIMAL_FORMAT = (DecimalFormat) NumberFormat.getInstance(Locale.US);
-        DECIMAL_FORMAT.setParseBigDecimal(true);
-    }
+    private static final ThreadLocal<DateFormat> LEGACY_DATE_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return DateFormat.getDateTimeInstance(DateFormat.FULL, DateFormat.FULL, Locale.US);
+        }
+    };
 
     private String nodeType;
     private String parentId;
@@ -138,6 +139,32 @@ class NodePropBundleData {
         return nodePropBundle;
     }
 
+    /**
+     * @param calendar the date
+     * @return the date in ISO-8601 format
+     */
+    static String formatDate(Calendar calendar) {
+        return ISO8601.format(calendar);
+    }
+
+    /**
+     * @param value the date in ISO-8601 format or in the <code>FULL</code> pattern of earlier versions
+     * @return the date
+     * @throws ParseException if the value is neither
+     */
+    static Calendar parseDate(String value) throws ParseException {
+        if (!value.isEmpty() && !Character.isLetter(value.charAt(0))) {
+            Calendar calendar = ISO8601.parse(value);
+            if (calendar == null) {
+                throw new ParseException("Invalid ISO-8601 date " + value, 0);
+            }
+            return calendar;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(LEGACY_DATE_FORMAT.get().parse(value));
+        return calendar;
+    }
+
     @JsonProperty
     public String getNodeType() {
         return nodeType;
@@ -212,7 +239,7 @@ class NodePropBundleData {
                         break;
                     case PropertyType.DATE:
                         Calendar calendar = internalValue.getDate();
-                        values.add(DATE_FORMAT.format(calendar.getTime()));
+                        values.add(formatDate(calendar));
                         break;
                     case PropertyType.DECIMAL:
                         values.add(internalValue.getDecimal().toPlainString());
@@ -281,13 +308,10 @@ class NodePropBundleData {
                         internalValues.add(InternalValue.create((Boolean) value));
                         break;
                     case PropertyType.DATE:
-                        Calendar calendar = Calendar.getInstance();
-                        calendar.setTime(DATE_FORMAT.parse((String) value));
-                        internalValues.add(InternalValue.create(calendar));
+                        internalValues.add(InternalValue.create(parseDate((String) value)));
                         break;
                     case PropertyType.DECIMAL:
-                        BigDecimal decimal = (BigDecimal) DECIMAL_FORMAT.parse((String) value, new ParsePosition(0));
-                        internalValues.add(InternalValue.create(decimal));
+                        internalValues.add(InternalValue.create(new BigDecimal((String) value)));
                         break;
                     case PropertyType.DOUBLE:
                         internalValues.add(InternalValue.create(Double.valueOf((String) value)));
@@ -0,0 +1,239 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a table with several parallel segments, see the <code>Segment</code> and <code>TotalSegments</code>
+ * parameters of the DynamoDB <code>Scan</code> operation.
+ *
+ * <p>
+ * Every segment is scanned by its own thread, which hands the items over to the consumer through a bounded queue.
+ * Segments block once the queue is full, so memory usage doesn't depend on the size of the table. The order of the
+ * items is undefined.
+ *
+ * <p>
+ * In a table shared by several workspaces only the items of the workspace are read, each segment querying a range
+ * of ids of its item collection, see {@link TableKeys}.
+ */
+class ParallelScanner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelScanner.class);
+    private static final long OFFER_TIMEOUT = 100L;
+
+    private final Table table;
+    private final TableKeys keys;
+    private final int segments;
+    private final int bufferSize;
+
+    /**
+     * @param table the table to scan
+     * @param keys the keys of the table
+     * @param segments the number of segments scanned in parallel
+     * @param bufferSize the maximum number of items buffered for the consumer
+     */
+    ParallelScanner(Table table, TableKeys keys, int segments, int bufferSize) {
+        this.table = table;
+        this.keys = keys;
+        this.segments = keys.getSegments(segments);
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Start a scan of the whole table.
+     * @param projectionExpression the attributes to fetch, or null for all attributes
+     * @return the iterator over the items
+     */
+    ScanIterator<Item> scan(String projectionExpression) {
+        return scan(projectionExpression, null);
+    }
+
+    /**
+     * Start a scan of the whole table.
+     * @param projectionExpression the attributes to fetch, or null for all attributes
+     * @param nameMap the names of the placeholders in the projection expression, or null
+     * @return the iterator over the items
+     */
+    ScanIterator<Item> scan(String projectionExpression, Map<String, String> nameMap) {
+        SegmentIterator iterator = new SegmentIterator();
+        for (int segment = 0; segment < segments; segment++) {
+            if (keys.isShared()) {
+                iterator.start(getQuerySpec(segment, projectionExpression, nameMap));
+            } else {
+                iterator.start(getScanSpec(segment, projectionExpression, nameMap));
+            }
+        }
+        return iterator;
+    }
+
+    private ScanSpec getScanSpec(int segment, String projectionExpression, Map<String, String> nameMap) {
+        ScanSpec scanSpec = new ScanSpec()
+                .withSegment(segment)
+                .withTotalSegments(segments);
+        if (projectionExpression != null) {
+            scanSpec.withProjectionExpression(projectionExpression);
+        }
+        if (nameMap != null) {
+            scanSpec.withNameMap(nameMap);
+        }
+        return scanSpec;
+    }
+
+    private QuerySpec getQuerySpec(int segment, String projectionExpression, Map<String, String> nameMap) {
+        QuerySpec querySpec = keys.getQuerySpec(segment, segments);
+        if (projectionExpression != null) {
+            querySpec.withProjectionExpression(keys.getProjection(projectionExpression));
+        }
+        if (nameMap != null) {
+            Map<String, String> names = new HashMap<>(querySpec.getNameMap());
+            names.putAll(nameMap);
+            querySpec.withNameMap(names);
+        }
+        return querySpec;
+    }
+
+    /**
+     * Marker that a segment is done, optionally with the failure that ended it.
+     */
+    private static final class SegmentEnd {
+        private final AmazonClientException failure;
+
+        private SegmentEnd(AmazonClientException failure) {
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Consumer side of the scan.
+     */
+    private final class SegmentIterator implements ScanIterator<Item> {
+
+        private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(bufferSize);
+        private final ExecutorService executor;
+        private volatile boolean closed;
+        private int finishedSegments;
+        private Item next;
+
+        private SegmentIterator() {
+            final String threadName = "dynamodb-scan-" + table.getTableName() + "-";
+            executor = Executors.newFixedThreadPool(segments, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, threadName + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /**
+         * @param spec the {@link ScanSpec} or {@link QuerySpec} of the segment
+         */
+        private void start(final Object spec) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    AmazonClientException failure = null;
+                    try {
+                        Iterable<Item> items = spec instanceof QuerySpec ? table.query((QuerySpec) spec)
+                                : table.scan((ScanSpec) spec);
+                        for (Item item : items) {
+                            if (!offer(item)) {
+                                return;
+                            }
+                        }
+                    } catch (AmazonClientException e) {
+                        failure = e;
+                    }
+                    offer(new SegmentEnd(failure));
+                }
+            });
+        }
+
+        private boolean offer(Object element) {
+            try {
+                while (!closed) {
+                    if (queue.offer(element, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && finishedSegments < segments) {
+                Object element;
+                try {
+                    element = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new IllegalStateException("Interrupted while scanning table " + table.getTableName(), e);
+                }
+                if (element instanceof SegmentEnd) {
+                    finishedSegments++;
+                    AmazonClientException failure = ((SegmentEnd) element).failure;
+                    if (failure != null) {
+                        LOGGER.error("Cannot scan table " + table.getTableName(), failure);
+                        close();
+                        throw failure;
+                    }
+                } else {
+                    next = (Item) element;
+                }
+            }
+            if (next == null) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public Item next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Item item = next;
+            next = null;
+            return item;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                finishedSegments = segments;
+                executor.shutdownNow();
+                queue.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Client decorator that passes all requests to a table through {@link TokenBucket}s, one for reads and one for
+ * writes, and optionally one for scans.
+ *
+ * <p>
+ * Every request asks for its consumed capacity, which settles the estimate that was taken from the bucket before
+ * the request was sent. Writes are estimated from the size of their items, so that a burst of large items waits
+ * for capacity up front. The size of an item isn't known before it's read, reads are estimated from the average
+ * size of the items this client read so far. Throttled requests and unprocessed batch items lower the rate of the
+ * bucket, throttled requests are retried once the rate allows it. The decorated client should use the
+ * {@link #RETRY_POLICY}, which leaves throttled requests to the limiter instead of retrying them with the back off
+ * of the SDK, so that throttling lowers the rate right away. Requests that don't consume capacity are passed through.
+ *
+ * <p>
+ * Scans are low priority reads, so that reindexing, consistency checks and exports don't starve interactive
+ * reads. With a scan bucket they also take its tokens, which caps scans at its rate and lowers it separately when
+ * scans are throttled. Queries only read a workspace of a shared table as a whole and count as scans. Other
+ * requests are low priority as well while a thread runs background work like the consistency check, see
+ * {@link #setLowPriority(boolean)}.
+ */
+final class RateLimitedClient implements InvocationHandler {
+
+    static final Set<String> THROTTLING_ERRORS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "ProvisionedThroughputExceededException", "ThrottlingException", "RequestLimitExceeded")));
+
+    /**
+     * The retry policy for DynamoDB without the retries of throttled requests.
+     */
+    static final RetryPolicy RETRY_POLICY = new RetryPolicy(new ThrottlingExcludedCondition(),
+            PredefinedRetryPolicies.DYNAMODB_DEFAULT_BACKOFF_STRATEGY,
+            PredefinedRetryPolicies.DYNAMODB_DEFAULT_MAX_ERROR_RETRY, true);
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RateLimitedClient.class);
+    private static final int MAX_ATTEMPTS = 10;
+    private static final double READ_SIZE_WEIGHT = 0.1;
+    private static final ThreadLocal<Boolean> LOW_PRIORITY = new ThreadLocal<>();
+
+    private final AmazonDynamoDB client;
+    private final TokenBucket reads;
+    private final TokenBucket writes;
+    private final TokenBucket scans;
+    // racy updates only blur the average
+    private volatile double readSize;
+
+    private RateLimitedClient(AmazonDynamoDB client, TokenBucket reads, TokenBucket writes, TokenBucket scans) {
+        this.client = client;
+        this.reads = reads;
+        this.writes = writes;
+        this.scans = scans;
+    }
+
+    /**
+     * @param client the client to decorate
+     * @param reads the bucket of read capacity units
+     * @param writes the bucket of write capacity units
+     * @return the rate limited client
+     */
+    static AmazonDynamoDB wrap(AmazonDynamoDB client, TokenBucket reads, TokenBucket writes) {
+        return wrap(client, reads, writes, null);
+    }
+
+    /**
+     * @param client the client to decorate
+     * @param reads the bucket of read capacity units
+     * @param writes the bucket of write capacity units
+     * @param scans the bucket of read capacity units of scans, or null if scans only take from the read bucket
+     * @return the rate limited client
+     */
+    static AmazonDynamoDB wrap(AmazonDynamoDB client, TokenBucket reads, TokenBucket writes, TokenBucket scans) {
+        return (AmazonDynamoDB) Proxy.newProxyInstance(AmazonDynamoDB.class.getClassLoader(),
+                new Class<?>[] {AmazonDynamoDB.class}, new RateLimitedClient(client, reads, writes, scans));
+    }
+
+    /**
+     * Mark the requests of the current thread as low priority, e.g. the bundle reads of a consistency check that go
+     * through the client of the persistence manager.
+     * @param lowPriority true until the background work is done, then false
+     */
+    static void setLowPriority(boolean lowPriority) {
+        if (lowPriority) {
+            LOW_PRIORITY.set(Boolean.TRUE);
+        } else {
+            LOW_PRIORITY.remove();
+        }
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Object request = args != null && args.length == 1 ? args[0] : null;
+        TokenBucket bucket = getBucket(request);
+        if (bucket == null) {
+            return call(method, args);
+        }
+        boolean scan = request instanceof ScanRequest || request instanceof QueryRequest;
+        TokenBucket scanBucket = scan ? scans : null;
+        request = requestConsumedCapacity(request);
+        double estimate = estimate(request);
+        for (int attempt = 1;; attempt++) {
+            try {
+                if (scanBucket != null) {
+                    scanBucket.acquire(estimate, false);
+                }
+                bucket.acquire(estimate, scan || LOW_PRIORITY.get() != null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException("Interrupted while waiting for capacity", e);
+            }
+            try {
+                Object result = call(method, args);
+                recordReadSize(result);
+                double consumed = getConsumedCapacity(result);
+                if (consumed > 0) {
+                    bucket.adjust(consumed - estimate);
+                    if (scanBucket != null) {
+                        scanBucket.adjust(consumed - estimate);
+                    }
+                }
+                if (hasUnprocessedItems(result)) {
+                    bucket.onThrottle();
+                }
+                return result;
+            } catch (AmazonServiceException e) {
+                if (!THROTTLING_ERRORS.contains(e.getErrorCode()) || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                bucket.onThrottle();
+                if (scanBucket != null) {
+                    scanBucket.onThrottle();
+                }
+                LOGGER.debug("Request throttled, retrying at {}", bucket);
+            }
+        }
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(client, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private TokenBucket getBucket(Object request) {
+        if (request instanceof GetItemRequest || request instanceof BatchGetItemRequest
+                || request instanceof QueryRequest || request instanceof ScanRequest) {
+            return reads;
+        }
+        if (request instanceof PutItemRequest || request instanceof UpdateItemRequest
+                || request instanceof DeleteItemRequest || request instanceof BatchWriteItemRequest
+                || request instanceof TransactWriteItemsRequest) {
+            return writes;
+        }
+        return null;
+    }
+
+    static Object requestConsumedCapacity(Object request) {
+        String total = ReturnConsumedCapacity.TOTAL.toString();
+        if (request instanceof GetItemRequest) {
+            ((GetItemRequest) request).setReturnConsumedCapacity(total);
+        } else if (request instanceof BatchGetItemRequest) {
+            ((BatchGetItemRequest) request).setReturnConsumedCapacity(total);
+        } else if (request instanceof QueryRequest) {
+            ((QueryRequest) request).setReturnConsumedCapacity(total);
+        } else if (request instanceof ScanRequest) {
+            ((ScanRequest) request).setReturnConsumedCapacity(total);
+        } else if (request instanceof PutItemRequest) {
+            ((PutItemRequest) request).setReturnConsumedCapacity(total);
+        } else if (request instanceof UpdateItemRequest) {
+            ((UpdateItemRequest) request).setReturnConsumedCapacity(total);
+        } else if (request instanceof DeleteItemRequest) {
+            ((DeleteItemRequest) request).setReturnConsumedCapacity(total);
+        } else if (request instanceof BatchWriteItemRequest) {
+            ((BatchWriteItemRequest) request).setReturnConsumedCapacity(total);
+        } else if (request instanceof TransactWriteItemsRequest) {
+            ((TransactWriteItemsRequest) request).setReturnConsumedCapacity(total);
+        }
+        return request;
+    }
+
+    /**
+     * Estimate the capacity units of a request: the units of the items written, twice for a transaction, the units
+     * of an item of the average size per key read and one per page of a query or scan.
+     */
+    private double estimate(Object request) {
+        if (request instanceof GetItemRequest) {
+            return CapacityAccounting.getEstimate(readSize, false);
+        }
+        if (request instanceof BatchGetItemRequest) {
+            int keys = 0;
+            for (KeysAndAttributes keysAndAttributes : ((BatchGetItemRequest) request).getRequestItems().values()) {
+                keys += keysAndAttributes.getKeys().size();
+            }
+            return keys * CapacityAccounting.getEstimate(readSize, false);
+        }
+        if (request instanceof PutItemRequest) {
+            return estimateWrite(((PutItemRequest) request).getItem());
+        }
+        if (request instanceof UpdateItemRequest) {
+            UpdateItemRequest update = (UpdateItemRequest) request;
+            return estimateWrite(update.getKey(), update.getExpressionAttributeValues());
+        }
+        if (request instanceof BatchWriteItemRequest) {
+            double units = 0;
+            for (List<WriteRequest> requests : ((BatchWriteItemRequest) request).getRequestItems().values()) {
+                for (WriteRequest writeRequest : requests) {
+                    units += writeRequest.getPutRequest() != null
+                            ? estimateWrite(writeRequest.getPutRequest().getItem()) : 1;
+                }
+            }
+            return units;
+        }
+        if (request instanceof TransactWriteItemsRequest) {
+            double units = 0;
+            for (TransactWriteItem transactItem : ((TransactWriteItemsRequest) request).getTransactItems()) {
+                if (transactItem.getPut() != null) {
+                    units += estimateWrite(transactItem.getPut().getItem());
+                } else if (transactItem.getUpdate() != null) {
+                    units += estimateWrite(transactItem.getUpdate().getKey(),
+                            transactItem.getUpdate().getExpressionAttributeValues());
+                } else {
+                    units++;
+                }
+            }
+            return 2 * units;
+        }
+        return 1;
+    }
+
+    /**
+     * @param attributes the item, or the key and the values of an update, which may be null
+     * @return the write capacity units of the attributes
+     */
+    @SafeVarargs
+    private static double estimateWrite(Map<String, AttributeValue>... attributes) {
+        long size = 0;
+        for (Map<String, AttributeValue> item : attributes) {
+            if (item != null) {
+                size += CapacityAccounting.getSize(item);
+            }
+        }
+        return CapacityAccounting.getEstimate(size, true);
+    }
+
+    private void recordReadSize(Object result) {
+        if (result instanceof GetItemResult && ((GetItemResult) result).getItem() != null) {
+            recordReadSize(((GetItemResult) result).getItem());
+        } else if (result instanceof BatchGetItemResult && ((BatchGetItemResult) result).getResponses() != null) {
+            for (List<Map<String, AttributeValue>> items : ((BatchGetItemResult) result).getResponses().values()) {
+                for (Map<String, AttributeValue> item : items) {
+                    recordReadSize(item);
+                }
+            }
+        }
+    }
+
+    private void recordReadSize(Map<String, AttributeValue> item) {
+        readSize += (CapacityAccounting.getSize(item) - readSize) * READ_SIZE_WEIGHT;
+    }
+
+    private static double getConsumedCapacity(Object result) {
+        if (result instanceof GetItemResult) {
+            return sum(((GetItemResult) result).getConsumedCapacity());
+        } else if (result instanceof BatchGetItemResult) {
+            return sum(((BatchGetItemResult) result).getConsumedCapacity());
+        } else if (result instanceof QueryResult) {
+            return sum(((QueryResult) result).getConsumedCapacity());
+        } else if (result instanceof ScanResult) {
+            return sum(((ScanResult) result).getConsumedCapacity());
+        } else if (result instanceof PutItemResult) {
+            return sum(((PutItemResult) result).getConsumedCapacity());
+        } else if (result instanceof UpdateItemResult) {
+            return sum(((UpdateItemResult) result).getConsumedCapacity());
+        } else if (result instanceof DeleteItemResult) {
+            return sum(((DeleteItemResult) result).getConsumedCapacity());
+        } else if (result instanceof BatchWriteItemResult) {
+            return sum(((BatchWriteItemResult) result).getConsumedCapacity());
+        } else if (result instanceof TransactWriteItemsResult) {
+            return sum(((TransactWriteItemsResult) result).getConsumedCapacity());
+        }
+        return 0;
+    }
+
+    static boolean hasUnprocessedItems(Object result) {
+        if (result instanceof BatchWriteItemResult) {
+            Map<String, List<WriteRequest>> unprocessed = ((BatchWriteItemResult) result).getUnprocessedItems();
+            return unprocessed != null && !unprocessed.isEmpty();
+        }
+        if (result instanceof BatchGetItemResult) {
+            Map<String, KeysAndAttributes> unprocessed = ((BatchGetItemResult) result).getUnprocessedKeys();
+            return unprocessed != null && !unprocessed.isEmpty();
+        }
+        return false;
+    }
+
+    private static double sum(ConsumedCapacity consumedCapacity) {
+        return consumedCapacity == null || consumedCapacity.getCapacityUnits() == null
+                ? 0 : consumedCapacity.getCapacityUnits();
+    }
+
+    private static double sum(List<ConsumedCapacity> consumedCapacities) {
+        double units = 0;
+        if (consumedCapacities != null) {
+            for (ConsumedCapacity consumedCapacity : consumedCapacities) {
+                units += sum(consumedCapacity);
+            }
+        }
+        return units;
+    }
+
+    /**
+     * The retry condition for DynamoDB, except for throttling errors.
+     */
+    private static final class ThrottlingExcludedCondition implements RetryPolicy.RetryCondition {
+
+        @Override
+        public boolean shouldRetry(AmazonWebServiceRequest request, AmazonClientException exception,
+                                   int retriesAttempted) {
+            if (exception instanceof AmazonServiceException
+                    && THROTTLING_ERRORS.contains(((AmazonServiceException) exception).getErrorCode())) {
+                return false;
+            }
+            return PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, exception, retriesAttempted);
+        }
+    }
+}
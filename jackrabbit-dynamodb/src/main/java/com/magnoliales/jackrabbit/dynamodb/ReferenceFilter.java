@@ -0,0 +1,147 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the ids of referenced nodes, which tells that a node is definitely not referenced without
+ * reading its references.
+ *
+ * <p>
+ * The filter is sized for an expected number of referenced nodes at a false positive rate of about one percent,
+ * with {@value #HASHES} bit positions per id derived from the two halves of the id by double hashing. Ids are only
+ * ever added, a node whose references are removed stays in the filter until it's built again. The filter only
+ * answers once it's {@link #isReady() ready}, i.e. once all referenced nodes of the table are added, ids added
+ * before that are kept.
+ */
+class ReferenceFilter {
+
+    private static final int HASHES = 7;
+    private static final int BITS_PER_ID = 10;
+    private static final int LONG_BITS = 64;
+    private static final int SHIFT = 33;
+    private static final long MIX1 = 0xff51afd7ed558ccdL;
+    private static final long MIX2 = 0xc4ceb9fe1a85ec53L;
+    private static final int MAGIC = 0x52464c54;
+
+    private final AtomicLongArray bits;
+    private final long size;
+    private volatile boolean ready;
+
+    /**
+     * @param expectedTargets the expected number of referenced nodes
+     */
+    ReferenceFilter(long expectedTargets) {
+        this((int) Math.max(1, (expectedTargets * BITS_PER_ID + LONG_BITS - 1) / LONG_BITS));
+    }
+
+    private ReferenceFilter(int words) {
+        this.bits = new AtomicLongArray(words);
+        this.size = (long) words * LONG_BITS;
+    }
+
+    /**
+     * Read a filter saved by {@link #save(File)}, which is ready right away.
+     * @param file the file of the filter
+     * @param expectedTargets the expected number of referenced nodes
+     * @return the filter, or null if the file is missing or was saved for another size
+     * @throws IOException if the file cannot be read
+     */
+    static ReferenceFilter load(File file, long expectedTargets) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            ReferenceFilter filter = new ReferenceFilter(expectedTargets);
+            if (in.readInt() != MAGIC || in.readInt() != filter.bits.length()) {
+                return null;
+            }
+            for (int i = 0; i < filter.bits.length(); i++) {
+                filter.bits.set(i, in.readLong());
+            }
+            filter.ready = true;
+            return filter;
+        }
+    }
+
+    /**
+     * Write the filter to a file.
+     * @param file the file of the filter
+     * @throws IOException if the file cannot be written
+     */
+    void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(bits.length());
+            for (int i = 0; i < bits.length(); i++) {
+                out.writeLong(bits.get(i));
+            }
+        }
+    }
+
+    /**
+     * Add a node that may be referenced.
+     * @param nodeId the id of the node
+     */
+    void add(NodeId nodeId) {
+        long hash1 = mix(nodeId.getMostSignificantBits());
+        long hash2 = mix(nodeId.getLeastSignificantBits()) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % size;
+            int word = (int) (bit / LONG_BITS);
+            long mask = 1L << (bit % LONG_BITS);
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+    }
+
+    /**
+     * @param nodeId the id of the node
+     * @return false if the node is definitely not referenced, true if it may be referenced or the filter isn't ready
+     */
+    boolean mightBeReferenced(NodeId nodeId) {
+        if (!ready) {
+            return true;
+        }
+        long hash1 = mix(nodeId.getMostSignificantBits());
+        long hash2 = mix(nodeId.getLeastSignificantBits()) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % size;
+            if ((bits.get((int) (bit / LONG_BITS)) & (1L << (bit % LONG_BITS))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Mark the filter as complete, from now on it answers.
+     */
+    void setReady() {
+        ready = true;
+    }
+
+    /**
+     * @return true if the filter contains all referenced nodes
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    private static long mix(long value) {
+        long hash = (value ^ (value >>> SHIFT)) * MIX1;
+        hash = (hash ^ (hash >>> SHIFT)) * MIX2;
+        return hash ^ (hash >>> SHIFT);
+    }
+}
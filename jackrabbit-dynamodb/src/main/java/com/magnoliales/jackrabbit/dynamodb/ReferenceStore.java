@@ -0,0 +1,501 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NodeReferences;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps the references to a node in items of their own, so that a new reference to a heavily referenced node
+ * doesn't rewrite all of its references and the bundle item doesn't grow with them.
+ *
+ * <p>
+ * The references to a node are spread over {@value #BUCKETS} buckets by the hash of the referring property id, each
+ * kept in a bucket item with a string set of property ids that is changed with <code>ADD</code> and
+ * <code>DELETE</code> deltas. A bucket item that would grow beyond {@value #MAX_BUCKET_SIZE} bytes overflows into
+ * another item of the same bucket, numbered {@value #BUCKETS} higher, so the number of references to a node isn't
+ * limited by the item size. A head item keeps the bucket items that were ever used, so that {@link #load(NodeId)}
+ * only fetches those, a page of {@value #MAX_BATCH_SIZE} items per <code>BatchGetItem</code>.
+ *
+ * <p>
+ * The head item also counts the references, changed with an <code>ADD</code> delta in the same batch as the bucket
+ * deltas, so that {@link #exists(NodeId)}, which is asked on every removal of a node, only reads the head item.
+ * Concurrent updates of the same reference could let the count drift, so every update reads the buckets and
+ * corrects the count by the difference to the references it found. Head items of earlier versions have no count,
+ * their buckets are read until the next update adds it.
+ *
+ * <p>
+ * Deltas commute, so concurrent updates of cluster nodes with references in different buckets, or only adding or
+ * only removing references of a bucket, are merged instead of lost. A bucket with both additions and removals is
+ * rewritten on condition that it still holds the references that were read, so that a concurrent change of the
+ * same bucket fails the commit as stale instead of being overwritten.
+ *
+ * <p>
+ * Only the changed buckets are written, but {@link #getUpdates(NodeId, Collection)} reads the head and all buckets
+ * in use to compute the changes, so the read cost of an update still grows with the number of references.
+ *
+ * <p>
+ * The head item stays in place once all references are gone. Without a head item the references are still read
+ * from the <code>references</code> attribute of the bundle item, where earlier versions kept them.
+ * As a write of the bundle drops that attribute, {@link #migrate(ScanIterator)} moves all of them into reference
+ * items once, before the first write.
+ */
+class ReferenceStore {
+
+    static final int BUCKETS = 64;
+    static final int MAX_BATCH_SIZE = 100;
+    static final long MAX_BUCKET_SIZE = 307200L;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReferenceStore.class);
+    private static final String BUCKET_SEPARATOR = "/";
+    private static final String BUCKETS_ATTRIBUTE = "buckets";
+    private static final String COUNT_ATTRIBUTE = "count";
+    private static final int MAX_ATTEMPTS = 8;
+    private static final String MIGRATED_ID = "migrated";
+    private static final String NOT_EXISTS = "attribute_not_exists(" + DynamoDBPersistenceManager.ID_ATTRIBUTE + ")";
+
+    private final AmazonDynamoDB client;
+    private final TableKeys tableKeys;
+    private final String tableName;
+    private final String bundleTableName;
+    private final long maxBucketSize;
+
+    ReferenceStore(AmazonDynamoDB client, TableKeys tableKeys, String tableName, String bundleTableName) {
+        this(client, tableKeys, tableName, bundleTableName, MAX_BUCKET_SIZE);
+    }
+
+    /**
+     * @param client the client of both tables
+     * @param tableKeys the keys of both tables
+     * @param tableName the name of the side table, which has the same key as the bundle table
+     * @param bundleTableName the name of the bundle table with the references of earlier versions
+     * @param maxBucketSize the size in bytes of the references of a bucket item before it overflows
+     */
+    ReferenceStore(AmazonDynamoDB client, TableKeys tableKeys, String tableName, String bundleTableName,
+                   long maxBucketSize) {
+        this.client = client;
+        this.tableKeys = tableKeys;
+        this.tableName = tableName;
+        this.bundleTableName = bundleTableName;
+        this.maxBucketSize = maxBucketSize;
+    }
+
+    /**
+     * @param targetId the id of the referenced node
+     * @return true if there is at least one reference to the node
+     * @throws ItemStateException if the references cannot be read
+     */
+    boolean exists(NodeId targetId) throws ItemStateException {
+        try {
+            Map<String, AttributeValue> head = getHead(targetId);
+            if (head == null) {
+                Set<String> legacy = getLegacyReferences(targetId);
+                return legacy != null && !legacy.isEmpty();
+            }
+            if (head.get(COUNT_ATTRIBUTE) != null) {
+                return Long.parseLong(head.get(COUNT_ATTRIBUTE).getN()) > 0;
+            }
+            return !getReferences(getBuckets(targetId, head)).isEmpty();
+        } catch (AmazonClientException e) {
+            String message = "Cannot load references to " + targetId.toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+    }
+
+    /**
+     * @param targetId the id of the referenced node
+     * @return the references to the node, or null if none were ever stored
+     * @throws ItemStateException if the references cannot be read
+     */
+    NodeReferences load(NodeId targetId) throws ItemStateException {
+        try {
+            Map<String, AttributeValue> head = getHead(targetId);
+            Set<String> references = head == null ? getLegacyReferences(targetId)
+                    : getReferences(getBuckets(targetId, head));
+            if (references == null) {
+                return null;
+            }
+            NodeReferences nodeReferences = new NodeReferences(targetId);
+            for (String reference : references) {
+                nodeReferences.addReference(PropertyId.valueOf(reference));
+            }
+            return nodeReferences;
+        } catch (AmazonClientException e) {
+            String message = "Cannot load references to " + targetId.toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+    }
+
+    /**
+     * Compute the updates that turn the stored references into the given ones. The updates are independent of each
+     * other and can be sent in any order.
+     * @param targetId the id of the referenced node
+     * @param references the new references, empty if all references are removed
+     * @return the updates, empty if nothing changed
+     * @throws ItemStateException if the stored references cannot be read
+     */
+    List<UpdateItemRequest> getUpdates(NodeId targetId, Collection<PropertyId> references)
+            throws ItemStateException {
+        Map<String, AttributeValue> head;
+        Map<Integer, Set<String>> buckets;
+        try {
+            head = getHead(targetId);
+            buckets = head == null ? new TreeMap<Integer, Set<String>>() : getBuckets(targetId, head);
+        } catch (AmazonClientException e) {
+            String message = "Cannot load references to " + targetId.toString();
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        }
+        Map<String, Integer> stored = new HashMap<>();
+        Map<Integer, Long> sizes = new HashMap<>();
+        for (Map.Entry<Integer, Set<String>> entry : buckets.entrySet()) {
+            for (String reference : entry.getValue()) {
+                stored.put(reference, entry.getKey());
+            }
+            sizes.put(entry.getKey(), getSize(entry.getValue()));
+        }
+        Set<String> current = new HashSet<>();
+        for (PropertyId propertyId : references) {
+            current.add(propertyId.toString());
+        }
+        Map<Integer, Set<String>> added = new TreeMap<>();
+        Map<Integer, Set<String>> removed = new TreeMap<>();
+        for (Map.Entry<String, Integer> entry : stored.entrySet()) {
+            if (!current.contains(entry.getKey())) {
+                addToBucket(removed, entry.getValue(), entry.getKey());
+                sizes.put(entry.getValue(), sizes.get(entry.getValue()) - getSize(entry.getKey()));
+            }
+        }
+        for (String reference : current) {
+            if (!stored.containsKey(reference)) {
+                int bucket = getBucket(reference, sizes);
+                addToBucket(added, bucket, reference);
+                sizes.put(bucket, sizes.get(bucket) + getSize(reference));
+            }
+        }
+        List<UpdateItemRequest> updates = new ArrayList<>();
+        for (Map.Entry<Integer, Set<String>> entry : added.entrySet()) {
+            if (!removed.containsKey(entry.getKey())) {
+                updates.add(createBucketUpdate(targetId, entry.getKey(), "ADD #r :r", entry.getValue()));
+            }
+        }
+        for (Map.Entry<Integer, Set<String>> entry : removed.entrySet()) {
+            int bucket = entry.getKey();
+            if (!added.containsKey(bucket)) {
+                updates.add(createBucketUpdate(targetId, bucket, "DELETE #r :r", entry.getValue()));
+                continue;
+            }
+            // a bucket with additions and removals is rewritten, as an update cannot add to and delete from
+            // the same set, and a transaction cannot update the same item twice
+            Set<String> rewritten = new HashSet<>(buckets.get(bucket));
+            rewritten.removeAll(entry.getValue());
+            rewritten.addAll(added.get(bucket));
+            updates.add(createBucketRewrite(targetId, bucket, buckets.get(bucket), rewritten));
+        }
+        Set<Integer> newBuckets = new TreeSet<>(added.keySet());
+        newBuckets.removeAll(getBucketNumbers(head));
+        AttributeValue count = head == null ? null : head.get(COUNT_ATTRIBUTE);
+        long delta = current.size() - (count == null ? 0 : Long.parseLong(count.getN()));
+        if (count == null || delta != 0 || !newBuckets.isEmpty()) {
+            updates.add(createHeadUpdate(targetId, newBuckets, delta));
+        }
+        return updates;
+    }
+
+    /**
+     * Move the references that earlier versions kept in the bundle items into reference items, unless this was
+     * done for the side table already. Nodes that have a head item are skipped, so that an interrupted migration
+     * can be repeated and cluster nodes can migrate concurrently.
+     * @param items the bundle items with their <code>id</code> and <code>references</code> attributes, closed
+     * once the migration is done
+     * @return the number of migrated nodes
+     * @throws ItemStateException if the references cannot be migrated
+     */
+    int migrate(ScanIterator<Item> items) throws ItemStateException {
+        int migrated = 0;
+        try {
+            if (client.getItem(new GetItemRequest()
+                    .withTableName(tableName)
+                    .withKey(getKey(MIGRATED_ID))
+                    .withConsistentRead(true)).getItem() != null) {
+                return migrated;
+            }
+            while (items.hasNext()) {
+                Item item = items.next();
+                Set<String> references = item.getStringSet(DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE);
+                NodeId targetId = NodeId.valueOf(item.getString(DynamoDBPersistenceManager.ID_ATTRIBUTE));
+                if (references == null || references.isEmpty() || getHead(targetId) != null) {
+                    continue;
+                }
+                Map<Integer, Set<String>> buckets = new TreeMap<>();
+                for (String reference : references) {
+                    addToBucket(buckets, getBucket(reference), reference);
+                }
+                for (Map.Entry<Integer, Set<String>> entry : buckets.entrySet()) {
+                    client.updateItem(createBucketUpdate(targetId, entry.getKey(), "ADD #r :r", entry.getValue()));
+                }
+                try {
+                    client.updateItem(createHeadUpdate(targetId, buckets.keySet(), references.size())
+                            .withConditionExpression(NOT_EXISTS));
+                    migrated++;
+                } catch (ConditionalCheckFailedException e) {
+                    LOGGER.debug("References to {} were migrated concurrently", targetId);
+                }
+            }
+            client.putItem(new PutItemRequest().withTableName(tableName).withItem(getKey(MIGRATED_ID)));
+        } catch (AmazonClientException e) {
+            String message = "Cannot migrate references from table " + bundleTableName + " to table " + tableName;
+            LOGGER.error(message, e);
+            throw new ItemStateException(message, e);
+        } finally {
+            items.close();
+        }
+        LOGGER.info("Migrated the references to " + migrated + " nodes from table " + bundleTableName
+                + " to table " + tableName);
+        return migrated;
+    }
+
+    /**
+     * Start a scan of the head items.
+     * @param segments the number of segments scanned in parallel
+     * @param bufferSize the maximum number of items buffered for the consumer
+     * @return the iterator over the items of the side table with their <code>id</code>, <code>buckets</code> and
+     * <code>count</code>
+     */
+    ScanIterator<Item> scanHeads(int segments, int bufferSize) {
+        Map<String, String> names = new HashMap<>();
+        names.put("#b", BUCKETS_ATTRIBUTE);
+        names.put("#c", COUNT_ATTRIBUTE);
+        return new ParallelScanner(new DynamoDB(client).getTable(tableName), tableKeys, segments, bufferSize)
+                .scan(DynamoDBPersistenceManager.ID_ATTRIBUTE + ", #b, #c", names);
+    }
+
+    /**
+     * @param item an item of {@link #scanHeads(int, int)}
+     * @return true if the item is the head item of a node that may be referenced, as it counts references or
+     * ever used a bucket without counting them
+     */
+    static boolean isReferenced(Item item) {
+        if (item.getString(DynamoDBPersistenceManager.ID_ATTRIBUTE).contains(BUCKET_SEPARATOR)) {
+            return false;
+        }
+        if (item.isPresent(COUNT_ATTRIBUTE)) {
+            return item.getLong(COUNT_ATTRIBUTE) > 0;
+        }
+        return item.isPresent(BUCKETS_ATTRIBUTE);
+    }
+
+    private Map<String, AttributeValue> getHead(NodeId targetId) {
+        return client.getItem(new GetItemRequest()
+                .withTableName(tableName)
+                .withKey(getKey(targetId.toString()))
+                .withConsistentRead(true)).getItem();
+    }
+
+    private Set<String> getLegacyReferences(NodeId targetId) {
+        Map<String, AttributeValue> item = client.getItem(new GetItemRequest()
+                .withTableName(bundleTableName)
+                .withKey(getKey(targetId.toString()))
+                .withAttributesToGet(DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE)).getItem();
+        if (item == null) {
+            return null;
+        }
+        AttributeValue references = item.get(DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE);
+        if (references == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<>(references.getSS());
+    }
+
+    /**
+     * @return the references of the bucket items of a node by bucket item number
+     */
+    private Map<Integer, Set<String>> getBuckets(NodeId targetId, Map<String, AttributeValue> head) {
+        Map<Integer, Set<String>> buckets = new TreeMap<>();
+        List<Map<String, AttributeValue>> keys = new ArrayList<>();
+        for (Integer bucket : getBucketNumbers(head)) {
+            keys.add(getKey(targetId.toString() + BUCKET_SEPARATOR + bucket));
+            buckets.put(bucket, new HashSet<String>());
+        }
+        for (int i = 0; i < keys.size(); i += MAX_BATCH_SIZE) {
+            Map<String, KeysAndAttributes> requestItems = new HashMap<>();
+            requestItems.put(tableName, new KeysAndAttributes()
+                    .withKeys(new ArrayList<>(keys.subList(i, Math.min(i + MAX_BATCH_SIZE, keys.size()))))
+                    .withConsistentRead(true));
+            for (int attempt = 1; requestItems != null && !requestItems.isEmpty(); attempt++) {
+                if (attempt > MAX_ATTEMPTS) {
+                    String message = "Cannot read all references to " + targetId.toString() + " after "
+                            + MAX_ATTEMPTS + " attempts";
+                    LOGGER.error(message);
+                    throw new AmazonClientException(message);
+                }
+                BatchGetItemResult result = client.batchGetItem(new BatchGetItemRequest()
+                        .withRequestItems(requestItems));
+                for (Map<String, AttributeValue> item : result.getResponses().get(tableName)) {
+                    AttributeValue references = item.get(DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE);
+                    if (references != null) {
+                        String id = item.get(DynamoDBPersistenceManager.ID_ATTRIBUTE).getS();
+                        int bucket = Integer.parseInt(id.substring(id.lastIndexOf(BUCKET_SEPARATOR) + 1));
+                        buckets.get(bucket).addAll(references.getSS());
+                    }
+                }
+                requestItems = result.getUnprocessedKeys();
+            }
+        }
+        return buckets;
+    }
+
+    private static Set<String> getReferences(Map<Integer, Set<String>> buckets) {
+        Set<String> references = new HashSet<>();
+        for (Set<String> bucket : buckets.values()) {
+            references.addAll(bucket);
+        }
+        return references;
+    }
+
+    private static Set<Integer> getBucketNumbers(Map<String, AttributeValue> head) {
+        Set<Integer> numbers = new TreeSet<>();
+        AttributeValue buckets = head == null ? null : head.get(BUCKETS_ATTRIBUTE);
+        if (buckets != null) {
+            for (String bucket : buckets.getNS()) {
+                numbers.add(Integer.valueOf(bucket));
+            }
+        }
+        return numbers;
+    }
+
+    private UpdateItemRequest createBucketUpdate(NodeId targetId, int bucket, String expression,
+                                                 Set<String> references) {
+        Map<String, String> names = new HashMap<>();
+        names.put("#r", DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":r", new AttributeValue().withSS(references));
+        return new UpdateItemRequest()
+                .withTableName(tableName)
+                .withKey(getKey(targetId.toString() + BUCKET_SEPARATOR + bucket))
+                .withUpdateExpression(expression)
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values);
+    }
+
+    /**
+     * Rewrite a bucket on condition that it still holds the references that were read.
+     */
+    private UpdateItemRequest createBucketRewrite(NodeId targetId, int bucket, Set<String> stored,
+                                                  Set<String> references) {
+        Map<String, String> names = new HashMap<>();
+        names.put("#r", DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":r", new AttributeValue().withSS(references));
+        String condition = "attribute_not_exists(#r)";
+        if (!stored.isEmpty()) {
+            values.put(":s", new AttributeValue().withSS(stored));
+            condition = "#r = :s";
+        }
+        return new UpdateItemRequest()
+                .withTableName(tableName)
+                .withKey(getKey(targetId.toString() + BUCKET_SEPARATOR + bucket))
+                .withUpdateExpression("SET #r = :r")
+                .withConditionExpression(condition)
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values);
+    }
+
+    /**
+     * Add to the reference count and the buckets of the head item, which creates the head item if it's missing.
+     */
+    private UpdateItemRequest createHeadUpdate(NodeId targetId, Set<Integer> buckets, long delta) {
+        Map<String, String> names = new HashMap<>();
+        names.put("#c", COUNT_ATTRIBUTE);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":c", new AttributeValue().withN(String.valueOf(delta)));
+        String expression = "ADD #c :c";
+        if (!buckets.isEmpty()) {
+            List<String> numbers = new ArrayList<>();
+            for (Integer bucket : buckets) {
+                numbers.add(bucket.toString());
+            }
+            names.put("#b", BUCKETS_ATTRIBUTE);
+            values.put(":b", new AttributeValue().withNS(numbers));
+            expression += ", #b :b";
+        }
+        return new UpdateItemRequest()
+                .withTableName(tableName)
+                .withKey(getKey(targetId.toString()))
+                .withUpdateExpression(expression)
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values);
+    }
+
+    private static int getBucket(String reference) {
+        return (reference.hashCode() & Integer.MAX_VALUE) % BUCKETS;
+    }
+
+    /**
+     * @return the first bucket item of the bucket of the reference with room for it, a new one if all are full
+     */
+    private int getBucket(String reference, Map<Integer, Long> sizes) {
+        int bucket = getBucket(reference);
+        long size = getSize(reference);
+        while (sizes.containsKey(bucket) && sizes.get(bucket) + size > maxBucketSize) {
+            bucket += BUCKETS;
+        }
+        if (!sizes.containsKey(bucket)) {
+            sizes.put(bucket, 0L);
+        }
+        return bucket;
+    }
+
+    private static void addToBucket(Map<Integer, Set<String>> buckets, int bucket, String reference) {
+        Set<String> references = buckets.get(bucket);
+        if (references == null) {
+            references = new HashSet<>();
+            buckets.put(bucket, references);
+        }
+        references.add(reference);
+    }
+
+    private static long getSize(String reference) {
+        return reference.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static long getSize(Set<String> references) {
+        long size = 0;
+        for (String reference : references) {
+            size += getSize(reference);
+        }
+        return size;
+    }
+
+    private Map<String, AttributeValue> getKey(String id) {
+        return tableKeys.getKey(id);
+    }
+}
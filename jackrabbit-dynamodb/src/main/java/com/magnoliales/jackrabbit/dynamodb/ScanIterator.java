@@ -0,0 +1,18 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator over the results of a table scan that holds only a bounded number of results in memory.
+ * The iterator needs to be closed if it's not consumed completely.
+ * @param <T> the type of the results
+ */
+public interface ScanIterator<T> extends Iterator<T>, Closeable {
+
+    /**
+     * Stop the scan and release its threads. Doesn't throw.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,105 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ItemStateException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent loads of the same bundle into a single request. The first caller loads the bundle in its
+ * own thread, callers that ask for the bundle while that load is in flight wait for it and get the same bundle
+ * instance, just like they would get it from the bundle cache.
+ *
+ * <p>
+ * A bundle that is written or deleted needs to be {@link #invalidate(NodeId) invalidated}, so that later callers
+ * don't join a load that may have read the previous state of the item.
+ */
+final class SingleFlightLoader {
+
+    private final Loader loader;
+    private final ConcurrentMap<NodeId, FutureTask<NodePropBundle>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * @param loader the loader of the bundles
+     */
+    SingleFlightLoader(Loader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Load a bundle, or wait for a load of the same bundle that is in flight already.
+     * @param nodeId the id of the node
+     * @return the bundle or null if it doesn't exist
+     * @throws ItemStateException if the bundle cannot be loaded
+     */
+    NodePropBundle load(final NodeId nodeId) throws ItemStateException {
+        FutureTask<NodePropBundle> task = new FutureTask<>(new Callable<NodePropBundle>() {
+            @Override
+            public NodePropBundle call() throws ItemStateException {
+                return loader.load(nodeId);
+            }
+        });
+        FutureTask<NodePropBundle> running = inFlight.putIfAbsent(nodeId, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(nodeId, task);
+            }
+            running = task;
+        } else {
+            coalesced.incrementAndGet();
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ItemStateException) {
+                throw (ItemStateException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ItemStateException("Cannot load bundle " + nodeId.toString(), (Exception) cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ItemStateException("Interrupted while waiting for bundle " + nodeId.toString(), e);
+        }
+    }
+
+    /**
+     * Detach a load in flight of a bundle that was written or deleted from later callers.
+     * @param nodeId the id of the node
+     */
+    void invalidate(NodeId nodeId) {
+        inFlight.remove(nodeId);
+    }
+
+    /**
+     * @return the number of loads that waited for a load in flight instead of sending their own request
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Loads a single bundle.
+     */
+    interface Loader {
+
+        /**
+         * @param nodeId the id of the node
+         * @return the bundle or null if it doesn't exist
+         * @throws ItemStateException if the bundle cannot be loaded
+         */
+        NodePropBundle load(NodeId nodeId) throws ItemStateException;
+    }
+}
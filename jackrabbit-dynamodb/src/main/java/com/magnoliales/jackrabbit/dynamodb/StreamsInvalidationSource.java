@@ -0,0 +1,192 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DescribeStreamRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.GetShardIteratorRequest;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.Shard;
+import com.amazonaws.services.dynamodbv2.model.ShardIteratorType;
+import com.amazonaws.services.dynamodbv2.model.StreamDescription;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Invalidation source that follows the DynamoDB stream of the table. The stream needs to be enabled on the table,
+ * the <code>KEYS_ONLY</code> view type is sufficient.
+ *
+ * <p>
+ * All shards are polled from a daemon thread. Shards that exist when the source is started are read from their
+ * latest position, shards created later from their beginning. If the stream cannot be read, e.g. because an
+ * iterator expired, changes may have been missed and the listener is asked to invalidate everything.
+ *
+ * <p>
+ * The stream of a table shared by several workspaces has the changes of all of them, those of other workspaces are
+ * skipped.
+ */
+class StreamsInvalidationSource implements InvalidationSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamsInvalidationSource.class);
+    private static final long DISCOVERY_INTERVAL = 60000L;
+    private static final int RECORDS_LIMIT = 1000;
+
+    private final AmazonDynamoDB client;
+    private final AmazonDynamoDBStreams streams;
+    private final TableKeys tableKeys;
+    private final String tableName;
+    private final long pollInterval;
+    private final Map<String, String> shardIterators = new HashMap<>();
+    private final Set<String> knownShards = new HashSet<>();
+
+    private volatile boolean running;
+    private Thread thread;
+    private String streamArn;
+    private long lastDiscovery;
+
+    /**
+     * @param client the client of the table
+     * @param streams the client of the stream
+     * @param tableKeys the keys of the table
+     * @param tableName the name of the table
+     * @param pollInterval the pause in milliseconds between two polls of the stream
+     */
+    StreamsInvalidationSource(AmazonDynamoDB client, AmazonDynamoDBStreams streams, TableKeys tableKeys,
+                              String tableName, long pollInterval) {
+        this.client = client;
+        this.streams = streams;
+        this.tableKeys = tableKeys;
+        this.tableName = tableName;
+        this.pollInterval = pollInterval;
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        streamArn = client.describeTable(tableName).getTable().getLatestStreamArn();
+        if (streamArn == null) {
+            String message = "Stream is not enabled on table " + tableName;
+            LOGGER.error(message);
+            throw new IllegalStateException(message);
+        }
+        discoverShards(true);
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                poll(listener);
+            }
+        }, "dynamodb-invalidations-" + tableName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void committed(Collection<NodeId> nodeIds) {
+        // own writes appear on the stream as well and are invalidated locally already
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        streams.shutdown();
+    }
+
+    private void poll(Listener listener) {
+        while (running) {
+            try {
+                boolean shardClosed = readShards(listener);
+                if (shardClosed || System.currentTimeMillis() - lastDiscovery > DISCOVERY_INTERVAL) {
+                    discoverShards(false);
+                }
+            } catch (AmazonClientException e) {
+                LOGGER.warn("Cannot read stream of table " + tableName + ", invalidating all cached bundles", e);
+                listener.invalidateAll();
+                shardIterators.clear();
+                knownShards.clear();
+                try {
+                    discoverShards(true);
+                } catch (AmazonClientException retry) {
+                    LOGGER.warn("Cannot describe stream of table " + tableName, retry);
+                }
+            }
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private boolean readShards(Listener listener) {
+        boolean shardClosed = false;
+        Iterator<Map.Entry<String, String>> iterator = shardIterators.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            GetRecordsResult result = streams.getRecords(new GetRecordsRequest()
+                    .withShardIterator(entry.getValue())
+                    .withLimit(RECORDS_LIMIT));
+            for (Record record : result.getRecords()) {
+                Map<String, AttributeValue> keys = record.getDynamodb().getKeys();
+                AttributeValue id = keys.get(DynamoDBPersistenceManager.ID_ATTRIBUTE);
+                if (id != null && tableKeys.contains(keys)) {
+                    try {
+                        listener.invalidate(NodeId.valueOf(id.getS()));
+                    } catch (IllegalArgumentException e) {
+                        LOGGER.debug("Ignoring change of item {} that is not a bundle", id.getS());
+                    }
+                }
+            }
+            if (result.getNextShardIterator() == null) {
+                iterator.remove();
+                shardClosed = true;
+            } else {
+                entry.setValue(result.getNextShardIterator());
+            }
+        }
+        return shardClosed;
+    }
+
+    private void discoverShards(boolean initial) {
+        String lastShardId = null;
+        do {
+            StreamDescription description = streams.describeStream(new DescribeStreamRequest()
+                    .withStreamArn(streamArn)
+                    .withExclusiveStartShardId(lastShardId)).getStreamDescription();
+            for (Shard shard : description.getShards()) {
+                String shardId = shard.getShardId();
+                if (knownShards.add(shardId)) {
+                    boolean closed = shard.getSequenceNumberRange().getEndingSequenceNumber() != null;
+                    if (!initial || !closed) {
+                        ShardIteratorType type = initial ? ShardIteratorType.LATEST : ShardIteratorType.TRIM_HORIZON;
+                        shardIterators.put(shardId, streams.getShardIterator(new GetShardIteratorRequest()
+                                .withStreamArn(streamArn)
+                                .withShardId(shardId)
+                                .withShardIteratorType(type)).getShardIterator());
+                    }
+                }
+            }
+            lastShardId = description.getLastEvaluatedShardId();
+        } while (lastShardId != null);
+        lastDiscovery = System.currentTimeMillis();
+    }
+}
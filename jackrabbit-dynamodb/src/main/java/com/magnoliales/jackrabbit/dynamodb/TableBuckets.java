@@ -0,0 +1,83 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide registry of the {@link TokenBucket}s of the tables, so that the persistence managers of workspaces
+ * that share a table also share its capacity instead of each taking the whole throughput of the table.
+ *
+ * <p>
+ * The buckets of a table are reference counted: the first {@link #acquire} creates them with the given rates,
+ * later ones get the same buckets regardless of their rates, the last {@link #release} drops them.
+ */
+final class TableBuckets {
+
+    private static final ConcurrentMap<String, TableBuckets> TABLES = new ConcurrentHashMap<>();
+
+    private final String tableName;
+    private final TokenBucket reads;
+    private final TokenBucket writes;
+    private final TokenBucket scans;
+    private int references;
+    private boolean closed;
+
+    private TableBuckets(String tableName, double readRate, double writeRate, double scanRate) {
+        this.tableName = tableName;
+        this.reads = new TokenBucket("reads of " + tableName, readRate);
+        this.writes = new TokenBucket("writes of " + tableName, writeRate);
+        this.scans = new TokenBucket("scans of " + tableName, scanRate);
+    }
+
+    /**
+     * Get the buckets of a table, creating them if there are none yet.
+     * @param tableName the name of the table
+     * @param readRate the maximum rate of reads in capacity units per second
+     * @param writeRate the maximum rate of writes in capacity units per second
+     * @param scanRate the maximum rate of scans in capacity units per second
+     * @return the buckets, to be released once they're not used any more
+     */
+    static TableBuckets acquire(String tableName, double readRate, double writeRate, double scanRate) {
+        while (true) {
+            TableBuckets buckets = TABLES.get(tableName);
+            if (buckets == null) {
+                buckets = new TableBuckets(tableName, readRate, writeRate, scanRate);
+                TableBuckets existing = TABLES.putIfAbsent(tableName, buckets);
+                if (existing != null) {
+                    buckets = existing;
+                }
+            }
+            synchronized (buckets) {
+                if (!buckets.closed) {
+                    buckets.references++;
+                    return buckets;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the buckets, the last release drops them.
+     */
+    void release() {
+        synchronized (this) {
+            if (--references > 0) {
+                return;
+            }
+            closed = true;
+        }
+        TABLES.remove(tableName, this);
+    }
+
+    TokenBucket getReads() {
+        return reads;
+    }
+
+    TokenBucket getWrites() {
+        return writes;
+    }
+
+    TokenBucket getScans() {
+        return scans;
+    }
+}
@@ -0,0 +1,230 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keys of the items of the bundle table and its side tables.
+ *
+ * <p>
+ * Unless a workspace is given, every workspace has tables of its own with the hash key <code>id</code>. Workspaces
+ * that share a table have items with the hash key <code>workspace</code>, the name of the workspace, and the range
+ * key <code>id</code>. The items of a workspace are then a single item collection, which is read with
+ * <code>Query</code> instead of <code>Scan</code>, and all workspaces draw on the capacity of the same table.
+ *
+ * <p>
+ * A workspace is read in parallel segments as a table without workspaces is, each segment querying a range of ids.
+ * The ranges split the ids by their first two hexadecimal digits, node ids being random, and other ids fall into
+ * the first or last segment.
+ */
+class TableKeys {
+
+    private static final int SEGMENT_PREFIXES = 256;
+    private static final String SEGMENT_PREFIX_FORMAT = "%02x";
+    private static final String WORKSPACE_NAME = "#w";
+    private static final String WORKSPACE_VALUE = ":w";
+
+    private final String workspace;
+
+    /**
+     * @param workspace the name of the workspace in a shared table, or null for a table of its own
+     */
+    TableKeys(String workspace) {
+        this.workspace = workspace == null || workspace.isEmpty() ? null : workspace;
+    }
+
+    /**
+     * @return true if the workspace shares its tables with other workspaces
+     */
+    boolean isShared() {
+        return workspace != null;
+    }
+
+    /**
+     * @return the name of the workspace in a shared table, or null for a table of its own
+     */
+    String getWorkspace() {
+        return workspace;
+    }
+
+    /**
+     * @param segments the configured number of segments
+     * @return the number of segments a workspace is read in, at most one per id prefix in a shared table
+     */
+    int getSegments(int segments) {
+        return workspace == null ? segments : Math.min(segments, SEGMENT_PREFIXES);
+    }
+
+    /**
+     * @param id the id of the item
+     * @return the primary key of the item
+     */
+    PrimaryKey getPrimaryKey(String id) {
+        return workspace == null ? new PrimaryKey(DynamoDBPersistenceManager.ID_ATTRIBUTE, id)
+                : new PrimaryKey(DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE, workspace,
+                        DynamoDBPersistenceManager.ID_ATTRIBUTE, id);
+    }
+
+    /**
+     * @param id the id of the item
+     * @return the key of the item for the low-level client
+     */
+    Map<String, AttributeValue> getKey(String id) {
+        if (workspace == null) {
+            return Collections.singletonMap(DynamoDBPersistenceManager.ID_ATTRIBUTE, new AttributeValue(id));
+        }
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put(DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE, new AttributeValue(workspace));
+        key.put(DynamoDBPersistenceManager.ID_ATTRIBUTE, new AttributeValue(id));
+        return key;
+    }
+
+    /**
+     * @param key the key of an item of a table of this workspace
+     * @return true if the item belongs to this workspace
+     */
+    boolean contains(Map<String, AttributeValue> key) {
+        if (workspace == null) {
+            return true;
+        }
+        AttributeValue value = key.get(DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE);
+        return value != null && workspace.equals(value.getS());
+    }
+
+    /**
+     * Get a table of this workspace, or create it if it's missing and creation is allowed.
+     * @param client the client
+     * @param tableName the name of the table
+     * @param createOnMissing true to create a missing table
+     * @return the table
+     */
+    Table getOrCreateTable(AmazonDynamoDB client, String tableName, boolean createOnMissing) {
+        return workspace == null
+                ? DynamoDBUtils.getOrCreateTable(client, tableName, DynamoDBPersistenceManager.ID_ATTRIBUTE,
+                        createOnMissing)
+                : DynamoDBUtils.getOrCreateTable(client, tableName, DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE,
+                        DynamoDBPersistenceManager.ID_ATTRIBUTE, createOnMissing);
+    }
+
+    /**
+     * Get a table of this workspace, or create it with the given capacity if it's missing and creation is allowed.
+     * @param client the client
+     * @param tableName the name of the table
+     * @param createOnMissing true to create a missing table
+     * @param readCapacityUnits the read capacity of a created table
+     * @param writeCapacityUnits the write capacity of a created table
+     * @return the table
+     */
+    Table getOrCreateTable(AmazonDynamoDB client, String tableName, boolean createOnMissing,
+                           long readCapacityUnits, long writeCapacityUnits) {
+        return DynamoDBUtils.getOrCreateTable(client, tableName,
+                workspace == null ? DynamoDBPersistenceManager.ID_ATTRIBUTE
+                        : DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE,
+                workspace == null ? null : DynamoDBPersistenceManager.ID_ATTRIBUTE,
+                createOnMissing, readCapacityUnits, writeCapacityUnits);
+    }
+
+    /**
+     * Query a segment of the items of a shared table that belong to this workspace.
+     * @param segment the segment, from 0
+     * @param segments the number of segments
+     * @return the query of the segment, to which a projection may be added
+     */
+    QuerySpec getQuerySpec(int segment, int segments) {
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, AttributeValue> entry : getValues(segment, segments).entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getS());
+        }
+        return new QuerySpec()
+                .withKeyConditionExpression(getKeyCondition(segment, segments))
+                .withNameMap(getNames(segments))
+                .withValueMap(values);
+    }
+
+    /**
+     * Query a segment of the items of a shared table that belong to this workspace.
+     * @param tableName the name of the table
+     * @param segment the segment, from 0
+     * @param segments the number of segments
+     * @return the query of the segment, to which a projection may be added
+     */
+    QueryRequest getQueryRequest(String tableName, int segment, int segments) {
+        return new QueryRequest()
+                .withTableName(tableName)
+                .withKeyConditionExpression(getKeyCondition(segment, segments))
+                .withExpressionAttributeNames(getNames(segments))
+                .withExpressionAttributeValues(getValues(segment, segments));
+    }
+
+    /**
+     * @param projectionExpression the attributes to fetch with a query of {@link #getQuerySpec(int, int)} or
+     * {@link #getQueryRequest(String, int, int)}
+     * @return the attributes to fetch along with the workspace
+     */
+    String getProjection(String projectionExpression) {
+        return WORKSPACE_NAME + ", " + projectionExpression;
+    }
+
+    /**
+     * @param request a query of {@link #getQueryRequest(String, int, int)} or {@link #getQuerySpec(int, int)}
+     * @return the name of the workspace the query reads, or null if it doesn't read a workspace
+     */
+    static String getWorkspace(QueryRequest request) {
+        Map<String, AttributeValue> values = request.getExpressionAttributeValues();
+        AttributeValue value = values == null ? null : values.get(WORKSPACE_VALUE);
+        return value == null ? null : value.getS();
+    }
+
+    private static Map<String, String> getNames(int segments) {
+        Map<String, String> names = new HashMap<>();
+        names.put(WORKSPACE_NAME, DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE);
+        if (segments > 1) {
+            names.put("#id", DynamoDBPersistenceManager.ID_ATTRIBUTE);
+        }
+        return names;
+    }
+
+    private static String getKeyCondition(int segment, int segments) {
+        String condition = WORKSPACE_NAME + " = " + WORKSPACE_VALUE;
+        boolean first = segment == 0;
+        boolean last = segment == segments - 1;
+        if (!first && !last) {
+            condition += " AND #id BETWEEN :lo AND :hi";
+        } else if (!first) {
+            condition += " AND #id >= :lo";
+        } else if (!last) {
+            condition += " AND #id <= :hi";
+        }
+        return condition;
+    }
+
+    private Map<String, AttributeValue> getValues(int segment, int segments) {
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(WORKSPACE_VALUE, new AttributeValue(workspace));
+        if (segment > 0) {
+            values.put(":lo", new AttributeValue(getPrefix(segment, segments)));
+        }
+        if (segment < segments - 1) {
+            // the largest id with a prefix before the one of the next segment, as BETWEEN includes its bounds
+            values.put(":hi", new AttributeValue(getPrefix(segment + 1, segments, -1) + Character.MAX_VALUE));
+        }
+        return values;
+    }
+
+    private static String getPrefix(int segment, int segments) {
+        return getPrefix(segment, segments, 0);
+    }
+
+    private static String getPrefix(int segment, int segments, int offset) {
+        return String.format(SEGMENT_PREFIX_FORMAT,
+                (int) ((long) segment * SEGMENT_PREFIXES / segments) + offset);
+    }
+}
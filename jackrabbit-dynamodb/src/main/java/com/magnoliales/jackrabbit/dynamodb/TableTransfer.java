@@ -0,0 +1,583 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.regions.Region;
+import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copies tables of the persistence manager and the data store item by item into local files and back, without
+ * decoding the bundles, e.g. to back up a workspace or to clone it into another environment. The side tables of a
+ * bundle table, i.e. the name dictionary, reference and child page tables, and the data store table are copied like
+ * any other table and need to be listed along with it.
+ *
+ * <p>
+ * The export scans a table with parallel segments, every segment into its own gzip compressed part file named
+ * after the table and the segment. A part is written to a temporary file and renamed once it's complete, so an
+ * interrupted export can be resumed with the same number of segments, it skips the parts that are complete. The
+ * parts are independent of each other, the import replays them in parallel with <code>BatchWriteItem</code> and
+ * records the number of items written every {@value #CHECKPOINT_INTERVAL} items in a checkpoint file next to the
+ * part, so that an interrupted import resumes where it stopped. Items are put as they were exported, replaying a
+ * part twice doesn't change the result.
+ *
+ * <p>
+ * With a workspace the transfer is limited to the items of the workspace in tables shared by several workspaces.
+ * The export queries the workspace segment by segment instead of scanning the whole table, the import writes the
+ * items into the given workspace, so that a workspace can be cloned under another name. Tables of their own, like
+ * the name dictionary and the data store table, are copied as a whole.
+ *
+ * <p>
+ * With a capacity the reads of the export or the writes of the import go through a {@link RateLimitedClient},
+ * otherwise the transfer runs at the throughput of the table and relies on the retries of the client.
+ *
+ * <p>
+ * The client is acquired from the {@link ClientRegistry} with the given endpoint and a connection pool of at least
+ * one connection per segment, unless its size is given.
+ *
+ * <p>
+ * Command line:<br>
+ * <code>TableTransfer export|import directory table[:target]... [region=...] [clientFactory=...] [segments=8]
+ * [capacity=0] [workspace=...] [endpoint=...] [maxConnections=50]</code>
+ */
+public final class TableTransfer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TableTransfer.class);
+    private static final int MAGIC = 0x4a524444;
+    private static final int VERSION = 1;
+    private static final String PART_SUFFIX = ".part";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final String ITEMS_PROPERTY = "items";
+    private static final String COMPLETE_PROPERTY = "complete";
+    private static final int CHECKPOINT_INTERVAL = 1000;
+    private static final int DEFAULT_SEGMENTS = 8;
+    private static final int DEFAULT_MAX_CONNECTIONS = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+    private static final int MIN_ARGUMENTS = 3;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long INITIAL_PAUSE = 50L;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte STRING = 's';
+    private static final byte NUMBER = 'n';
+    private static final byte BINARY = 'b';
+    private static final byte STRING_SET = 'S';
+    private static final byte NUMBER_SET = 'N';
+    private static final byte BINARY_SET = 'B';
+    private static final byte BOOLEAN = 'z';
+    private static final byte NULL = '0';
+    private static final byte LIST = 'l';
+    private static final byte MAP = 'm';
+
+    private final AmazonDynamoDB client;
+    private final int segments;
+    private final long capacityUnits;
+    private final TableKeys keys;
+
+    /**
+     * @param client the client of the tables
+     * @param segments the number of segments of an export and of parts imported in parallel
+     * @param capacityUnits the capacity units per second the export reads or the import writes, 0 for no limit
+     */
+    public TableTransfer(AmazonDynamoDB client, int segments, long capacityUnits) {
+        this(client, segments, capacityUnits, null);
+    }
+
+    /**
+     * @param client the client of the tables
+     * @param segments the number of segments of an export and of parts imported in parallel
+     * @param capacityUnits the capacity units per second the export reads or the import writes, 0 for no limit
+     * @param workspace the workspace the export reads from or the import writes into in shared tables, or null
+     * for whole tables
+     */
+    public TableTransfer(AmazonDynamoDB client, int segments, long capacityUnits, String workspace) {
+        this.client = client;
+        this.segments = segments;
+        this.capacityUnits = capacityUnits;
+        this.keys = new TableKeys(workspace);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        List<String> arguments = new ArrayList<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator > 0) {
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            } else {
+                arguments.add(arg);
+            }
+        }
+        String command = arguments.isEmpty() ? null : arguments.get(0);
+        if (arguments.size() < MIN_ARGUMENTS || !"export".equals(command) && !"import".equals(command)) {
+            throw new IllegalArgumentException("Expected export|import directory table[:target]... "
+                    + "[region=...] [clientFactory=...] [segments=" + DEFAULT_SEGMENTS + "] [capacity=0] "
+                    + "[workspace=...] [endpoint=...] [maxConnections=" + DEFAULT_MAX_CONNECTIONS + "]");
+        }
+        Region region = options.containsKey("region") ? RegionUtils.getRegion(options.get("region")) : null;
+        int segments = options.containsKey("segments") ? Integer.valueOf(options.get("segments")) : DEFAULT_SEGMENTS;
+        ClientConfiguration configuration = DynamoDBUtils.newConfiguration()
+                .withMaxConnections(options.containsKey("maxConnections")
+                        ? Integer.valueOf(options.get("maxConnections")) : Math.max(segments, DEFAULT_MAX_CONNECTIONS));
+        AmazonDynamoDB client = ClientRegistry.acquire(options.get("clientFactory"), region, options.get("endpoint"),
+                configuration);
+        long capacity = options.containsKey("capacity") ? Long.valueOf(options.get("capacity")) : 0L;
+        TableTransfer transfer = new TableTransfer(client, segments, capacity, options.get("workspace"));
+        File directory = new File(arguments.get(1));
+        try {
+            for (String table : arguments.subList(2, arguments.size())) {
+                int separator = table.indexOf(':');
+                String source = separator < 0 ? table : table.substring(0, separator);
+                String target = separator < 0 ? table : table.substring(separator + 1);
+                if ("export".equals(command)) {
+                    transfer.exportTable(source, directory);
+                } else {
+                    transfer.importTable(source, target, directory);
+                }
+            }
+        } finally {
+            ClientRegistry.release(client);
+        }
+    }
+
+    /**
+     * Export all items of a table, or of the workspace in a shared table, into part files, skipping the parts that
+     * a previous export completed.
+     * @param tableName the name of the table
+     * @param directory the directory of the part files, created if necessary
+     * @return the number of items exported, not counting the items of skipped parts
+     * @throws IOException if the table cannot be scanned or the parts cannot be written
+     */
+    public long exportTable(final String tableName, final File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        final AmazonDynamoDB reader = capacityUnits > 0 ? RateLimitedClient.wrap(client,
+                new TokenBucket("reads of " + tableName, capacityUnits), new TokenBucket("writes", 1)) : client;
+        final boolean shared = isShared(tableName);
+        final int tableSegments = shared ? keys.getSegments(segments) : segments;
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (int segment = 0; segment < tableSegments; segment++) {
+            final int current = segment;
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return exportSegment(reader, tableName, shared, current, tableSegments, new File(directory,
+                            tableName + "-" + current + PART_SUFFIX));
+                }
+            });
+        }
+        long items = runAll("export-" + tableName, tasks);
+        LOGGER.info("Exported " + items + " items of table " + tableName + " into " + directory);
+        return items;
+    }
+
+    /**
+     * Import all parts of an exported table, resuming from the checkpoints of a previous import. With a workspace
+     * the items of a shared table are written into that workspace.
+     * @param tableName the name of the exported table
+     * @param targetTableName the name of the table to import into, which needs to exist
+     * @param directory the directory of the part files
+     * @return the number of items imported, not counting the items of previous imports
+     * @throws IOException if the parts cannot be read or the items cannot be written
+     */
+    public long importTable(final String tableName, final String targetTableName, File directory)
+            throws IOException {
+        File[] parts = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(tableName + "-") && name.endsWith(PART_SUFFIX)
+                        && name.substring(tableName.length() + 1, name.length() - PART_SUFFIX.length())
+                        .matches("[0-9]+");
+            }
+        });
+        if (parts == null || parts.length == 0) {
+            throw new IOException("No parts of table " + tableName + " in " + directory);
+        }
+        Arrays.sort(parts);
+        final AmazonDynamoDB writer = capacityUnits > 0 ? RateLimitedClient.wrap(client,
+                new TokenBucket("reads", 1), new TokenBucket("writes of " + targetTableName, capacityUnits)) : client;
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (final File part : parts) {
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    return importPart(writer, targetTableName, part);
+                }
+            });
+        }
+        long items = runAll("import-" + targetTableName, tasks);
+        LOGGER.info("Imported " + items + " items of table " + tableName + " into table " + targetTableName);
+        return items;
+    }
+
+    private long runAll(String name, List<Callable<Long>> tasks) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(segments, tasks.size()));
+        try {
+            List<Future<Long>> futures = executor.invokeAll(tasks);
+            long items = 0;
+            IOException failure = null;
+            for (Future<Long> future : futures) {
+                try {
+                    items += future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                                : new IOException("Transfer " + name + " failed", e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return items;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during transfer " + name, e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true if the table is shared by workspaces and only the items of the workspace are transferred
+     */
+    private boolean isShared(String tableName) throws IOException {
+        if (!keys.isShared()) {
+            return false;
+        }
+        try {
+            for (KeySchemaElement element : client.describeTable(tableName).getTable().getKeySchema()) {
+                if (KeyType.HASH.toString().equals(element.getKeyType())) {
+                    return DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE.equals(element.getAttributeName());
+                }
+            }
+            return false;
+        } catch (AmazonClientException e) {
+            String message = "Cannot describe table " + tableName;
+            LOGGER.error(message, e);
+            throw new IOException(message, e);
+        }
+    }
+
+    private long exportSegment(AmazonDynamoDB reader, String tableName, boolean shared, int segment,
+                               int tableSegments, File part) throws IOException {
+        if (part.exists()) {
+            LOGGER.info("Skipping part " + part + " of a previous export");
+            return 0;
+        }
+        File temp = new File(part.getPath() + TEMP_SUFFIX);
+        long items = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(temp), BUFFER_SIZE), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(tableName);
+            Map<String, AttributeValue> startKey = null;
+            do {
+                List<Map<String, AttributeValue>> page;
+                if (shared) {
+                    QueryResult result = reader.query(keys.getQueryRequest(tableName, segment, tableSegments)
+                            .withExclusiveStartKey(startKey));
+                    page = result.getItems();
+                    startKey = result.getLastEvaluatedKey();
+                } else {
+                    ScanResult result = reader.scan(new ScanRequest()
+                            .withTableName(tableName)
+                            .withSegment(segment)
+                            .withTotalSegments(tableSegments)
+                            .withExclusiveStartKey(startKey));
+                    page = result.getItems();
+                    startKey = result.getLastEvaluatedKey();
+                }
+                for (Map<String, AttributeValue> item : page) {
+                    out.writeBoolean(true);
+                    writeMap(out, item);
+                    items++;
+                }
+            } while (startKey != null && !startKey.isEmpty());
+            out.writeBoolean(false);
+            out.writeLong(items);
+        } catch (AmazonClientException e) {
+            String message = "Cannot scan segment " + segment + " of table " + tableName;
+            LOGGER.error(message, e);
+            throw new IOException(message, e);
+        }
+        Files.move(temp.toPath(), part.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Exported " + items + " items into part " + part);
+        return items;
+    }
+
+    private long importPart(AmazonDynamoDB writer, String tableName, File part) throws IOException {
+        File checkpoint = new File(part.getPath() + CHECKPOINT_SUFFIX);
+        Properties state = readCheckpoint(checkpoint);
+        if (Boolean.valueOf(state.getProperty(COMPLETE_PROPERTY))) {
+            LOGGER.info("Skipping part " + part + " of a previous import");
+            return 0;
+        }
+        long done = Long.valueOf(state.getProperty(ITEMS_PROPERTY, "0"));
+        long items = 0;
+        long imported = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(part), BUFFER_SIZE), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(part + " is not a table export");
+            }
+            in.readUTF();
+            List<WriteRequest> batch = new ArrayList<>();
+            while (in.readBoolean()) {
+                Map<String, AttributeValue> item = readMap(in);
+                if (++items <= done) {
+                    continue;
+                }
+                if (keys.isShared() && item.containsKey(DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE)) {
+                    item.put(DynamoDBPersistenceManager.WORKSPACE_ATTRIBUTE, new AttributeValue(keys.getWorkspace()));
+                }
+                batch.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+                if (batch.size() == ChangeLogBatch.MAX_BATCH_SIZE) {
+                    imported += write(writer, tableName, batch);
+                    if (items / CHECKPOINT_INTERVAL != (items - batch.size()) / CHECKPOINT_INTERVAL) {
+                        writeCheckpoint(checkpoint, items, false);
+                    }
+                    batch.clear();
+                }
+            }
+            imported += write(writer, tableName, batch);
+            if (in.readLong() != items) {
+                throw new IOException(part + " is incomplete");
+            }
+        } catch (EOFException e) {
+            throw new IOException(part + " is truncated", e);
+        }
+        writeCheckpoint(checkpoint, items, true);
+        LOGGER.info("Imported " + imported + " items of part " + part);
+        return imported;
+    }
+
+    private int write(AmazonDynamoDB writer, String tableName, List<WriteRequest> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        Map<String, List<WriteRequest>> requestItems = new HashMap<>();
+        requestItems.put(tableName, new ArrayList<>(batch));
+        long pause = INITIAL_PAUSE;
+        try {
+            for (int attempt = 1; requestItems != null && !requestItems.isEmpty(); attempt++) {
+                if (attempt > MAX_ATTEMPTS) {
+                    throw new IOException("Cannot write unprocessed items to table " + tableName + " after "
+                            + MAX_ATTEMPTS + " attempts");
+                }
+                if (attempt > 1) {
+                    Thread.sleep(pause);
+                    pause *= 2;
+                }
+                requestItems = writer.batchWriteItem(new BatchWriteItemRequest().withRequestItems(requestItems))
+                        .getUnprocessedItems();
+            }
+        } catch (AmazonClientException e) {
+            String message = "Cannot write items to table " + tableName;
+            LOGGER.error(message, e);
+            throw new IOException(message, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing to table " + tableName, e);
+        }
+        return batch.size();
+    }
+
+    private static Properties readCheckpoint(File checkpoint) throws IOException {
+        Properties state = new Properties();
+        if (checkpoint.exists()) {
+            try (InputStream in = new FileInputStream(checkpoint)) {
+                state.load(in);
+            }
+        }
+        return state;
+    }
+
+    private static void writeCheckpoint(File checkpoint, long items, boolean complete) throws IOException {
+        Properties state = new Properties();
+        state.setProperty(ITEMS_PROPERTY, Long.toString(items));
+        state.setProperty(COMPLETE_PROPERTY, Boolean.toString(complete));
+        File temp = new File(checkpoint.getPath() + TEMP_SUFFIX);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            state.store(out, null);
+        }
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, AttributeValue> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, AttributeValue> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static Map<String, AttributeValue> readMap(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Map<String, AttributeValue> map = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(readString(in), readValue(in));
+        }
+        return map;
+    }
+
+    private static void writeValue(DataOutputStream out, AttributeValue value) throws IOException {
+        if (value.getS() != null) {
+            out.writeByte(STRING);
+            writeString(out, value.getS());
+        } else if (value.getN() != null) {
+            out.writeByte(NUMBER);
+            writeString(out, value.getN());
+        } else if (value.getB() != null) {
+            out.writeByte(BINARY);
+            writeBinary(out, value.getB());
+        } else if (value.getSS() != null) {
+            out.writeByte(STRING_SET);
+            writeStrings(out, value.getSS());
+        } else if (value.getNS() != null) {
+            out.writeByte(NUMBER_SET);
+            writeStrings(out, value.getNS());
+        } else if (value.getBS() != null) {
+            out.writeByte(BINARY_SET);
+            out.writeInt(value.getBS().size());
+            for (ByteBuffer binary : value.getBS()) {
+                writeBinary(out, binary);
+            }
+        } else if (value.getBOOL() != null) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(value.getBOOL());
+        } else if (value.getL() != null) {
+            out.writeByte(LIST);
+            out.writeInt(value.getL().size());
+            for (AttributeValue element : value.getL()) {
+                writeValue(out, element);
+            }
+        } else if (value.getM() != null) {
+            out.writeByte(MAP);
+            writeMap(out, value.getM());
+        } else {
+            out.writeByte(NULL);
+        }
+    }
+
+    private static AttributeValue readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case STRING:
+                return new AttributeValue().withS(readString(in));
+            case NUMBER:
+                return new AttributeValue().withN(readString(in));
+            case BINARY:
+                return new AttributeValue().withB(ByteBuffer.wrap(readBytes(in)));
+            case STRING_SET:
+                return new AttributeValue().withSS(readStrings(in));
+            case NUMBER_SET:
+                return new AttributeValue().withNS(readStrings(in));
+            case BINARY_SET:
+                int binaries = in.readInt();
+                List<ByteBuffer> set = new ArrayList<>(binaries);
+                for (int i = 0; i < binaries; i++) {
+                    set.add(ByteBuffer.wrap(readBytes(in)));
+                }
+                return new AttributeValue().withBS(set);
+            case BOOLEAN:
+                return new AttributeValue().withBOOL(in.readBoolean());
+            case LIST:
+                int elements = in.readInt();
+                List<AttributeValue> list = new ArrayList<>(elements);
+                for (int i = 0; i < elements; i++) {
+                    list.add(readValue(in));
+                }
+                return new AttributeValue().withL(list);
+            case MAP:
+                return new AttributeValue().withM(readMap(in));
+            case NULL:
+                return new AttributeValue().withNULL(true);
+            default:
+                throw new IOException("Unknown attribute type " + type);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            writeString(out, string);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBinary(DataOutputStream out, ByteBuffer binary) throws IOException {
+        byte[] bytes = new byte[binary.remaining()];
+        binary.duplicate().get(bytes);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
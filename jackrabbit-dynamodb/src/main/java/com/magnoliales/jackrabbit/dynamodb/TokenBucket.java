@@ -0,0 +1,124 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket of capacity units with an adaptive rate.
+ *
+ * <p>
+ * Tokens are added at the current rate up to a burst of one second worth of tokens. The rate follows an additive
+ * increase, multiplicative decrease scheme: it's halved when the table throttles, at most once per second, and
+ * grows by a small fraction of the maximum rate for every second without throttling, up to the maximum rate.
+ * Since the consumed capacity of a request is only known afterwards, the bucket may go into debt, which later
+ * acquisitions pay off.
+ *
+ * <p>
+ * Low priority acquisitions only take tokens while the bucket is at least half full, so that background work
+ * leaves room for interactive requests.
+ */
+class TokenBucket {
+
+    private static final double MIN_RATE = 1.0;
+    private static final double INCREASE_FRACTION = 0.05;
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double LOW_PRIORITY_RESERVE = 0.5;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_PAUSE = 1000L;
+
+    private final String name;
+    private final double maxRate;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastDecrease;
+    private long waitTime;
+    private long throttles;
+
+    /**
+     * @param name the name of the bucket for logging
+     * @param maxRate the maximum rate in capacity units per second
+     */
+    TokenBucket(String name, double maxRate) {
+        this.name = name;
+        this.maxRate = Math.max(maxRate, MIN_RATE);
+        this.rate = this.maxRate;
+        this.tokens = this.maxRate;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take tokens, waiting until enough are available.
+     * @param units the estimated capacity units of the request
+     * @param lowPriority if the request is background work
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    synchronized void acquire(double units, boolean lowPriority) throws InterruptedException {
+        long start = System.nanoTime();
+        while (true) {
+            refill();
+            double reserve = lowPriority ? rate * LOW_PRIORITY_RESERVE : 0;
+            double required = Math.min(units, rate - reserve) + reserve;
+            if (tokens >= required) {
+                tokens -= units;
+                break;
+            }
+            long pause = (long) Math.ceil((required - tokens) * TimeUnit.SECONDS.toMillis(1) / rate);
+            wait(Math.max(1, Math.min(pause, MAX_PAUSE)));
+        }
+        waitTime += System.nanoTime() - start;
+    }
+
+    /**
+     * Settle the difference between the consumed and the estimated capacity units of a request.
+     * @param units the consumed minus the estimated capacity units
+     */
+    synchronized void adjust(double units) {
+        tokens -= units;
+        notifyAll();
+    }
+
+    /**
+     * Lower the rate after the table throttled a request.
+     */
+    synchronized void onThrottle() {
+        throttles++;
+        long now = System.nanoTime();
+        if (now - lastDecrease >= NANOS_PER_SECOND) {
+            rate = Math.max(MIN_RATE, rate * DECREASE_FACTOR);
+            tokens = Math.min(tokens, 0);
+            lastDecrease = now;
+        }
+    }
+
+    synchronized double getRate() {
+        return rate;
+    }
+
+    double getMaxRate() {
+        return maxRate;
+    }
+
+    synchronized long getWaitTime() {
+        return waitTime;
+    }
+
+    synchronized long getThrottles() {
+        return throttles;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + " " + Math.round(rate) + "/" + Math.round(maxRate) + " units/s";
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        double seconds = (double) (now - lastRefill) / NANOS_PER_SECOND;
+        lastRefill = now;
+        if (now - lastDecrease >= NANOS_PER_SECOND) {
+            rate = Math.min(maxRate, rate + maxRate * INCREASE_FRACTION * seconds);
+        }
+        tokens = Math.min(rate, tokens + rate * seconds);
+    }
+}
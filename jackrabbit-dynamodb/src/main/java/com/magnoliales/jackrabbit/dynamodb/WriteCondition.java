@@ -0,0 +1,78 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Condition of an optimistic write on the mod count attribute of a bundle item.
+ *
+ * <p>
+ * The mod count attribute counts the writes of an item. A write is only applied if the attribute still has the value
+ * that was read with the bundle, i.e. if no other cluster node wrote the item in the meantime. Items written before
+ * the attribute was introduced are expected with mod count 0, which stands for a missing attribute.
+ */
+final class WriteCondition {
+
+    private final String expression;
+    private final Map<String, String> names;
+    private final Map<String, Object> values;
+
+    private WriteCondition(String expression, Map<String, String> names, Map<String, Object> values) {
+        this.expression = expression;
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * @return the condition that the item doesn't exist yet
+     */
+    static WriteCondition absent() {
+        Map<String, String> names = new HashMap<>();
+        names.put("#id", DynamoDBPersistenceManager.ID_ATTRIBUTE);
+        return new WriteCondition("attribute_not_exists(#id)", names, null);
+    }
+
+    /**
+     * @param modCount the expected mod count, 0 if the attribute is expected to be missing
+     * @return the condition that the item exists with the given mod count
+     */
+    static WriteCondition modCount(long modCount) {
+        Map<String, String> names = new HashMap<>();
+        names.put("#m", DynamoDBPersistenceManager.MOD_COUNT_ATTRIBUTE);
+        if (modCount == 0) {
+            names.put("#id", DynamoDBPersistenceManager.ID_ATTRIBUTE);
+            return new WriteCondition("attribute_exists(#id) AND attribute_not_exists(#m)", names, null);
+        }
+        Map<String, Object> values = new HashMap<>();
+        values.put(":m", modCount);
+        return new WriteCondition("#m = :m", names, values);
+    }
+
+    String getExpression() {
+        return expression;
+    }
+
+    Map<String, String> getNames() {
+        return names;
+    }
+
+    /**
+     * @return the values for the document API, null if there are none
+     */
+    Map<String, Object> getValues() {
+        return values;
+    }
+
+    /**
+     * @return the values for the low level API, null if there are none
+     */
+    Map<String, AttributeValue> getAttributeValues() {
+        if (values == null) {
+            return null;
+        }
+        return ItemUtils.fromSimpleMap(values);
+    }
+}
@@ -0,0 +1,146 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.junit.Test;
+
+import javax.jcr.PropertyType;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryBundleCodecTest {
+
+    private static final String DICTIONARY_TABLE = "names";
+    private static final int COMPRESSION_THRESHOLD = 64;
+    private static final short MOD_COUNT = 3;
+
+    @Test
+    public void testRoundTripOfAllTypes() throws Exception {
+        NodePropBundle bundle = TestBundles.createBundle(TestBundles.ALL_TYPES);
+        BinaryBundleCodec codec = new BinaryBundleCodec();
+        byte[] data = codec.encode(bundle);
+        assertEquals(BinaryBundleCodec.VERSION_2, data[0]);
+        TestBundles.assertBundleEquals(bundle, codec.decode(bundle.getId(), data));
+    }
+
+    @Test
+    public void testRoundTripOfUndefinedType() throws Exception {
+        NodePropBundle bundle = TestBundles.createBundle();
+        bundle.addProperty(TestBundles.createProperty(bundle.getId(), NameConstants.JCR_DATA,
+                PropertyType.UNDEFINED, false, new InternalValue[] {InternalValue.create("undefined")}));
+        BinaryBundleCodec codec = new BinaryBundleCodec();
+        TestBundles.assertBundleEquals(bundle, codec.decode(bundle.getId(), codec.encode(bundle)));
+    }
+
+    @Test
+    public void testRoundTripThroughItem() throws Exception {
+        NodePropBundle bundle = TestBundles.createBundle(TestBundles.ALL_TYPES);
+        BinaryBundleCodec codec = new BinaryBundleCodec(
+                new BundleCompressor(BundleCompressor.DEFLATE_CODEC, COMPRESSION_THRESHOLD), null);
+        Item item = new Item();
+        codec.write(bundle, item);
+        assertTrue(codec.canRead(item));
+        TestBundles.assertBundleEquals(bundle, codec.read(bundle.getId(), item));
+    }
+
+    @Test
+    public void testRoundTripWithDictionary() throws Exception {
+        InMemoryDynamoDB dynamoDB = createDynamoDB();
+        NodePropBundle bundle = TestBundles.createBundle(TestBundles.ALL_TYPES);
+        BinaryBundleCodec codec = new BinaryBundleCodec(new BundleCompressor(), null,
+                new NameDictionary(dynamoDB, DICTIONARY_TABLE));
+        byte[] data = codec.encode(bundle);
+        assertEquals(BinaryBundleCodec.VERSION_3, data[0]);
+        assertTrue(data.length < new BinaryBundleCodec().encode(bundle).length);
+
+        // a dictionary loaded from the table resolves the names registered by another one
+        NameDictionary dictionary = new NameDictionary(dynamoDB, DICTIONARY_TABLE);
+        dictionary.load();
+        BinaryBundleCodec reader = new BinaryBundleCodec(new BundleCompressor(), null, dictionary);
+        TestBundles.assertBundleEquals(bundle, reader.decode(bundle.getId(), data));
+        // the names are registered once
+        int items = dynamoDB.getItemCount(DICTIONARY_TABLE);
+        codec.encode(bundle);
+        assertEquals(items, dynamoDB.getItemCount(DICTIONARY_TABLE));
+    }
+
+    @Test
+    public void testDictionaryIsRequiredForVersion3() throws Exception {
+        NodePropBundle bundle = TestBundles.createBundle(PropertyType.STRING);
+        byte[] data = new BinaryBundleCodec(new BundleCompressor(), null,
+                new NameDictionary(createDynamoDB(), DICTIONARY_TABLE)).encode(bundle);
+        try {
+            new BinaryBundleCodec().decode(bundle.getId(), data);
+            fail("Decoded a bundle without its dictionary");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("dictionary"));
+        }
+    }
+
+    @Test
+    public void testReadVersion1() throws Exception {
+        NodeId nodeId = NodeId.randomId();
+        NodeId parentId = NodeId.randomId();
+        NodeId childId = NodeId.randomId();
+        Name name = TestBundles.NAME_FACTORY.create(TestBundles.NAMESPACE, "binary");
+        byte[] bytes = "inline".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(BinaryBundleCodec.VERSION_1);
+        BinaryBundleCodec.writeName(out, NameConstants.NT_UNSTRUCTURED);
+        out.writeBoolean(true);
+        BinaryBundleCodec.writeNodeId(out, parentId);
+        BinaryBundleCodec.writeVarInt(out, 0);
+        BinaryBundleCodec.writeVarInt(out, MOD_COUNT);
+        BinaryBundleCodec.writeVarInt(out, 1);
+        BinaryBundleCodec.writeName(out, name);
+        BinaryBundleCodec.writeVarInt(out, PropertyType.BINARY);
+        out.writeBoolean(false);
+        BinaryBundleCodec.writeVarInt(out, MOD_COUNT);
+        BinaryBundleCodec.writeVarInt(out, 1);
+        // version 1 has no marker byte in front of inline binaries
+        BinaryBundleCodec.writeVarInt(out, bytes.length);
+        out.write(bytes);
+        BinaryBundleCodec.writeVarInt(out, 1);
+        BinaryBundleCodec.writeName(out, NameConstants.JCR_CONTENT);
+        BinaryBundleCodec.writeNodeId(out, childId);
+        BinaryBundleCodec.writeVarInt(out, 0);
+        out.flush();
+
+        NodePropBundle expected = new NodePropBundle(nodeId);
+        expected.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        expected.setParentId(parentId);
+        expected.setMixinTypeNames(Collections.<Name>emptySet());
+        expected.setModCount(MOD_COUNT);
+        PropertyEntry property = TestBundles.createProperty(nodeId, name, PropertyType.BINARY, false,
+                new InternalValue[] {InternalValue.create(bytes)});
+        property.setModCount(MOD_COUNT);
+        expected.addProperty(property);
+        expected.addChildNodeEntry(NameConstants.JCR_CONTENT, childId);
+        TestBundles.assertBundleEquals(expected, new BinaryBundleCodec().decode(nodeId, buffer.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownVersion() throws Exception {
+        new BinaryBundleCodec().decode(NodeId.randomId(), new byte[] {BinaryBundleCodec.VERSION_3 + 1});
+    }
+
+    private static InMemoryDynamoDB createDynamoDB() {
+        InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        new TableKeys(null).getOrCreateTable(dynamoDB, DICTIONARY_TABLE, true);
+        return dynamoDB;
+    }
+}
@@ -0,0 +1,105 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BundleCompressorTest {
+
+    private static final int THRESHOLD = 128;
+    private static final long SEED = 42L;
+    private static final int BYTE_MASK = 0xff;
+    private static final int UNKNOWN_HEADER = BundleCompressor.COMPRESSED_FLAG | 0x7f;
+
+    @Test
+    public void testSmallPayloadIsNotCompressed() throws Exception {
+        BundleCompressor compressor = new BundleCompressor(BundleCompressor.DEFLATE_CODEC, THRESHOLD);
+        byte[] data = repeated(THRESHOLD - 1);
+        assertSame(data, compressor.compress(data));
+        assertEquals(0, compressor.getCompressedCount());
+        assertEquals(1.0, compressor.getCompressionRatio(), 0.0);
+    }
+
+    @Test
+    public void testLargePayloadIsCompressed() throws Exception {
+        for (String codec : new String[] {BundleCompressor.DEFLATE_CODEC, BundleCompressor.DEFLATE_FAST_CODEC}) {
+            BundleCompressor compressor = new BundleCompressor(codec, THRESHOLD);
+            byte[] data = repeated(THRESHOLD * THRESHOLD);
+            byte[] compressed = compressor.compress(data);
+            assertEquals(BundleCompressor.DEFLATE_HEADER, compressed[0] & BYTE_MASK);
+            assertTrue(compressed.length < data.length);
+            assertArrayEquals(data, compressor.decompress(compressed));
+            assertEquals(1, compressor.getCompressedCount());
+            assertTrue(compressor.getCompressionRatio() > 1.0);
+        }
+    }
+
+    @Test
+    public void testIncompressiblePayloadIsKeptAsIs() throws Exception {
+        BundleCompressor compressor = new BundleCompressor(BundleCompressor.DEFLATE_CODEC, THRESHOLD);
+        byte[] data = new byte[THRESHOLD * 2];
+        new Random(SEED).nextBytes(data);
+        data[0] = BinaryBundleCodec.VERSION_2;
+        assertSame(data, compressor.compress(data));
+        assertEquals(0, compressor.getCompressedCount());
+    }
+
+    @Test
+    public void testMixedPayloadsAreReadRegardlessOfConfiguration() throws Exception {
+        BinaryBundleCodec codec = new BinaryBundleCodec();
+        NodePropBundle small = TestBundles.createBundle();
+        NodePropBundle large = TestBundles.createBundle(TestBundles.ALL_TYPES);
+        BundleCompressor compressor = new BundleCompressor(BundleCompressor.DEFLATE_CODEC,
+                codec.encode(small).length + 1);
+        byte[] uncompressed = compressor.compress(codec.encode(small));
+        byte[] compressed = compressor.compress(codec.encode(large));
+        assertEquals(BinaryBundleCodec.VERSION_2, uncompressed[0]);
+        assertEquals(BundleCompressor.DEFLATE_HEADER, compressed[0] & BYTE_MASK);
+
+        // a compressor with compression disabled still reads both
+        BundleCompressor reader = new BundleCompressor();
+        TestBundles.assertBundleEquals(small, codec.decode(small.getId(), reader.decompress(uncompressed)));
+        TestBundles.assertBundleEquals(large, codec.decode(large.getId(), reader.decompress(compressed)));
+    }
+
+    @Test
+    public void testEmptyPayloadPassesThrough() throws Exception {
+        byte[] data = new byte[0];
+        assertSame(data, new BundleCompressor().decompress(data));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownHeader() throws Exception {
+        new BundleCompressor().decompress(new byte[] {(byte) UNKNOWN_HEADER, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedPayload() throws Exception {
+        BundleCompressor compressor = new BundleCompressor(BundleCompressor.DEFLATE_CODEC, THRESHOLD);
+        byte[] compressed = compressor.compress(repeated(THRESHOLD * THRESHOLD));
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        compressor.decompress(truncated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCodec() {
+        new BundleCompressor("lz4", THRESHOLD);
+    }
+
+    private static byte[] repeated(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % ('z' - 'a'));
+        }
+        data[0] = BinaryBundleCodec.VERSION_2;
+        return data;
+    }
+}
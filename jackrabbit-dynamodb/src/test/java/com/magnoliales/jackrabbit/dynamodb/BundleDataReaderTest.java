@@ -0,0 +1,145 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.PersistenceManager;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.util.ISO8601;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.PropertyType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BundleDataReaderTest {
+
+    private static final int YEAR = 2012;
+    private static final int DAY = 21;
+    private static final int HOUR = 13;
+    private static final int MINUTE = 37;
+    private static final int SECOND = 5;
+
+    private PersistenceManager pm;
+
+    @Before
+    public void setUp() {
+        pm = (PersistenceManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {PersistenceManager.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("createNew".equals(method.getName()) && args[0] instanceof NodeId) {
+                            return new NodeState((NodeId) args[0], null, null, ItemState.STATUS_NEW, false);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void testRoundTripOfAllTypes() throws Exception {
+        NodePropBundle bundle = TestBundles.createBundle(TestBundles.ALL_TYPES);
+        // the JSON format has no shared set
+        bundle.setSharedSet(Collections.<NodeId>emptySet());
+        JsonBundleCodec codec = new JsonBundleCodec(pm);
+        Item item = new Item();
+        codec.write(bundle, item);
+        assertTrue(codec.canRead(item));
+        TestBundles.assertBundleEquals(bundle, codec.read(bundle.getId(), item));
+    }
+
+    @Test
+    public void testRoundTripOfEmptyValues() throws Exception {
+        NodePropBundle bundle = TestBundles.createBundle();
+        bundle.setSharedSet(Collections.<NodeId>emptySet());
+        bundle.addProperty(TestBundles.createProperty(bundle.getId(), NameConstants.JCR_DATA, PropertyType.BINARY,
+                false, new InternalValue[] {InternalValue.create(new byte[0])}));
+        bundle.addProperty(TestBundles.createProperty(bundle.getId(), NameConstants.JCR_TITLE, PropertyType.STRING,
+                true, new InternalValue[] {InternalValue.create(""), InternalValue.create("title")}));
+        JsonBundleCodec codec = new JsonBundleCodec(pm);
+        Item item = new Item();
+        codec.write(bundle, item);
+        TestBundles.assertBundleEquals(bundle, codec.read(bundle.getId(), item));
+    }
+
+    @Test
+    public void testLegacyDates() throws Exception {
+        Calendar date = Calendar.getInstance(TimeZone.getTimeZone("GMT+02:00"));
+        date.clear();
+        date.set(YEAR, Calendar.DECEMBER, DAY, HOUR, MINUTE, SECOND);
+        String legacy = DateFormat.getDateTimeInstance(DateFormat.FULL, DateFormat.FULL, Locale.US)
+                .format(date.getTime());
+        NodeId nodeId = NodeId.randomId();
+        Map<String, Object> data = createData(PropertyType.DATE, Arrays.<Object>asList(legacy,
+                ISO8601.format(date)));
+
+        NodePropBundle bundle = new BundleDataReader(pm).read(nodeId, data);
+        PropertyEntry property = bundle.getPropertyEntry(NameConstants.JCR_CREATED);
+        assertEquals(PropertyType.DATE, property.getType());
+        assertEquals(2, property.getValues().length);
+        for (InternalValue value : property.getValues()) {
+            assertEquals(legacy, date.getTimeInMillis(), value.getDate().getTimeInMillis());
+        }
+    }
+
+    @Test
+    public void testFalsePlaceholders() throws Exception {
+        NodeId nodeId = NodeId.randomId();
+        BundleDataReader reader = new BundleDataReader(pm);
+        InternalValue binary = reader.read(nodeId, createData(PropertyType.BINARY,
+                Collections.<Object>singletonList(Boolean.FALSE)))
+                .getPropertyEntry(NameConstants.JCR_CREATED).getValues()[0];
+        assertEquals(0, binary.getLength());
+        InternalValue string = reader.read(nodeId, createData(PropertyType.STRING,
+                Collections.<Object>singletonList(Boolean.FALSE)))
+                .getPropertyEntry(NameConstants.JCR_CREATED).getValues()[0];
+        assertEquals("", string.getString());
+    }
+
+    @Test(expected = ItemStateException.class)
+    public void testInvalidDate() throws Exception {
+        new BundleDataReader(pm).read(NodeId.randomId(), createData(PropertyType.DATE,
+                Collections.<Object>singletonList("Someday")));
+    }
+
+    @Test(expected = ItemStateException.class)
+    public void testInvalidData() throws Exception {
+        Map<String, Object> data = new HashMap<>();
+        data.put("modCount", "not a number");
+        new BundleDataReader(pm).read(NodeId.randomId(), data);
+    }
+
+    private static Map<String, Object> createData(int type, List<Object> values) {
+        Map<String, Object> property = new HashMap<>();
+        property.put("name", NameConstants.JCR_CREATED.toString());
+        property.put("type", PropertyType.nameFromValue(type));
+        property.put("multiValued", values.size() > 1);
+        property.put("values", values);
+        List<Object> properties = new ArrayList<>();
+        properties.add(property);
+        Map<String, Object> data = new HashMap<>();
+        data.put("nodeType", NameConstants.NT_UNSTRUCTURED.toString());
+        data.put("properties", properties);
+        return data;
+    }
+}
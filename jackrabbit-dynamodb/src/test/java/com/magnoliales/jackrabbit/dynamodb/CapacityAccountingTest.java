@@ -0,0 +1,65 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CapacityAccountingTest {
+
+    private static final String TABLE = "bundles";
+    private static final String WEBSITE = "website";
+    private static final String DAM = "dam";
+    private static final int TOP_KEYS = 10;
+
+    private InMemoryDynamoDB dynamoDB;
+    private CapacityAccounting website;
+    private CapacityAccounting dam;
+
+    @Before
+    public void setUp() {
+        dynamoDB = new InMemoryDynamoDB();
+        new TableKeys(WEBSITE).getOrCreateTable(dynamoDB, TABLE, true);
+        website = createAccounting(WEBSITE);
+        dam = createAccounting(DAM);
+    }
+
+    @After
+    public void tearDown() {
+        website.close();
+        dam.close();
+    }
+
+    @Test
+    public void testSharedTableIsAccountedPerWorkspace() {
+        put(WEBSITE);
+        assertTrue(website.getWriteUnits().get(DynamoDBMetrics.STORE) > 0);
+        assertTrue(dam.getWriteUnits().isEmpty());
+
+        // closing one workspace keeps accounting the other
+        dam.close();
+        put(WEBSITE);
+        assertEquals(2.0, website.getWriteUnits().get(DynamoDBMetrics.STORE), 0.0);
+    }
+
+    private CapacityAccounting createAccounting(String workspace) {
+        CapacityAccounting accounting = new CapacityAccounting(TABLE, workspace,
+                new DynamoDBMetrics(TABLE, null), TOP_KEYS);
+        accounting.register(TABLE, CapacityAccounting.BUNDLE_TABLE);
+        return accounting;
+    }
+
+    private void put(String workspace) {
+        Item item = new Item().withPrimaryKey(new TableKeys(workspace).getPrimaryKey(NodeId.randomId().toString()))
+                .withLong(DynamoDBPersistenceManager.MOD_COUNT_ATTRIBUTE, 1);
+        PutItemRequest request = new PutItemRequest().withTableName(TABLE).withItem(ItemUtils.toAttributeValues(item));
+        CapacityAccounting.prepare(request);
+        CapacityAccounting.record(request, dynamoDB.putItem(request));
+    }
+}
@@ -0,0 +1,161 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.StaleItemStateException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChangeLogBatchTest {
+
+    private static final String TABLE = "bundles";
+    private static final int THREADS = 4;
+    private static final long MOD_COUNT = 5L;
+    private static final int CHUNKS = 3;
+    private static final double THROTTLE_RATE = 0.2;
+
+    private final TableKeys keys = new TableKeys(null);
+    private InMemoryDynamoDB dynamoDB;
+    private AsyncClient asyncClient;
+
+    @Before
+    public void setUp() {
+        dynamoDB = new InMemoryDynamoDB();
+        keys.getOrCreateTable(dynamoDB, TABLE, true);
+        asyncClient = new AsyncClient(dynamoDB, TABLE, THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        asyncClient.shutdown();
+    }
+
+    @Test
+    public void testModCountConflictIsStale() throws Exception {
+        NodeId nodeId = NodeId.randomId();
+        write(nodeId, MOD_COUNT);
+        // the bundle was read before another cluster node wrote it
+        ChangeLogBatch batch = new ChangeLogBatch(dynamoDB, TABLE, false);
+        batch.put(nodeId, createItem(nodeId, MOD_COUNT), WriteCondition.modCount(MOD_COUNT - 1));
+        assertStale(batch);
+        assertEquals(MOD_COUNT, getModCount(nodeId));
+
+        batch = new ChangeLogBatch(dynamoDB, asyncClient, null, TABLE, false);
+        batch.delete(nodeId, keys.getPrimaryKey(nodeId.toString()), WriteCondition.modCount(MOD_COUNT - 1));
+        assertStale(batch);
+        assertEquals(MOD_COUNT, getModCount(nodeId));
+
+        batch = new ChangeLogBatch(dynamoDB, TABLE, true);
+        batch.put(nodeId, createItem(nodeId, MOD_COUNT), WriteCondition.modCount(MOD_COUNT - 1));
+        assertStale(batch);
+
+        batch = new ChangeLogBatch(dynamoDB, TABLE, false);
+        batch.put(NodeId.randomId(), createItem(nodeId, 1), WriteCondition.absent());
+        batch.put(nodeId, createItem(nodeId, 1), WriteCondition.absent());
+        assertStale(batch);
+    }
+
+    @Test
+    public void testConditionalWritesExceedTransactionLimits() throws Exception {
+        List<NodeId> nodeIds = new ArrayList<>();
+        for (int i = 0; i <= ChangeLogBatch.MAX_TRANSACTION_SIZE; i++) {
+            nodeIds.add(NodeId.randomId());
+        }
+        ChangeLogBatch batch = new ChangeLogBatch(dynamoDB, asyncClient, null, TABLE, false);
+        for (NodeId nodeId : nodeIds) {
+            batch.put(nodeId, createItem(nodeId, 1), WriteCondition.absent());
+        }
+        batch.flush();
+        assertEquals(nodeIds.size(), dynamoDB.getItemCount(TABLE));
+
+        batch = new ChangeLogBatch(dynamoDB, TABLE, false);
+        for (NodeId nodeId : nodeIds) {
+            batch.delete(nodeId, keys.getPrimaryKey(nodeId.toString()), WriteCondition.modCount(1));
+        }
+        batch.flush();
+        assertEquals(0, dynamoDB.getItemCount(TABLE));
+        assertNull(getItem(nodeIds.get(0)));
+
+        // only atomic commits are limited to a single transaction
+        batch = new ChangeLogBatch(dynamoDB, TABLE, true);
+        for (NodeId nodeId : nodeIds) {
+            batch.put(nodeId, createItem(nodeId, 1), WriteCondition.absent());
+        }
+        try {
+            batch.flush();
+            fail("Committed a change log that exceeds a transaction");
+        } catch (ItemStateException e) {
+            assertEquals(0, dynamoDB.getItemCount(TABLE));
+        }
+    }
+
+    @Test
+    public void testWritesAreChunked() throws Exception {
+        ChangeLogBatch batch = createBatch(CHUNKS * ChangeLogBatch.MAX_BATCH_SIZE);
+        batch.flush();
+        assertEquals(CHUNKS * ChangeLogBatch.MAX_BATCH_SIZE, dynamoDB.getItemCount(TABLE));
+        assertEquals(CHUNKS * ChangeLogBatch.MAX_BATCH_SIZE, batch.getWriteCount());
+        assertEquals(CHUNKS, batch.getRoundTrips());
+    }
+
+    @Test
+    public void testUnprocessedItemsAreRetried() throws Exception {
+        ChangeLogBatch batch = createBatch(CHUNKS * ChangeLogBatch.MAX_BATCH_SIZE);
+        dynamoDB.setThrottleRate(THROTTLE_RATE);
+        batch.flush();
+        dynamoDB.setThrottleRate(0);
+        assertEquals(CHUNKS * ChangeLogBatch.MAX_BATCH_SIZE, dynamoDB.getItemCount(TABLE));
+        assertTrue(batch.getRoundTrips() > CHUNKS);
+    }
+
+    private ChangeLogBatch createBatch(int size) {
+        ChangeLogBatch batch = new ChangeLogBatch(dynamoDB, TABLE, false);
+        for (int i = 0; i < size; i++) {
+            NodeId nodeId = NodeId.randomId();
+            batch.put(nodeId, createItem(nodeId, 1), null);
+        }
+        return batch;
+    }
+
+    private void assertStale(ChangeLogBatch batch) throws Exception {
+        try {
+            batch.flush();
+            fail("Overwrote an item that was modified externally");
+        } catch (StaleItemStateException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    private void write(NodeId nodeId, long modCount) {
+        dynamoDB.putItem(new PutItemRequest().withTableName(TABLE)
+                .withItem(ItemUtils.toAttributeValues(createItem(nodeId, modCount))));
+    }
+
+    private Item createItem(NodeId nodeId, long modCount) {
+        return new Item().withPrimaryKey(keys.getPrimaryKey(nodeId.toString()))
+                .withLong(DynamoDBPersistenceManager.MOD_COUNT_ATTRIBUTE, modCount);
+    }
+
+    private Item getItem(NodeId nodeId) {
+        return ItemUtils.toItem(dynamoDB.getItem(new GetItemRequest().withTableName(TABLE)
+                .withKey(keys.getKey(nodeId.toString()))).getItem());
+    }
+
+    private long getModCount(NodeId nodeId) {
+        return getItem(nodeId).getLong(DynamoDBPersistenceManager.MOD_COUNT_ATTRIBUTE);
+    }
+}
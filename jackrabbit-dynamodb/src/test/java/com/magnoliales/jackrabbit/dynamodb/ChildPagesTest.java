@@ -0,0 +1,219 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.ChildNodeEntry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChildPagesTest {
+
+    private static final String TABLE = "pages";
+    private static final String BUNDLE_TABLE = "bundles";
+    private static final int PAGE_SIZE = 50;
+    private static final int CHILDREN = 1000;
+    private static final long SEED = 17L;
+
+    private InMemoryDynamoDB dynamoDB;
+    private ChildPages childPages;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        dynamoDB = new InMemoryDynamoDB();
+        new TableKeys(null).getOrCreateTable(dynamoDB, TABLE, true);
+        new TableKeys(null).getOrCreateTable(dynamoDB, BUNDLE_TABLE, true);
+        childPages = new ChildPages(dynamoDB, new TableKeys(null), TABLE, BUNDLE_TABLE, PAGE_SIZE, true);
+        random = new Random(SEED);
+    }
+
+    @Test
+    public void testSmallBundleIsNotPaged() throws Exception {
+        NodePropBundle bundle = createBundle(PAGE_SIZE);
+        Item item = new Item();
+        assertEquals(PAGE_SIZE, childPages.write(bundle, item).getChildNodeEntries().size());
+        assertFalse(ChildPages.isPaged(item));
+        assertEquals(0, dynamoDB.getItemCount(TABLE));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        NodePropBundle bundle = createBundle(CHILDREN);
+        Item item = new Item();
+        NodePropBundle written = childPages.write(bundle, item);
+        assertTrue(written.getChildNodeEntries().isEmpty());
+        assertTrue(ChildPages.isPaged(item));
+        List<String> digests = item.getList(ChildPages.CHILD_PAGES_ATTRIBUTE);
+        assertEquals(digests.size(), dynamoDB.getItemCount(TABLE));
+        List<Integer> sizes = getPageSizes(bundle, digests);
+        for (int i = 0; i < sizes.size(); i++) {
+            // only the last page may be shorter than the minimum
+            assertTrue(sizes.get(i) >= PAGE_SIZE / 2 || i == sizes.size() - 1);
+            assertTrue(sizes.get(i) <= 2 * PAGE_SIZE);
+        }
+
+        // a cluster node that doesn't know the pages reads them all
+        ChildPages reader = new ChildPages(dynamoDB, new TableKeys(null), TABLE, BUNDLE_TABLE, PAGE_SIZE, true);
+        NodePropBundle read = new NodePropBundle(bundle.getId());
+        assertTrue(reader.read(read, item));
+        assertEquals(getChildren(bundle), getChildren(read));
+    }
+
+    @Test
+    public void testInsertedChildChangesOnePage() throws Exception {
+        NodePropBundle bundle = createBundle(CHILDREN);
+        List<String> before = store(bundle);
+        NodePropBundle changed = copy(bundle, CHILDREN / 2, null);
+        changed.addChildNodeEntry(NameConstants.JCR_CONTENT, new NodeId(random.nextLong(), random.nextLong()));
+        for (ChildNodeEntry child : bundle.getChildNodeEntries().subList(CHILDREN / 2, CHILDREN)) {
+            changed.addChildNodeEntry(child.getName(), child.getId());
+        }
+        List<String> after = store(changed);
+        assertChanged(before, after);
+    }
+
+    @Test
+    public void testRemovedChildChangesOnePage() throws Exception {
+        NodePropBundle bundle = createBundle(CHILDREN);
+        List<String> before = store(bundle);
+        List<String> after = store(copy(bundle, CHILDREN, bundle.getChildNodeEntries().get(CHILDREN / 3)));
+        assertChanged(before, after);
+    }
+
+    @Test
+    public void testReplacedPagesAreDeletedOnCommit() throws Exception {
+        NodePropBundle bundle = createBundle(CHILDREN);
+        store(bundle);
+        List<String> after = store(copy(bundle, CHILDREN, bundle.getChildNodeEntries().get(0)));
+        assertEquals(after.size(), dynamoDB.getItemCount(TABLE));
+
+        childPages.delete(bundle.getId());
+        childPages.committed();
+        assertEquals(0, dynamoDB.getItemCount(TABLE));
+    }
+
+    @Test
+    public void testReplacedPagesAreKeptOnRollback() throws Exception {
+        NodePropBundle bundle = createBundle(CHILDREN);
+        List<String> before = store(bundle);
+        NodePropBundle changed = copy(bundle, CHILDREN, bundle.getChildNodeEntries().get(0));
+        childPages.write(changed, new Item());
+        childPages.rolledBack();
+        childPages.committed();
+        Item item = new Item().withList(ChildPages.CHILD_PAGES_ATTRIBUTE, before);
+        NodePropBundle read = new NodePropBundle(bundle.getId());
+        assertTrue(childPages.read(read, item));
+        assertEquals(getChildren(bundle), getChildren(read));
+    }
+
+    @Test
+    public void testKnownPagesAreNotReadAgain() throws Exception {
+        NodePropBundle bundle = createBundle(CHILDREN);
+        store(bundle);
+        // the pages written are kept, so the bundle item isn't read to find the pages it replaces
+        dynamoDB.deleteItem(new DeleteItemRequest().withTableName(BUNDLE_TABLE)
+                .withKey(new TableKeys(null).getKey(bundle.getId().toString())));
+        List<String> after = store(copy(bundle, CHILDREN, bundle.getChildNodeEntries().get(0)));
+        assertEquals(after.size(), dynamoDB.getItemCount(TABLE));
+
+        // without conditional writes the pages are read again, and the item without pages replaces none
+        childPages = new ChildPages(dynamoDB, new TableKeys(null), TABLE, BUNDLE_TABLE, PAGE_SIZE, false);
+        childPages.loaded(bundle.getId(), new Item().withList(ChildPages.CHILD_PAGES_ATTRIBUTE, after));
+        dynamoDB.deleteItem(new DeleteItemRequest().withTableName(BUNDLE_TABLE)
+                .withKey(new TableKeys(null).getKey(bundle.getId().toString())));
+        List<String> unread = store(copy(bundle, CHILDREN, bundle.getChildNodeEntries().get(1)));
+        Set<String> pages = new HashSet<>(after);
+        pages.addAll(unread);
+        assertEquals(pages.size(), dynamoDB.getItemCount(TABLE));
+    }
+
+    /**
+     * Write the bundle and its bundle item, as the persistence manager does, and commit.
+     */
+    private List<String> store(NodePropBundle bundle) throws Exception {
+        Item item = new Item();
+        childPages.write(bundle, item);
+        List<String> digests = item.getList(ChildPages.CHILD_PAGES_ATTRIBUTE);
+        List<AttributeValue> list = new ArrayList<>();
+        for (String digest : digests) {
+            list.add(new AttributeValue(digest));
+        }
+        Map<String, AttributeValue> bundleItem = new HashMap<>(new TableKeys(null).getKey(bundle.getId().toString()));
+        bundleItem.put(ChildPages.CHILD_PAGES_ATTRIBUTE, new AttributeValue().withL(list));
+        dynamoDB.putItem(new PutItemRequest().withTableName(BUNDLE_TABLE).withItem(bundleItem));
+        childPages.committed();
+        return digests;
+    }
+
+    /**
+     * Assert that the pages differ in a single run of pages, which a boundary that moved may extend by one page.
+     */
+    private static void assertChanged(List<String> before, List<String> after) {
+        Set<String> removed = new HashSet<>(before);
+        removed.removeAll(after);
+        Set<String> added = new HashSet<>(after);
+        added.removeAll(before);
+        assertTrue("Removed pages " + removed.size(), removed.size() >= 1 && removed.size() <= 2);
+        assertTrue("Added pages " + added.size(), added.size() >= 1 && added.size() <= 2);
+    }
+
+    private NodePropBundle createBundle(int children) {
+        NodePropBundle bundle = new NodePropBundle(new NodeId(random.nextLong(), random.nextLong()));
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        for (int i = 0; i < children; i++) {
+            bundle.addChildNodeEntry(TestBundles.NAME_FACTORY.create(TestBundles.NAMESPACE, "child" + i),
+                    new NodeId(random.nextLong(), random.nextLong()));
+        }
+        return bundle;
+    }
+
+    /**
+     * Copy the first children of a bundle, except one.
+     */
+    private static NodePropBundle copy(NodePropBundle bundle, int children, ChildNodeEntry except) {
+        NodePropBundle copy = new NodePropBundle(bundle.getId());
+        copy.setNodeTypeName(bundle.getNodeTypeName());
+        for (ChildNodeEntry child : bundle.getChildNodeEntries().subList(0, children)) {
+            if (child != except) {
+                copy.addChildNodeEntry(child.getName(), child.getId());
+            }
+        }
+        copy.markOld();
+        return copy;
+    }
+
+    private List<Integer> getPageSizes(NodePropBundle bundle, List<String> digests) throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        for (String digest : digests) {
+            NodePropBundle page = new NodePropBundle(bundle.getId());
+            assertTrue(childPages.read(page, new Item().withList(ChildPages.CHILD_PAGES_ATTRIBUTE, digest)));
+            sizes.add(page.getChildNodeEntries().size());
+        }
+        return sizes;
+    }
+
+    private static List<String> getChildren(NodePropBundle bundle) {
+        List<String> children = new ArrayList<>();
+        for (ChildNodeEntry child : bundle.getChildNodeEntries()) {
+            children.add(child.getName().toString() + "=" + child.getId().toString());
+        }
+        return children;
+    }
+}
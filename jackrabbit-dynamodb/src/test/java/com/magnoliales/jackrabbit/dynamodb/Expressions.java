@@ -0,0 +1,574 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates the DynamoDB expression language for {@link InMemoryDynamoDB}: condition, filter and key condition
+ * expressions with comparisons, <code>BETWEEN</code>, <code>IN</code>, <code>AND</code>, <code>OR</code>,
+ * <code>NOT</code> and the functions <code>attribute_exists</code>, <code>attribute_not_exists</code>,
+ * <code>attribute_type</code>, <code>begins_with</code>, <code>contains</code> and <code>size</code>, projection
+ * expressions and update expressions with <code>SET</code>, <code>REMOVE</code>, <code>ADD</code> and
+ * <code>DELETE</code>. Document paths are limited to top-level attributes.
+ */
+final class Expressions {
+
+    private static final String VALIDATION_ERROR = "ValidationException";
+    private static final int BAD_REQUEST = 400;
+    private static final String[] UPDATE_CLAUSES = {"SET", "REMOVE", "ADD", "DELETE"};
+
+    private Expressions() {
+    }
+
+    /**
+     * @param expression the condition, or null for no condition
+     * @param names the expression attribute names
+     * @param values the expression attribute values
+     * @param item the item, or null if it doesn't exist
+     * @return true if the item satisfies the condition
+     */
+    static boolean matches(String expression, Map<String, String> names, Map<String, AttributeValue> values,
+                           Map<String, AttributeValue> item) {
+        if (expression == null || expression.trim().isEmpty()) {
+            return true;
+        }
+        Parser parser = new Parser(expression, names, values);
+        boolean result = parser.parseOr(item == null ? Collections.<String, AttributeValue>emptyMap() : item);
+        parser.expectEnd();
+        return result;
+    }
+
+    /**
+     * @param expression the projection expression
+     * @param names the expression attribute names
+     * @return the names of the projected attributes
+     */
+    static List<String> projection(String expression, Map<String, String> names) {
+        List<String> attributes = new ArrayList<>();
+        for (String path : expression.split(",")) {
+            attributes.add(resolveName(path.trim(), names));
+        }
+        return attributes;
+    }
+
+    /**
+     * Apply an update expression.
+     * @param expression the update expression
+     * @param names the expression attribute names
+     * @param values the expression attribute values
+     * @param item the item to update in place
+     */
+    static void update(String expression, Map<String, String> names, Map<String, AttributeValue> values,
+                       Map<String, AttributeValue> item) {
+        Map<String, AttributeValue> original = new HashMap<>(item);
+        Parser parser = new Parser(expression, names, values);
+        while (!parser.atEnd()) {
+            String clause = parser.next().toUpperCase();
+            do {
+                String name = resolveName(parser.next(), names);
+                switch (clause) {
+                    case "SET":
+                        parser.expect("=");
+                        item.put(name, parser.parseSetValue(original));
+                        break;
+                    case "REMOVE":
+                        item.remove(name);
+                        break;
+                    case "ADD":
+                        item.put(name, add(original.get(name), parser.parseOperand(original)));
+                        break;
+                    case "DELETE":
+                        AttributeValue remaining = removeElements(original.get(name), parser.parseOperand(original));
+                        if (remaining == null) {
+                            item.remove(name);
+                        } else {
+                            item.put(name, remaining);
+                        }
+                        break;
+                    default:
+                        throw validation("Unknown update clause " + clause);
+                }
+            } while (parser.accept(","));
+            if (!parser.atEnd() && !isUpdateClause(parser.peek())) {
+                throw validation("Unexpected token " + parser.peek() + " in " + expression);
+            }
+        }
+    }
+
+    /**
+     * Compare two scalar values of the same type.
+     * @return a negative number, zero or a positive number
+     */
+    static int compare(AttributeValue a, AttributeValue b) {
+        if (a.getS() != null && b.getS() != null) {
+            return a.getS().compareTo(b.getS());
+        }
+        if (a.getN() != null && b.getN() != null) {
+            return new BigDecimal(a.getN()).compareTo(new BigDecimal(b.getN()));
+        }
+        if (a.getB() != null && b.getB() != null) {
+            return compareBytes(a.getB(), b.getB());
+        }
+        throw validation("Cannot compare " + a + " with " + b);
+    }
+
+    static AttributeValue add(AttributeValue current, AttributeValue value) {
+        if (current == null) {
+            return value;
+        }
+        if (current.getN() != null && value.getN() != null) {
+            return new AttributeValue().withN(new BigDecimal(current.getN()).add(new BigDecimal(value.getN()))
+                    .toPlainString());
+        }
+        if (current.getSS() != null && value.getSS() != null) {
+            return new AttributeValue().withSS(union(current.getSS(), value.getSS()));
+        }
+        if (current.getNS() != null && value.getNS() != null) {
+            return new AttributeValue().withNS(union(current.getNS(), value.getNS()));
+        }
+        if (current.getBS() != null && value.getBS() != null) {
+            return new AttributeValue().withBS(union(current.getBS(), value.getBS()));
+        }
+        throw validation("Cannot add " + value + " to " + current);
+    }
+
+    static AttributeValue removeElements(AttributeValue current, AttributeValue value) {
+        if (current == null) {
+            return null;
+        }
+        if (current.getSS() != null && value.getSS() != null) {
+            Set<String> remaining = new LinkedHashSet<>(current.getSS());
+            remaining.removeAll(value.getSS());
+            return remaining.isEmpty() ? null : new AttributeValue().withSS(remaining);
+        }
+        if (current.getNS() != null && value.getNS() != null) {
+            Set<String> remaining = new LinkedHashSet<>(current.getNS());
+            remaining.removeAll(value.getNS());
+            return remaining.isEmpty() ? null : new AttributeValue().withNS(remaining);
+        }
+        if (current.getBS() != null && value.getBS() != null) {
+            Set<ByteBuffer> remaining = new LinkedHashSet<>(current.getBS());
+            remaining.removeAll(value.getBS());
+            return remaining.isEmpty() ? null : new AttributeValue().withBS(remaining);
+        }
+        throw validation("Cannot delete " + value + " from " + current);
+    }
+
+    static AmazonDynamoDBException validation(String message) {
+        AmazonDynamoDBException exception = new AmazonDynamoDBException(message);
+        exception.setErrorCode(VALIDATION_ERROR);
+        exception.setStatusCode(BAD_REQUEST);
+        return exception;
+    }
+
+    private static <T> Set<T> union(Collection<T> a, Collection<T> b) {
+        Set<T> union = new LinkedHashSet<>(a);
+        union.addAll(b);
+        return union;
+    }
+
+    private static boolean isUpdateClause(String token) {
+        for (String clause : UPDATE_CLAUSES) {
+            if (clause.equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String resolveName(String path, Map<String, String> names) {
+        if (path.startsWith("#")) {
+            String name = names == null ? null : names.get(path);
+            if (name == null) {
+                throw validation("Undefined attribute name " + path);
+            }
+            return name;
+        }
+        return path;
+    }
+
+    private static int compareBytes(ByteBuffer a, ByteBuffer b) {
+        ByteBuffer x = a.duplicate();
+        ByteBuffer y = b.duplicate();
+        while (x.hasRemaining() && y.hasRemaining()) {
+            int difference = (x.get() & 0xff) - (y.get() & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return x.remaining() - y.remaining();
+    }
+
+    private static boolean startsWith(ByteBuffer bytes, ByteBuffer prefix) {
+        if (bytes.remaining() < prefix.remaining()) {
+            return false;
+        }
+        ByteBuffer head = bytes.duplicate();
+        head.limit(head.position() + prefix.remaining());
+        return compareBytes(head, prefix) == 0;
+    }
+
+    private static boolean isEqual(AttributeValue a, AttributeValue b) {
+        if (a.getN() != null && b.getN() != null) {
+            return compare(a, b) == 0;
+        }
+        if (a.getNS() != null && b.getNS() != null) {
+            return normalize(a.getNS()).equals(normalize(b.getNS()));
+        }
+        if (a.getSS() != null && b.getSS() != null) {
+            return new LinkedHashSet<>(a.getSS()).equals(new LinkedHashSet<>(b.getSS()));
+        }
+        if (a.getBS() != null && b.getBS() != null) {
+            return new LinkedHashSet<>(a.getBS()).equals(new LinkedHashSet<>(b.getBS()));
+        }
+        return a.equals(b);
+    }
+
+    private static Set<BigDecimal> normalize(Collection<String> numbers) {
+        Set<BigDecimal> normalized = new LinkedHashSet<>();
+        for (String number : numbers) {
+            normalized.add(new BigDecimal(number).stripTrailingZeros());
+        }
+        return normalized;
+    }
+
+    private static boolean isComparable(AttributeValue a, AttributeValue b) {
+        return a.getS() != null && b.getS() != null || a.getN() != null && b.getN() != null
+                || a.getB() != null && b.getB() != null;
+    }
+
+    private static String getType(AttributeValue value) {
+        if (value.getS() != null) {
+            return "S";
+        } else if (value.getN() != null) {
+            return "N";
+        } else if (value.getB() != null) {
+            return "B";
+        } else if (value.getSS() != null) {
+            return "SS";
+        } else if (value.getNS() != null) {
+            return "NS";
+        } else if (value.getBS() != null) {
+            return "BS";
+        } else if (value.getBOOL() != null) {
+            return "BOOL";
+        } else if (value.getL() != null) {
+            return "L";
+        } else if (value.getM() != null) {
+            return "M";
+        }
+        return "NULL";
+    }
+
+    private static long getSize(AttributeValue value) {
+        if (value.getS() != null) {
+            return value.getS().length();
+        } else if (value.getB() != null) {
+            return value.getB().remaining();
+        } else if (value.getSS() != null) {
+            return value.getSS().size();
+        } else if (value.getNS() != null) {
+            return value.getNS().size();
+        } else if (value.getBS() != null) {
+            return value.getBS().size();
+        } else if (value.getL() != null) {
+            return value.getL().size();
+        } else if (value.getM() != null) {
+            return value.getM().size();
+        }
+        throw validation("Size is not defined for " + value);
+    }
+
+    /**
+     * Recursive descent parser that evaluates the expression while parsing it.
+     */
+    private static final class Parser {
+
+        private final String expression;
+        private final List<String> tokens;
+        private final Map<String, String> names;
+        private final Map<String, AttributeValue> values;
+        private int position;
+
+        private Parser(String expression, Map<String, String> names, Map<String, AttributeValue> values) {
+            this.expression = expression;
+            this.tokens = tokenize(expression);
+            this.names = names;
+            this.values = values;
+        }
+
+        private static List<String> tokenize(String expression) {
+            List<String> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < expression.length()) {
+                char c = expression.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if ("(),=+-".indexOf(c) >= 0) {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (c == '<' || c == '>') {
+                    int end = i + 1;
+                    if (end < expression.length()
+                            && (expression.charAt(end) == '=' || c == '<' && expression.charAt(end) == '>')) {
+                        end++;
+                    }
+                    tokens.add(expression.substring(i, end));
+                    i = end;
+                } else {
+                    int end = i;
+                    while (end < expression.length() && isWordCharacter(expression.charAt(end))) {
+                        end++;
+                    }
+                    if (end == i) {
+                        throw validation("Unexpected character '" + c + "' in " + expression);
+                    }
+                    tokens.add(expression.substring(i, end));
+                    i = end;
+                }
+            }
+            return tokens;
+        }
+
+        private static boolean isWordCharacter(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '#' || c == ':' || c == '.';
+        }
+
+        private boolean atEnd() {
+            return position == tokens.size();
+        }
+
+        private String peek() {
+            return atEnd() ? null : tokens.get(position);
+        }
+
+        private String next() {
+            if (atEnd()) {
+                throw validation("Unexpected end of " + expression);
+            }
+            return tokens.get(position++);
+        }
+
+        private boolean accept(String token) {
+            if (!atEnd() && tokens.get(position).equalsIgnoreCase(token)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw validation("Expected " + token + " instead of " + peek() + " in " + expression);
+            }
+        }
+
+        private void expectEnd() {
+            if (!atEnd()) {
+                throw validation("Unexpected token " + peek() + " in " + expression);
+            }
+        }
+
+        private boolean parseOr(Map<String, AttributeValue> item) {
+            boolean result = parseAnd(item);
+            while (accept("OR")) {
+                boolean other = parseAnd(item);
+                result = result || other;
+            }
+            return result;
+        }
+
+        private boolean parseAnd(Map<String, AttributeValue> item) {
+            boolean result = parseNot(item);
+            while (accept("AND")) {
+                boolean other = parseNot(item);
+                result = result && other;
+            }
+            return result;
+        }
+
+        private boolean parseNot(Map<String, AttributeValue> item) {
+            if (accept("NOT")) {
+                return !parseNot(item);
+            }
+            return parsePrimary(item);
+        }
+
+        private boolean parsePrimary(Map<String, AttributeValue> item) {
+            if (accept("(")) {
+                boolean result = parseOr(item);
+                expect(")");
+                return result;
+            }
+            String token = peek();
+            if (position + 1 < tokens.size() && "(".equals(tokens.get(position + 1)) && !"size".equals(token)) {
+                return parseFunction(item);
+            }
+            AttributeValue left = parseOperand(item);
+            if (accept("BETWEEN")) {
+                AttributeValue low = parseOperand(item);
+                expect("AND");
+                AttributeValue high = parseOperand(item);
+                return left != null && isComparable(left, low) && isComparable(left, high)
+                        && compare(left, low) >= 0 && compare(left, high) <= 0;
+            }
+            if (accept("IN")) {
+                expect("(");
+                boolean found = false;
+                do {
+                    AttributeValue candidate = parseOperand(item);
+                    found = found || left != null && candidate != null && isEqual(left, candidate);
+                } while (accept(","));
+                expect(")");
+                return found;
+            }
+            String comparator = next();
+            AttributeValue right = parseOperand(item);
+            if (left == null || right == null) {
+                return "<>".equals(comparator);
+            }
+            switch (comparator) {
+                case "=":
+                    return isEqual(left, right);
+                case "<>":
+                    return !isEqual(left, right);
+                case "<":
+                    return isComparable(left, right) && compare(left, right) < 0;
+                case "<=":
+                    return isComparable(left, right) && compare(left, right) <= 0;
+                case ">":
+                    return isComparable(left, right) && compare(left, right) > 0;
+                case ">=":
+                    return isComparable(left, right) && compare(left, right) >= 0;
+                default:
+                    throw validation("Unknown comparator " + comparator + " in " + expression);
+            }
+        }
+
+        private boolean parseFunction(Map<String, AttributeValue> item) {
+            String function = next();
+            expect("(");
+            AttributeValue value = item.get(resolveName(next(), names));
+            boolean result;
+            switch (function) {
+                case "attribute_exists":
+                    result = value != null;
+                    break;
+                case "attribute_not_exists":
+                    result = value == null;
+                    break;
+                case "attribute_type":
+                    expect(",");
+                    AttributeValue type = parseOperand(item);
+                    result = value != null && type != null && getType(value).equals(type.getS());
+                    break;
+                case "begins_with":
+                    expect(",");
+                    AttributeValue prefix = parseOperand(item);
+                    result = value != null && prefix != null && (value.getS() != null && prefix.getS() != null
+                            && value.getS().startsWith(prefix.getS()) || value.getB() != null && prefix.getB() != null
+                            && startsWith(value.getB(), prefix.getB()));
+                    break;
+                case "contains":
+                    expect(",");
+                    AttributeValue operand = parseOperand(item);
+                    result = value != null && operand != null && contains(value, operand);
+                    break;
+                default:
+                    throw validation("Unknown function " + function + " in " + expression);
+            }
+            expect(")");
+            return result;
+        }
+
+        private boolean contains(AttributeValue value, AttributeValue operand) {
+            if (value.getS() != null && operand.getS() != null) {
+                return value.getS().contains(operand.getS());
+            } else if (value.getSS() != null && operand.getS() != null) {
+                return value.getSS().contains(operand.getS());
+            } else if (value.getNS() != null && operand.getN() != null) {
+                return normalize(value.getNS()).contains(new BigDecimal(operand.getN()).stripTrailingZeros());
+            } else if (value.getBS() != null && operand.getB() != null) {
+                return value.getBS().contains(operand.getB());
+            } else if (value.getL() != null) {
+                for (AttributeValue element : value.getL()) {
+                    if (isEqual(element, operand)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private AttributeValue parseOperand(Map<String, AttributeValue> item) {
+            String token = next();
+            if (token.startsWith(":")) {
+                AttributeValue value = values == null ? null : values.get(token);
+                if (value == null) {
+                    throw validation("Undefined attribute value " + token);
+                }
+                return value;
+            }
+            if ("size".equals(token) && "(".equals(peek())) {
+                expect("(");
+                AttributeValue value = item.get(resolveName(next(), names));
+                expect(")");
+                return value == null ? null : new AttributeValue().withN(Long.toString(getSize(value)));
+            }
+            return item.get(resolveName(token, names));
+        }
+
+        private AttributeValue parseSetValue(Map<String, AttributeValue> item) {
+            AttributeValue value = parseSetOperand(item);
+            if (accept("+")) {
+                return add(value, parseSetOperand(item));
+            }
+            if (accept("-")) {
+                AttributeValue subtrahend = parseSetOperand(item);
+                return new AttributeValue().withN(new BigDecimal(value.getN())
+                        .subtract(new BigDecimal(subtrahend.getN())).toPlainString());
+            }
+            return value;
+        }
+
+        private AttributeValue parseSetOperand(Map<String, AttributeValue> item) {
+            String token = peek();
+            if ("if_not_exists".equals(token)) {
+                next();
+                expect("(");
+                AttributeValue current = item.get(resolveName(next(), names));
+                expect(",");
+                AttributeValue fallback = parseSetOperand(item);
+                expect(")");
+                return current == null ? fallback : current;
+            }
+            if ("list_append".equals(token)) {
+                next();
+                expect("(");
+                AttributeValue first = parseSetOperand(item);
+                expect(",");
+                AttributeValue second = parseSetOperand(item);
+                expect(")");
+                List<AttributeValue> list = new ArrayList<>(first.getL());
+                list.addAll(second.getL());
+                return new AttributeValue().withL(list);
+            }
+            AttributeValue value = parseOperand(item);
+            if (value == null) {
+                throw validation("The provided expression refers to an attribute that does not exist in the item");
+            }
+            return value;
+        }
+    }
+}
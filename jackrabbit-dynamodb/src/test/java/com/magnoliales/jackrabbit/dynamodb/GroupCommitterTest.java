@@ -0,0 +1,83 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class GroupCommitterTest {
+
+    private static final String TABLE = "bundles";
+    private static final String MISSING_TABLE = "missing";
+    private static final long WINDOW = 500L;
+    private static final int MAX_ITEMS = 1000;
+    private static final int ITEMS = 30;
+
+    private InMemoryDynamoDB dynamoDB;
+    private GroupCommitter committer;
+
+    @Before
+    public void setUp() {
+        dynamoDB = new InMemoryDynamoDB();
+        new TableKeys(null).getOrCreateTable(dynamoDB, TABLE, true);
+        committer = GroupCommitter.join(getClass().getName(), WINDOW, MAX_ITEMS);
+    }
+
+    @After
+    public void tearDown() {
+        committer.leave();
+    }
+
+    @Test
+    public void testFailedCommitDoesNotFailOthersOfItsRequest() throws Exception {
+        Thread succeeding = commit(TABLE, new AtomicReference<ItemStateException>(), ITEMS);
+        AtomicReference<ItemStateException> failure = new AtomicReference<>();
+        Thread failing = commit(MISSING_TABLE, failure, 1);
+        AtomicReference<ItemStateException> success = new AtomicReference<>();
+        Thread other = commit(TABLE, success, 1);
+        succeeding.join();
+        failing.join();
+        other.join();
+
+        // the commits arrived within the window, so they shared the request with the item of the missing table
+        assertNotNull(failure.get());
+        assertNull(success.get());
+        assertEquals(2, committer.getCommits());
+        assertEquals(ITEMS + 1, dynamoDB.getItemCount(TABLE));
+    }
+
+    private Thread commit(final String tableName, final AtomicReference<ItemStateException> error, int items) {
+        final List<WriteRequest> requests = new ArrayList<>();
+        for (int i = 0; i < items; i++) {
+            Item item = new Item().withPrimaryKey(new TableKeys(null).getPrimaryKey(NodeId.randomId().toString()))
+                    .withLong(DynamoDBPersistenceManager.MOD_COUNT_ATTRIBUTE, 1);
+            requests.add(new WriteRequest().withPutRequest(
+                    new PutRequest().withItem(ItemUtils.toAttributeValues(item))));
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    committer.commit(dynamoDB, tableName, requests);
+                } catch (ItemStateException e) {
+                    error.set(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+}
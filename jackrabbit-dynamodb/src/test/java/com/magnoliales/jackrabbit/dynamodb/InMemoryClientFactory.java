@@ -0,0 +1,81 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.regions.Region;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Hands out the shared {@link InMemoryDynamoDB}, so that all persistence managers and data stores of a repository
+ * see the same tables. Configured with <code>&lt;param name="clientFactory" value="..."/&gt;</code>.
+ *
+ * <p>
+ * Requests are retried according to the retry policy of the client configuration, like the SDK client does, so
+ * that injected throttling and server errors cost time instead of failing the workload.
+ */
+public class InMemoryClientFactory implements DynamoDBClientFactory {
+
+    @Override
+    public AmazonDynamoDB createClient(Region region, ClientConfiguration configuration,
+                                       RequestMetricCollector collector) {
+        return (AmazonDynamoDB) Proxy.newProxyInstance(AmazonDynamoDB.class.getClassLoader(),
+                new Class<?>[] {AmazonDynamoDB.class},
+                new RetryingHandler(InMemoryDynamoDB.getShared(), configuration.getRetryPolicy(),
+                        configuration.getMaxErrorRetry()));
+    }
+
+    /**
+     * Retries requests that fail with a retryable error.
+     */
+    private static final class RetryingHandler implements InvocationHandler {
+
+        private final AmazonDynamoDB delegate;
+        private final RetryPolicy retryPolicy;
+        private final int maxErrorRetry;
+
+        private RetryingHandler(AmazonDynamoDB delegate, RetryPolicy retryPolicy, int maxErrorRetry) {
+            this.delegate = delegate;
+            this.retryPolicy = retryPolicy;
+            this.maxErrorRetry = maxErrorRetry < 0 ? retryPolicy.getMaxErrorRetry() : maxErrorRetry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            AmazonWebServiceRequest request = args != null && args.length == 1
+                    && args[0] instanceof AmazonWebServiceRequest ? (AmazonWebServiceRequest) args[0] : null;
+            for (int retries = 0;; retries++) {
+                try {
+                    return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                    if (request == null || retries >= maxErrorRetry
+                            || !(e.getCause() instanceof AmazonClientException)) {
+                        throw e.getCause();
+                    }
+                    AmazonClientException exception = (AmazonClientException) e.getCause();
+                    if (!retryPolicy.getRetryCondition().shouldRetry(request, exception, retries)) {
+                        throw exception;
+                    }
+                    pause(retryPolicy.getBackoffStrategy().delayBeforeNextRetry(request, exception, retries));
+                }
+            }
+        }
+
+        private static void pause(long delay) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException("Interrupted while backing off", e);
+            }
+        }
+    }
+}
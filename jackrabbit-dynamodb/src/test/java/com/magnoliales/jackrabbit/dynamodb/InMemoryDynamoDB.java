@@ -0,0 +1,890 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AmazonDynamoDBException;
+import com.amazonaws.services.dynamodbv2.model.AttributeAction;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValueUpdate;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.CancellationReason;
+import com.amazonaws.services.dynamodbv2.model.ConditionCheck;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import com.amazonaws.services.dynamodbv2.model.CreateTableResult;
+import com.amazonaws.services.dynamodbv2.model.Delete;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemResult;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DeleteTableResult;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableRequest;
+import com.amazonaws.services.dynamodbv2.model.DescribeTableResult;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ListTablesRequest;
+import com.amazonaws.services.dynamodbv2.model.ListTablesResult;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughput;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.Put;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemResult;
+import com.amazonaws.services.dynamodbv2.model.QueryRequest;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ResourceInUseException;
+import com.amazonaws.services.dynamodbv2.model.ResourceNotFoundException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import com.amazonaws.services.dynamodbv2.model.ScanResult;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.dynamodbv2.model.TableStatus;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItem;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsRequest;
+import com.amazonaws.services.dynamodbv2.model.TransactWriteItemsResult;
+import com.amazonaws.services.dynamodbv2.model.TransactionCanceledException;
+import com.amazonaws.services.dynamodbv2.model.Update;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in for DynamoDB that implements the operations used by the persistence manager and the data
+ * store: table management, single item reads and writes with condition and update expressions, batch reads and
+ * writes, write transactions, scans with parallel segments and queries.
+ *
+ * <p>
+ * Every request can be delayed by a fixed latency plus a random jitter, and fail with a configurable probability,
+ * either with a throttling error or with an internal server error. Items of batch requests are throttled one by
+ * one and returned as unprocessed, like DynamoDB does under load. Consumed capacity is reported if requested, so
+ * the client side rate limiter can be exercised as well. Items are kept in key order, so scans and queries return
+ * stable results.
+ */
+public class InMemoryDynamoDB extends AbstractAmazonDynamoDB {
+
+    private static final InMemoryDynamoDB SHARED = createShared();
+
+    private static final int BAD_REQUEST = 400;
+    private static final int INTERNAL_SERVER_ERROR = 500;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_BATCH_GET = 100;
+    private static final int MAX_BATCH_WRITE = 25;
+    private static final int READ_UNIT_SIZE = 4096;
+    private static final int WRITE_UNIT_SIZE = 1024;
+    private static final double EVENTUAL_READ_FACTOR = 0.5;
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private final ConcurrentMap<String, MemoryTable> tables = new ConcurrentHashMap<>();
+    private volatile long latency;
+    private volatile long jitter;
+    private volatile double throttleRate;
+    private volatile double failureRate;
+
+    /**
+     * @return the instance shared by all clients of {@link InMemoryClientFactory}
+     */
+    public static InMemoryDynamoDB getShared() {
+        return SHARED;
+    }
+
+    private static InMemoryDynamoDB createShared() {
+        InMemoryDynamoDB dynamoDB = new InMemoryDynamoDB();
+        dynamoDB.setLatency(Long.getLong("dynamodb.memory.latency", 0L));
+        dynamoDB.setJitter(Long.getLong("dynamodb.memory.jitter", 0L));
+        dynamoDB.setThrottleRate(Double.parseDouble(System.getProperty("dynamodb.memory.throttleRate", "0")));
+        dynamoDB.setFailureRate(Double.parseDouble(System.getProperty("dynamodb.memory.failureRate", "0")));
+        return dynamoDB;
+    }
+
+    /**
+     * @param latency the time in milliseconds every request is delayed
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param jitter the maximum random time in milliseconds added to the latency
+     */
+    public void setJitter(long jitter) {
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param throttleRate the probability that a request or an item of a batch request is throttled
+     */
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /**
+     * @param failureRate the probability that a request fails with an internal server error
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @param tableName the name of the table
+     * @return the number of items in the table
+     */
+    public int getItemCount(String tableName) {
+        return getTable(tableName).items.size();
+    }
+
+    /**
+     * Drop all tables.
+     */
+    public void clear() {
+        tables.clear();
+    }
+
+    @Override
+    public CreateTableResult createTable(CreateTableRequest request) {
+        simulate(false);
+        MemoryTable table = new MemoryTable(request.getTableName(), request.getKeySchema(),
+                request.getProvisionedThroughput());
+        if (tables.putIfAbsent(request.getTableName(), table) != null) {
+            ResourceInUseException exception = new ResourceInUseException("Table already exists: "
+                    + request.getTableName());
+            exception.setErrorCode("ResourceInUseException");
+            exception.setStatusCode(BAD_REQUEST);
+            throw exception;
+        }
+        return new CreateTableResult().withTableDescription(table.describe());
+    }
+
+    @Override
+    public DescribeTableResult describeTable(DescribeTableRequest request) {
+        simulate(false);
+        return new DescribeTableResult().withTable(getTable(request.getTableName()).describe());
+    }
+
+    @Override
+    public DeleteTableResult deleteTable(DeleteTableRequest request) {
+        simulate(false);
+        MemoryTable table = getTable(request.getTableName());
+        tables.remove(request.getTableName());
+        return new DeleteTableResult().withTableDescription(table.describe());
+    }
+
+    @Override
+    public ListTablesResult listTables(ListTablesRequest request) {
+        simulate(false);
+        List<String> names = new ArrayList<>(tables.keySet());
+        Collections.sort(names);
+        return new ListTablesResult().withTableNames(names);
+    }
+
+    @Override
+    public GetItemResult getItem(GetItemRequest request) {
+        simulate(true);
+        MemoryTable table = getTable(request.getTableName());
+        Map<String, AttributeValue> item = table.items.get(table.getKey(request.getKey()));
+        GetItemResult result = new GetItemResult();
+        if (item != null) {
+            result.setItem(project(item, request.getProjectionExpression(), request.getAttributesToGet(),
+                    request.getExpressionAttributeNames()));
+        }
+        if (isReturnConsumedCapacity(request.getReturnConsumedCapacity())) {
+            result.setConsumedCapacity(table.capacity(readUnits(item, request.getConsistentRead())));
+        }
+        return result;
+    }
+
+    @Override
+    public PutItemResult putItem(PutItemRequest request) {
+        simulate(true);
+        MemoryTable table = getTable(request.getTableName());
+        Map<String, AttributeValue> item = new HashMap<>(request.getItem());
+        String key = table.getKey(item);
+        Map<String, AttributeValue> previous;
+        synchronized (this) {
+            previous = table.items.get(key);
+            checkCondition(request.getConditionExpression(), request.getExpressionAttributeNames(),
+                    request.getExpressionAttributeValues(), previous);
+            table.items.put(key, item);
+        }
+        PutItemResult result = new PutItemResult();
+        if (ReturnValue.ALL_OLD.toString().equals(request.getReturnValues()) && previous != null) {
+            result.setAttributes(new HashMap<>(previous));
+        }
+        if (isReturnConsumedCapacity(request.getReturnConsumedCapacity())) {
+            result.setConsumedCapacity(table.capacity(writeUnits(item, previous)));
+        }
+        return result;
+    }
+
+    @Override
+    public UpdateItemResult updateItem(UpdateItemRequest request) {
+        simulate(true);
+        MemoryTable table = getTable(request.getTableName());
+        String key = table.getKey(request.getKey());
+        Map<String, AttributeValue> previous;
+        Map<String, AttributeValue> item;
+        synchronized (this) {
+            previous = table.items.get(key);
+            checkCondition(request.getConditionExpression(), request.getExpressionAttributeNames(),
+                    request.getExpressionAttributeValues(), previous);
+            item = update(previous, request.getKey(), request.getUpdateExpression(),
+                    request.getAttributeUpdates(), request.getExpressionAttributeNames(),
+                    request.getExpressionAttributeValues());
+            table.items.put(key, item);
+        }
+        UpdateItemResult result = new UpdateItemResult();
+        if (ReturnValue.ALL_NEW.toString().equals(request.getReturnValues())) {
+            result.setAttributes(new HashMap<>(item));
+        } else if (ReturnValue.ALL_OLD.toString().equals(request.getReturnValues()) && previous != null) {
+            result.setAttributes(new HashMap<>(previous));
+        } else if (ReturnValue.UPDATED_NEW.toString().equals(request.getReturnValues())) {
+            result.setAttributes(getChanged(item, previous));
+        } else if (ReturnValue.UPDATED_OLD.toString().equals(request.getReturnValues()) && previous != null) {
+            result.setAttributes(getChanged(previous, item));
+        }
+        if (isReturnConsumedCapacity(request.getReturnConsumedCapacity())) {
+            result.setConsumedCapacity(table.capacity(writeUnits(item, previous)));
+        }
+        return result;
+    }
+
+    @Override
+    public DeleteItemResult deleteItem(DeleteItemRequest request) {
+        simulate(true);
+        MemoryTable table = getTable(request.getTableName());
+        String key = table.getKey(request.getKey());
+        Map<String, AttributeValue> previous;
+        synchronized (this) {
+            previous = table.items.get(key);
+            checkCondition(request.getConditionExpression(), request.getExpressionAttributeNames(),
+                    request.getExpressionAttributeValues(), previous);
+            table.items.remove(key);
+        }
+        DeleteItemResult result = new DeleteItemResult();
+        if (ReturnValue.ALL_OLD.toString().equals(request.getReturnValues()) && previous != null) {
+            result.setAttributes(new HashMap<>(previous));
+        }
+        if (isReturnConsumedCapacity(request.getReturnConsumedCapacity())) {
+            result.setConsumedCapacity(table.capacity(writeUnits(previous, null)));
+        }
+        return result;
+    }
+
+    @Override
+    public BatchGetItemResult batchGetItem(BatchGetItemRequest request) {
+        simulate(false);
+        int count = 0;
+        for (KeysAndAttributes keysAndAttributes : request.getRequestItems().values()) {
+            count += keysAndAttributes.getKeys().size();
+        }
+        if (count > MAX_BATCH_GET) {
+            throw Expressions.validation("Too many items requested for the BatchGetItem call");
+        }
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        Map<String, KeysAndAttributes> unprocessed = new HashMap<>();
+        List<ConsumedCapacity> consumedCapacities = new ArrayList<>();
+        int throttled = 0;
+        for (Map.Entry<String, KeysAndAttributes> entry : request.getRequestItems().entrySet()) {
+            MemoryTable table = getTable(entry.getKey());
+            KeysAndAttributes keysAndAttributes = entry.getValue();
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            double units = 0;
+            for (Map<String, AttributeValue> key : keysAndAttributes.getKeys()) {
+                if (isThrottled()) {
+                    throttled++;
+                    KeysAndAttributes remaining = unprocessed.get(entry.getKey());
+                    if (remaining == null) {
+                        remaining = new KeysAndAttributes()
+                                .withProjectionExpression(keysAndAttributes.getProjectionExpression())
+                                .withAttributesToGet(keysAndAttributes.getAttributesToGet())
+                                .withExpressionAttributeNames(keysAndAttributes.getExpressionAttributeNames())
+                                .withConsistentRead(keysAndAttributes.getConsistentRead())
+                                .withKeys(new ArrayList<Map<String, AttributeValue>>());
+                        unprocessed.put(entry.getKey(), remaining);
+                    }
+                    remaining.getKeys().add(key);
+                    continue;
+                }
+                Map<String, AttributeValue> item = table.items.get(table.getKey(key));
+                units += readUnits(item, keysAndAttributes.getConsistentRead());
+                if (item != null) {
+                    items.add(project(item, keysAndAttributes.getProjectionExpression(),
+                            keysAndAttributes.getAttributesToGet(),
+                            keysAndAttributes.getExpressionAttributeNames()));
+                }
+            }
+            responses.put(entry.getKey(), items);
+            consumedCapacities.add(table.capacity(units));
+        }
+        if (throttled == count && count > 0) {
+            throw throttlingException();
+        }
+        BatchGetItemResult result = new BatchGetItemResult().withResponses(responses).withUnprocessedKeys(unprocessed);
+        if (isReturnConsumedCapacity(request.getReturnConsumedCapacity())) {
+            result.setConsumedCapacity(consumedCapacities);
+        }
+        return result;
+    }
+
+    @Override
+    public BatchWriteItemResult batchWriteItem(BatchWriteItemRequest request) {
+        simulate(false);
+        int count = 0;
+        for (List<WriteRequest> requests : request.getRequestItems().values()) {
+            count += requests.size();
+        }
+        if (count > MAX_BATCH_WRITE) {
+            throw Expressions.validation("Too many items requested for the BatchWriteItem call");
+        }
+        Map<String, List<WriteRequest>> unprocessed = new HashMap<>();
+        List<ConsumedCapacity> consumedCapacities = new ArrayList<>();
+        int throttled = 0;
+        synchronized (this) {
+            for (Map.Entry<String, List<WriteRequest>> entry : request.getRequestItems().entrySet()) {
+                MemoryTable table = getTable(entry.getKey());
+                double units = 0;
+                for (WriteRequest writeRequest : entry.getValue()) {
+                    if (isThrottled()) {
+                        throttled++;
+                        List<WriteRequest> remaining = unprocessed.get(entry.getKey());
+                        if (remaining == null) {
+                            remaining = new ArrayList<>();
+                            unprocessed.put(entry.getKey(), remaining);
+                        }
+                        remaining.add(writeRequest);
+                        continue;
+                    }
+                    if (writeRequest.getPutRequest() != null) {
+                        Map<String, AttributeValue> item = new HashMap<>(writeRequest.getPutRequest().getItem());
+                        Map<String, AttributeValue> previous = table.items.put(table.getKey(item), item);
+                        units += writeUnits(item, previous);
+                    } else {
+                        Map<String, AttributeValue> previous =
+                                table.items.remove(table.getKey(writeRequest.getDeleteRequest().getKey()));
+                        units += writeUnits(previous, null);
+                    }
+                }
+                consumedCapacities.add(table.capacity(units));
+            }
+        }
+        if (throttled == count && count > 0) {
+            throw throttlingException();
+        }
+        BatchWriteItemResult result = new BatchWriteItemResult().withUnprocessedItems(unprocessed);
+        if (isReturnConsumedCapacity(request.getReturnConsumedCapacity())) {
+            result.setConsumedCapacity(consumedCapacities);
+        }
+        return result;
+    }
+
+    @Override
+    public TransactWriteItemsResult transactWriteItems(TransactWriteItemsRequest request) {
+        simulate(true);
+        Map<String, Double> units = new HashMap<>();
+        synchronized (this) {
+            List<CancellationReason> reasons = new ArrayList<>();
+            boolean cancelled = false;
+            for (TransactWriteItem transactItem : request.getTransactItems()) {
+                String reason = "None";
+                if (!checkTransactCondition(transactItem)) {
+                    reason = "ConditionalCheckFailed";
+                    cancelled = true;
+                }
+                reasons.add(new CancellationReason().withCode(reason));
+            }
+            if (cancelled) {
+                TransactionCanceledException exception = new TransactionCanceledException(
+                        "Transaction cancelled, please refer cancellation reasons for specific reasons");
+                exception.setCancellationReasons(reasons);
+                exception.setErrorCode("TransactionCanceledException");
+                exception.setStatusCode(BAD_REQUEST);
+                throw exception;
+            }
+            for (TransactWriteItem transactItem : request.getTransactItems()) {
+                String tableName;
+                double consumed;
+                if (transactItem.getPut() != null) {
+                    Put put = transactItem.getPut();
+                    tableName = put.getTableName();
+                    MemoryTable table = getTable(tableName);
+                    Map<String, AttributeValue> item = new HashMap<>(put.getItem());
+                    consumed = writeUnits(item, table.items.put(table.getKey(item), item));
+                } else if (transactItem.getDelete() != null) {
+                    Delete delete = transactItem.getDelete();
+                    tableName = delete.getTableName();
+                    MemoryTable table = getTable(tableName);
+                    consumed = writeUnits(table.items.remove(table.getKey(delete.getKey())), null);
+                } else if (transactItem.getUpdate() != null) {
+                    Update update = transactItem.getUpdate();
+                    tableName = update.getTableName();
+                    MemoryTable table = getTable(tableName);
+                    String key = table.getKey(update.getKey());
+                    Map<String, AttributeValue> previous = table.items.get(key);
+                    Map<String, AttributeValue> item = update(previous, update.getKey(),
+                            update.getUpdateExpression(), null, update.getExpressionAttributeNames(),
+                            update.getExpressionAttributeValues());
+                    table.items.put(key, item);
+                    consumed = writeUnits(item, previous);
+                } else {
+                    tableName = transactItem.getConditionCheck().getTableName();
+                    consumed = 1;
+                }
+                Double total = units.get(tableName);
+                units.put(tableName, (total == null ? 0 : total) + 2 * consumed);
+            }
+        }
+        TransactWriteItemsResult result = new TransactWriteItemsResult();
+        if (isReturnConsumedCapacity(request.getReturnConsumedCapacity())) {
+            List<ConsumedCapacity> consumedCapacities = new ArrayList<>();
+            for (Map.Entry<String, Double> entry : units.entrySet()) {
+                consumedCapacities.add(getTable(entry.getKey()).capacity(entry.getValue()));
+            }
+            result.setConsumedCapacity(consumedCapacities);
+        }
+        return result;
+    }
+
+    @Override
+    public ScanResult scan(ScanRequest request) {
+        simulate(true);
+        MemoryTable table = getTable(request.getTableName());
+        int segment = request.getSegment() == null ? 0 : request.getSegment();
+        int totalSegments = request.getTotalSegments() == null ? 1 : request.getTotalSegments();
+        Map<String, Map<String, AttributeValue>> items = table.items;
+        if (request.getExclusiveStartKey() != null) {
+            items = table.items.tailMap(table.getKey(request.getExclusiveStartKey()), false);
+        }
+        int limit = request.getLimit() == null ? MAX_PAGE_SIZE : Math.min(request.getLimit(), MAX_PAGE_SIZE);
+        List<Map<String, AttributeValue>> page = new ArrayList<>();
+        Map<String, AttributeValue> lastEvaluated = null;
+        int evaluated = 0;
+        double units = 0;
+        Iterator<Map.Entry<String, Map<String, AttributeValue>>> iterator = items.entrySet().iterator();
+        while (iterator.hasNext() && evaluated < limit) {
+            Map.Entry<String, Map<String, AttributeValue>> entry = iterator.next();
+            if (totalSegments > 1 && Math.abs(entry.getKey().hashCode() % totalSegments) != segment) {
+                continue;
+            }
+            Map<String, AttributeValue> item = entry.getValue();
+            evaluated++;
+            units += readUnits(item, request.getConsistentRead());
+            lastEvaluated = table.getKeyAttributes(item);
+            if (Expressions.matches(request.getFilterExpression(), request.getExpressionAttributeNames(),
+                    request.getExpressionAttributeValues(), item)) {
+                page.add(project(item, request.getProjectionExpression(), request.getAttributesToGet(),
+                        request.getExpressionAttributeNames()));
+            }
+        }
+        ScanResult result = new ScanResult().withItems(page).withCount(page.size()).withScannedCount(evaluated);
+        if (hasMore(iterator, totalSegments, segment)) {
+            result.setLastEvaluatedKey(lastEvaluated);
+        }
+        if (isReturnConsumedCapacity(request.getReturnConsumedCapacity())) {
+            result.setConsumedCapacity(table.capacity(units));
+        }
+        return result;
+    }
+
+    @Override
+    public QueryResult query(QueryRequest request) {
+        simulate(true);
+        final MemoryTable table = getTable(request.getTableName());
+        List<Map<String, AttributeValue>> matches = new ArrayList<>();
+        for (Map<String, AttributeValue> item : table.items.values()) {
+            if (Expressions.matches(request.getKeyConditionExpression(), request.getExpressionAttributeNames(),
+                    request.getExpressionAttributeValues(), item)) {
+                matches.add(item);
+            }
+        }
+        if (table.rangeKey != null) {
+            Collections.sort(matches, new Comparator<Map<String, AttributeValue>>() {
+                @Override
+                public int compare(Map<String, AttributeValue> a, Map<String, AttributeValue> b) {
+                    return Expressions.compare(a.get(table.rangeKey), b.get(table.rangeKey));
+                }
+            });
+        }
+        if (Boolean.FALSE.equals(request.getScanIndexForward())) {
+            Collections.reverse(matches);
+        }
+        int start = 0;
+        if (request.getExclusiveStartKey() != null) {
+            String startKey = table.getKey(request.getExclusiveStartKey());
+            while (start < matches.size() && !table.getKey(matches.get(start)).equals(startKey)) {
+                start++;
+            }
+            start++;
+        }
+        int limit = request.getLimit() == null ? MAX_PAGE_SIZE : Math.min(request.getLimit(), MAX_PAGE_SIZE);
+        int end = Math.min(matches.size(), start + limit);
+        List<Map<String, AttributeValue>> page = new ArrayList<>();
+        double units = 0;
+        for (int i = start; i < end; i++) {
+            Map<String, AttributeValue> item = matches.get(i);
+            units += readUnits(item, request.getConsistentRead());
+            if (Expressions.matches(request.getFilterExpression(), request.getExpressionAttributeNames(),
+                    request.getExpressionAttributeValues(), item)) {
+                page.add(project(item, request.getProjectionExpression(), request.getAttributesToGet(),
+                        request.getExpressionAttributeNames()));
+            }
+        }
+        QueryResult result = new QueryResult().withItems(page).withCount(page.size())
+                .withScannedCount(Math.max(0, end - start));
+        if (end < matches.size()) {
+            result.setLastEvaluatedKey(table.getKeyAttributes(matches.get(end - 1)));
+        }
+        if (isReturnConsumedCapacity(request.getReturnConsumedCapacity())) {
+            result.setConsumedCapacity(table.capacity(units));
+        }
+        return result;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    private MemoryTable getTable(String tableName) {
+        MemoryTable table = tables.get(tableName);
+        if (table == null) {
+            ResourceNotFoundException exception = new ResourceNotFoundException(
+                    "Requested resource not found: Table: " + tableName + " not found");
+            exception.setErrorCode("ResourceNotFoundException");
+            exception.setStatusCode(BAD_REQUEST);
+            throw exception;
+        }
+        return table;
+    }
+
+    private boolean checkTransactCondition(TransactWriteItem transactItem) {
+        String tableName;
+        Map<String, AttributeValue> key;
+        String condition;
+        Map<String, String> names;
+        Map<String, AttributeValue> values;
+        if (transactItem.getPut() != null) {
+            Put put = transactItem.getPut();
+            tableName = put.getTableName();
+            key = put.getItem();
+            condition = put.getConditionExpression();
+            names = put.getExpressionAttributeNames();
+            values = put.getExpressionAttributeValues();
+        } else if (transactItem.getDelete() != null) {
+            Delete delete = transactItem.getDelete();
+            tableName = delete.getTableName();
+            key = delete.getKey();
+            condition = delete.getConditionExpression();
+            names = delete.getExpressionAttributeNames();
+            values = delete.getExpressionAttributeValues();
+        } else if (transactItem.getUpdate() != null) {
+            Update update = transactItem.getUpdate();
+            tableName = update.getTableName();
+            key = update.getKey();
+            condition = update.getConditionExpression();
+            names = update.getExpressionAttributeNames();
+            values = update.getExpressionAttributeValues();
+        } else {
+            ConditionCheck check = transactItem.getConditionCheck();
+            tableName = check.getTableName();
+            key = check.getKey();
+            condition = check.getConditionExpression();
+            names = check.getExpressionAttributeNames();
+            values = check.getExpressionAttributeValues();
+        }
+        MemoryTable table = getTable(tableName);
+        return Expressions.matches(condition, names, values, table.items.get(table.getKey(key)));
+    }
+
+    private static void checkCondition(String condition, Map<String, String> names,
+                                       Map<String, AttributeValue> values, Map<String, AttributeValue> item) {
+        if (!Expressions.matches(condition, names, values, item)) {
+            ConditionalCheckFailedException exception =
+                    new ConditionalCheckFailedException("The conditional request failed");
+            exception.setErrorCode("ConditionalCheckFailedException");
+            exception.setStatusCode(BAD_REQUEST);
+            throw exception;
+        }
+    }
+
+    private static Map<String, AttributeValue> update(Map<String, AttributeValue> previous,
+                                                      Map<String, AttributeValue> key, String expression,
+                                                      Map<String, AttributeValueUpdate> attributeUpdates,
+                                                      Map<String, String> names,
+                                                      Map<String, AttributeValue> values) {
+        Map<String, AttributeValue> item = previous == null ? new HashMap<>(key) : new HashMap<>(previous);
+        if (expression != null) {
+            Expressions.update(expression, names, values, item);
+        }
+        if (attributeUpdates != null) {
+            for (Map.Entry<String, AttributeValueUpdate> entry : attributeUpdates.entrySet()) {
+                AttributeValueUpdate attributeUpdate = entry.getValue();
+                String action = attributeUpdate.getAction() == null
+                        ? AttributeAction.PUT.toString() : attributeUpdate.getAction();
+                AttributeValue value = attributeUpdate.getValue();
+                if (AttributeAction.PUT.toString().equals(action)) {
+                    item.put(entry.getKey(), value);
+                } else if (AttributeAction.ADD.toString().equals(action)) {
+                    item.put(entry.getKey(), Expressions.add(item.get(entry.getKey()), value));
+                } else if (value == null) {
+                    item.remove(entry.getKey());
+                } else {
+                    AttributeValue remaining = Expressions.removeElements(item.get(entry.getKey()), value);
+                    if (remaining == null) {
+                        item.remove(entry.getKey());
+                    } else {
+                        item.put(entry.getKey(), remaining);
+                    }
+                }
+            }
+        }
+        return item;
+    }
+
+    /**
+     * @return the attributes of the item that are missing or different in the other item
+     */
+    private static Map<String, AttributeValue> getChanged(Map<String, AttributeValue> item,
+                                                          Map<String, AttributeValue> other) {
+        Map<String, AttributeValue> changed = new HashMap<>();
+        for (Map.Entry<String, AttributeValue> entry : item.entrySet()) {
+            if (other == null || !entry.getValue().equals(other.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changed;
+    }
+
+    private static Map<String, AttributeValue> project(Map<String, AttributeValue> item, String projection,
+                                                       Collection<String> attributesToGet,
+                                                       Map<String, String> names) {
+        Collection<String> attributes = attributesToGet;
+        if (projection != null) {
+            attributes = Expressions.projection(projection, names);
+        }
+        if (attributes == null || attributes.isEmpty()) {
+            return new HashMap<>(item);
+        }
+        Map<String, AttributeValue> projected = new HashMap<>();
+        for (String attribute : attributes) {
+            AttributeValue value = item.get(attribute);
+            if (value != null) {
+                projected.put(attribute, value);
+            }
+        }
+        return projected;
+    }
+
+    private static boolean hasMore(Iterator<Map.Entry<String, Map<String, AttributeValue>>> iterator,
+                                   int totalSegments, int segment) {
+        while (iterator.hasNext()) {
+            if (totalSegments == 1 || Math.abs(iterator.next().getKey().hashCode() % totalSegments) == segment) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isReturnConsumedCapacity(String returnConsumedCapacity) {
+        return returnConsumedCapacity != null
+                && !ReturnConsumedCapacity.NONE.toString().equals(returnConsumedCapacity);
+    }
+
+    private static double readUnits(Map<String, AttributeValue> item, Boolean consistentRead) {
+        double units = Math.max(1, Math.ceil((double) getSize(item) / READ_UNIT_SIZE));
+        return Boolean.TRUE.equals(consistentRead) ? units : units * EVENTUAL_READ_FACTOR;
+    }
+
+    private static double writeUnits(Map<String, AttributeValue> item, Map<String, AttributeValue> previous) {
+        long size = Math.max(getSize(item), getSize(previous));
+        return Math.max(1, Math.ceil((double) size / WRITE_UNIT_SIZE));
+    }
+
+    private static long getSize(Map<String, AttributeValue> item) {
+        if (item == null) {
+            return 0;
+        }
+        long size = 0;
+        for (Map.Entry<String, AttributeValue> entry : item.entrySet()) {
+            size += entry.getKey().length() + getSize(entry.getValue());
+        }
+        return size;
+    }
+
+    private static long getSize(AttributeValue value) {
+        long size = 1;
+        if (value.getS() != null) {
+            size = value.getS().getBytes(StandardCharsets.UTF_8).length;
+        } else if (value.getN() != null) {
+            size = value.getN().length() / 2 + 1;
+        } else if (value.getB() != null) {
+            size = value.getB().remaining();
+        } else if (value.getSS() != null) {
+            size = 0;
+            for (String element : value.getSS()) {
+                size += element.getBytes(StandardCharsets.UTF_8).length;
+            }
+        } else if (value.getNS() != null) {
+            size = 0;
+            for (String element : value.getNS()) {
+                size += element.length() / 2 + 1;
+            }
+        } else if (value.getBS() != null) {
+            size = 0;
+            for (ByteBuffer element : value.getBS()) {
+                size += element.remaining();
+            }
+        } else if (value.getL() != null) {
+            size = 2 + 1;
+            for (AttributeValue element : value.getL()) {
+                size += getSize(element) + 1;
+            }
+        } else if (value.getM() != null) {
+            size = 2 + 1 + getSize(value.getM());
+        }
+        return size;
+    }
+
+    private void simulate(boolean throttle) {
+        long delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException("Interrupted while simulating latency", e);
+            }
+        }
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            AmazonDynamoDBException exception = new AmazonDynamoDBException("Injected failure");
+            exception.setErrorCode("InternalServerError");
+            exception.setErrorType(AmazonServiceException.ErrorType.Service);
+            exception.setStatusCode(INTERNAL_SERVER_ERROR);
+            throw exception;
+        }
+        if (throttle && isThrottled()) {
+            throw throttlingException();
+        }
+    }
+
+    private boolean isThrottled() {
+        return throttleRate > 0 && ThreadLocalRandom.current().nextDouble() < throttleRate;
+    }
+
+    private static ProvisionedThroughputExceededException throttlingException() {
+        ProvisionedThroughputExceededException exception = new ProvisionedThroughputExceededException(
+                "The level of configured provisioned throughput for the table was exceeded");
+        exception.setErrorCode("ProvisionedThroughputExceededException");
+        exception.setStatusCode(BAD_REQUEST);
+        return exception;
+    }
+
+    /**
+     * Items of a table in key order.
+     */
+    private static final class MemoryTable {
+
+        private final String name;
+        private final List<KeySchemaElement> keySchema;
+        private final String hashKey;
+        private final String rangeKey;
+        private final ProvisionedThroughput throughput;
+        private final Date created = new Date();
+        private final ConcurrentSkipListMap<String, Map<String, AttributeValue>> items =
+                new ConcurrentSkipListMap<>();
+
+        private MemoryTable(String name, List<KeySchemaElement> keySchema, ProvisionedThroughput throughput) {
+            this.name = name;
+            this.keySchema = new ArrayList<>(keySchema);
+            this.throughput = throughput;
+            String hash = null;
+            String range = null;
+            for (KeySchemaElement element : keySchema) {
+                if (KeyType.HASH.toString().equals(element.getKeyType())) {
+                    hash = element.getAttributeName();
+                } else {
+                    range = element.getAttributeName();
+                }
+            }
+            if (hash == null) {
+                throw Expressions.validation("No hash key in the key schema of table " + name);
+            }
+            this.hashKey = hash;
+            this.rangeKey = range;
+        }
+
+        private String getKey(Map<String, AttributeValue> item) {
+            String key = render(item.get(hashKey), hashKey);
+            if (rangeKey != null) {
+                key += KEY_SEPARATOR + render(item.get(rangeKey), rangeKey);
+            }
+            return key;
+        }
+
+        private Map<String, AttributeValue> getKeyAttributes(Map<String, AttributeValue> item) {
+            Map<String, AttributeValue> key = new HashMap<>();
+            key.put(hashKey, item.get(hashKey));
+            if (rangeKey != null) {
+                key.put(rangeKey, item.get(rangeKey));
+            }
+            return key;
+        }
+
+        private String render(AttributeValue value, String attributeName) {
+            if (value == null) {
+                throw Expressions.validation("Missing the key " + attributeName + " in the item of table " + name);
+            }
+            if (value.getS() != null) {
+                return value.getS();
+            }
+            if (value.getN() != null) {
+                return value.getN();
+            }
+            if (value.getB() != null) {
+                return new String(value.getB().array(), StandardCharsets.ISO_8859_1);
+            }
+            throw Expressions.validation("Invalid type of the key " + attributeName + " of table " + name);
+        }
+
+        private ConsumedCapacity capacity(double units) {
+            return new ConsumedCapacity().withTableName(name).withCapacityUnits(units);
+        }
+
+        private TableDescription describe() {
+            TableDescription description = new TableDescription()
+                    .withTableName(name)
+                    .withKeySchema(keySchema)
+                    .withTableStatus(TableStatus.ACTIVE)
+                    .withCreationDateTime(created)
+                    .withItemCount((long) items.size());
+            if (throughput != null) {
+                description.setProvisionedThroughput(new ProvisionedThroughputDescription()
+                        .withReadCapacityUnits(throughput.getReadCapacityUnits())
+                        .withWriteCapacityUnits(throughput.getWriteCapacityUnits()));
+            }
+            return description;
+        }
+    }
+}
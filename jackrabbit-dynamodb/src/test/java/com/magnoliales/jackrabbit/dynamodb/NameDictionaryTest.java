@@ -0,0 +1,67 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class NameDictionaryTest {
+
+    private static final String TABLE = "names";
+    private static final int UNKNOWN_INDEX = 1000;
+
+    private InMemoryDynamoDB dynamoDB;
+
+    @Before
+    public void setUp() {
+        dynamoDB = new InMemoryDynamoDB();
+        new TableKeys(null).getOrCreateTable(dynamoDB, TABLE, true);
+    }
+
+    @Test
+    public void testNamesAndNamespacesAreRegisteredOnce() throws Exception {
+        NameDictionary dictionary = new NameDictionary(dynamoDB, TABLE);
+        int name = dictionary.getIndex(NameConstants.JCR_CONTENT);
+        int namespace = dictionary.getNamespaceIndex(Name.NS_JCR_URI);
+        assertNotEquals(name, namespace);
+        assertEquals(name, dictionary.getIndex(NameConstants.JCR_CONTENT));
+        assertEquals(namespace, dictionary.getNamespaceIndex(Name.NS_JCR_URI));
+        assertSame(dictionary.getName(name), dictionary.getName(name));
+        assertEquals(NameConstants.JCR_CONTENT, dictionary.getName(name));
+        assertEquals(Name.NS_JCR_URI, dictionary.getNamespace(namespace));
+    }
+
+    @Test
+    public void testDictionariesShareTheTable() throws Exception {
+        NameDictionary first = new NameDictionary(dynamoDB, TABLE);
+        int index = first.getIndex(NameConstants.JCR_CONTENT);
+
+        // a dictionary that didn't load the table registers the same index and looks up unknown ones
+        NameDictionary second = new NameDictionary(dynamoDB, TABLE);
+        assertEquals(index, second.getIndex(NameConstants.JCR_CONTENT));
+        int other = first.getIndex(NameConstants.JCR_DATA);
+        assertEquals(NameConstants.JCR_DATA, second.getName(other));
+
+        NameDictionary loaded = new NameDictionary(dynamoDB, TABLE);
+        loaded.load();
+        assertEquals(2, loaded.size());
+        assertEquals(NameConstants.JCR_CONTENT, loaded.getName(index));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownIndex() throws Exception {
+        new NameDictionary(dynamoDB, TABLE).getName(UNKNOWN_INDEX);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNamespaceIndexIsNoName() throws Exception {
+        NameDictionary dictionary = new NameDictionary(dynamoDB, TABLE);
+        dictionary.getName(dictionary.getNamespaceIndex(Name.NS_JCR_URI));
+    }
+}
@@ -0,0 +1,90 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class RateLimitedClientTest {
+
+    private static final String TABLE = "bundles";
+    private static final double RATE = 10.0;
+    private static final long MIN_WAIT = 200L;
+    private static final long LATENCY = 500L;
+    private static final int KILOBYTE = 1024;
+    private static final int LARGE_ITEM = 10 * KILOBYTE;
+    private static final int SMALL_ITEM = 4 * KILOBYTE;
+
+    private final TableKeys keys = new TableKeys(null);
+    private InMemoryDynamoDB dynamoDB;
+    private TokenBucket reads;
+    private AmazonDynamoDB client;
+
+    @Before
+    public void setUp() {
+        dynamoDB = new InMemoryDynamoDB();
+        keys.getOrCreateTable(dynamoDB, TABLE, true);
+        reads = new TokenBucket("reads", RATE);
+        client = RateLimitedClient.wrap(dynamoDB, reads, new TokenBucket("writes", RATE));
+    }
+
+    @Test
+    public void testBackgroundReadsAreLowPriority() throws Exception {
+        // more than half of the tokens are taken, so an interactive read still passes at once
+        reads.acquire(RATE * 3 / 5, false);
+        long waited = getItem();
+        assertTrue("Waited " + waited + " ms", waited < MIN_WAIT);
+        RateLimitedClient.setLowPriority(true);
+        try {
+            waited = getItem();
+        } finally {
+            RateLimitedClient.setLowPriority(false);
+        }
+        assertTrue("Waited " + waited + " ms", waited >= MIN_WAIT);
+    }
+
+    @Test
+    public void testLargeWritesTakeTheirSizeUpFront() throws Exception {
+        dynamoDB.setLatency(LATENCY);
+        Thread large = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                putItem("large", LARGE_ITEM);
+            }
+        });
+        large.start();
+        Thread.sleep(MIN_WAIT / 2);
+        // the large write in flight took all the tokens, the small write waits for its units
+        long waited = putItem("small", SMALL_ITEM);
+        large.join();
+        assertTrue("Waited " + waited + " ms", waited >= LATENCY + MIN_WAIT);
+    }
+
+    /**
+     * @return the time the write took in milliseconds
+     */
+    private long putItem(String id, int size) {
+        Map<String, AttributeValue> item = new HashMap<>(keys.getKey(id));
+        item.put("data", new AttributeValue(new String(new char[size]).replace('\0', 'x')));
+        long start = System.nanoTime();
+        client.putItem(new PutItemRequest().withTableName(TABLE).withItem(item));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the time the read took in milliseconds
+     */
+    private long getItem() {
+        long start = System.nanoTime();
+        client.getItem(new GetItemRequest().withTableName(TABLE).withKey(keys.getKey("node")));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
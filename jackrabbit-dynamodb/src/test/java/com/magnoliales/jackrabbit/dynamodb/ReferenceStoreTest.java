@@ -0,0 +1,270 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReferenceStoreTest {
+
+    private static final String TABLE = "references";
+    private static final String BUNDLE_TABLE = "bundles";
+    private static final int REFERENCES = 200;
+
+    private InMemoryDynamoDB dynamoDB;
+    private ReferenceStore store;
+    private NodeId targetId;
+
+    @Before
+    public void setUp() {
+        dynamoDB = new InMemoryDynamoDB();
+        new TableKeys(null).getOrCreateTable(dynamoDB, TABLE, true);
+        new TableKeys(null).getOrCreateTable(dynamoDB, BUNDLE_TABLE, true);
+        store = new ReferenceStore(dynamoDB, new TableKeys(null), TABLE, BUNDLE_TABLE);
+        targetId = NodeId.randomId();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        assertNull(store.load(targetId));
+        assertFalse(store.exists(targetId));
+        List<PropertyId> references = createReferences(REFERENCES);
+        apply(store.getUpdates(targetId, references));
+        assertTrue(store.exists(targetId));
+        assertEquals(new HashSet<>(references), getReferences());
+        assertTrue(store.getUpdates(targetId, references).isEmpty());
+    }
+
+    @Test
+    public void testDeltasOnlyTouchChangedBuckets() throws Exception {
+        List<PropertyId> references = createReferences(REFERENCES);
+        apply(store.getUpdates(targetId, references));
+
+        List<PropertyId> added = new ArrayList<>(references);
+        added.add(createReference());
+        List<UpdateItemRequest> updates = store.getUpdates(targetId, added);
+        // the bucket and the count of the head item
+        assertEquals(2, updates.size());
+        assertTrue(updates.get(0).getUpdateExpression().startsWith("ADD #r "));
+        assertTrue(updates.get(1).getUpdateExpression().startsWith("ADD #c "));
+        apply(updates);
+        assertEquals(new HashSet<>(added), getReferences());
+
+        List<PropertyId> removed = new ArrayList<>(added.subList(1, added.size()));
+        updates = store.getUpdates(targetId, removed);
+        assertEquals(2, updates.size());
+        assertTrue(updates.get(0).getUpdateExpression().startsWith("DELETE "));
+        assertTrue(updates.get(1).getUpdateExpression().startsWith("ADD #c "));
+        apply(updates);
+        assertEquals(new HashSet<>(removed), getReferences());
+    }
+
+    @Test
+    public void testConcurrentDeltasAreMerged() throws Exception {
+        List<PropertyId> references = createReferences(REFERENCES);
+        apply(store.getUpdates(targetId, references));
+        List<PropertyId> first = new ArrayList<>(references);
+        first.add(createReference());
+        List<PropertyId> second = new ArrayList<>(references.subList(1, references.size()));
+        List<UpdateItemRequest> firstUpdates = store.getUpdates(targetId, first);
+        List<UpdateItemRequest> secondUpdates = store.getUpdates(targetId, second);
+        assertFalse(isRewrite(firstUpdates));
+        assertFalse(isRewrite(secondUpdates));
+        apply(firstUpdates);
+        apply(secondUpdates);
+        Set<PropertyId> expected = new HashSet<>(first);
+        expected.remove(references.get(0));
+        assertEquals(expected, getReferences());
+    }
+
+    @Test
+    public void testRewriteOfChangedBucketFails() throws Exception {
+        List<PropertyId> references = createReferences(REFERENCES);
+        apply(store.getUpdates(targetId, references));
+
+        // replace a reference with one of the same bucket, which rewrites the bucket
+        List<UpdateItemRequest> rewrite = null;
+        List<PropertyId> replaced = null;
+        while (rewrite == null) {
+            replaced = new ArrayList<>(references.subList(1, references.size()));
+            replaced.add(createReference());
+            List<UpdateItemRequest> updates = store.getUpdates(targetId, replaced);
+            if (isRewrite(updates)) {
+                rewrite = updates;
+            }
+        }
+        assertEquals(1, rewrite.size());
+
+        // another cluster node added a reference to the same bucket in the meantime
+        List<PropertyId> concurrent = null;
+        List<UpdateItemRequest> addition = null;
+        while (addition == null) {
+            concurrent = new ArrayList<>(references);
+            concurrent.add(createReference());
+            List<UpdateItemRequest> updates = store.getUpdates(targetId, concurrent);
+            if (updates.get(0).getKey().equals(rewrite.get(0).getKey())) {
+                addition = updates;
+            }
+        }
+        apply(addition);
+        try {
+            apply(rewrite);
+            fail("Rewrote a bucket that changed concurrently");
+        } catch (ConditionalCheckFailedException e) {
+            assertEquals(new HashSet<>(concurrent), getReferences());
+        }
+        apply(store.getUpdates(targetId, replaced));
+        assertEquals(new HashSet<>(replaced), getReferences());
+    }
+
+    @Test
+    public void testCountIsCorrectedByNextUpdate() throws Exception {
+        List<PropertyId> references = createReferences(REFERENCES);
+        apply(store.getUpdates(targetId, references));
+        List<PropertyId> removed = references.subList(0, 1);
+        List<UpdateItemRequest> updates = store.getUpdates(targetId, removed);
+        // another cluster node removed the same references concurrently, so the count is taken twice
+        apply(updates);
+        apply(updates);
+        assertFalse(store.exists(targetId));
+        apply(store.getUpdates(targetId, removed));
+        assertTrue(store.exists(targetId));
+        assertTrue(store.getUpdates(targetId, removed).isEmpty());
+    }
+
+    @Test
+    public void testFullBucketsOverflow() throws Exception {
+        // a bucket item holds a single reference
+        store = new ReferenceStore(dynamoDB, new TableKeys(null), TABLE, BUNDLE_TABLE,
+                createReference().toString().length());
+        List<PropertyId> references = createReferences(REFERENCES);
+        apply(store.getUpdates(targetId, references));
+        assertEquals(REFERENCES + 1, dynamoDB.getItemCount(TABLE));
+        assertEquals(new HashSet<>(references), getReferences());
+        assertTrue(store.getUpdates(targetId, references).isEmpty());
+
+        List<PropertyId> removed = new ArrayList<>(references.subList(REFERENCES / 2, REFERENCES));
+        apply(store.getUpdates(targetId, removed));
+        assertEquals(new HashSet<>(removed), getReferences());
+        List<PropertyId> added = new ArrayList<>(removed);
+        added.add(createReference());
+        apply(store.getUpdates(targetId, added));
+        assertEquals(new HashSet<>(added), getReferences());
+        apply(store.getUpdates(targetId, Collections.<PropertyId>emptyList()));
+        assertFalse(store.exists(targetId));
+    }
+
+    @Test
+    public void testRemoveAllReferences() throws Exception {
+        apply(store.getUpdates(targetId, createReferences(REFERENCES)));
+        apply(store.getUpdates(targetId, Collections.<PropertyId>emptyList()));
+        assertFalse(store.exists(targetId));
+        // the head item stays in place, so the node is known to have no references any more
+        assertFalse(store.load(targetId).hasReferences());
+    }
+
+    @Test
+    public void testLegacyReferencesAreReadAndMigrated() throws Exception {
+        List<PropertyId> references = createReferences(REFERENCES);
+        Map<String, AttributeValue> bundleItem = new HashMap<>(new TableKeys(null).getKey(targetId.toString()));
+        bundleItem.put(DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE,
+                new AttributeValue().withSS(toStrings(references)));
+        dynamoDB.putItem(new PutItemRequest().withTableName(BUNDLE_TABLE).withItem(bundleItem));
+        assertTrue(store.exists(targetId));
+        assertEquals(new HashSet<>(references), getReferences());
+
+        Item item = new Item()
+                .withString(DynamoDBPersistenceManager.ID_ATTRIBUTE, targetId.toString())
+                .withStringSet(DynamoDBPersistenceManager.REFERENCES_ATTRIBUTE, toStrings(references));
+        assertEquals(1, store.migrate(scan(item)));
+        dynamoDB.deleteItem(new DeleteItemRequest().withTableName(BUNDLE_TABLE)
+                .withKey(new TableKeys(null).getKey(targetId.toString())));
+        assertEquals(new HashSet<>(references), getReferences());
+        assertEquals(0, store.migrate(scan(item)));
+    }
+
+    private void apply(List<UpdateItemRequest> updates) {
+        for (UpdateItemRequest update : updates) {
+            dynamoDB.updateItem(update);
+        }
+    }
+
+    private Set<PropertyId> getReferences() throws Exception {
+        return new HashSet<>(store.load(targetId).getReferences());
+    }
+
+    private static boolean isRewrite(List<UpdateItemRequest> updates) {
+        for (UpdateItemRequest update : updates) {
+            if (update.getUpdateExpression().startsWith("SET ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<PropertyId> createReferences(int count) {
+        List<PropertyId> references = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            references.add(createReference());
+        }
+        return references;
+    }
+
+    private static PropertyId createReference() {
+        return new PropertyId(NodeId.randomId(), TestBundles.NAME_FACTORY.create(TestBundles.NAMESPACE, "ref"));
+    }
+
+    private static Set<String> toStrings(List<PropertyId> references) {
+        Set<String> strings = new HashSet<>();
+        for (PropertyId reference : references) {
+            strings.add(reference.toString());
+        }
+        return strings;
+    }
+
+    private static ScanIterator<Item> scan(Item... items) {
+        final Iterator<Item> iterator = Arrays.asList(items).iterator();
+        return new ScanIterator<Item>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Item next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
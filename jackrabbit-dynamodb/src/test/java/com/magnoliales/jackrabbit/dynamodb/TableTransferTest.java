@@ -0,0 +1,75 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.PutItemRequest;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class TableTransferTest {
+
+    private static final String TABLE = "bundles";
+    private static final String SOURCE = "website";
+    private static final String OTHER = "dam";
+    private static final String TARGET = "staging";
+    private static final int SEGMENTS = 4;
+    private static final int ITEMS = 50;
+
+    private InMemoryDynamoDB dynamoDB;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        dynamoDB = new InMemoryDynamoDB();
+        new TableKeys(SOURCE).getOrCreateTable(dynamoDB, TABLE, true);
+        directory = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testWorkspaceOfSharedTable() throws Exception {
+        List<NodeId> nodeIds = write(SOURCE, ITEMS);
+        write(OTHER, ITEMS);
+        assertEquals(ITEMS, new TableTransfer(dynamoDB, SEGMENTS, 0, SOURCE).exportTable(TABLE, directory));
+
+        assertEquals(ITEMS, new TableTransfer(dynamoDB, SEGMENTS, 0, TARGET).importTable(TABLE, TABLE, directory));
+        assertEquals(3 * ITEMS, dynamoDB.getItemCount(TABLE));
+        for (NodeId nodeId : nodeIds) {
+            assertNotNull(dynamoDB.getItem(new GetItemRequest().withTableName(TABLE)
+                    .withKey(new TableKeys(TARGET).getKey(nodeId.toString()))).getItem());
+        }
+    }
+
+    private List<NodeId> write(String workspace, int count) {
+        List<NodeId> nodeIds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            NodeId nodeId = NodeId.randomId();
+            Item item = new Item().withPrimaryKey(new TableKeys(workspace).getPrimaryKey(nodeId.toString()))
+                    .withLong(DynamoDBPersistenceManager.MOD_COUNT_ATTRIBUTE, 1);
+            dynamoDB.putItem(new PutItemRequest().withTableName(TABLE).withItem(ItemUtils.toAttributeValues(item)));
+            nodeIds.add(nodeId);
+        }
+        return nodeIds;
+    }
+}
@@ -0,0 +1,214 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.NameFactory;
+import org.apache.jackrabbit.spi.PathFactory;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.spi.commons.name.PathFactoryImpl;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.ChildNodeEntry;
+import static org.apache.jackrabbit.core.persistence.util.NodePropBundle.PropertyEntry;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Bundles with values of every property type for the codec tests, and a comparison of bundles by their contents.
+ */
+final class TestBundles {
+
+    static final NameFactory NAME_FACTORY = NameFactoryImpl.getInstance();
+    static final PathFactory PATH_FACTORY = PathFactoryImpl.getInstance();
+    static final String NAMESPACE = "http://magnoliales.com/test";
+    static final int[] ALL_TYPES = {PropertyType.BINARY, PropertyType.BOOLEAN, PropertyType.DATE,
+        PropertyType.DECIMAL, PropertyType.DOUBLE, PropertyType.LONG, PropertyType.NAME, PropertyType.PATH,
+        PropertyType.REFERENCE, PropertyType.WEAKREFERENCE, PropertyType.STRING, PropertyType.URI};
+
+    private static final int MILLIS = 123;
+    private static final int PROPERTY_MOD_COUNT = 7;
+    private static final short BUNDLE_MOD_COUNT = 42;
+    private static final int CHILDREN = 3;
+
+    private TestBundles() {
+    }
+
+    /**
+     * @param type the property type
+     * @return two distinct values of the type
+     * @throws RepositoryException if a value cannot be created
+     */
+    static InternalValue[] createValues(int type) throws RepositoryException {
+        switch (type) {
+            case PropertyType.BINARY:
+                return new InternalValue[] {InternalValue.create("binary \u00e4".getBytes(StandardCharsets.UTF_8)),
+                        InternalValue.create(new byte[] {0, -1, 1, Byte.MIN_VALUE, Byte.MAX_VALUE})};
+            case PropertyType.BOOLEAN:
+                return new InternalValue[] {InternalValue.create(true), InternalValue.create(false)};
+            case PropertyType.DATE:
+                Calendar date = Calendar.getInstance(TimeZone.getTimeZone("GMT+01:00"));
+                date.set(2015, Calendar.MARCH, 14, 15, 9, 26);
+                date.set(Calendar.MILLISECOND, MILLIS);
+                Calendar epoch = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+                epoch.setTimeInMillis(0);
+                return new InternalValue[] {InternalValue.create(date), InternalValue.create(epoch)};
+            case PropertyType.DECIMAL:
+                return new InternalValue[] {InternalValue.create(new BigDecimal("12345678901234567890.0123")),
+                        InternalValue.create(BigDecimal.ZERO.negate())};
+            case PropertyType.DOUBLE:
+                return new InternalValue[] {InternalValue.create(Math.PI), InternalValue.create(-0.5)};
+            case PropertyType.LONG:
+                return new InternalValue[] {InternalValue.create(Long.MIN_VALUE), InternalValue.create(-1L)};
+            case PropertyType.NAME:
+                return new InternalValue[] {InternalValue.create(NameConstants.NT_UNSTRUCTURED),
+                        InternalValue.create(NAME_FACTORY.create(NAMESPACE, "name"))};
+            case PropertyType.PATH:
+                return new InternalValue[] {InternalValue.create(PATH_FACTORY.getRootPath()),
+                        InternalValue.create(PATH_FACTORY.create(PATH_FACTORY.getRootPath(),
+                                NameConstants.JCR_CONTENT, true))};
+            case PropertyType.REFERENCE:
+                return new InternalValue[] {InternalValue.create(NodeId.randomId(), false),
+                        InternalValue.create(NodeId.randomId(), false)};
+            case PropertyType.WEAKREFERENCE:
+                return new InternalValue[] {InternalValue.create(NodeId.randomId(), true),
+                        InternalValue.create(NodeId.randomId(), true)};
+            case PropertyType.STRING:
+                return new InternalValue[] {InternalValue.create("string \u00e4\u20ac\ud83d\ude00"),
+                        InternalValue.create("second")};
+            case PropertyType.URI:
+                return new InternalValue[] {InternalValue.create(URI.create("http://magnoliales.com/a?b=c#d")),
+                        InternalValue.create(URI.create("relative/path"))};
+            default:
+                throw new IllegalArgumentException("No values for type " + type);
+        }
+    }
+
+    /**
+     * @param types the property types
+     * @return a bundle with a single and a multi-valued property of each type, mixins, children and a shared set
+     * @throws RepositoryException if a value cannot be created
+     */
+    static NodePropBundle createBundle(int... types) throws RepositoryException {
+        NodeId nodeId = NodeId.randomId();
+        NodePropBundle bundle = new NodePropBundle(nodeId);
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setParentId(NodeId.randomId());
+        Set<Name> mixinTypeNames = new HashSet<>();
+        mixinTypeNames.add(NameConstants.MIX_REFERENCEABLE);
+        mixinTypeNames.add(NAME_FACTORY.create(NAMESPACE, "mixin"));
+        bundle.setMixinTypeNames(mixinTypeNames);
+        bundle.setModCount(BUNDLE_MOD_COUNT);
+        for (int type : types) {
+            InternalValue[] values = createValues(type);
+            String typeName = PropertyType.nameFromValue(type);
+            bundle.addProperty(createProperty(nodeId, NAME_FACTORY.create(NAMESPACE, typeName), type, false,
+                    new InternalValue[] {values[0]}));
+            bundle.addProperty(createProperty(nodeId, NAME_FACTORY.create(NAMESPACE, typeName + "s"), type, true,
+                    values));
+        }
+        bundle.addProperty(createProperty(nodeId, NAME_FACTORY.create(NAMESPACE, "empty"), PropertyType.STRING,
+                true, new InternalValue[0]));
+        for (int i = 0; i < CHILDREN; i++) {
+            bundle.addChildNodeEntry(NAME_FACTORY.create(NAMESPACE, "child" + i), NodeId.randomId());
+        }
+        bundle.addChildNodeEntry(NameConstants.JCR_CONTENT, NodeId.randomId());
+        Set<NodeId> sharedSet = new HashSet<>();
+        sharedSet.add(NodeId.randomId());
+        bundle.setSharedSet(sharedSet);
+        return bundle;
+    }
+
+    static PropertyEntry createProperty(NodeId nodeId, Name name, int type, boolean multiValued,
+                                        InternalValue[] values) {
+        PropertyEntry property = new PropertyEntry(new PropertyId(nodeId, name));
+        property.setType(type);
+        property.setMultiValued(multiValued);
+        property.setModCount((short) PROPERTY_MOD_COUNT);
+        property.setValues(values);
+        return property;
+    }
+
+    /**
+     * Assert that two bundles have the same contents. Dates are compared by their instant and binaries by their
+     * bytes, all other values by type and string representation.
+     */
+    static void assertBundleEquals(NodePropBundle expected, NodePropBundle actual)
+            throws RepositoryException, IOException {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getNodeTypeName(), actual.getNodeTypeName());
+        assertEquals(expected.getParentId(), actual.getParentId());
+        assertEquals(expected.getMixinTypeNames(), actual.getMixinTypeNames());
+        assertEquals(expected.getModCount(), actual.getModCount());
+        assertEquals(expected.getPropertyNames(), actual.getPropertyNames());
+        for (PropertyEntry property : expected.getPropertyEntries()) {
+            assertPropertyEquals(property, actual.getPropertyEntry(property.getName()));
+        }
+        assertEquals(getChildren(expected), getChildren(actual));
+        Set<NodeId> sharedSet = expected.getSharedSet() == null ? Collections.<NodeId>emptySet()
+                : expected.getSharedSet();
+        assertEquals(sharedSet, actual.getSharedSet());
+    }
+
+    static void assertPropertyEquals(PropertyEntry expected, PropertyEntry actual)
+            throws RepositoryException, IOException {
+        String name = expected.getName().toString();
+        assertNotNull(name, actual);
+        assertEquals(name, expected.getType(), actual.getType());
+        assertEquals(name, expected.isMultiValued(), actual.isMultiValued());
+        assertEquals(name, expected.getModCount(), actual.getModCount());
+        assertEquals(name, expected.getValues().length, actual.getValues().length);
+        for (int i = 0; i < expected.getValues().length; i++) {
+            assertValueEquals(name, expected.getValues()[i], actual.getValues()[i]);
+        }
+    }
+
+    static void assertValueEquals(String message, InternalValue expected, InternalValue actual)
+            throws RepositoryException, IOException {
+        assertEquals(message, expected.getType(), actual.getType());
+        switch (expected.getType()) {
+            case PropertyType.BINARY:
+                assertArrayEquals(message, getBytes(expected), getBytes(actual));
+                break;
+            case PropertyType.DATE:
+                assertEquals(message, expected.getDate().getTimeInMillis(), actual.getDate().getTimeInMillis());
+                break;
+            default:
+                assertEquals(message, expected.getString(), actual.getString());
+                break;
+        }
+    }
+
+    private static byte[] getBytes(InternalValue value) throws RepositoryException, IOException {
+        try (InputStream stream = value.getStream()) {
+            return IOUtils.toByteArray(stream);
+        }
+    }
+
+    private static List<String> getChildren(NodePropBundle bundle) {
+        List<String> children = new ArrayList<>();
+        for (ChildNodeEntry child : bundle.getChildNodeEntries()) {
+            children.add(child.getName().toString() + "=" + child.getId().toString());
+        }
+        return children;
+    }
+}
@@ -0,0 +1,88 @@
+package com.magnoliales.jackrabbit.dynamodb;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+    private static final double MAX_RATE = 100.0;
+    private static final double SMALL_RATE = 10.0;
+    private static final double DELTA = 1e-9;
+    private static final long PAUSE = 1200L;
+    private static final long MIN_WAIT = 200L;
+
+    @Test
+    public void testThrottleHalvesRateOncePerSecond() {
+        TokenBucket bucket = new TokenBucket("test", MAX_RATE);
+        assertEquals(MAX_RATE, bucket.getRate(), DELTA);
+        bucket.onThrottle();
+        assertEquals(MAX_RATE / 2, bucket.getRate(), DELTA);
+        bucket.onThrottle();
+        assertEquals(MAX_RATE / 2, bucket.getRate(), DELTA);
+        assertEquals(2, bucket.getThrottles());
+    }
+
+    @Test
+    public void testRateDoesNotDropBelowMinimum() {
+        TokenBucket bucket = new TokenBucket("test", 0.0);
+        assertEquals(1.0, bucket.getMaxRate(), DELTA);
+        bucket.onThrottle();
+        assertEquals(1.0, bucket.getRate(), DELTA);
+    }
+
+    @Test
+    public void testRateIncreasesAdditivelyUpToMaximum() throws Exception {
+        TokenBucket bucket = new TokenBucket("test", MAX_RATE);
+        bucket.onThrottle();
+        Thread.sleep(PAUSE);
+        bucket.acquire(0, false);
+        double rate = bucket.getRate();
+        // a twentieth of the maximum rate per second without throttling
+        assertTrue("Rate " + rate, rate > MAX_RATE / 2 && rate < MAX_RATE * 3 / 4);
+
+        TokenBucket full = new TokenBucket("test", MAX_RATE);
+        Thread.sleep(PAUSE);
+        full.acquire(0, false);
+        assertEquals(MAX_RATE, full.getRate(), DELTA);
+    }
+
+    @Test
+    public void testAcquireWaitsForTokens() throws Exception {
+        TokenBucket bucket = new TokenBucket("test", SMALL_RATE);
+        bucket.acquire(SMALL_RATE, false);
+        long start = System.nanoTime();
+        bucket.acquire(SMALL_RATE / 2, false);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Waited " + waited + " ms", waited >= MIN_WAIT);
+        assertTrue(bucket.getWaitTime() > 0);
+    }
+
+    @Test
+    public void testDebtIsPaidOff() throws Exception {
+        TokenBucket bucket = new TokenBucket("test", SMALL_RATE);
+        bucket.adjust(SMALL_RATE);
+        long start = System.nanoTime();
+        bucket.acquire(SMALL_RATE / 2, false);
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Waited " + waited + " ms", waited >= MIN_WAIT);
+    }
+
+    @Test
+    public void testLowPriorityLeavesReserve() throws Exception {
+        TokenBucket bucket = new TokenBucket("test", SMALL_RATE);
+        // more than half of the tokens are taken, so a high priority request still passes at once
+        bucket.acquire(SMALL_RATE * 3 / 5, false);
+        long start = System.nanoTime();
+        bucket.acquire(1, false);
+        long highPriority = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Waited " + highPriority + " ms", highPriority < MIN_WAIT);
+        start = System.nanoTime();
+        bucket.acquire(1, true);
+        long lowPriority = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Waited " + lowPriority + " ms", lowPriority >= MIN_WAIT);
+    }
+}